@@ -0,0 +1,207 @@
+package lhash.bench;
+
+import lhash.KeyDistribution;
+import lhash.LinearHash;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks for the single key operations of {@link LinearHash}.
+ *
+ * Every trial builds a table of {@code tableSize} keys and then measures a
+ * single operation against it, both as throughput and as a latency
+ * distribution (sample time). Key accesses follow the configured
+ * {@code distribution}; misses use keys that are guaranteed not to be stored.
+ *
+ * Inserts and deletes are undone (resp. redone) at the end of each iteration,
+ * so every iteration starts against a table of the same size.
+ *
+ * The primitive lookups ({@code contains}) are expected to be allocation free
+ * in steady state; this can be checked with the gc profiler, by looking at the
+ * {@code gc.alloc.rate.norm} metric (bytes allocated per operation):
+ *
+ *      java -jar target/benchmarks.jar "LinearHashBenchmark.contains.*" -prof gc
+ *
+ * Larger tables (tens of millions of keys) are not part of the default matrix
+ * since building them dominates the run, but can be requested explicitly:
+ *
+ *      java -jar target/benchmarks.jar LinearHashBenchmark -p tableSize=10000000
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LinearHashBenchmark {
+
+    @Param({"32", "64", "256", "1024"})
+    public int keysPerBlock;
+
+    @Param({"0.5", "0.8"})
+    public float loadFactor;
+
+    @Param({"10000", "100000"})
+    public int tableSize;
+
+    @Param({"uniform", "sequential", "zipfian"})
+    public String distribution;
+
+    private final int init_pool = 16;       // initial visible pool
+    private final int epoch_thresh = 100;   // ticks per epoch
+    private final long seed = 42L;          // seed for the key streams
+
+    private File tbl_file;                  // backing file of the table
+    private LinearHash lin_hash;            // table under test
+    private KeyDistribution dist;           // access pattern
+
+    private int miss_cnt;                   // cursor for keys not in the table
+    private int ins_cnt;                    // cursor for fresh inserts
+    private int[] undo_log = new int[1024]; // keys touched by inserts/deletes
+    private int undo_len;                   // number of logged keys
+
+    private static final int BATCH = 256;   // keys per multi-key fetch
+    private final int[] batch = new int[BATCH];
+    private final boolean[] found = new boolean[BATCH];
+
+    @Setup(Level.Trial)
+    public void buildTable() throws IOException {
+        tbl_file = File.createTempFile("lhash-bench", ".bin");
+        lin_hash = new LinearHash(tbl_file.getPath(), keysPerBlock, init_pool,
+                loadFactor, loadFactor / 2, true, epoch_thresh);
+        dist = KeyDistribution.create(distribution, tableSize, seed);
+        for (int i = 0; i < tableSize; i++) {
+            lin_hash.insertKey(dist.key(i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void dropTable() throws IOException {
+        lin_hash.commitFile();
+        if (!tbl_file.delete()) {
+            tbl_file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Put the table back to its original contents; deleted keys are
+     * re-inserted and freshly inserted keys are removed.
+     */
+    @TearDown(Level.Iteration)
+    public void restoreTable() throws IOException {
+        for (int i = 0; i < undo_len; i++) {
+            int k = undo_log[i];
+            if (!lin_hash.deleteKey(k)) {
+                lin_hash.insertKey(k);
+            }
+        }
+        undo_len = 0;
+    }
+
+    /**
+     * Log a key so it can be restored at the end of the iteration.
+     *
+     * @param key the key to log.
+     */
+    private void log(int key) {
+        if (undo_len == undo_log.length) {
+            undo_log = Arrays.copyOf(undo_log, undo_len * 2);
+        }
+        undo_log[undo_len++] = key;
+    }
+
+    /**
+     * Return a key that is never stored in the table.
+     *
+     * @return a missing key.
+     */
+    private int missingKey() {
+        int idx = tableSize + miss_cnt;
+        if (++miss_cnt == tableSize) {
+            miss_cnt = 0;
+        }
+        return (dist.key(idx));
+    }
+
+    @Benchmark
+    public Integer fetchHit() throws IOException {
+        return (lin_hash.fetchKey(dist.key(dist.nextIndex())));
+    }
+
+    @Benchmark
+    public Integer fetchMiss() throws IOException {
+        return (lin_hash.fetchKey(missingKey()));
+    }
+
+    @Benchmark
+    public boolean containsHit() throws IOException {
+        return (lin_hash.contains(dist.key(dist.nextIndex())));
+    }
+
+    @Benchmark
+    public boolean containsMiss() throws IOException {
+        return (lin_hash.contains(missingKey()));
+    }
+
+    /**
+     * Fill the batch with hits and misses (one in four), following the distribution.
+     */
+    private void fillBatch() {
+        for (int i = 0; i < BATCH; i++) {
+            batch[i] = (i & 3) == 3 ? missingKey() : dist.key(dist.nextIndex());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int fetchKeysBatch() throws IOException {
+        fillBatch();
+        return (lin_hash.fetchKeys(batch, found));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int fetchKeysOneByOne() throws IOException {
+        fillBatch();
+        int hits = 0;
+        for (int i = 0; i < BATCH; i++) {
+            hits += lin_hash.contains(batch[i]) ? 1 : 0;
+        }
+        return (hits);
+    }
+
+    @Benchmark
+    public boolean insertKey() throws IOException {
+        // fresh keys come from above the stored range, so no duplicates.
+        int key = dist.key(2 * tableSize + ins_cnt++);
+        log(key);
+        return (lin_hash.insertKey(key));
+    }
+
+    @Benchmark
+    public boolean deleteKey() throws IOException {
+        int key = dist.key(dist.nextIndex());
+        boolean ret = lin_hash.deleteKey(key);
+        if (ret) {
+            log(key);
+        }
+        return (ret);
+    }
+}
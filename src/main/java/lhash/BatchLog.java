@@ -0,0 +1,166 @@
+package lhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Log of the write batch being applied to a table, kept next to the block
+ * file (as "fname.log"); see {@link LinearHash#write(WriteBatch)}.
+ *
+ * A batch is written as a single record and synced before any block is
+ * touched. The blocks are not synced with it, so the records are kept until
+ * they are (at the next checkpoint, on commit, or once the log outgrows
+ * {@link #MAX_SIZE}), and only then is the log emptied. A table opened with
+ * records in its log applies them again, in order; a record holds the final
+ * operation of each key, so applying the records twice leaves the table as
+ * applying them once.
+ *
+ * Layout of a record (integers are big endian):
+ * <pre>
+ *  4 (magic) + 4 (key count n) + 4 * n (keys) + n (1 for inserts, 0 for deletes) +
+ *  4 (CRC32 of everything before it)
+ * </pre>
+ */
+class BatchLog {
+
+    static final int MAGIC = 0x4C48424C;    // "LHBL"
+    static final long MAX_SIZE = 16L << 20; // log size past which the blocks are synced
+
+    private final File file;    // the log file
+    private FileChannel ch;     // opened on the first record
+    private long end;           // log size, after the records not yet covered by a sync
+
+    /**
+     * Create the log of a table
+     *
+     * @param fname file of the table.
+     */
+    BatchLog(String fname) {
+        this.file = new File(fname + ".log");
+    }
+
+    /**
+     * Write a batch as the last record of the log and sync it; records left
+     * from a previous open were applied (and the blocks synced) already.
+     *
+     * @param keys keys of the batch.
+     * @param ins  for each key, true to insert it and false to delete it.
+     * @param n    number of keys.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void append(int[] keys, boolean[] ins, int n) throws IOException {
+        if (ch == null) {
+            ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ch.truncate(0);
+        }
+        ByteBuffer rec = ByteBuffer.allocate(12 + 5 * n);
+        rec.putInt(MAGIC).putInt(n);
+        for (int i = 0; i < n; i++) {
+            rec.putInt(keys[i]);
+        }
+        for (int i = 0; i < n; i++) {
+            rec.put((byte) (ins[i] ? 1 : 0));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(rec.array(), 0, rec.position());
+        rec.putInt((int) crc.getValue());
+        rec.flip();
+        while (rec.hasRemaining()) {
+            end += ch.write(rec, end);
+        }
+        ch.force(false);
+    }
+
+    /**
+     * Check if the log holds records, i.e. batches applied since the blocks
+     * were last synced
+     *
+     * @return true if there are any.
+     */
+    boolean isPending() {
+        return (end > 0);
+    }
+
+    /**
+     * Return the size of the records in the log
+     *
+     * @return the log size in bytes.
+     */
+    long size() {
+        return (end);
+    }
+
+    /**
+     * Empty the log, once the blocks its batches were applied to are synced
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void clear() throws IOException {
+        if (ch != null) {
+            ch.truncate(0);
+            end = 0;
+        }
+    }
+
+    /**
+     * Close the log, removing the file
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void close() throws IOException {
+        if (ch != null) {
+            ch.close();
+            ch = null;
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * Read the batches left in the log of a table, in the order they were
+     * written; a record cut short (or otherwise damaged) was never synced, so
+     * its batch was not applied either and it ends the log.
+     *
+     * @return the batches, none if the log is empty.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    List<WriteBatch> read() throws IOException {
+        List<WriteBatch> batches = new ArrayList<>();
+        if (!file.exists()) {
+            return (batches);
+        }
+        byte data[] = Files.readAllBytes(file.toPath());
+        ByteBuffer rec = ByteBuffer.wrap(data);
+        CRC32 crc = new CRC32();
+        for (int off = 0; data.length - off >= 12 && rec.getInt(off) == MAGIC; ) {
+            int n = rec.getInt(off + 4);
+            if (n < 0 || n > (data.length - off - 12) / 5) {
+                break;
+            }
+            crc.reset();
+            crc.update(data, off, 8 + 5 * n);
+            if (rec.getInt(off + 8 + 5 * n) != (int) crc.getValue()) {
+                break;
+            }
+            WriteBatch batch = new WriteBatch(n);
+            for (int i = 0; i < n; i++) {
+                int key = rec.getInt(off + 8 + 4 * i);
+                if (data[off + 8 + 4 * n + i] != 0) {
+                    batch.insertKey(key);
+                } else {
+                    batch.deleteKey(key);
+                }
+            }
+            batches.add(batch);
+            off += 12 + 5 * n;
+        }
+        return (batches);
+    }
+}
@@ -1,9 +1,31 @@
 package lhash;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
 
 @SuppressWarnings("unused")
 class BlockManager {
@@ -16,14 +38,58 @@ class BlockManager {
     private int ovf_blocks;     // current overflow blocks
 
     private long initFileSize;  // initial file size
-    private long curFileSize;   // current file size
+    private long curFileSize;   // current file size (end of the last block)
+    private long allocFileSize; // allocated file size, past the current one when preallocated
 
     private int key_num;        // total stored key number
 
+    private int hash_pool;      // stored visible pool, zero if not stored
+    private int hash_split;     // stored split block pointer
+    private int min_pool;       // reserved (primary) blocks, merges stop there
+    private int hash_flags;     // stored hash state flags
+
+    /* lazy deletes */
+    static final int TOMBSTONE = Integer.MIN_VALUE; // marks a deleted key slot
+    private boolean lazy;       // deletes leave tombstones
+    private int dead_keys;      // tombstones in the file
+    private int sweep_ptr;      // next bucket the sweeper looks at
+    private boolean sweep_due;  // a sweep is due at the end of the next write
+
+    /* checkpoints, only when enabled */
+    private ScheduledExecutorService ckpt_pool; // thread timing the checkpoints and syncing the file
+    private volatile boolean ckpt_due;          // a checkpoint is due at the next operation end
+    private Future<?> ckpt_sync;                // pending sync of the file
+    private boolean dirty;                      // the header is marked as dirty
+    private long flags_pos;                     // position of the flags in the header, zero if not written
+
     private LinearHashConfiguration lin_conf;   // configuration instance.
     private LinearHashPerfLog lin_perf;         // performance tracker instance.
 
     private RandomAccessFile blk_file;          // file pointer to binary file
+    private SegmentedFile seg_file;             // blk_file, when the blocks are kept in segments
+
+    private int blk_buf[] = new int[0];         // scratch buffer for fetched block keys
+    private int batch_buf[] = new int[0];       // scratch buffer for the new keys of a bucket
+    private final byte shift_buf[];             // scratch buffer for shifting file parts
+    private final byte int_buf[] = new byte[4]; // scratch buffer for single int writes
+    private byte chain_buf[];                   // scratch buffer holding the pages of a chain
+    private ByteBuffer chain;                   // int view over the chain buffer
+    private int chain_blks[];                   // block numbers of the pages in the chain buffer
+    private long chain_order[];                 // chain reads, packed as (block << 32 | page)
+
+    private ChainDirectory chain_dir;           // in-memory copy of the block pointers
+
+    /* parallel chain reads, only when enabled */
+    private ExecutorService prefetch_pool;      // threads issuing the reads
+    private AsynchronousFileChannel prefetch_ch;// read only channel over the block file
+    private ByteBuffer chain_pages[];           // per page views over the chain buffer
+    private Future<?> chain_reads[];            // pending page reads
+
+    private LoadFactorTuner lf_tuner;           // adaptive balance factors, when enabled
+
+    /* read only mode */
+    private MappedByteBuffer blk_map;           // shared, read only mapping of the file
+    private BasicFileAttributes blk_attrs;      // identity of the mapped file
 
     /**
      * Initialize the block manager using the specified configuration instance.
@@ -33,14 +99,227 @@ class BlockManager {
      */
     BlockManager(LinearHashConfiguration lin_conf) throws IOException {
         this.lin_conf = lin_conf;
+        // the tracker is needed before opening, as it counts the file calls.
+        this.lin_perf = new LinearHashPerfLog(lin_conf);
         poolSize = lin_conf.getInitialBlockManagerPoolSize();
         ovf_blocks = 0;
         key_num = 0;
         curFileSize = prepareBlockStorage(lin_conf.getFilename(),
                 lin_conf.getOverrideFlag());
+        // tables holding keys turn lazy only once the tombstone value is out of
+        // the way, see enableLazyDeletes(int).
+        this.lazy = (hash_flags & LinearHashConfiguration.FLAG_TOMBSTONES) != 0 ||
+                (lin_conf.isLazyDeletes() && !lin_conf.isReadOnly() &&
+                        lin_conf.isHashStateStored() && key_num == 0);
+        if (lazy) {
+            hash_flags |= LinearHashConfiguration.FLAG_TOMBSTONES;
+        }
+        // once logged, the changes of a table keep being logged
+        if ((hash_flags & LinearHashConfiguration.FLAG_CHANGES) != 0) {
+            lin_conf.setChangeLog(true);
+        } else if (lin_conf.isChangeLogged() && !lin_conf.isReadOnly()) {
+            hash_flags |= LinearHashConfiguration.FLAG_CHANGES;
+        }
+        // a file still marked as dirty was changed after its last checkpoint, so the
+        // overflow block (and key) counts of the header might be behind the blocks
+        boolean recount = (hash_flags & LinearHashConfiguration.FLAG_DIRTY) != 0;
+        if (recount) {
+            // preallocated files might be longer, see countOverflowBlocks()
+            ovf_blocks = (int) ((allocFileSize - lin_conf.getHeaderSize()) /
+                    lin_conf.getBytesPerBlock()) - poolSize;
+        }
+        // the balance factors are only final after the header (if any) is read.
+        if (lin_conf.isAdaptiveBalance()) {
+            lf_tuner = new LoadFactorTuner(lin_conf);
+        }
+        // read only tables are served straight from the mapping, without private buffers
+        if (lin_conf.isReadOnly()) {
+            this.shift_buf = new byte[0];
+            mapFile();
+            return;
+        }
+        // the block size is only final after the header (if any) is read.
+        this.shift_buf = new byte[Math.max(lin_conf.getShiftBufferSize(), lin_conf.getBytesPerBlock())];
+        ensureChainCapacity(1);
+        loadChainDirectory();
+        if (recount && lin_conf.isPreallocated() && countOverflowBlocks() != ovf_blocks) {
+            ovf_blocks = countOverflowBlocks();
+            dead_keys = 0;
+            loadChainDirectory();
+        }
+        if (recount) {
+            curFileSize = ovfPadCalc();
+            key_num = isMinKeyStored() ? 1 : 0;
+            for (int b = 0; b < poolSize; b++) {
+                key_num += chain_dir.keys(b) - chain_dir.dead(b);
+            }
+        }
+        if (lin_conf.getCheckpointInterval() > 0 && !lin_conf.isReadOnly()) {
+            long ms = lin_conf.getCheckpointInterval();
+            ckpt_pool = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "lhash-checkpoint");
+                t.setDaemon(true);
+                return (t);
+            });
+            ckpt_pool.scheduleAtFixedRate(() -> ckpt_due = true, ms, ms, TimeUnit.MILLISECONDS);
+        }
+        // chains of segmented files are read one page after the other
+        if (lin_conf.getPrefetchThreads() > 0 && seg_file == null) {
+            openPrefetcher(lin_conf.getPrefetchThreads());
+        }
+    }
+
+    /**
+     * Map the whole file read only and keep its identity, so that a
+     * replacement of the file can be detected, see {@link #isStale()}.
+     *
+     * The mapping is shared, so the pages are backed by the page cache and
+     * shared with every other reader of the file (in any process).
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void mapFile() throws IOException {
+        // the segments are mapped on their own, only the header is left
+        long len = seg_file != null ? lin_conf.getHeaderSize() : blk_file.length();
+        if (len > Integer.MAX_VALUE) {
+            throw new IOException("File is too large to be mapped: " + len + " bytes");
+        }
+        blk_attrs = Files.readAttributes(Paths.get(lin_conf.getFilename()), BasicFileAttributes.class);
+        blk_map = blk_file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, len);
+        if (seg_file != null) {
+            seg_file.map();
+        }
+    }
+
+    /**
+     * Read an int of a block from the mapping of a read only table
+     *
+     * @param off position of the int.
+     * @return the int stored there.
+     */
+    private int mappedInt(int off) {
+        return (seg_file != null ? seg_file.mappedInt(off) : blk_map.getInt(off));
+    }
+
+    /**
+     * Check if the file of a read only table has been replaced (or changed)
+     * since it was opened, by comparing its identity, size and modification
+     * time; tables opened for writing are never stale.
+     *
+     * @return true if the file has been replaced, changed or removed.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    boolean isStale() throws IOException {
+        if (blk_attrs == null) {
+            return (false);
+        }
+        BasicFileAttributes cur;
+        try {
+            cur = Files.readAttributes(Paths.get(lin_conf.getFilename()), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return (true);
+        }
+        Object key = blk_attrs.fileKey();
+        return ((key != null && !key.equals(cur.fileKey())) ||
+                cur.size() != blk_attrs.size() ||
+                !cur.lastModifiedTime().equals(blk_attrs.lastModifiedTime()));
+    }
+
+    /**
+     * Build the chain directory (pointers and bucket key counts) by scanning
+     * the block headers of the file; the file is read in chunks of whole blocks.
+     * With lazy deletes the tombstones of each bucket are counted as well.
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void loadChainDirectory() throws IOException {
+        int bpb = lin_conf.getBytesPerBlock(),
+                blocks = poolSize + ovf_blocks,
+                max_run = Math.max(1, shift_buf.length / bpb);
+        ByteBuffer run = ByteBuffer.wrap(shift_buf);
+        int blk_dead[] = lazy ? new int[blocks] : null;
+
+        chain_dir = new ChainDirectory(blocks, lin_conf.getKeysPerBlock());
+        for (int i = 0, run_len; i < blocks; i += run_len) {
+            run_len = Math.min(max_run, blocks - i);
+            blk_file.seek(blockOffset(i));
+            blk_file.readFully(shift_buf, 0, run_len * bpb);
+            for (int r = 0; r < run_len; r++) {
+                int b = i + r;
+                // back pointers are only meaningful for overflow blocks
+                chain_dir.load(b, b >= poolSize ? fromPointer(run.getInt(r * bpb)) : 0,
+                        fromPointer(run.getInt(r * bpb + lin_conf.getKeyByteSize())));
+                if (b < poolSize) {
+                    chain_dir.setKeys(b, run.getInt(r * bpb));
+                }
+                // unused slots are zeroed, so all of them can be looked at
+                for (int j = 0, k = r * bpb + lin_conf.getBlockHeaderOffset();
+                     blk_dead != null && j < lin_conf.getKeysPerBlock(); j++, k += lin_conf.getKeyByteSize()) {
+                    if (run.getInt(k) == TOMBSTONE) {
+                        blk_dead[b]++;
+                    }
+                }
+            }
+        }
+        for (int b = 0; blk_dead != null && b < poolSize; b++) {
+            int d = blk_dead[b];
+            for (int blk = chain_dir.next(b); blk != 0; blk = chain_dir.next(blk)) {
+                d += blk_dead[blk];
+            }
+            chain_dir.setDead(b, d);
+            dead_keys += d;
+        }
+    }
+
+    /**
+     * Count the overflow blocks reachable from the primary blocks; the zeroed
+     * blocks preallocated past the last overflow block are not linked to any
+     * chain, so this finds where the blocks of a dirty file end.
+     *
+     * @return the number of overflow blocks in use.
+     */
+    private int countOverflowBlocks() {
+        int last = poolSize - 1;
+        for (int b = 0; b < poolSize; b++) {
+            for (int blk = chain_dir.next(b); blk != 0; blk = chain_dir.next(blk)) {
+                last = Math.max(last, blk);
+            }
+        }
+        return (last + 1 - poolSize);
+    }
+
+    /**
+     * Open the channel and the threads used for reading the pages of a chain
+     * in parallel.
+     *
+     * @param threads number of reader threads.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void openPrefetcher(int threads) throws IOException {
+        prefetch_pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "lhash-prefetch");
+            t.setDaemon(true);
+            return (t);
+        });
+        prefetch_ch = AsynchronousFileChannel.open(Paths.get(lin_conf.getFilename()),
+                EnumSet.of(StandardOpenOption.READ), prefetch_pool);
+        // make the per page views for the current buffer
+        chain_pages = new ByteBuffer[0];
+        ensureChainCapacity(chain_blks.length);
+    }
+
+    /**
+     * Open the block file, counting its calls if tracking is enabled.
+     *
+     * @param fname filename to open
+     * @return the opened file.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private RandomAccessFile openFile(String fname) throws IOException {
         if (lin_conf.isTrackingEnabled()) {
-            this.lin_perf = new LinearHashPerfLog(lin_conf);
+            return (new CountingRandomAccessFile(fname, lin_conf.getFileMode(), lin_perf));
         }
+        return (new RandomAccessFile(fname, lin_conf.getFileMode()));
     }
 
     /**
@@ -53,6 +332,13 @@ class BlockManager {
      */
     private long prepareBlockStorage(String fname, boolean override) throws IOException {
         File f = new File(fname);
+        // read only tables are opened as they are, never created nor truncated
+        if (lin_conf.isReadOnly()) {
+            if (!f.exists()) {
+                throw new FileNotFoundException("Cannot open missing file " + fname + " read only");
+            }
+            readFileHeader(fname);
+        } else
         // check if the file exists and depending on the override flag perform actions
         if (f.exists()) {
             if (override) {
@@ -71,8 +357,9 @@ class BlockManager {
         } else {
             openAndExpand(fname);
         }
-        // update file length variables
-        initFileSize = blk_file.length();
+        // update file length variables; preallocated files are longer than their blocks
+        allocFileSize = blk_file.length();
+        initFileSize = lin_conf.isPreallocated() ? ovfPadCalc() : allocFileSize;
         curFileSize = initFileSize;
         return (initFileSize);
     }
@@ -85,10 +372,128 @@ class BlockManager {
      */
     private void openAndExpand(String fname) throws IOException {
         // in any case, open it.
-        blk_file = new RandomAccessFile(fname, lin_conf.getFileMode());
+        if (lin_conf.isSegmented()) {
+            hash_flags |= LinearHashConfiguration.FLAG_SEGMENTED;
+            blk_file = seg_file = new SegmentedFile(lin_conf, 0, true,
+                    lin_conf.isTrackingEnabled() ? lin_perf : null);
+        } else {
+            blk_file = openFile(fname);
+        }
+        if (lin_conf.isPreallocated()) {
+            hash_flags |= LinearHashConfiguration.FLAG_PREALLOC;
+        }
         // now check if the file was created now and expand it to the necessary size.
-        blk_file.setLength(0L);
-        blk_file.setLength(blockOffset(poolSize));
+        truncateFile(0L);
+        resizeFile(poolSize, 0);
+    }
+
+    /**
+     * Resize the file to hold the given numbers of primary and overflow blocks;
+     * the primary blocks added come zeroed (any overflow blocks are kept only
+     * if the primary blocks do not change).
+     *
+     * @param pool number of primary blocks.
+     * @param ovf  number of overflow blocks.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void resizeFile(int pool, int ovf) throws IOException {
+        if (seg_file != null) {
+            seg_file.setPool(pool);
+        }
+        setFileLength(blockOffset(pool + ovf));
+    }
+
+    /**
+     * Set the length of the file, that is where its last block ends.
+     *
+     * Preallocated files grow by chunks of at least the configured number of
+     * blocks, or an eighth of their size once that is more, so most calls
+     * only move the end of the blocks; nor do they shrink: the blocks dropped
+     * are zeroed (the file past the last block is always zeroed, so blocks
+     * added there come zeroed) and the space is kept until the file is
+     * trimmed, see {@link #trimFile()}.
+     *
+     * @param len the new length.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void setFileLength(long len) throws IOException {
+        if (!lin_conf.isPreallocated()) {
+            blk_file.setLength(len);
+            allocFileSize = len;
+        } else if (len > allocFileSize) {
+            long hdr = lin_conf.getHeaderSize(),
+                    step = (long) lin_conf.getPreallocBlocks() * lin_conf.getBytesPerBlock(),
+                    grow = Math.max(step, (allocFileSize - hdr) / 8);
+            // whole steps past the header
+            allocFileSize = hdr + ((Math.max(len, allocFileSize + grow) - hdr + step - 1) / step) * step;
+            blk_file.setLength(allocFileSize);
+        } else if (len < curFileSize) {
+            zeroFile(len, curFileSize);
+        }
+        curFileSize = len;
+    }
+
+    /**
+     * Truncate the file, dropping any space allocated past the given length
+     *
+     * @param len the new length.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void truncateFile(long len) throws IOException {
+        blk_file.setLength(len);
+        curFileSize = len;
+        allocFileSize = len;
+    }
+
+    /**
+     * Give back the space preallocated past the last block of the file; this
+     * is done when the file is committed, and on compaction.
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void trimFile() throws IOException {
+        if (lin_conf.isPreallocated() && allocFileSize > curFileSize && !lin_conf.isReadOnly()) {
+            truncateFile(curFileSize);
+        }
+    }
+
+    /**
+     * Zero a part of the file, through the shift buffer
+     *
+     * @param from start of the part.
+     * @param to   end of the part.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void zeroFile(long from, long to) throws IOException {
+        int chunk;
+        Arrays.fill(shift_buf, 0, (int) Math.min(shift_buf.length, to - from), (byte) 0);
+        blk_file.seek(from);
+        for (long left = to - from; left > 0; left -= chunk) {
+            chunk = (int) Math.min(shift_buf.length, left);
+            blk_file.write(shift_buf, 0, chunk);
+        }
+    }
+
+    /**
+     * Return the value stored in the file for a pointer to a block; segmented
+     * files store the overflow blocks as -(overflow block number) - 1, so their
+     * pointers do not change as primary blocks are added or removed.
+     *
+     * @param blk_num block number, zero for none.
+     * @return the value stored.
+     */
+    private int toPointer(int blk_num) {
+        return (seg_file == null || blk_num < poolSize ? blk_num : poolSize - blk_num - 1);
+    }
+
+    /**
+     * Return the block number of a pointer stored in the file, see {@link #toPointer(int)}
+     *
+     * @param ptr the value stored.
+     * @return the block number, zero for none.
+     */
+    private int fromPointer(int ptr) {
+        return (seg_file == null || ptr >= 0 ? ptr : poolSize - ptr - 1);
     }
 
     /**
@@ -107,6 +512,15 @@ class BlockManager {
      *  4 (tick thresh)
      *  ) = 40 bytes
      *
+     * Page aligned files follow it with 4 (magic) + 4 (page size) bytes and
+     * then pad the header to a full page, so that every block starts on a page
+     * boundary.
+     *
+     * Then comes the hash state, 4 (magic) + 4 (visible pool) + 4 (split
+     * pointer) + 4 (reserved pool) + 4 (flags) bytes; it is missing from files
+     * created before it was stored. Segmented files follow it with 4 (blocks
+     * per segment) bytes.
+     *
      */
     private void writeFileHeader()
             throws IOException {
@@ -143,6 +557,31 @@ class BlockManager {
 
         /* write epoch thresh */
         blk_file.writeInt(lin_conf.getTickThresh());
+
+        /* page aligned marker and page size */
+        if (lin_conf.isPageAligned()) {
+            blk_file.writeInt(LinearHashConfiguration.PAGE_MAGIC);
+            blk_file.writeInt(lin_conf.getPageSize());
+        }
+
+        /* hash state, if there is room for it */
+        if (lin_conf.isHashStateStored()) {
+            blk_file.writeInt(LinearHashConfiguration.STATE_MAGIC);
+            blk_file.writeInt(hash_pool);
+            blk_file.writeInt(hash_split);
+            blk_file.writeInt(min_pool);
+            flags_pos = blk_file.getFilePointer();
+            blk_file.writeInt(hash_flags);
+            /* segment size of segmented files */
+            if (lin_conf.isSegmented()) {
+                blk_file.writeInt(lin_conf.getSegmentBlocks());
+            }
+            /* growth step and allocated size of preallocated files */
+            if (lin_conf.isPreallocated()) {
+                blk_file.writeInt(lin_conf.getPreallocBlocks());
+                blk_file.writeLong(allocFileSize);
+            }
+        }
     }
 
     /**
@@ -155,7 +594,7 @@ class BlockManager {
         System.out.println("Reading data from header, configuration might change...");
         /* open the file */
         if (blk_file == null) {
-            blk_file = new RandomAccessFile(fname, lin_conf.getFileMode());
+            blk_file = openFile(fname);
         }
         /* seek to the beginning */
         blk_file.seek(0L);
@@ -174,6 +613,101 @@ class BlockManager {
 
         /* read configuration particulars */
         lin_conf.readFileHeader(blk_file);
+
+        /* hash state, if stored */
+        long pos = blk_file.getFilePointer();
+        if (blk_file.length() >= pos + 5 * lin_conf.getKeyByteSize() &&
+                blk_file.readInt() == LinearHashConfiguration.STATE_MAGIC) {
+            hash_pool = blk_file.readInt();
+            hash_split = blk_file.readInt();
+            min_pool = blk_file.readInt();
+            flags_pos = blk_file.getFilePointer();
+            hash_flags = blk_file.readInt();
+            lin_conf.setHashStateStored(true);
+            lin_conf.setSegmentBlocks((hash_flags & LinearHashConfiguration.FLAG_SEGMENTED) != 0 ?
+                    blk_file.readInt() : 0);
+            lin_conf.setPreallocBlocks((hash_flags & LinearHashConfiguration.FLAG_PREALLOC) != 0 ?
+                    blk_file.readInt() : 0);
+            // the allocated size is the length of the file itself, once opened
+            if (lin_conf.isPreallocated()) {
+                blk_file.readLong();
+            }
+            // once tombstones might be in the file, they have to be looked out for
+            if ((hash_flags & LinearHashConfiguration.FLAG_TOMBSTONES) != 0 &&
+                    !lin_conf.isLazyDeletes()) {
+                lin_conf.setLazyDeletes(true, lin_conf.getSweepBudget());
+            }
+        } else {
+            // page aligned files have room for it anyway
+            lin_conf.setHashStateStored(lin_conf.isPageAligned());
+            lin_conf.setSegmentBlocks(0);
+            lin_conf.setPreallocBlocks(0);
+        }
+        // the blocks of segmented files are in the segments
+        if (lin_conf.isSegmented()) {
+            blk_file.close();
+            blk_file = seg_file = new SegmentedFile(lin_conf, poolSize, false,
+                    lin_conf.isTrackingEnabled() ? lin_perf : null);
+        }
+    }
+
+    /**
+     * Return the visible pool stored in the header
+     *
+     * @return the stored visible pool, zero if the header did not have one.
+     */
+    int getStoredVisiblePool() {
+        return hash_pool;
+    }
+
+    /**
+     * Return the split block pointer stored in the header
+     *
+     * @return the stored split block pointer.
+     */
+    int getStoredSplitPointer() {
+        return hash_split;
+    }
+
+    /**
+     * Return the number of reserved (primary) blocks
+     *
+     * @return the reserved blocks, zero if none.
+     */
+    int getReservedPoolSize() {
+        return min_pool;
+    }
+
+    /**
+     * Grow an empty table to the given number of (primary) blocks, with a
+     * single file size change, and keep them reserved: merges do not go
+     * below that.
+     *
+     * @param pool number of blocks.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void reserve(int pool) throws IOException {
+        if (key_num > 0 || ovf_blocks > 0) {
+            throw new IllegalStateException("Only empty tables can be pre-sized");
+        }
+        if (pool > poolSize) {
+            // the new blocks are empty, so they come zeroed
+            resizeFile(pool, 0);
+            chain_dir = new ChainDirectory(pool, lin_conf.getKeysPerBlock());
+            poolSize = pool;
+        }
+        min_pool = pool;
+    }
+
+    /**
+     * Set the hash state, to be stored in the header on commit
+     *
+     * @param visible_pool the visible pool.
+     * @param split_ptr    the split block pointer.
+     */
+    void setHashState(int visible_pool, int split_ptr) {
+        this.hash_pool = visible_pool;
+        this.hash_split = split_ptr;
     }
 
     /**
@@ -249,61 +783,56 @@ class BlockManager {
      * @throws IOException is thrown when there is an I/O error during the operation.
      */
     void addBlock() throws IOException {
-        int ovf_ptr;
+        addBlocks(1);
+    }
+
+    /**
+     * Place a number of blocks in the file at once, shifting the overflow
+     * blocks (and updating the pointers to them) only once.
+     *
+     * @param count number of blocks to add.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void addBlocks(int count) throws IOException {
         int poolBytes = calcPoolSize();
 
+        if (count <= 0) {
+            return;
+        }
         if (lin_conf.isDebugEnabled()) {
-            System.err.println("Adding a block with number " + (poolSize));
+            System.err.println("Adding " + count + " block(s) from number " + (poolSize));
+            System.out.println("new block, shifting bytes: " + (blk_file.length() - poolBytes));
         }
 
-        blk_file.seek(poolBytes);
-        // create an overflow array
-        long shiftBytes = blk_file.length() - blk_file.getFilePointer();
-        byte ovf_shift[] = new byte[(int) shiftBytes];
-
-        if (lin_conf.isDebugEnabled()) {
-            System.out.println("new block, shifting bytes: " + shiftBytes);
+        // segments keep the overflow blocks apart, and the pointers to them do not change
+        if (seg_file != null) {
+            seg_file.setPool(poolSize + count);
+            chain_dir.insertBlocks(poolSize, count);
+            this.poolSize += count;
+            curFileSize = blk_file.length();
+            return;
         }
 
-        // read the overflow parts of the file
-        blk_file.readFully(ovf_shift);
-        blk_file.setLength(poolBytes);
+        // move the overflow parts of the file forward
+        shiftTailForward(poolBytes, count * lin_conf.getBytesPerBlock());
 
         // increase blocks
-        this.poolSize++;
-        // recalculate the pool size
-        poolBytes = calcPoolSize();
-        // expand the file
-        blk_file.setLength(poolBytes);
-        blk_file.seek(poolBytes);
-        // finally write the ovf block
-        blk_file.write(ovf_shift);
-
-        // forward ovf block pointer update
-        for (int i = 0; i < ((poolSize + ovf_blocks) - 1); i++) {
-            // seek overflow block, read if we have next
-            blk_file.seek(offsetCalc(i));
-            ovf_ptr = blk_file.readInt();
-            // if we have a block, seek and write it.
-            if (ovf_ptr != 0) {
-                blk_file.seek(offsetCalc(i));
-                blk_file.writeInt(ovf_ptr + 1);
-            }
-        }
-
-        // reverse ovf block pointer update
+        chain_dir.insertBlocks(poolSize, count);
+        this.poolSize += count;
+
+        // forward ovf block pointer update; every pointer set points to a moved block
+        for (int i = 0; i < (poolSize + ovf_blocks); i++) {
+            if (chain_dir.next(i) != 0) {
+                writeIntAt(offsetCalc(i), chain_dir.next(i));
+            }
+        }
+
+        // reverse ovf block pointer update, only the ones pointing to moved blocks
         for (int i = poolSize; i < (poolSize + ovf_blocks); i++) {
-            // seek again overflow block, read if we have next
-            blk_file.seek(blockOffset(i));
-            ovf_ptr = blk_file.readInt();
-            // if the block mark exist write it.
-            if (ovf_ptr >= (poolSize - 1)) {
-                blk_file.seek(blockOffset(i));
-                blk_file.writeInt(ovf_ptr + 1);
+            if (chain_dir.prev(i) >= poolSize) {
+                writeIntAt(blockOffset(i), chain_dir.prev(i));
             }
         }
-        // update current file-size (in bytes)
-        curFileSize = blk_file.length();
     }
 
     /**
@@ -313,8 +842,8 @@ class BlockManager {
      * @throws IOException is thrown when there is an I/O error during the operation.
      */
     private void addOvfBlock(int blk_num) throws IOException {
-        int ovf_blk,    // overflow block offset
-                ovf_nptr;   // overflow block next
+        int ovf_blk,    // last block of the chain
+                ovf_new;    // the new overflow block
 
         // no overflow block present
         if ((poolSize - 1) < blk_num) {
@@ -325,296 +854,785 @@ class BlockManager {
         this.ovf_blocks++;
         int ovf_pad = ovfPadCalc();
         // now adjust the length of the file to account for the new ovf block
-        blk_file.setLength(ovf_pad);
-        blk_file.seek(blockOffset(blk_num));
-        // parse the keys in current block
-        blk_file.readInt();
-        ovf_blk = blk_file.readInt();
-
-        // check if we didn't have any overflow blocks before
-        if (ovf_blk == 0) {
-            // seek file in correct position and write correct value
-            blk_file.seek(offsetCalc(blk_num));
-            // update counter
-            blk_file.writeInt((poolSize + ovf_blocks) - 1);
-            // update previous block pointer
-            blk_file.seek(blockOffset((poolSize + ovf_blocks) - 1));
-            blk_file.writeInt(blk_num);
-        } else {
-            // seek to the correct block before adding
-            while (true) {
-                blk_file.seek(offsetCalc(ovf_blk));
-                ovf_nptr = blk_file.readInt();
-                if (ovf_nptr == 0) {
-                    break;
-                }
-                ovf_blk = ovf_nptr;
-            }
-            // perform update and write operation on the file.
-            blk_file.seek(offsetCalc(ovf_blk));
-            blk_file.writeInt((poolSize + ovf_blocks) - 1);
-            blk_file.seek(blockOffset((poolSize + ovf_blocks) - 1));
-            blk_file.writeInt(ovf_blk);
+        setFileLength(ovf_pad);
+
+        // link the new block after the end of the chain
+        ovf_blk = chain_dir.tail(blk_num);
+        ovf_new = chain_dir.appendOverflow(blk_num);
+        writeIntAt(offsetCalc(ovf_blk), toPointer(ovf_new));
+        // update previous block pointer
+        writeIntAt(blockOffset(ovf_new), toPointer(ovf_blk));
+    }
+
+    /**
+     * Shift the part of the file starting at {@code from} forward by
+     * {@code shift} bytes and zero the gap left behind; the file is moved
+     * in chunks (from its end) through the shift buffer.
+     *
+     * @param from  start of the part to shift.
+     * @param shift bytes to shift by.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void shiftTailForward(long from, int shift) throws IOException {
+        long pos = curFileSize;
+        int chunk;
+        // expand the file first, so that the moved blocks land in allocated space
+        setFileLength(Math.max(pos, from) + shift);
+        while (pos > from) {
+            chunk = (int) Math.min(shift_buf.length, pos - from);
+            pos -= chunk;
+            blk_file.seek(pos);
+            blk_file.readFully(shift_buf, 0, chunk);
+            blk_file.seek(pos + shift);
+            blk_file.write(shift_buf, 0, chunk);
         }
-        // update current file size (in bytes)
-        curFileSize = blk_file.length();
+        // clear the gap
+        zeroFile(from, from + shift);
     }
 
     /**
-     * Function that fetches a particular block
+     * Shift the part of the file starting at {@code from} back by {@code shift}
+     * bytes (overwriting what was there) and truncate the file accordingly;
+     * the file is moved in chunks through the shift buffer.
      *
-     * @param blk_num block number that we fetch.
-     * @return the block keys (in an array)
+     * @param from  start of the part to shift.
+     * @param shift bytes to shift by.
      * @throws IOException is thrown when there is an I/O error during the operation.
      */
-    int[] fetchBlock(int blk_num) throws IOException {
-        int blk_keys,   // number of keys in the block
-                ovf_ptr;    // over flow block presence flag
+    private void shiftTailBack(long from, int shift) throws IOException {
+        long end = curFileSize;
+        int chunk;
+        for (long pos = from; pos < end; pos += chunk) {
+            chunk = (int) Math.min(shift_buf.length, end - pos);
+            blk_file.seek(pos);
+            blk_file.readFully(shift_buf, 0, chunk);
+            blk_file.seek(pos - shift);
+            blk_file.write(shift_buf, 0, chunk);
+        }
+        setFileLength(Math.max(from, end) - shift);
+    }
 
-        int blk_con[];    // block elements
+    /**
+     * Read a whole block (header and keys) into the first page of the chain
+     * buffer, with a single read.
+     *
+     * @param blk_num block number to read.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void readPage(int blk_num) throws IOException {
         blk_file.seek(blockOffset(blk_num));
-        // read number of keys and ovf blocks (if any)
-        blk_keys = blk_file.readInt();
-        ovf_ptr = blk_file.readInt();
+        blk_file.readFully(chain_buf, 0, lin_conf.getBytesPerBlock());
+    }
 
-        if (lin_conf.isDebugEnabled()) {
-            System.err.println("fetching Block (" + blk_num + ") keys: " +
-                    blk_keys + " ovf_ptr: " + ovf_ptr);
-        }
+    /**
+     * Return an int of a page in the chain buffer; index 0 holds the key count
+     * (or the back pointer of overflow blocks), index 1 the overflow pointer
+     * and the keys start at {@link #keyStart()}.
+     *
+     * @param page page of the chain, 0 being the primary block.
+     * @param idx  index of the int in the page.
+     * @return the value at that index.
+     */
+    private int pageInt(int page, int idx) {
+        return (chain.getInt(page * lin_conf.getBytesPerBlock() + idx * lin_conf.getKeyByteSize()));
+    }
 
-        // nothing in this bucket
-        if (blk_keys == 0) {
-            return (null);
-        }
-        // allocate key array
-        blk_con = new int[blk_keys];
-        for (int i = 1; i < (blk_keys + 1); i++) {
-            // read elements
-            blk_con[i - 1] = blk_file.readInt();
-            // if block end reached, check for overflow
-            // block presence and go there
-            if ((i % lin_conf.getKeysPerBlock()) == 0) {
-                // update ovf pointer as well.
-                blk_file.seek(offsetCalc(ovf_ptr));
-                ovf_ptr = blk_file.readInt();
-            }
-        }
-        // finally return the elements
-        return (blk_con);
+    /**
+     * Return the index of the first key in a page
+     *
+     * @return the index (in ints) of the first key in the page.
+     */
+    private int keyStart() {
+        return (lin_conf.getBlockHeaderOffset() / lin_conf.getKeyByteSize());
     }
 
     /**
-     * Delete the specified overflow block
+     * Look for a value among the first keys of a page in the chain buffer
      *
-     * @param blk_num block number that we delete (must be overflow).
-     * @throws IOException is thrown when there is an I/O error during the operation.
+     * @param page page of the chain, 0 being the primary block.
+     * @param val  value to look for.
+     * @param cnt  number of keys present in the page.
+     * @return the slot of the value in the page, -1 if not present.
      */
-    private void deleteOvfBlock(int blk_num) throws IOException {
-        int ovf_ptr,        // ovf block pointer (initial)
-                ovf_nptr,       // ovf block pointer next
-                ovf_pptr,       // ovf block pointer previous
-                ovf_cptr;       // ovf block pointer iterator
-        long shift_cnt;     // number of bytes to shift
-        byte blk_shift[];   // shift file part
-        // check if doesn't exist.
-        if ((poolSize - 1) < blk_num) {
-            return;
-        }
-        // seek to correct position
-        blk_file.seek(offsetCalc(blk_num));
-        // read the ovf block presence
-        ovf_ptr = blk_file.readInt();
-        // no ovf blocks, return
-        if (ovf_ptr == 0) {
-            return;
-        }
-        // traverse to the end of the ovf blocks while
-        // keeping offset pointers for previous, next
-        // and current ovf blocks
-        while (true) {
-            blk_file.seek(blockOffset(ovf_ptr));
-            ovf_pptr = blk_file.readInt();
-            ovf_nptr = blk_file.readInt();
-            if (ovf_nptr == 0) {
+    private int pageIndexOf(int page, int val, int cnt) {
+        return (indexOf(chain, page * lin_conf.getBytesPerBlock() + lin_conf.getBlockHeaderOffset(), val, cnt));
+    }
+
+    /**
+     * Look for a value in a run of keys; the keys are compared eight at a
+     * time without branching in between, so the loop is unrolled and only
+     * takes a branch per eight keys (large pages are searched as fast as
+     * memory allows).
+     *
+     * @param buf buffer holding the keys (absolute gets only).
+     * @param off offset of the first key in the buffer.
+     * @param val value to look for.
+     * @param cnt number of keys.
+     * @return the index of the value among the keys, -1 if not present.
+     */
+    static int indexOf(ByteBuffer buf, int off, int val, int cnt) {
+        int j = 0;
+        for (; j + 8 <= cnt; j += 8, off += 32) {
+            if (buf.getInt(off) == val | buf.getInt(off + 4) == val |
+                    buf.getInt(off + 8) == val | buf.getInt(off + 12) == val |
+                    buf.getInt(off + 16) == val | buf.getInt(off + 20) == val |
+                    buf.getInt(off + 24) == val | buf.getInt(off + 28) == val) {
                 break;
             }
-            ovf_ptr = ovf_nptr;
-        }
-        // to go the previous ovf block
-        blk_file.seek(offsetCalc(ovf_pptr));
-        // mark it as an end block
-        blk_file.writeInt(0);
-        // calculate shift-FROM position (end of all blocks)
-        blk_file.seek(blockOffset(ovf_ptr + 1));
-        // calculate shift length
-        shift_cnt = blk_file.length() - blk_file.getFilePointer();
-        // allocate shift bytes
-        blk_shift = new byte[(int) shift_cnt];
-        // read the rest of the file in memory before shifting
-        blk_file.readFully(blk_shift);
-        // decrement ovf blocks
-        ovf_blocks--;
-        // remove the block
-        blk_file.setLength(blockOffset(ovf_ptr));
-        // seek the correct position and write the buffered part
-        blk_file.seek(blockOffset(ovf_ptr));
-        blk_file.write(blk_shift);
-        for (int i = 0; i < ((poolSize + ovf_blocks) - 1); i++) {
-            blk_file.seek(offsetCalc(i));
-            // update current the pointer
-            ovf_cptr = blk_file.readInt();
-            // this is to update the rest of the pointers
-            if (ovf_cptr > ovf_ptr) {
-                blk_file.seek(offsetCalc(i));
-                blk_file.writeInt(ovf_cptr - 1);
-            }
         }
-        // update the reverse pointers of each block
-        for (int i = poolSize; i < ((poolSize + ovf_blocks)); i++) {
-            blk_file.seek(blockOffset(i));
-            ovf_cptr = blk_file.readInt();
-            // this is to update the rest of the pointers
-            if (ovf_cptr > ovf_ptr) {
-                blk_file.seek(blockOffset(i));
-                blk_file.writeInt(ovf_cptr - 1);
+        // the rest of the keys, or the block of eight that holds the value
+        for (; j < cnt; j++, off += 4) {
+            if (buf.getInt(off) == val) {
+                return (j);
             }
         }
-        // update current file size (in bytes)
-        curFileSize = blk_file.length();
+        return (-1);
     }
 
     /**
-     * This function deletes a block from the file
+     * Return the number of pages in a chain holding the given number of keys
      *
-     * @throws IOException is thrown when there is an I/O error during the operation.
+     * @param blk_keys keys in the chain.
+     * @return the number of pages (one at least, the primary block).
      */
-    void deleteBlock() throws IOException {
-        int ovf_ptr,        // ovf block pointer
-                poolByteSz;        // pool size in bytes
-        long shift_cnt;        // shift bytes count
-        byte blk_shift[];    // shift file part
-        // seek to end of blocks
-        poolByteSz = calcPoolSize();
-        blk_file.seek(poolByteSz);
-        // calculate shift size
-        shift_cnt = blk_file.length() - blk_file.getFilePointer();
-        // allocate shift part
-        blk_shift = new byte[(int) shift_cnt];
-        // load it to memory
-        blk_file.readFully(blk_shift);
-        poolSize--;
-        poolByteSz = calcPoolSize();
-        blk_file.setLength(poolByteSz);
-        // go to the end of the file
-        blk_file.seek(poolByteSz);
-        blk_file.write(blk_shift);
-
-        // update the pointers
-        for (int i = 0; i < ((poolSize + ovf_blocks) - 1); i++) {
-            blk_file.seek(offsetCalc(i));
-            ovf_ptr = blk_file.readInt();
-            if (ovf_ptr != 0) {
-                blk_file.seek(offsetCalc(i));
-                blk_file.writeInt(ovf_ptr - 1);
-            }
-        }
-        // update reverse pointers
-        for (int i = poolSize; i < (poolSize + ovf_blocks); i++) {
-            blk_file.seek(blockOffset(i));
-            ovf_ptr = blk_file.readInt();
-            if (ovf_ptr > poolSize) {
-                blk_file.seek(blockOffset(i));
-                blk_file.writeInt(ovf_ptr - 1);
+    private int chainPages(int blk_keys) {
+        return (blk_keys <= lin_conf.getKeysPerBlock() ? 1 :
+                1 + (blk_keys - 1) / lin_conf.getKeysPerBlock());
+    }
+
+    /**
+     * Make sure the chain buffer can hold the given number of pages; the
+     * pages already there are kept.
+     *
+     * @param pages number of pages needed.
+     */
+    private void ensureChainCapacity(int pages) {
+        int bpb = lin_conf.getBytesPerBlock();
+        if (chain_buf == null || chain_buf.length < pages * bpb) {
+            int n = chain_buf == null ? pages : Math.max(pages, 2 * chain_blks.length);
+            chain_buf = chain_buf == null ? new byte[n * bpb] : Arrays.copyOf(chain_buf, n * bpb);
+            chain = ByteBuffer.wrap(chain_buf);
+            chain_blks = new int[n];
+            chain_order = new long[n];
+        }
+        if (chain_pages != null && chain_pages.length < chain_blks.length) {
+            chain_pages = new ByteBuffer[chain_blks.length];
+            chain_reads = new Future<?>[chain_blks.length];
+            for (int i = 0; i < chain_pages.length; i++) {
+                chain_pages[i] = ByteBuffer.wrap(chain_buf, i * bpb, bpb).slice();
             }
         }
-        // update the current file size (in bytes)
-        curFileSize = blk_file.length();
     }
 
     /**
-     * Insert a value to a specific block
+     * Read the overflow pages of a chain into the chain buffer (page i of the
+     * chain at offset i * bytes per block); the primary block must already be
+     * in the buffer, see {@link #readPage(int)}.
      *
-     * @param val     value to insert in a block.
-     * @param blk_num block where we will insert the provided value.
+     * The block numbers come from the chain directory, so all pages are
+     * requested at once rather than following the pointers page by page: in
+     * parallel if enabled, otherwise in ascending file offset order with runs
+     * of adjacent blocks fetched by a single read.
+     *
+     * @param blk_num primary block of the chain.
+     * @param pages   pages of the chain to read (including the primary block).
+     * @param count   true to count the page reads in the i/o counters.
      * @throws IOException is thrown when there is an I/O error during the operation.
      */
-    Integer insertKey(int val, int blk_num) throws IOException {
-        int blk_keys,   // keys in block
-                ovf_ptr,    // ovf block pointer
-                c_key;      // current key
+    private void readChain(int blk_num, int pages, boolean count) throws IOException {
+        int bpb = lin_conf.getBytesPerBlock(),
+                max_run = Math.max(1, shift_buf.length / bpb);
 
-        // increment i/o counter
-        lin_perf.incrementBothIO();
-        // seek to the correct block
-        blk_file.seek(blockOffset(blk_num));
-        // get the key in block
-        blk_keys = blk_file.readInt();
-        // get the ovf block pointer
-        ovf_ptr = blk_file.readInt();
+        ensureChainCapacity(pages);
+        chain_dir.chain(blk_num, chain_blks, pages);
+        if (pages == 1) {
+            return;
+        }
+        if (count) {
+            for (int p = 1; p < pages; p++) {
+                lin_perf.incrementBothIO();
+            }
+        }
+        // a single overflow page gains nothing from the parallel reads
+        if (prefetch_ch != null && pages > 2) {
+            readChainParallel(pages);
+            return;
+        }
+        for (int p = 1; p < pages; p++) {
+            chain_order[p - 1] = ((long) chain_blks[p] << 32) | p;
+        }
+        Arrays.sort(chain_order, 0, pages - 1);
+        for (int i = 0, run_len; i < pages - 1; i += run_len) {
+            // find the run of adjacent blocks and read it at once
+            int first = (int) (chain_order[i] >>> 32);
+            for (run_len = 1; i + run_len < pages - 1 && run_len < max_run &&
+                    (int) (chain_order[i + run_len] >>> 32) == first + run_len; run_len++) ;
+            blk_file.seek(blockOffset(first));
+            blk_file.readFully(shift_buf, 0, run_len * bpb);
+            for (int r = 0; r < run_len; r++) {
+                int p = (int) chain_order[i + r];
+                System.arraycopy(shift_buf, r * bpb, chain_buf, p * bpb, bpb);
+            }
+        }
+    }
+
+    /**
+     * Issue the reads of the overflow pages of a chain all at once and wait
+     * for them to complete; see {@link #readChain(int, int, boolean)}.
+     *
+     * @param pages pages of the chain (including the primary block).
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void readChainParallel(int pages) throws IOException {
+        for (int p = 1; p < pages; p++) {
+            chain_pages[p].clear();
+            chain_reads[p] = prefetch_ch.read(chain_pages[p], blockOffset(chain_blks[p]));
+        }
+        try {
+            for (int p = 1; p < pages; p++) {
+                ByteBuffer dst = chain_pages[p];
+                // short reads are unlikely on a regular file, but possible
+                while (true) {
+                    if ((Integer) chain_reads[p].get() < 0) {
+                        throw new EOFException("Block " + chain_blks[p] + " is past the end of file");
+                    }
+                    if (!dst.hasRemaining()) {
+                        break;
+                    }
+                    chain_reads[p] = prefetch_ch.read(dst, blockOffset(chain_blks[p]) + dst.position());
+                }
+                if (lin_conf.isTrackingEnabled()) {
+                    lin_perf.recordRead(dst.capacity());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading a chain");
+        } catch (ExecutionException e) {
+            throw new IOException("Couldn't read a chain page", e.getCause());
+        }
+    }
+
+    /**
+     * Calculate the position of a key slot in the file
+     *
+     * @param blk_num block number (primary or overflow).
+     * @param slot    slot of the key in the block.
+     * @return the offset of the slot from the start of the file.
+     */
+    private long keyOffset(int blk_num, int slot) {
+        return (blockOffset(blk_num) + lin_conf.getBlockHeaderOffset() +
+                ((long) lin_conf.getKeyByteSize() * slot));
+    }
+
+    /**
+     * Write an int at the given position, with a single write.
+     *
+     * @param pos position in the file.
+     * @param val value to write.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void writeIntAt(long pos, int val) throws IOException {
+        int_buf[0] = (byte) (val >>> 24);
+        int_buf[1] = (byte) (val >>> 16);
+        int_buf[2] = (byte) (val >>> 8);
+        int_buf[3] = (byte) val;
+        blk_file.seek(pos);
+        blk_file.write(int_buf, 0, 4);
+    }
+
+    /**
+     * Function that fetches a particular block (along with its overflow blocks)
+     * into the block buffer, see {@link #getBlockBuffer()}. The buffer is reused,
+     * so its contents are only valid until the next call.
+     *
+     * @param blk_num block number that we fetch.
+     * @return the number of keys fetched.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    int fetchBlock(int blk_num) throws IOException {
+        int blk_keys,   // number of keys in the block
+                pages,      // pages in the chain
+                cnt;        // keys in the current page
+
+        int kpb = lin_conf.getKeysPerBlock();
+        // the number of keys is known without reading the block
+        blk_keys = chain_dir.keys(blk_num);
 
         if (lin_conf.isDebugEnabled()) {
-            System.out.println("Block (" + blk_num + ") keys: " +
-                    blk_keys + " ovf_ptr: " + ovf_ptr +
-                    " inserting value: " + val);
+            System.err.println("fetching Block (" + blk_num + ") keys: " +
+                    blk_keys + " ovf_ptr: " + chain_dir.next(blk_num));
         }
 
+        // nothing in this bucket
         if (blk_keys == 0) {
-            // write the actual key
-            blk_file.writeInt(val);
-            // seek back to the block header
+            return (0);
+        }
+        readPage(blk_num);
+        // grow the key array, if needed
+        if (blk_buf.length < blk_keys) {
+            blk_buf = new int[Math.max(blk_keys, 2 * blk_buf.length)];
+        }
+        pages = chainPages(blk_keys);
+        readChain(blk_num, pages, false);
+        int n = 0;
+        for (int p = 0; p < pages; p++) {
+            cnt = Math.min(kpb, blk_keys - p * kpb);
+            for (int j = 0; j < cnt; j++) {
+                int v = pageInt(p, keyStart() + j);
+                // tombstones are left out
+                if (!lazy || v != TOMBSTONE) {
+                    blk_buf[n++] = v;
+                }
+            }
+        }
+        // finally return the number of elements
+        return (n);
+    }
+
+    /**
+     * Return the buffer filled by {@link #fetchBlock(int)}
+     *
+     * @return the block buffer.
+     */
+    int[] getBlockBuffer() {
+        return (blk_buf);
+    }
+
+    /**
+     * Copy all stored keys into the given array, bucket by bucket
+     *
+     * @param dst destination, at least as long as the key count.
+     * @return the number of keys copied.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    int collectKeys(int[] dst) throws IOException {
+        int n[] = new int[1];
+        forEachKey(0, poolSize, k -> dst[n[0]++] = k);
+        return (n[0]);
+    }
+
+    /**
+     * Replace the contents of the file with the given buckets, writing all
+     * blocks sequentially (primary blocks first, then the overflow blocks of
+     * each bucket, one after the other).
+     *
+     * @param pool  number of primary blocks.
+     * @param keys  the keys, grouped by bucket.
+     * @param start start of each bucket in keys; bucket b holds
+     *              keys[start[b]] up to (excluding) keys[start[b + 1]].
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void bulkLoad(int pool, int[] keys, int[] start) throws IOException {
+        int counts[] = new int[pool];
+        for (int b = 0; b < pool; b++) {
+            counts[b] = start[b + 1] - start[b];
+        }
+        int ovf_start[] = layoutBuckets(pool, counts);
+        writeBuckets(0, pool, keys, start, ovf_start, shift_buf);
+    }
+
+    /**
+     * Replace the contents of the file with empty buckets of the given sizes,
+     * to be filled by {@link #writeBuckets}; the overflow blocks of each bucket
+     * are placed one after the other, in bucket order, after the primary blocks.
+     * The file gets its final length at once.
+     *
+     * @param pool   number of primary blocks.
+     * @param counts number of keys of each bucket.
+     * @return the first overflow block of each bucket (the entry after the last
+     * bucket marks the end of the file).
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    int[] layoutBuckets(int pool, int[] counts) throws IOException {
+        int ovf_start[] = new int[pool + 1],
+                ovf = 0;
+        long keys = 0;
+
+        for (int b = 0; b < pool; b++) {
+            ovf_start[b] = pool + ovf;
+            ovf += chainPages(counts[b]) - 1;
+            keys += counts[b];
+        }
+        ovf_start[pool] = pool + ovf;
+        if (keys > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many keys: " + keys);
+        }
+
+        // the chains are known up front
+        chain_dir = new ChainDirectory(pool + ovf, lin_conf.getKeysPerBlock());
+        for (int b = 0; b < pool; b++) {
+            int pages = chainPages(counts[b]);
+            chain_dir.load(b, 0, pages > 1 ? ovf_start[b] : 0);
+            chain_dir.setKeys(b, counts[b]);
+            for (int p = 1; p < pages; p++) {
+                int blk = ovf_start[b] + p - 1;
+                chain_dir.load(blk, p == 1 ? b : blk - 1, p < pages - 1 ? blk + 1 : 0);
+            }
+        }
+        truncateFile(lin_conf.getHeaderSize());
+        resizeFile(pool, ovf);
+
+        poolSize = pool;
+        ovf_blocks = ovf;
+        key_num = (int) keys;
+        dead_keys = 0;
+        return (ovf_start);
+    }
+
+    /**
+     * Write the blocks of a range of buckets laid out by {@link #layoutBuckets};
+     * the primary blocks of the range, as well as their overflow blocks, are
+     * contiguous in the file, so both are written sequentially. Writes are
+     * positional, so disjoint ranges can be written from many threads at once.
+     *
+     * @param from      first bucket of the range.
+     * @param to        bucket after the last one of the range.
+     * @param keys      the keys of the range, grouped by bucket.
+     * @param start     start of each bucket in keys; bucket b holds
+     *                  keys[start[b - from]] up to (excluding) keys[start[b - from + 1]].
+     * @param ovf_start the first overflow block of each bucket, as returned by {@link #layoutBuckets}.
+     * @param buf       write buffer, at least a block long.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void writeBuckets(int from, int to, int[] keys, int[] start, int[] ovf_start, byte[] buf)
+            throws IOException {
+        int kpb = lin_conf.getKeysPerBlock();
+        BlockWriter out = new BlockWriter(blk_file.getChannel(), seg_file, buf,
+                lin_conf.getBytesPerBlock(), blockOffset(from));
+
+        // primary blocks, linked to their first overflow block (if any)
+        for (int b = from; b < to; b++) {
+            int cnt = start[b - from + 1] - start[b - from],
+                    pages = chainPages(cnt);
+            out.put(cnt, pages > 1 ? toPointer(ovf_start[b]) : 0, keys, start[b - from], Math.min(kpb, cnt));
+        }
+        // overflow blocks, each chain being contiguous
+        out.moveTo(blockOffset(ovf_start[from]));
+        for (int b = from; b < to; b++) {
+            int cnt = start[b - from + 1] - start[b - from],
+                    pages = chainPages(cnt);
+            for (int p = 1; p < pages; p++) {
+                int blk = ovf_start[b] + p - 1;
+                out.put(toPointer(p == 1 ? b : blk - 1), p < pages - 1 ? toPointer(blk + 1) : 0,
+                        keys, start[b - from] + p * kpb, Math.min(kpb, cnt - p * kpb));
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Call the given action for every key stored in a range of buckets; for
+     * read only tables the mapping is read in place, so many threads can scan
+     * (disjoint or not) ranges at once.
+     *
+     * @param from   first bucket of the range.
+     * @param to     bucket after the last one of the range.
+     * @param action the action to call for each key.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void forEachKey(int from, int to, IntConsumer action) throws IOException {
+        int kpb = lin_conf.getKeysPerBlock(),
+                ks = lin_conf.getKeyByteSize();
+        to = Math.min(to, poolSize);
+        // the key stored in the header comes with the first bucket
+        if (from == 0 && to > 0 && isMinKeyStored()) {
+            action.accept(TOMBSTONE);
+        }
+        for (int b = from; b < to; b++) {
+            if (blk_map == null) {
+                int cnt = fetchBlock(b);
+                for (int i = 0; i < cnt; i++) {
+                    action.accept(blk_buf[i]);
+                }
+                continue;
+            }
+            int off = blockOffset(b),
+                    blk_keys = mappedInt(off);
+            for (int i = 0; i < blk_keys; i += kpb) {
+                if (i > 0) {
+                    off = blockOffset(fromPointer(mappedInt(off + ks)));
+                }
+                int cnt = Math.min(kpb, blk_keys - i),
+                        k = off + lin_conf.getBlockHeaderOffset();
+                for (int j = 0; j < cnt; j++, k += ks) {
+                    int v = mappedInt(k);
+                    if (!lazy || v != TOMBSTONE) {
+                        action.accept(v);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Buffered, positional writer of whole blocks
+     */
+    private static final class BlockWriter {
+        private final FileChannel ch;   // channel to write to
+        private final SegmentedFile seg;// or segments, if not null
+        private final ByteBuffer out;   // the buffered blocks
+        private final int bpb;          // bytes per block
+        private long pos;               // file position of the buffer start
+
+        BlockWriter(FileChannel ch, SegmentedFile seg, byte[] buf, int bpb, long pos) {
+            this.ch = ch;
+            this.seg = seg;
+            this.out = ByteBuffer.wrap(buf);
+            this.bpb = bpb;
+            this.pos = pos;
+        }
+
+        /**
+         * Append a block, writing the buffer out first if it is full.
+         *
+         * @param h0   first header int (key count or back pointer).
+         * @param h1   second header int (overflow pointer).
+         * @param keys source of the keys.
+         * @param from first key to place.
+         * @param cnt  number of keys to place.
+         * @throws IOException is thrown when there is an I/O error during the operation.
+         */
+        void put(int h0, int h1, int[] keys, int from, int cnt) throws IOException {
+            if (out.remaining() < bpb) {
+                flush();
+            }
+            int base = out.position();
+            out.putInt(h0).putInt(h1);
+            for (int i = 0; i < cnt; i++) {
+                out.putInt(keys[from + i]);
+            }
+            // clear the empty slots
+            Arrays.fill(out.array(), out.position(), base + bpb, (byte) 0);
+            out.position(base + bpb);
+        }
+
+        /**
+         * Write out the buffer and continue at another position
+         *
+         * @param pos the new file position.
+         * @throws IOException is thrown when there is an I/O error during the operation.
+         */
+        void moveTo(long pos) throws IOException {
+            flush();
+            this.pos = pos;
+        }
+
+        /**
+         * Write out the buffer
+         *
+         * @throws IOException is thrown when there is an I/O error during the operation.
+         */
+        void flush() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                pos += seg != null ? seg.write(out, pos) : ch.write(out, pos);
+            }
+            out.clear();
+        }
+    }
+
+    /**
+     * Delete the specified overflow block
+     *
+     * @param blk_num block number that we delete (must be overflow).
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void deleteOvfBlock(int blk_num) throws IOException {
+        int ovf_ptr,        // last ovf block of the chain
+                ovf_pptr;       // ovf block pointer previous
+        // check if doesn't exist.
+        if ((poolSize - 1) < blk_num) {
+            return;
+        }
+        // find the end of the chain
+        ovf_ptr = chain_dir.tail(blk_num);
+        // no ovf blocks, return
+        if (ovf_ptr == blk_num) {
+            return;
+        }
+        ovf_pptr = chain_dir.prev(ovf_ptr);
+        chain_dir.unlinkLast(blk_num);
+        // mark the previous block as an end block
+        writeIntAt(offsetCalc(ovf_pptr), 0);
+        if (seg_file != null) {
+            fillOvfBlock(ovf_ptr);
+            return;
+        }
+        // shift the rest of the file (after the removed block) back
+        shiftTailBack(blockOffset(ovf_ptr + 1), lin_conf.getBytesPerBlock());
+        // decrement ovf blocks
+        ovf_blocks--;
+        chain_dir.removeBlock(ovf_ptr, poolSize);
+        // update the pointers to the moved blocks
+        for (int i = 0; i < (poolSize + ovf_blocks); i++) {
+            if (chain_dir.next(i) >= ovf_ptr) {
+                writeIntAt(offsetCalc(i), chain_dir.next(i));
+            }
+        }
+        // update the reverse pointers of each block
+        for (int i = poolSize; i < (poolSize + ovf_blocks); i++) {
+            if (chain_dir.prev(i) >= ovf_ptr) {
+                writeIntAt(blockOffset(i), chain_dir.prev(i));
+            }
+        }
+    }
+
+    /**
+     * Fill the slot of an unlinked overflow block with the last overflow
+     * block, so that only the end of the overflow segments shrinks; the
+     * pointers of its neighbours are the only ones changed.
+     *
+     * @param blk_num the unlinked overflow block.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void fillOvfBlock(int blk_num) throws IOException {
+        int last = poolSize + ovf_blocks - 1,
+                bpb = lin_conf.getBytesPerBlock();
+        if (blk_num != last) {
+            blk_file.seek(blockOffset(last));
+            blk_file.readFully(shift_buf, 0, bpb);
             blk_file.seek(blockOffset(blk_num));
-            // update the keys count in block
-            blk_file.writeInt(blk_keys + 1);
-            // update the total key count
-            this.key_num++;
-            // all OK
-            return (val);
-        }
-        // now read the keys
-        for (int i = 1; i < (blk_keys + 1); i++) {
-            c_key = blk_file.readInt();
+            blk_file.write(shift_buf, 0, bpb);
+            int back = chain_dir.prev(last),
+                    nxt = chain_dir.next(last);
+            chain_dir.moveLast(blk_num);
+            writeIntAt(offsetCalc(back), toPointer(blk_num));
+            if (nxt != 0) {
+                writeIntAt(blockOffset(nxt), toPointer(blk_num));
+            }
+        } else {
+            chain_dir.moveLast(blk_num);
+        }
+        ovf_blocks--;
+        setFileLength(blockOffset(last));
+    }
+
+    /**
+     * This function deletes a block from the file
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void deleteBlock() throws IOException {
+        // segments keep the overflow blocks apart, and the pointers to them do not change
+        if (seg_file != null) {
+            seg_file.setPool(poolSize - 1);
+            poolSize--;
+            chain_dir.removeBlock(poolSize, poolSize);
+            curFileSize = blk_file.length();
+            return;
+        }
+        // shift the overflow blocks (after the end of the pool) back
+        shiftTailBack(calcPoolSize(), lin_conf.getBytesPerBlock());
+        poolSize--;
+        chain_dir.removeBlock(poolSize, poolSize);
+
+        // update the pointers; every pointer set points to a moved block
+        for (int i = 0; i < (poolSize + ovf_blocks); i++) {
+            if (chain_dir.next(i) != 0) {
+                writeIntAt(offsetCalc(i), chain_dir.next(i));
+            }
+        }
+        // update reverse pointers, only the ones pointing to moved blocks
+        for (int i = poolSize; i < (poolSize + ovf_blocks); i++) {
+            if (chain_dir.prev(i) >= poolSize) {
+                writeIntAt(blockOffset(i), chain_dir.prev(i));
+            }
+        }
+    }
+
+    /**
+     * Insert a value to a specific block
+     *
+     * @param val     value to insert in a block.
+     * @param blk_num block where we will insert the provided value.
+     * @return true if the value was inserted, false if it was already present.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    boolean insertKey(int val, int blk_num) throws IOException {
+        int blk_keys,   // keys in block
+                pages,      // pages in the chain
+                cnt;        // keys in the current page
+
+        int kpb = lin_conf.getKeysPerBlock();
+        // the tombstone value itself is kept in the header
+        if (lazy && val == TOMBSTONE) {
+            if (isMinKeyStored()) {
+                return (false);
+            }
+            setMinKeyStored(true);
+            return (true);
+        }
+        // get the keys in block, from the directory
+        blk_keys = chain_dir.keys(blk_num);
+        pages = chain_dir.pages(blk_num);
+
+        if (lin_conf.isDebugEnabled()) {
+            System.out.println("Block (" + blk_num + ") keys: " +
+                    blk_keys + " ovf_ptr: " + chain_dir.next(blk_num) +
+                    " inserting value: " + val);
+        }
+
+        // fetch the whole chain (unless empty) and check the keys, page by page
+        if (blk_keys > 0) {
+            lin_perf.incrementBothIO();
+            readPage(blk_num);
+            readChain(blk_num, pages, true);
+        } else {
+            chain_blks[0] = blk_num;
+        }
+        for (int p = 0; p < pages; p++) {
+            cnt = Math.min(kpb, blk_keys - p * kpb);
             // no duplicate keys (keys are singletons)
-            if (c_key == val) {
+            if (pageIndexOf(p, val, cnt) >= 0) {
                 if (lin_conf.isDebugEnabled()) {
                     System.err.println("Block (" + blk_num + ") keys: " +
                             blk_keys + " Duplicate key: " + val);
                 }
-                return (null);
+                return (false);
+            }
+        }
+        lin_perf.recordChainLength(pages - 1);
+
+        // take the place of a tombstone, if any; the key count stays the same
+        if (chain_dir.dead(blk_num) > 0) {
+            for (int p = 0; p < pages; p++) {
+                int slot = pageIndexOf(p, TOMBSTONE, Math.min(kpb, blk_keys - p * kpb));
+                if (slot >= 0) {
+                    writeIntAt(keyOffset(chain_blks[p], slot), val);
+                    chain_dir.setDead(blk_num, chain_dir.dead(blk_num) - 1);
+                    dead_keys--;
+                    key_num++;
+                    return (true);
+                }
             }
-            // advance ovf pointer if needed (EOF of current block)
-            ovf_ptr = getOvf_ptr(ovf_ptr, blk_file, i);
         }
-
 
         // check if we need to add an overflow block
-        if ((blk_keys % lin_conf.getKeysPerBlock()) == 0) {
+        if (blk_keys > 0 && (blk_keys % kpb) == 0) {
             lin_perf.incrementBothIO();
             // we need to add an overflow block
             addOvfBlock(blk_num);
-            // seek to the new overflow block, plus the block header offset
-            blk_file.seek(blockOffset(poolSize + ovf_blocks - 1) + lin_conf.getBlockHeaderOffset());
-            // finally write the value
-            blk_file.writeInt(val);
-
+            // write the value at the start of the new overflow block
+            writeIntAt(keyOffset(poolSize + ovf_blocks - 1, 0), val);
         } else
-        // no ovf needed, we can write the value as is.
+        // no ovf needed, we can write the value after the last key.
         {
-            blk_file.writeInt(val);
+            writeIntAt(keyOffset(chain_blks[pages - 1], blk_keys % kpb), val);
         }
 
-        // seek back to the block header
-        blk_file.seek(blockOffset(blk_num));
         // update the keys count in block
-        //System.out.println("Writing block keys number:" + (blk_keys+1));
-        blk_file.writeInt(blk_keys + 1);
+        writeIntAt(blockOffset(blk_num), blk_keys + 1);
+        chain_dir.setKeys(blk_num, blk_keys + 1);
         // update the total key count
         this.key_num++;
         // finally return
-        return (val);
+        return (true);
     }
 
     /**
-     * Delete a value from a specified block
+     * Delete a value from a specified block; the last key of the block
+     * is moved in its place.
      *
      * @param val     value to delete from the block.
      * @param blk_num block number where we delete from.
@@ -622,71 +1640,79 @@ class BlockManager {
      */
     boolean deleteKey(int val, int blk_num) throws IOException {
         int blk_keys,   // keys in block
-                ovf_ptr,    // ovf block pointer
-                c_key,      // current key
-                l_key;      // last key value
-
-        long key_loc = 0L,  // key location
-                key_ploc = 0L; // past key location
-
+                pages,      // pages in the chain
+                cnt,        // keys in the current page
+                slot,       // slot of the key in the current page
+                key_page = -1,  // page where the key was found
+                key_slot = 0,   // slot where the key was found
+                l_page,         // last page of the chain
+                l_slot;         // last key slot (in the last page)
+
+        int kpb = lin_conf.getKeysPerBlock();
+        // the tombstone value itself is kept in the header
+        if (lazy && val == TOMBSTONE) {
+            boolean stored = isMinKeyStored();
+            setMinKeyStored(false);
+            return (stored);
+        }
         // given block is out of range...
         if (blk_num >= poolSize) {
             return (false);
         }
-        lin_perf.incrementBothIO();
-        // seek to the correct block
-        blk_file.seek(blockOffset(blk_num));
-        // read block header
-        blk_keys = blk_file.readInt();
-        ovf_ptr = blk_file.readInt();
-        // check if have keys inside this block (if not just return)
-        if (blk_keys == 0) {
+        // check if have (live) keys inside this block (if not just return)
+        blk_keys = chain_dir.keys(blk_num);
+        if (blk_keys == chain_dir.dead(blk_num)) {
             if (lin_conf.isDebugEnabled()) {
                 System.out.println("Zero keys in block");
             }
             return (false);
         }
-
-        //System.out.println("Block (" + blk_num + ") keys: " + blk_keys +
-        // " ovf_ptr: " + ovf_ptr + " deleting value: " + val);
-
-        // traverse the block
-        for (int i = 1; i < (blk_keys + 1); i++) {
-            key_ploc = blk_file.getFilePointer();
-            c_key = blk_file.readInt();
-            // check if we found our key and adjust the location
-            if (c_key == val) {
-                key_loc = blk_file.getFilePointer() - lin_conf.getKeyByteSize();
+        lin_perf.incrementBothIO();
+        // read the block page
+        readPage(blk_num);
+
+        // fetch the rest of the chain at once and look for the key
+        pages = chain_dir.pages(blk_num);
+        readChain(blk_num, pages, true);
+        for (int p = 0; p < pages; p++) {
+            cnt = Math.min(kpb, blk_keys - p * kpb);
+            if ((slot = pageIndexOf(p, val, cnt)) >= 0) {
+                key_page = p;
+                key_slot = slot;
+                break;
             }
-            // let's check if we need to go to overflow pages
-            ovf_ptr = getOvf_ptr(ovf_ptr, blk_file, i);
         }
+        lin_perf.recordChainLength(pages - 1);
 
-        // check if we found the key
-        if (key_loc == key_ploc) {
-            blk_file.seek(key_loc);
-            blk_file.writeInt(0);
-        }
         // key was not found, at all.
-        else if (key_loc == 0) {
+        if (key_page < 0) {
             if (lin_conf.isDebugEnabled()) {
                 System.err.println("Key (" + val + ") not found... to delete...");
             }
             return (false);
-        } else {
-            blk_file.seek(key_ploc);
-            l_key = blk_file.readInt();
-            blk_file.seek(key_ploc);
-            blk_file.writeInt(0);
-            blk_file.seek(key_loc);
-            blk_file.writeInt(l_key);
         }
+        // lazy deletes only mark the slot, with a single write
+        if (lazy) {
+            writeIntAt(keyOffset(chain_blks[key_page], key_slot), TOMBSTONE);
+            chain_dir.setDead(blk_num, chain_dir.dead(blk_num) + 1);
+            dead_keys++;
+            key_num--;
+            return (true);
+        }
+        // move the last key in the hole (unless it was the last one)
+        l_page = pages - 1;
+        l_slot = (blk_keys - 1) % kpb;
+        if (key_page != l_page || key_slot != l_slot) {
+            writeIntAt(keyOffset(chain_blks[key_page], key_slot),
+                    pageInt(l_page, keyStart() + l_slot));
+        }
+        writeIntAt(keyOffset(chain_blks[l_page], l_slot), 0);
         // go back to block header and update it
-        blk_file.seek(blockOffset(blk_num));
         blk_keys--;
-        blk_file.writeInt(blk_keys);
+        writeIntAt(blockOffset(blk_num), blk_keys);
+        chain_dir.setKeys(blk_num, blk_keys);
         // do we need to delete this ovf block?
-        if ((blk_keys > 0) && ((blk_keys % lin_conf.getKeysPerBlock()) == 0)) {
+        if ((blk_keys > 0) && ((blk_keys % kpb) == 0)) {
             if (lin_conf.isDebugEnabled()) {
                 System.out.println("Deleting Ovf bucket: " + blk_num);
             }
@@ -698,79 +1724,606 @@ class BlockManager {
         return (true);
     }
 
+    /**
+     * Check if deletes leave tombstones
+     *
+     * @return true if deletes are lazy.
+     */
+    boolean isLazyDeletes() {
+        return lazy;
+    }
 
     /**
-     * Fetch the overflow pointer
+     * Turn lazy deletes on; the tombstone value, if stored as a key, is moved
+     * out of its bucket into the header first. Files without room for the
+     * hash state in their header keep deleting eagerly.
      *
-     * @param ovf_ptr    our current overflow pointer.
-     * @param block_file our binary file.
-     * @param key_count  key count
-     * @return the overflow pointer index.
+     * @param min_blk bucket of the tombstone value.
      * @throws IOException is thrown when there is an I/O error during the operation.
      */
-    private int getOvf_ptr(int ovf_ptr, RandomAccessFile block_file, int key_count)
-            throws IOException {
-        if ((key_count % lin_conf.getKeysPerBlock()) == 0) {
+    void enableLazyDeletes(int min_blk) throws IOException {
+        if (lazy || !lin_conf.isHashStateStored()) {
+            return;
+        }
+        boolean min_key = deleteKey(TOMBSTONE, min_blk);
+        lazy = true;
+        hash_flags |= LinearHashConfiguration.FLAG_TOMBSTONES;
+        setMinKeyStored(min_key);
+    }
+
+    /**
+     * Check if the tombstone value is stored as a key (kept in the header,
+     * as its slots in the buckets mark deleted keys)
+     *
+     * @return true if it is stored.
+     */
+    boolean isMinKeyStored() {
+        return (hash_flags & LinearHashConfiguration.FLAG_MIN_KEY) != 0;
+    }
+
+    /**
+     * Set whether the tombstone value is stored as a key, keeping the key count
+     *
+     * @param stored true if it is stored.
+     */
+    void setMinKeyStored(boolean stored) {
+        if (stored != isMinKeyStored()) {
+            hash_flags ^= LinearHashConfiguration.FLAG_MIN_KEY;
+            key_num += stored ? 1 : -1;
+        }
+    }
+
+    /**
+     * Return the number of tombstones left by lazy deletes
+     *
+     * @return the tombstones in the file.
+     */
+    int getTombstoneCount() {
+        return dead_keys;
+    }
+
+    /**
+     * Rewrite the chain of a bucket with its live keys packed at the front,
+     * dropping the tombstones and the keys rejected by the given filter; the
+     * pages are written whole and the overflow blocks left empty are deleted.
+     *
+     * @param blk_num bucket to compact.
+     * @param keep    filter of the keys to keep.
+     * @return the number of overflow blocks freed.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    int compactBucket(int blk_num, IntPredicate keep) throws IOException {
+        int kpb = lin_conf.getKeysPerBlock(),
+                bpb = lin_conf.getBytesPerBlock(),
+                ks = lin_conf.getKeyByteSize(),
+                base = keyStart(),
+                blk_keys = chain_dir.keys(blk_num),
+                pages = chain_dir.pages(blk_num),
+                live = blk_keys - chain_dir.dead(blk_num),
+                n = 0,
+                new_pages;
+
+        if (blk_keys == 0) {
+            return (0);
+        }
+        lin_perf.incrementBothIO();
+        readPage(blk_num);
+        readChain(blk_num, pages, true);
+        // slide the kept keys down; a slot is always read before it is overwritten
+        for (int i = 0; i < blk_keys; i++) {
+            int v = pageInt(i / kpb, base + i % kpb);
+            if (v != TOMBSTONE && keep.test(v)) {
+                chain.putInt((n / kpb) * bpb + (base + n % kpb) * ks, v);
+                n++;
+            }
+        }
+        for (int i = n; i < blk_keys; i++) {
+            chain.putInt((i / kpb) * bpb + (base + i % kpb) * ks, 0);
+        }
+        chain.putInt(0, n);
+        new_pages = chainPages(n);
+        for (int p = 0; p < new_pages; p++) {
+            blk_file.seek(blockOffset(chain_blks[p]));
+            blk_file.write(chain_buf, p * bpb, bpb);
+        }
+        key_num -= live - n;
+        dead_keys -= chain_dir.dead(blk_num);
+        chain_dir.setDead(blk_num, 0);
+        chain_dir.setKeys(blk_num, n);
+        // the emptied pages are at the end of the chain
+        for (int p = new_pages; p < pages; p++) {
+            deleteOvfBlock(blk_num);
+        }
+        return (pages - new_pages);
+    }
+
+    /**
+     * Apply the operations of a write batch that fall in one bucket: the
+     * chain is read once, merged with the operations and written back (only
+     * if anything changed), one write per page.
+     *
+     * @param blk_num bucket of the operations.
+     * @param keys    keys of the batch, in ascending order.
+     * @param ins     for each key, true to insert it and false to delete it.
+     * @param order   entries of the batch as (bucket &lt;&lt; 32 | key index),
+     *                grouped by bucket with the key indices ascending.
+     * @param from    first entry of the bucket.
+     * @param to      entry after the last one of the bucket.
+     * @return the number of keys inserted or deleted.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    int applyBucket(int blk_num, int[] keys, boolean[] ins, long[] order,
+                    int from, int to) throws IOException {
+        int live = fetchBlock(blk_num),
+                changed = 0,    // changes of the tombstone value (kept in the header)
+                moved = 0,      // keys inserted in or deleted from the bucket
+                a = 0,
+                m = 0;
+
+        if (batch_buf.length < live + (to - from)) {
+            batch_buf = new int[Math.max(live + (to - from), 2 * batch_buf.length)];
+        }
+        Arrays.sort(blk_buf, 0, live);
+        // merge the (sorted) keys of the bucket with the operations
+        for (int e = from; e < to; e++) {
+            int idx = (int) order[e],
+                    k = keys[idx];
+            // the tombstone value itself is kept in the header
+            if (lazy && k == TOMBSTONE) {
+                if (isMinKeyStored() != ins[idx]) {
+                    setMinKeyStored(ins[idx]);
+                    changed++;
+                }
+                continue;
+            }
+            while (a < live && blk_buf[a] < k) {
+                batch_buf[m++] = blk_buf[a++];
+            }
+            boolean present = a < live && blk_buf[a] == k;
+            if (present) {
+                a++;
+            }
+            if (ins[idx]) {
+                batch_buf[m++] = k;
+            }
+            if (present != ins[idx]) {
+                moved++;
+            }
+        }
+        while (a < live) {
+            batch_buf[m++] = blk_buf[a++];
+        }
+        if (moved > 0) {
+            rewriteBucket(blk_num, batch_buf, 0, m);
+        }
+        return (changed + moved);
+    }
+
+    /**
+     * Replace the keys of a bucket, growing or shrinking its chain to fit;
+     * the key area of every page is written whole, then the key count.
+     *
+     * @param blk_num bucket to rewrite.
+     * @param vals    the new keys.
+     * @param from    first new key in vals.
+     * @param n       number of new keys.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void rewriteBucket(int blk_num, int[] vals, int from, int n) throws IOException {
+        int kpb = lin_conf.getKeysPerBlock(),
+                bpb = lin_conf.getBytesPerBlock(),
+                ks = lin_conf.getKeyByteSize(),
+                pages = chain_dir.pages(blk_num),
+                new_pages = chainPages(n);
+
+        for (int p = pages; p < new_pages; p++) {
             lin_perf.incrementBothIO();
-            block_file.seek(offsetCalc(ovf_ptr));
-            ovf_ptr = block_file.readInt();
+            addOvfBlock(blk_num);
+        }
+        for (int p = new_pages; p < pages; p++) {
+            deleteOvfBlock(blk_num);
+        }
+        ensureChainCapacity(new_pages);
+        chain_dir.chain(blk_num, chain_blks, new_pages);
+        for (int p = 0; p < new_pages; p++) {
+            int base = p * bpb;
+            for (int j = 0; j < kpb; j++) {
+                int i = p * kpb + j;
+                chain.putInt(base + j * ks, i < n ? vals[from + i] : 0);
+            }
+            blk_file.seek(keyOffset(chain_blks[p], 0));
+            blk_file.write(chain_buf, base, kpb * ks);
+        }
+        writeIntAt(blockOffset(blk_num), n);
+        key_num += n - (chain_dir.keys(blk_num) - chain_dir.dead(blk_num));
+        dead_keys -= chain_dir.dead(blk_num);
+        chain_dir.setDead(blk_num, 0);
+        chain_dir.setKeys(blk_num, n);
+    }
+
+    /**
+     * Split a bucket by rewriting both chains at once, rather than moving its
+     * keys one by one; only done if the new bucket holds no keys.
+     *
+     * @param blk_num bucket to split.
+     * @param new_blk the new bucket.
+     * @param moves   filter of the keys that go to the new bucket.
+     * @return true if the bucket was split, false if the new bucket holds keys.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    boolean splitBucket(int blk_num, int new_blk, IntPredicate moves) throws IOException {
+        if (chain_dir.keys(new_blk) > chain_dir.dead(new_blk)) {
+            return (false);
+        }
+        int live = fetchBlock(blk_num),
+                stay = 0,
+                gone = live;
+
+        if (batch_buf.length < live) {
+            batch_buf = new int[Math.max(live, 2 * batch_buf.length)];
+        }
+        // the keys staying at the front, the ones moving at the back
+        for (int i = 0; i < live; i++) {
+            if (moves.test(blk_buf[i])) {
+                batch_buf[--gone] = blk_buf[i];
+            } else {
+                batch_buf[stay++] = blk_buf[i];
+            }
+        }
+        if (gone < live || chain_dir.dead(blk_num) > 0) {
+            rewriteBucket(blk_num, batch_buf, 0, stay);
+            rewriteBucket(new_blk, batch_buf, stay, live - stay);
+        }
+        return (true);
+    }
+
+    /**
+     * Check if the checkpoint interval has passed since the last checkpoint
+     *
+     * @return true if a checkpoint is due.
+     */
+    boolean isCheckpointDue() {
+        return ckpt_due;
+    }
+
+    /**
+     * Check if the header is marked as dirty, i.e. the table was changed
+     * since the last checkpoint
+     *
+     * @return true if the header is dirty.
+     */
+    boolean isDirty() {
+        return (dirty);
+    }
+
+    /**
+     * Mark the header as dirty before the first change after a checkpoint,
+     * so that an open without a clean close (or checkpoint) in between
+     * recounts the keys and overflow blocks; only done when checkpoints
+     * are enabled.
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void markDirty() throws IOException {
+        if (ckpt_pool == null || dirty || !lin_conf.isHashStateStored()) {
+            return;
+        }
+        dirty = true;
+        hash_flags |= LinearHashConfiguration.FLAG_DIRTY;
+        // new files have no header yet
+        if (flags_pos == 0) {
+            writeFileHeader();
+        } else {
+            writeIntAt(flags_pos, hash_flags);
+        }
+    }
+
+    /**
+     * Take a checkpoint: write the header out (with the current pool, overflow
+     * block and key counts, and no longer marked as dirty) and sync the file;
+     * the sync runs on the checkpoint thread, if any, so the caller does not
+     * wait for it. A sync still running covers the next checkpoint as well.
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void checkpoint() throws IOException {
+        ckpt_due = false;
+        dirty = false;
+        hash_flags &= ~LinearHashConfiguration.FLAG_DIRTY;
+        writeFileHeader();
+        lin_perf.recordCheckpoint();
+        if (ckpt_pool == null) {
+            syncFile();
+        } else if (ckpt_sync == null || ckpt_sync.isDone()) {
+            // a failed sync is reported by the checkpoint after it
+            if (ckpt_sync != null) {
+                try {
+                    ckpt_sync.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while checking the last sync");
+                } catch (ExecutionException e) {
+                    throw new IOException("Couldn't sync the block file", e.getCause());
+                }
+            }
+            ckpt_sync = ckpt_pool.submit(() -> {
+                syncFile();
+                return (null);
+            });
+        }
+    }
+
+    /**
+     * Sync the file to the disk and wait for it, whatever the checkpoint
+     * settings
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void sync() throws IOException {
+        syncFile();
+    }
+
+    /**
+     * Sync the file (all of its segments, if segmented) to the disk
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void syncFile() throws IOException {
+        if (seg_file != null) {
+            seg_file.force();
+        } else {
+            blk_file.getChannel().force(false);
+        }
+    }
+
+    /**
+     * Write the header out, so that the file reflects the current state
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void saveHeader() throws IOException {
+        writeFileHeader();
+    }
+
+    /**
+     * Compact (some of) the buckets holding tombstones, going round the
+     * buckets from where the previous sweep stopped.
+     *
+     * @param budget most buckets compacted.
+     * @param window most buckets looked at.
+     * @param any    true to compact every bucket with tombstones, false only
+     *               the ones where that frees an overflow block.
+     * @return the number of overflow blocks freed.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    int sweep(int budget, int window, boolean any) throws IOException {
+        int freed = 0;
+        for (int i = 0; i < window && budget > 0 && dead_keys > 0; i++) {
+            if (sweep_ptr >= poolSize) {
+                sweep_ptr = 0;
+            }
+            int b = sweep_ptr++,
+                    dead = chain_dir.dead(b);
+            if (dead > 0 && (any ||
+                    chainPages(chain_dir.keys(b) - dead) < chain_dir.pages(b))) {
+                freed += compactBucket(b, k -> true);
+                budget--;
+            }
         }
-        return ovf_ptr;
+        return (freed);
     }
 
     /**
-     * Fetches a key from our Key storage
+     * Checks if a key is in our Key storage; the primary block is checked
+     * first and only then the rest of the chain is fetched (at once).
      *
      * @param val     value to find
      * @param blk_num block to navigate
-     * @return the Integer value corresponding to the value provided
-     * @throws IOException is thrown when there is an I/O error during the operation.
+     * @return true if the value is stored, false otherwise.
      * @throws IOException is thrown when there is an I/O error during the operation.
      */
-    Integer fetchKey(int val, int blk_num) throws IOException {
+    boolean containsKey(int val, int blk_num) throws IOException {
         int blk_keys,   // keys in block
-                ovf_ptr,    // ovf block pointer
-                c_key;      // current key
+                pages,      // pages in the chain
+                cnt;        // keys in the current page
 
+        int kpb = lin_conf.getKeysPerBlock();
+        // the tombstone value itself is kept in the header
+        if (lazy && val == TOMBSTONE) {
+            return (isMinKeyStored());
+        }
         // given block is out of range...
         if (blk_num >= poolSize) {
-            return (null);
+            return (false);
         }
-        // open the file
-        lin_perf.incrementBothIO();
-        // seek to the correct block
-        blk_file.seek(blockOffset(blk_num));
-        // read block header
-        blk_keys = blk_file.readInt();
-        ovf_ptr = blk_file.readInt();
-        // check if have keys inside this block (if not just return)
-        if (blk_keys == 0) {
+        if (blk_map != null) {
+            return (containsKeyMapped(val, blk_num));
+        }
+        // check if have (live) keys inside this block (if not just return)
+        blk_keys = chain_dir.keys(blk_num);
+        if (blk_keys == chain_dir.dead(blk_num)) {
             if (lin_conf.isDebugEnabled()) {
                 System.out.println("Zero keys in block");
             }
-            return (null);
+            return (false);
+        }
+        lin_perf.incrementBothIO();
+        // read the block page
+        readPage(blk_num);
+        // check the primary block
+        if (pageIndexOf(0, val, Math.min(kpb, blk_keys)) >= 0) {
+            lin_perf.recordChainLength(0);
+            return (true);
         }
 
-        //System.out.println("Block (" + blk_num + ") keys: " + blk_keys +
-        // " ovf_ptr: " + ovf_ptr + " deleting value: " + val);
-
-        // traverse the block
-        for (int i = 1; i < (blk_keys + 1); i++) {
-            c_key = blk_file.readInt();
-            // check if we found our key and adjust the location
-            if (c_key == val) {
-                return (c_key);
+        // then the overflow blocks, fetched at once
+        pages = chain_dir.pages(blk_num);
+        readChain(blk_num, pages, true);
+        lin_perf.recordChainLength(pages - 1);
+        for (int p = 1; p < pages; p++) {
+            cnt = Math.min(kpb, blk_keys - p * kpb);
+            if (pageIndexOf(p, val, cnt) >= 0) {
+                return (true);
             }
-            // let's check if we need to go to overflow pages
-            if ((i % lin_conf.getKeysPerBlock()) == 0) {
+        }
+        // not found
+        return (false);
+    }
+
+    /**
+     * Checks if a key is stored, reading the mapping of a read only table; the
+     * mapping is only read with absolute gets and no scratch buffer is used,
+     * so this can be called from many threads at once.
+     *
+     * @param val     value to find
+     * @param blk_num block to navigate
+     * @return true if the value is stored, false otherwise.
+     */
+    private boolean containsKeyMapped(int val, int blk_num) {
+        int kpb = lin_conf.getKeysPerBlock(),
+                ks = lin_conf.getKeyByteSize(),
+                off = blockOffset(blk_num),
+                blk_keys = mappedInt(off),
+                ovf_hops = 0;
+
+        lin_perf.incrementIO();
+        for (int i = 0; i < blk_keys; i += kpb) {
+            // follow the overflow pointer of the previous page
+            if (i > 0) {
                 lin_perf.incrementIO();
-                //io_cnt++;
-                blk_file.seek(offsetCalc(ovf_ptr));
-                ovf_ptr = blk_file.readInt();
+                off = blockOffset(fromPointer(mappedInt(off + ks)));
+                ovf_hops++;
+            }
+            int cnt = Math.min(kpb, blk_keys - i),
+                    k = off + lin_conf.getBlockHeaderOffset();
+            if (seg_file == null) {
+                if (indexOf(blk_map, k, val, cnt) >= 0) {
+                    lin_perf.recordChainLength(ovf_hops);
+                    return (true);
+                }
+                continue;
+            }
+            for (int j = 0; j < cnt; j++, k += ks) {
+                if (mappedInt(k) == val) {
+                    lin_perf.recordChainLength(ovf_hops);
+                    return (true);
+                }
+            }
+        }
+        lin_perf.recordChainLength(ovf_hops);
+        return (false);
+    }
+
+    /**
+     * Checks a batch of keys in one pass; every block chain involved is read
+     * once, a chain level at a time (primary blocks first, then the first
+     * overflow blocks and so on), with the pages of each level read in
+     * ascending file offset order. Runs of adjacent pages are fetched with a
+     * single read.
+     *
+     * @param keys  the keys to look for.
+     * @param order the entries to check, packed as (block number << 32 | key index)
+     *              and sorted in ascending order.
+     * @param n     number of entries in order.
+     * @param found the result flags, indexed as the keys (must be cleared).
+     * @return the number of keys found.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    int containsKeys(int[] keys, long[] order, int n, boolean[] found) throws IOException {
+        // the mapping of read only tables is checked in place, in block order
+        if (blk_map != null) {
+            int hits = 0;
+            for (int e = 0; e < n; e++) {
+                int blk = (int) (order[e] >>> 32), idx = (int) order[e];
+                if (lazy && keys[idx] == TOMBSTONE ? isMinKeyStored() :
+                        blk < poolSize && containsKeyMapped(keys[idx], blk)) {
+                    found[idx] = true;
+                    hits++;
+                }
+            }
+            return (hits);
+        }
+        int kpb = lin_conf.getKeysPerBlock(),
+                bpb = lin_conf.getBytesPerBlock(),
+                max_run = Math.max(1, shift_buf.length / bpb),
+                hits = 0,
+                groups = 0;
+
+        /* pending page reads, one per chain (group of keys on the same block) */
+        int pend_start[] = new int[n];  // first entry of the group in order
+        int pend_end[] = new int[n];    // entry after the last of the group
+        int pend_left[] = new int[n];   // keys left in the chain, -1 for the primary block
+        long pend_order[] = new long[n];// pending reads, packed as (block << 32 | pending index)
+        ByteBuffer run = ByteBuffer.wrap(shift_buf);
+
+        // the tombstone value is looked up in the header
+        for (int e = 0; lazy && e < n; e++) {
+            int idx = (int) order[e];
+            if (keys[idx] == TOMBSTONE && isMinKeyStored()) {
+                found[idx] = true;
+                hits++;
+            }
+        }
+        // group the entries by block; the primary blocks are already sorted
+        for (int i = 0, j; i < n; i = j) {
+            int blk = (int) (order[i] >>> 32);
+            for (j = i + 1; j < n && (int) (order[j] >>> 32) == blk; j++) ;
+            // blocks out of range have no keys, nor do empty ones
+            if (blk >= poolSize || chain_dir.keys(blk) == chain_dir.dead(blk)) {
+                continue;
+            }
+            pend_start[groups] = i;
+            pend_end[groups] = j;
+            pend_left[groups] = -1;
+            pend_order[groups] = ((long) blk << 32) | groups;
+            groups++;
+        }
+
+        // process a chain level at a time
+        int pending = groups;
+        while (pending > 0) {
+            Arrays.sort(pend_order, 0, pending);
+            int next = 0;
+            for (int p = 0, run_len; p < pending; p += run_len) {
+                // find the run of adjacent pages and read it at once
+                int first = (int) (pend_order[p] >>> 32);
+                for (run_len = 1; p + run_len < pending && run_len < max_run &&
+                        (int) (pend_order[p + run_len] >>> 32) == first + run_len; run_len++) ;
+                lin_perf.incrementBothIO();
+                blk_file.seek(blockOffset(first));
+                blk_file.readFully(shift_buf, 0, run_len * bpb);
+
+                for (int r = 0; r < run_len; r++) {
+                    int g = (int) pend_order[p + r];
+                    int base = r * bpb;
+                    int left = pend_left[g] < 0 ? run.getInt(base) : pend_left[g];
+                    int ovf_ptr = fromPointer(run.getInt(base + lin_conf.getKeyByteSize()));
+                    int cnt = Math.min(kpb, left);
+                    int unresolved = 0;
+                    // check the group keys that are still missing against this page
+                    for (int e = pend_start[g]; e < pend_end[g]; e++) {
+                        int idx = (int) order[e];
+                        if (found[idx] || lazy && keys[idx] == TOMBSTONE) {
+                            continue;
+                        }
+                        if (indexOf(run, base + lin_conf.getBlockHeaderOffset(), keys[idx], cnt) >= 0) {
+                            found[idx] = true;
+                            hits++;
+                        } else {
+                            unresolved++;
+                        }
+                    }
+                    // go down the chain only if it has more keys and we are still missing some
+                    left -= cnt;
+                    if (unresolved > 0 && left > 0) {
+                        pend_left[g] = left;
+                        pend_order[next++] = ((long) ovf_ptr << 32) | g;
+                    }
+                }
             }
+            pending = next;
         }
-        // return null
-        return (null);
+        return (hits);
     }
 
     /**
@@ -782,6 +2335,55 @@ class BlockManager {
         return lin_perf;
     }
 
+    /**
+     * Return the effective balance factor for inserts
+     *
+     * @return the configured balance factor, or the current one in adaptive mode.
+     */
+    float getBalanceFactorForInserts() {
+        return (lf_tuner != null ? lf_tuner.getBalanceFactorForInserts() :
+                lin_conf.getBalanceFactorForInserts());
+    }
+
+    /**
+     * Return the effective balance factor for deletes
+     *
+     * @return the configured balance factor, or the current one in adaptive mode.
+     */
+    float getBalanceFactorForDeletes() {
+        return (lf_tuner != null ? lf_tuner.getBalanceFactorForDeletes() :
+                lin_conf.getBalanceFactorForDeletes());
+    }
+
+    /**
+     * Take a snapshot of the current statistics
+     *
+     * @return the statistics snapshot.
+     */
+    LinearHashStats getStats() {
+        return (new LinearHashStats(lin_perf, key_num, poolSize, ovf_blocks, dead_keys,
+                curFileSize, Math.max(curFileSize, allocFileSize), getBlockLF(),
+                getBalanceFactorForInserts(), getBalanceFactorForDeletes()));
+    }
+
+    /**
+     * Return the number of stored keys
+     *
+     * @return the total key count.
+     */
+    int getKeyCount() {
+        return key_num;
+    }
+
+    /**
+     * Return the number of overflow blocks
+     *
+     * @return the overflow block count.
+     */
+    int getOverflowBlockCount() {
+        return ovf_blocks;
+    }
+
     /**
      * Beautification for time-stamp generation
      *
@@ -816,11 +2418,36 @@ class BlockManager {
     }
 
     /**
-     * Initiates tracking of performance.
+     * Initiates tracking of performance; the tombstone sweeps run at the end
+     * of the epochs as well, when they end with a write (lookups leave the
+     * sweep to the next write, as freeing blocks can shift the file).
+     *
+     * @param write true if the operation ending is an insert, delete or batch.
+     * @throws IOException is thrown when there is an I/O error during a sweep.
      */
-    void tick() {
-        if (lin_conf.isTrackingEnabled()) {
-            lin_perf.tick(poolSize, ovf_blocks, calculateRelativeFileSize());
+    void tick(boolean write) throws IOException {
+        // read only tables are looked up from many threads and never change, so
+        // they keep no epochs
+        if (lin_conf.isReadOnly()) {
+            return;
+        }
+        // the epoch values are only gathered when an epoch actually ends.
+        boolean epoch_end = lin_conf.isTrackingEnabled() && lin_perf.tick();
+        if (epoch_end) {
+            if (lf_tuner != null && lin_perf.getEpochOperations() > 0 &&
+                    lf_tuner.adjust(lin_perf.getEpochChainLength())) {
+                lin_perf.recordBalanceAdjustment();
+            }
+            sweep_due |= lazy && dead_keys > 0 && !lin_conf.isReadOnly();
+        }
+        // free the overflow pages of a few buckets, off the delete path
+        if (sweep_due && write) {
+            sweep_due = false;
+            sweep(lin_conf.getSweepBudget(), 64 * lin_conf.getSweepBudget(), false);
+        }
+        if (epoch_end) {
+            lin_perf.endEpoch(poolSize, ovf_blocks, calculateRelativeFileSize(),
+                    getBalanceFactorForInserts());
         }
     }
 
@@ -860,9 +2487,42 @@ class BlockManager {
      */
     void commitFile()
             throws IOException {
-        // first write the header data
-        writeFileHeader();
+        commitFile(false);
+    }
+
+    /**
+     * Close and commit the file, syncing it first if asked to.
+     *
+     * @param sync true to sync the file (header included) before closing it.
+     * @throws IOException is thrown when we cannot close the file.
+     */
+    void commitFile(boolean sync)
+            throws IOException {
+        // let the pending sync (if any) finish first
+        if (ckpt_pool != null) {
+            ckpt_pool.shutdown();
+            try {
+                while (!ckpt_pool.awaitTermination(1, TimeUnit.SECONDS)) ;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a checkpoint sync");
+            }
+        }
+        // first give back the preallocated space and write the header data
+        // (read only files are left untouched)
+        if (!lin_conf.isReadOnly()) {
+            trimFile();
+            hash_flags &= ~LinearHashConfiguration.FLAG_DIRTY;
+            writeFileHeader();
+            if (sync) {
+                syncFile();
+            }
+        }
         // then close.
         blk_file.close();
+        if (prefetch_ch != null) {
+            prefetch_ch.close();
+            prefetch_pool.shutdown();
+        }
     }
 }
@@ -0,0 +1,270 @@
+package lhash;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+/**
+ * Loader of a new table from the keys of other ones, holding a bounded number
+ * of keys in memory; shared by the offline tools ({@link LinearHashRebuild},
+ * {@link LinearHashSetOps}).
+ *
+ * The keys come from a {@link KeySource} scanned by groups: with m groups, a
+ * key belongs to group g when its absolute value is g modulo m. A bucket holds
+ * keys whose absolute value is congruent to its number modulo the visible pool
+ * of its table, so, with G the greatest common divisor of m and the visible
+ * pool of the new table, the keys of new bucket b all come from the groups
+ * congruent to b modulo G.
+ *
+ * The load runs in two passes over the source, both spread over a number of
+ * threads: the first one counts the keys of each new bucket, which fixes the
+ * layout of the new file; its threads take distinct residues modulo G, so
+ * they count distinct buckets, into a single counter per bucket. The second
+ * one fills partitions of (contiguous) buckets, each holding at most a given
+ * number of keys in memory and scanning only the groups that map into it,
+ * and writes their blocks in place. Memory use is thus bounded by the number
+ * of threads times the partition size, plus a counter per bucket.
+ */
+final class BucketLoader {
+
+    /**
+     * Keys to load, scanned by groups
+     */
+    interface KeySource {
+        /**
+         * Pass the keys of a range of groups to an action; the tombstone
+         * value is left out, see {@link #load}.
+         *
+         * @param lo     first group of the range.
+         * @param hi     group after the last one of the range.
+         * @param action the action.
+         * @throws IOException is thrown when there is an I/O error during the operation.
+         */
+        void scan(int lo, int hi, IntConsumer action) throws IOException;
+    }
+
+    private final ExecutorService exec; // runs the passes
+    private final int threads;          // threads of exec
+    private final int maxKeys;          // keys held in memory per partition
+
+    /**
+     * Create a loader
+     *
+     * @param exec    executor for the passes.
+     * @param threads number of threads of the executor.
+     * @param maxKeys largest number of keys a partition holds in memory.
+     */
+    BucketLoader(ExecutorService exec, int threads, int maxKeys) {
+        this.exec = exec;
+        this.threads = threads;
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Count the keys of a source
+     *
+     * @param src the source.
+     * @param m   its number of groups.
+     * @return the number of keys, the tombstone value left out.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    long count(KeySource src, int m) throws IOException {
+        int parts = Math.min(m, 4 * threads);
+        List<Future<Long>> counted = new ArrayList<>();
+        for (int t = 0; t < parts; t++) {
+            final int lo = (int) ((long) t * m / parts),
+                    hi = (int) ((long) (t + 1) * m / parts);
+            counted.add(exec.submit(() -> {
+                long cnt[] = new long[1];
+                src.scan(lo, hi, k -> cnt[0]++);
+                return (cnt[0]);
+            }));
+        }
+        long n = 0;
+        for (Future<Long> f : counted) {
+            n += await(f);
+        }
+        return (n);
+    }
+
+    /**
+     * Load the keys of a source into an empty table
+     *
+     * @param dst     the new table.
+     * @param src     the source.
+     * @param m       its number of groups.
+     * @param n       the number of keys to load, the tombstone value included.
+     * @param min_key true if the tombstone value is loaded as well.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void load(LinearHash dst, KeySource src, int m, int n, boolean min_key) throws IOException {
+        BlockManager dst_mgr = dst.getBlockManager();
+        final int pool = dst.growFor(n),
+                g = gcd(m, dst.getVisiblePool()),
+                bpb = dst.getConfiguration().getBytesPerBlock();
+        // tables with lazy deletes keep the tombstone value in their header
+        final boolean in_header = min_key && dst_mgr.isLazyDeletes(),
+                in_bucket = min_key && !in_header;
+        final int min_bkt = dst.bucketOf(BlockManager.TOMBSTONE);
+
+        // first pass: the size of every new bucket, by residues modulo g
+        final int counts[] = new int[pool];
+        int parts = Math.min(g, 4 * threads);
+        List<Future<Object>> counted = new ArrayList<>();
+        for (int t = 0; t < parts; t++) {
+            final int lo = (int) ((long) t * g / parts),
+                    hi = (int) ((long) (t + 1) * g / parts);
+            counted.add(exec.submit(() -> {
+                scanResidues(src, m, g, lo, hi, k -> counts[dst.bucketOf(k)]++);
+                return (null);
+            }));
+        }
+        for (Future<Object> f : counted) {
+            await(f);
+        }
+        if (in_bucket) {
+            counts[min_bkt]++;
+        }
+        final int ovf_start[] = dst_mgr.layoutBuckets(pool, counts);
+        if (in_header) {
+            dst_mgr.setMinKeyStored(true);
+        }
+
+        // second pass: partitions of contiguous buckets, small enough for memory
+        // and for keeping all threads busy
+        long limit = Math.max(1, Math.min(maxKeys, ((long) n + threads - 1) / threads));
+        List<Future<Object>> written = new ArrayList<>();
+        for (int lo = 0, hi; lo < pool; lo = hi) {
+            long part = counts[lo];
+            for (hi = lo + 1; hi < pool && part + counts[hi] <= limit; hi++) {
+                part += counts[hi];
+            }
+            final int from = lo, to = hi;
+            written.add(exec.submit(() -> {
+                int start[] = new int[to - from + 1];
+                for (int b = from; b < to; b++) {
+                    start[b - from + 1] = start[b - from] + counts[b];
+                }
+                int keys[] = new int[start[to - from]],
+                        fill[] = start.clone();
+                if (in_bucket && min_bkt >= from && min_bkt < to) {
+                    keys[fill[min_bkt - from]++] = BlockManager.TOMBSTONE;
+                }
+                IntConsumer add = k -> {
+                    int b = dst.bucketOf(k);
+                    if (b >= from && b < to) {
+                        keys[fill[b - from]++] = k;
+                    }
+                };
+                // only the residues of the partition, unless it covers them all
+                int r = from % g, w = to - from;
+                if (w >= g) {
+                    scanResidues(src, m, g, 0, g, add);
+                } else {
+                    scanResidues(src, m, g, r, Math.min(g, r + w), add);
+                    if (r + w > g) {
+                        scanResidues(src, m, g, 0, r + w - g, add);
+                    }
+                }
+                dst_mgr.writeBuckets(from, to, keys, start, ovf_start,
+                        new byte[Math.max(64 * 1024, bpb)]);
+                return (null);
+            }));
+        }
+        for (Future<Object> f : written) {
+            await(f);
+        }
+    }
+
+    /**
+     * Scan the groups of a range of residues modulo g
+     *
+     * @param src    the source.
+     * @param m      its number of groups, a multiple of g.
+     * @param g      the modulus.
+     * @param lo     first residue of the range.
+     * @param hi     residue after the last one of the range.
+     * @param action the action taking the keys.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private static void scanResidues(KeySource src, int m, int g, int lo, int hi, IntConsumer action)
+            throws IOException {
+        for (int base = 0; base < m; base += g) {
+            src.scan(base + lo, base + hi, action);
+        }
+    }
+
+    /**
+     * Prepare the builder of a new table with the settings of another one,
+     * lazy deletes and the change log included; the flag only, the tools
+     * deal with the log of the destination themselves.
+     *
+     * @param fname file of the new table.
+     * @param sc    configuration of the other table.
+     * @return the builder.
+     */
+    static LinearHash.Builder targetBuilder(String fname, LinearHashConfiguration sc) {
+        LinearHash.Builder b = new LinearHash.Builder(fname)
+                .initialPool(sc.getInitialVisiblePoolSize())
+                .balanceFactors(sc.getBalanceFactorForInserts(), sc.getBalanceFactorForDeletes())
+                .epochThreshold(sc.getTickThresh())
+                .overrideFile(true);
+        if (sc.isPageAligned()) {
+            b.pageSize(sc.getPageSize());
+        } else {
+            b.keysPerBlock(sc.getKeysPerBlock());
+        }
+        if (sc.isPreallocated()) {
+            b.preallocate(sc.getPreallocBlocks());
+        }
+        if (sc.isLazyDeletes()) {
+            b.lazyDeletes(sc.getSweepBudget());
+        }
+        if (sc.isChangeLogged()) {
+            b.changeLog();
+        }
+        return (b);
+    }
+
+    /**
+     * Return the greatest common divisor of two positive numbers
+     *
+     * @param x the first number.
+     * @param y the second number.
+     * @return their greatest common divisor.
+     */
+    static int gcd(int x, int y) {
+        while (y != 0) {
+            int r = x % y;
+            x = y;
+            y = r;
+        }
+        return (x);
+    }
+
+    /**
+     * Wait for a pass task, passing its I/O errors on
+     *
+     * @param f   the task.
+     * @param <T> the task result type.
+     * @return the task result.
+     * @throws IOException is thrown when the task failed with an I/O error.
+     */
+    private static <T> T await(Future<T> f) throws IOException {
+        try {
+            return (f.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Load pass failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package lhash;
+
+import java.util.Arrays;
+
+/**
+ * In-memory mirror of the block headers of a {@link BlockManager} file.
+ *
+ * For every block (primary or overflow) it keeps the overflow (next) pointer
+ * and, for overflow blocks, the back pointer; so the overflow blocks of a
+ * bucket can be listed without reading any page, and the pointer renumbering
+ * after a block is added or removed only has to write the pointers that
+ * actually changed.
+ *
+ * For every bucket (primary block) it also keeps the key count, which fixes
+ * the length of its chain and the page (and slot) the next key goes to; so
+ * empty buckets are never read and the chain of a bucket is known before any
+ * of its pages is. With lazy deletes the key count includes the tombstones,
+ * which are counted separately.
+ *
+ * As in the file, a next pointer of zero marks the end of a chain (block zero
+ * is always a primary block, so it is never pointed to).
+ */
+class ChainDirectory {
+
+    private int next[];     // next (overflow) pointer of each block
+    private int prev[];     // back pointer of each overflow block
+    private int keys[];     // key count of each primary block
+    private int dead[];     // tombstones of each primary block
+    private int blocks;     // number of blocks tracked
+    private final int kpb;  // keys per block
+
+    /**
+     * Create an empty directory for the given number of (primary) blocks
+     *
+     * @param blocks initial number of blocks.
+     * @param kpb    keys per block.
+     */
+    ChainDirectory(int blocks, int kpb) {
+        this.next = new int[Math.max(16, blocks)];
+        this.prev = new int[next.length];
+        this.keys = new int[next.length];
+        this.dead = new int[next.length];
+        this.blocks = blocks;
+        this.kpb = kpb;
+    }
+
+    /**
+     * Make room for at least the given number of blocks
+     *
+     * @param cap number of blocks needed.
+     */
+    private void ensureCapacity(int cap) {
+        if (cap > next.length) {
+            int n = Math.max(cap, 2 * next.length);
+            next = Arrays.copyOf(next, n);
+            prev = Arrays.copyOf(prev, n);
+            keys = Arrays.copyOf(keys, n);
+            dead = Arrays.copyOf(dead, n);
+        }
+    }
+
+    /**
+     * Set the pointers of a block, used while loading the directory from the file
+     *
+     * @param blk_num block number.
+     * @param back    back pointer (overflow blocks only).
+     * @param nxt     next pointer, zero if none.
+     */
+    void load(int blk_num, int back, int nxt) {
+        ensureCapacity(blk_num + 1);
+        prev[blk_num] = back;
+        next[blk_num] = nxt;
+        blocks = Math.max(blocks, blk_num + 1);
+    }
+
+    /**
+     * Set the key count of a bucket
+     *
+     * @param blk_num primary block number.
+     * @param cnt     keys in the bucket.
+     */
+    void setKeys(int blk_num, int cnt) {
+        keys[blk_num] = cnt;
+    }
+
+    /**
+     * Return the key count of a bucket
+     *
+     * @param blk_num primary block number.
+     * @return the keys in the bucket.
+     */
+    int keys(int blk_num) {
+        return (keys[blk_num]);
+    }
+
+    /**
+     * Set the tombstone count of a bucket
+     *
+     * @param blk_num primary block number.
+     * @param cnt     tombstones in the bucket.
+     */
+    void setDead(int blk_num, int cnt) {
+        dead[blk_num] = cnt;
+    }
+
+    /**
+     * Return the tombstone count of a bucket
+     *
+     * @param blk_num primary block number.
+     * @return the tombstones in the bucket.
+     */
+    int dead(int blk_num) {
+        return (dead[blk_num]);
+    }
+
+    /**
+     * Return the length of the chain of a bucket
+     *
+     * @param blk_num primary block number.
+     * @return the pages of the chain, one at least (the primary block).
+     */
+    int pages(int blk_num) {
+        return (keys[blk_num] <= kpb ? 1 : 1 + (keys[blk_num] - 1) / kpb);
+    }
+
+    /**
+     * Return the occupancy of the last page of the chain of a bucket
+     *
+     * @param blk_num primary block number.
+     * @return the keys in the last page, which is also the slot of the next
+     * key unless the page is full.
+     */
+    int lastPageKeys(int blk_num) {
+        return (keys[blk_num] == 0 ? 0 : 1 + (keys[blk_num] - 1) % kpb);
+    }
+
+    /**
+     * Return the number of blocks tracked
+     *
+     * @return the number of blocks tracked.
+     */
+    int size() {
+        return blocks;
+    }
+
+    /**
+     * Return the next pointer of a block
+     *
+     * @param blk_num block number.
+     * @return the next overflow block, zero if none.
+     */
+    int next(int blk_num) {
+        return (next[blk_num]);
+    }
+
+    /**
+     * Return the back pointer of an overflow block
+     *
+     * @param blk_num overflow block number.
+     * @return the previous block in the chain.
+     */
+    int prev(int blk_num) {
+        return (prev[blk_num]);
+    }
+
+    /**
+     * Return the last block of the chain starting at the given block
+     *
+     * @param blk_num block number (usually primary).
+     * @return the last block of the chain, blk_num itself if it has no overflow blocks.
+     */
+    int tail(int blk_num) {
+        while (next[blk_num] != 0) {
+            blk_num = next[blk_num];
+        }
+        return (blk_num);
+    }
+
+    /**
+     * Fill in the blocks of a chain, in chain order
+     *
+     * @param blk_num primary block of the chain.
+     * @param dst     destination, dst[0] is set to blk_num.
+     * @param pages   number of chain blocks to list.
+     */
+    void chain(int blk_num, int[] dst, int pages) {
+        dst[0] = blk_num;
+        for (int i = 1; i < pages; i++) {
+            dst[i] = next[dst[i - 1]];
+        }
+    }
+
+    /**
+     * Insert an empty primary block, shifting the blocks from {@code at}
+     * onwards by one; pointers to the shifted blocks are incremented.
+     *
+     * @param at number of the new block.
+     */
+    void insertBlock(int at) {
+        insertBlocks(at, 1);
+    }
+
+    /**
+     * Insert a run of empty primary blocks, see {@link #insertBlock(int)}.
+     *
+     * @param at    number of the first new block.
+     * @param count number of new blocks.
+     */
+    void insertBlocks(int at, int count) {
+        ensureCapacity(blocks + count);
+        System.arraycopy(next, at, next, at + count, blocks - at);
+        System.arraycopy(prev, at, prev, at + count, blocks - at);
+        System.arraycopy(keys, at, keys, at + count, blocks - at);
+        System.arraycopy(dead, at, dead, at + count, blocks - at);
+        Arrays.fill(next, at, at + count, 0);
+        Arrays.fill(prev, at, at + count, 0);
+        Arrays.fill(keys, at, at + count, 0);
+        Arrays.fill(dead, at, at + count, 0);
+        blocks += count;
+        // the new blocks are empty, so they never match the (old) numbers shifted here
+        renumber(at, count, at + count);
+    }
+
+    /**
+     * Remove a block, shifting the blocks after it back by one; pointers to the
+     * shifted blocks are decremented. The block must not be part of any chain.
+     *
+     * @param at       number of the block to remove.
+     * @param first_ovf first overflow block after the removal (back pointers are
+     *                 only kept for overflow blocks).
+     */
+    void removeBlock(int at, int first_ovf) {
+        System.arraycopy(next, at + 1, next, at, blocks - at - 1);
+        System.arraycopy(prev, at + 1, prev, at, blocks - at - 1);
+        System.arraycopy(keys, at + 1, keys, at, blocks - at - 1);
+        System.arraycopy(dead, at + 1, dead, at, blocks - at - 1);
+        blocks--;
+        next[blocks] = 0;
+        prev[blocks] = 0;
+        keys[blocks] = 0;
+        dead[blocks] = 0;
+        renumber(at + 1, -1, first_ovf);
+    }
+
+    /**
+     * Append an overflow block at the end of a chain
+     *
+     * @param blk_num primary block of the chain.
+     * @return the number of the new block.
+     */
+    int appendOverflow(int blk_num) {
+        int t = tail(blk_num);
+        ensureCapacity(blocks + 1);
+        next[t] = blocks;
+        prev[blocks] = t;
+        next[blocks] = 0;
+        return (blocks++);
+    }
+
+    /**
+     * Unlink the last overflow block of a chain (the block itself stays in
+     * place, see {@link #removeBlock(int, int)}).
+     *
+     * @param blk_num primary block of the chain.
+     * @return the unlinked block, zero if the chain had no overflow blocks.
+     */
+    int unlinkLast(int blk_num) {
+        int t = tail(blk_num);
+        if (t == blk_num) {
+            return (0);
+        }
+        next[prev[t]] = 0;
+        prev[t] = 0;
+        return (t);
+    }
+
+    /**
+     * Move the last block into the slot of an unlinked overflow block, and
+     * drop the last slot; the pointers to the moved block follow it.
+     *
+     * @param at number of the unlinked block.
+     */
+    void moveLast(int at) {
+        int last = blocks - 1;
+        if (at != last) {
+            next[at] = next[last];
+            prev[at] = prev[last];
+            next[prev[last]] = at;
+            if (next[last] != 0) {
+                prev[next[last]] = at;
+            }
+        }
+        next[last] = 0;
+        prev[last] = 0;
+        blocks--;
+    }
+
+    /**
+     * Shift all pointers to blocks at or after {@code from} by {@code delta}
+     *
+     * @param from      first block number affected.
+     * @param delta     the shift.
+     * @param first_ovf first overflow block (back pointers are only kept for those).
+     */
+    private void renumber(int from, int delta, int first_ovf) {
+        for (int i = 0; i < blocks; i++) {
+            if (next[i] >= from) {
+                next[i] += delta;
+            }
+        }
+        for (int i = first_ovf; i < blocks; i++) {
+            if (prev[i] >= from) {
+                prev[i] += delta;
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package lhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Log of the inserts and deletes of a table, kept next to the block file (as
+ * "fname.changes"), in the order they are applied; see
+ * {@link LinearHash.Builder#changeLog()} and {@link LinearHashChangeReader}.
+ *
+ * Every change gets the next sequence number, starting from one, and is
+ * written as a fixed size record, so the record of a sequence number is found
+ * without reading the ones before it. Records are written out as soon as
+ * their operation (or write batch) is done, so that readers in other
+ * processes see them at once, and synced with the checkpoints and on commit.
+ *
+ * Layout (integers are big endian):
+ * <pre>
+ *  header: 4 (magic)
+ *  record: 8 (sequence number) + 4 (key) + 1 (1 for inserts, 0 for deletes) +
+ *          4 (CRC32 of the record before it)
+ * </pre>
+ */
+class ChangeLog {
+
+    static final int MAGIC = 0x4C48434C;    // "LHCL"
+    static final int HEADER_SIZE = 4;
+    static final int RECORD_SIZE = 17;
+
+    private static final int BUFFER_RECORDS = 4096;
+
+    private final FileChannel ch;
+    private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_RECORDS * RECORD_SIZE);  // records not yet written
+    private final CRC32 crc = new CRC32();
+    private long seq;   // sequence number of the last change
+    private long end;   // file position after the last record written
+
+    /**
+     * Open (or create) the change log of a table; a record cut short when
+     * the process stopped is dropped.
+     *
+     * @param fname file of the table.
+     * @param reset true to start a new log, for a new table.
+     * @throws IOException is thrown when the log cannot be opened or is not a change log.
+     */
+    ChangeLog(String fname, boolean reset) throws IOException {
+        if (reset) {
+            Files.deleteIfExists(file(fname).toPath());
+        }
+        ch = FileChannel.open(file(fname).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer b = ByteBuffer.allocate(RECORD_SIZE);
+        if (ch.size() < HEADER_SIZE) {
+            b.putInt(MAGIC).flip();
+            writeFully(b, 0);
+        } else {
+            b.limit(HEADER_SIZE);
+            if (readFully(b, 0) < HEADER_SIZE || b.getInt(0) != MAGIC) {
+                ch.close();
+                throw new IOException(file(fname) + " is not a change log");
+            }
+        }
+        seq = (ch.size() - HEADER_SIZE) / RECORD_SIZE;
+        while (seq > 0) {
+            b.clear();
+            if (readFully(b, position(seq)) == RECORD_SIZE && isValid(b, 0, seq, crc)) {
+                break;
+            }
+            seq--;
+        }
+        end = position(seq + 1);
+        ch.truncate(end);
+    }
+
+    /**
+     * Return the change log file of a table
+     *
+     * @param fname file of the table.
+     * @return the log file.
+     */
+    static File file(String fname) {
+        return (new File(fname + ".changes"));
+    }
+
+    /**
+     * Return the file position of the record of a change
+     *
+     * @param seq sequence number of the change.
+     * @return the record position.
+     */
+    static long position(long seq) {
+        return (HEADER_SIZE + (seq - 1) * RECORD_SIZE);
+    }
+
+    /**
+     * Check that a record is whole, by its checksum
+     *
+     * @param rec the buffer holding the record.
+     * @param off position of the record.
+     * @param crc checksum to compute the record one with.
+     * @return true if the checksum matches.
+     */
+    static boolean isWhole(ByteBuffer rec, int off, CRC32 crc) {
+        crc.reset();
+        crc.update(rec.array(), rec.arrayOffset() + off, RECORD_SIZE - 4);
+        return (rec.getInt(off + RECORD_SIZE - 4) == (int) crc.getValue());
+    }
+
+    /**
+     * Check that a record is whole and holds the given change
+     *
+     * @param rec the buffer holding the record.
+     * @param off position of the record.
+     * @param seq expected sequence number.
+     * @param crc checksum to compute the record one with.
+     * @return true if the checksum and the sequence number match.
+     */
+    static boolean isValid(ByteBuffer rec, int off, long seq, CRC32 crc) {
+        return (isWhole(rec, off, crc) && rec.getLong(off) == seq);
+    }
+
+    /**
+     * Add a change; it is written out by the next {@link #flush()}
+     *
+     * @param key    the key.
+     * @param insert true if the key was inserted, false if it was deleted.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void append(int key, boolean insert) throws IOException {
+        if (!buf.hasRemaining()) {
+            flush();
+        }
+        int off = buf.position();
+        buf.putLong(++seq).putInt(key).put((byte) (insert ? 1 : 0));
+        crc.reset();
+        crc.update(buf.array(), off, RECORD_SIZE - 4);
+        buf.putInt((int) crc.getValue());
+    }
+
+    /**
+     * Write out the changes added
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void flush() throws IOException {
+        buf.flip();
+        end += writeFully(buf, end);
+        buf.clear();
+    }
+
+    /**
+     * Write out the changes added and sync the log
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void sync() throws IOException {
+        flush();
+        ch.force(false);
+    }
+
+    /**
+     * Return the sequence number of the last change
+     *
+     * @return the sequence number, zero if there are no changes.
+     */
+    long getSequence() {
+        return (seq);
+    }
+
+    /**
+     * Sync and close the log; the file is kept, for the readers
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void close() throws IOException {
+        sync();
+        ch.close();
+    }
+
+    /**
+     * Write a buffer out at the given position
+     *
+     * @param b   the buffer.
+     * @param pos the file position.
+     * @return the number of bytes written.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private int writeFully(ByteBuffer b, long pos) throws IOException {
+        int n = 0;
+        while (b.hasRemaining()) {
+            n += ch.write(b, pos + n);
+        }
+        return (n);
+    }
+
+    /**
+     * Read from the given position until the buffer is full or the file ends
+     *
+     * @param b   the buffer.
+     * @param pos the file position.
+     * @return the number of bytes read.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private int readFully(ByteBuffer b, long pos) throws IOException {
+        int n = 0, r;
+        while (b.hasRemaining() && (r = ch.read(b, pos + n)) > 0) {
+            n += r;
+        }
+        return (n);
+    }
+}
@@ -0,0 +1,94 @@
+package lhash;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A {@link RandomAccessFile} that reports every call reaching the file, along
+ * with the number of bytes moved, to the performance tracker.
+ *
+ * All the {@code readXXX}/{@code writeXXX} helpers of {@link RandomAccessFile}
+ * funnel through the primitive calls overridden here, so those are counted too.
+ */
+class CountingRandomAccessFile extends RandomAccessFile {
+
+    private final LinearHashPerfLog lin_perf;   // performance tracker instance.
+
+    /**
+     * Open the file using the given mode
+     *
+     * @param fname    file to open.
+     * @param mode     the access mode, as in {@link RandomAccessFile}.
+     * @param lin_perf the tracker to report to.
+     * @throws FileNotFoundException is thrown when the file cannot be opened.
+     */
+    CountingRandomAccessFile(String fname, String mode, LinearHashPerfLog lin_perf)
+            throws FileNotFoundException {
+        super(fname, mode);
+        this.lin_perf = lin_perf;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        lin_perf.recordRead(b < 0 ? 0 : 1);
+        return (b);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        lin_perf.recordRead(n < 0 ? 0 : n);
+        return (n);
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        int n = super.read(b);
+        lin_perf.recordRead(n < 0 ? 0 : n);
+        return (n);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        super.write(b);
+        lin_perf.recordWrite(1);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        super.write(b);
+        lin_perf.recordWrite(b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        lin_perf.recordWrite(len);
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        super.seek(pos);
+        lin_perf.recordSyscall();
+    }
+
+    @Override
+    public long getFilePointer() throws IOException {
+        lin_perf.recordSyscall();
+        return (super.getFilePointer());
+    }
+
+    @Override
+    public long length() throws IOException {
+        lin_perf.recordSyscall();
+        return (super.length());
+    }
+
+    @Override
+    public void setLength(long newLength) throws IOException {
+        super.setLength(newLength);
+        lin_perf.recordSyscall();
+    }
+}
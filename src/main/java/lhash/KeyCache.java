@@ -0,0 +1,241 @@
+package lhash;
+
+import java.util.Arrays;
+
+/**
+ * Bounded cache of lookup results (both stored and missing keys) in front of
+ * a {@link LinearHash}, kept in primitive arrays.
+ *
+ * Entries are found through an open addressing index (linear probing, with
+ * backward shift deletion so there are no tombstones) and evicted in CLOCK
+ * order. Admission follows TinyLFU: the access frequency of every key looked
+ * up is estimated by a count-min sketch of 4-bit counters, which are halved
+ * periodically so that the estimates follow the workload, and once the cache
+ * is full a new key only replaces the CLOCK victim if it has been accessed
+ * more often. A scan thus cannot push the hot keys out, as its keys are seen
+ * once.
+ *
+ * The table keeps the entries coherent through {@link #update(int, boolean)}
+ * on every insert and delete. All methods are synchronized, as read only
+ * tables are looked up from many threads.
+ */
+class KeyCache {
+
+    static final byte MISS = 0;     // not cached
+    static final byte PRESENT = 1;  // cached as stored
+    static final byte ABSENT = 2;   // cached as missing
+
+    private final int cap;          // most entries held
+    private final int keys[];       // key of each entry
+    private final byte vals[];      // PRESENT or ABSENT, for each entry
+    private final boolean refs[];   // CLOCK reference bit of each entry
+    private final int index[];      // open addressing index, entry + 1 (0 for free)
+    private final int mask;         // index mask
+    private int size;               // entries held
+    private int hand;               // CLOCK hand
+
+    /* frequency sketch, 16 4-bit counters per long */
+    private final long sketch[];
+    private final int sketch_mask;  // counter index mask
+    private final int sample_size;  // accesses between two halvings
+    private int samples;            // accesses since the last halving
+
+    /**
+     * Create a cache holding up to the given number of entries
+     *
+     * @param cap the most entries held.
+     */
+    KeyCache(int cap) {
+        if (cap < 1) {
+            throw new IllegalArgumentException("The cache needs room for at least one key");
+        }
+        this.cap = cap;
+        this.keys = new int[cap];
+        this.vals = new byte[cap];
+        this.refs = new boolean[cap];
+        this.index = new int[Integer.highestOneBit(Math.max(2, cap - 1)) << 2];
+        this.mask = index.length - 1;
+        // a long (16 counters) per entry keeps the collisions rare
+        this.sketch = new long[Integer.highestOneBit(Math.max(2, cap - 1)) << 1];
+        this.sketch_mask = (sketch.length << 4) - 1;
+        this.sample_size = 10 * cap;
+    }
+
+    /**
+     * Spread the bits of a key
+     *
+     * @param key the key.
+     * @return its hash.
+     */
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16));
+    }
+
+    /**
+     * Find the index slot of a key
+     *
+     * @param key the key.
+     * @return the slot holding it, or the free slot where it would go (as -slot - 1).
+     */
+    private int find(int key) {
+        int pos = mix(key) & mask;
+        while (index[pos] != 0) {
+            if (keys[index[pos] - 1] == key) {
+                return (pos);
+            }
+            pos = (pos + 1) & mask;
+        }
+        return (-pos - 1);
+    }
+
+    /**
+     * Free an index slot, moving back the entries probed past it
+     *
+     * @param pos the slot to free.
+     */
+    private void unindex(int pos) {
+        for (int nxt = (pos + 1) & mask; index[nxt] != 0; nxt = (nxt + 1) & mask) {
+            int home = mix(keys[index[nxt] - 1]) & mask;
+            // move it unless its home lies in (pos, nxt]
+            if (((nxt - home) & mask) >= ((nxt - pos) & mask)) {
+                index[pos] = index[nxt];
+                pos = nxt;
+            }
+        }
+        index[pos] = 0;
+    }
+
+    /**
+     * Return the sketch counter index of a key, for one of the four hashes
+     *
+     * @param h hash of the key.
+     * @param i the hash to use (0 to 3).
+     * @return the counter index.
+     */
+    private int counter(int h, int i) {
+        int c = (h + i) * (0x27D4EB2F + 2 * i);
+        return ((c ^ (c >>> 15)) & sketch_mask);
+    }
+
+    /**
+     * Count an access to a key, halving all counters every so often
+     *
+     * @param h hash of the key.
+     */
+    private void recordAccess(int h) {
+        for (int i = 0; i < 4; i++) {
+            int c = counter(h, i), shift = (c & 15) << 2;
+            if (((sketch[c >>> 4] >>> shift) & 0xF) < 15) {
+                sketch[c >>> 4] += 1L << shift;
+            }
+        }
+        if (++samples >= sample_size) {
+            for (int i = 0; i < sketch.length; i++) {
+                sketch[i] = (sketch[i] >>> 1) & 0x7777777777777777L;
+            }
+            samples /= 2;
+        }
+    }
+
+    /**
+     * Estimate the access frequency of a key
+     *
+     * @param h hash of the key.
+     * @return the estimated frequency (at most 15).
+     */
+    private int frequency(int h) {
+        int f = 15;
+        for (int i = 0; i < 4; i++) {
+            int c = counter(h, i);
+            f = Math.min(f, (int) ((sketch[c >>> 4] >>> ((c & 15) << 2)) & 0xF));
+        }
+        return (f);
+    }
+
+    /**
+     * Look a key up, counting the access
+     *
+     * @param key the key.
+     * @return PRESENT or ABSENT if cached, MISS otherwise.
+     */
+    synchronized byte get(int key) {
+        recordAccess(mix(key));
+        int pos = find(key);
+        if (pos < 0) {
+            return (MISS);
+        }
+        int e = index[pos] - 1;
+        refs[e] = true;
+        return (vals[e]);
+    }
+
+    /**
+     * Offer the result of a lookup that missed the cache; once the cache is
+     * full it is only admitted if the key is accessed more often than the
+     * entry it would evict.
+     *
+     * @param key     the key.
+     * @param present true if the key is stored.
+     */
+    synchronized void put(int key, boolean present) {
+        int pos = find(key), e;
+        if (pos >= 0) {
+            vals[index[pos] - 1] = present ? PRESENT : ABSENT;
+            return;
+        }
+        if (size < cap) {
+            e = size++;
+        } else {
+            // CLOCK: pass over (and clear) the recently referenced entries
+            while (refs[hand]) {
+                refs[hand] = false;
+                hand = (hand + 1) % cap;
+            }
+            e = hand;
+            if (frequency(mix(key)) <= frequency(mix(keys[e]))) {
+                return;
+            }
+            hand = (hand + 1) % cap;
+            unindex(find(keys[e]));
+            // the victim might have moved the free slot
+            pos = find(key);
+        }
+        keys[e] = key;
+        vals[e] = present ? PRESENT : ABSENT;
+        refs[e] = false;
+        index[-pos - 1] = e + 1;
+    }
+
+    /**
+     * Bring a cached entry up to date after an insert or delete; keys that
+     * are not cached are left out.
+     *
+     * @param key     the key.
+     * @param present true if the key is now stored.
+     */
+    synchronized void update(int key, boolean present) {
+        int pos = find(key);
+        if (pos >= 0) {
+            vals[index[pos] - 1] = present ? PRESENT : ABSENT;
+        }
+    }
+
+    /**
+     * Drop all entries (the frequencies are kept)
+     */
+    synchronized void clear() {
+        Arrays.fill(index, 0);
+        size = 0;
+        hand = 0;
+    }
+
+    /**
+     * Return the number of cached entries
+     *
+     * @return the number of entries.
+     */
+    synchronized int size() {
+        return (size);
+    }
+}
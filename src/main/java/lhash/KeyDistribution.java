@@ -0,0 +1,222 @@
+package lhash;
+
+import java.util.SplittableRandom;
+import java.util.function.IntSupplier;
+
+/**
+ * Key index generators used to drive the benchmarks and the workload driver
+ * ({@link LinearHashWorkload}).
+ *
+ * Each generator hands out indexes in [0, n); the benchmarks then map those
+ * indexes to the actual keys through {@link #key(int)} so that the stored key
+ * set and the access pattern can be chosen independently. Generators are not
+ * thread safe, every thread needs its own.
+ */
+public abstract class KeyDistribution {
+
+    final int n;                    // number of distinct indexes
+    final SplittableRandom rnd;     // seeded generator, for repeatable runs
+
+    KeyDistribution(int n, long seed) {
+        this.n = n;
+        this.rnd = new SplittableRandom(seed);
+    }
+
+    /**
+     * Return the next index in [0, n)
+     *
+     * @return the next index based on the distribution.
+     */
+    public abstract int nextIndex();
+
+    /**
+     * Map an index to the key stored in the table.
+     *
+     * @param idx the index to map.
+     * @return the key for that index.
+     */
+    public abstract int key(int idx);
+
+    /**
+     * Create a distribution by name.
+     *
+     * @param name one of uniform, sequential, zipfian or latest.
+     * @param n    the number of distinct indexes.
+     * @param seed the random seed.
+     * @return the distribution instance.
+     */
+    public static KeyDistribution create(String name, int n, long seed) {
+        return (create(name, n, seed, () -> n));
+    }
+
+    /**
+     * Create a distribution by name, over a set of indexes that grows as keys
+     * are inserted; the latest distribution favours the indexes inserted last,
+     * the others keep to [0, n).
+     *
+     * @param name  one of uniform, sequential, zipfian or latest.
+     * @param n     the number of distinct indexes.
+     * @param seed  the random seed.
+     * @param count the current number of indexes, n at least.
+     * @return the distribution instance.
+     */
+    public static KeyDistribution create(String name, int n, long seed, IntSupplier count) {
+        if ("uniform".equals(name)) {
+            return new Uniform(n, seed);
+        } else if ("sequential".equals(name)) {
+            return new Sequential(n, seed);
+        } else if ("zipfian".equals(name)) {
+            return new Zipfian(n, seed, Zipfian.DEFAULT_THETA);
+        } else if ("latest".equals(name)) {
+            return new Latest(n, seed, count);
+        }
+        throw new IllegalArgumentException("Unknown key distribution: " + name);
+    }
+
+    /**
+     * Bijective 32-bit mixer, so that distinct indexes always map to distinct
+     * (and well scattered) keys.
+     *
+     * @param x value to mix.
+     * @return the mixed value.
+     */
+    static int scramble(int x) {
+        x ^= x >>> 16;
+        x *= 0x7feb352d;
+        x ^= x >>> 15;
+        x *= 0x846ca68b;
+        x ^= x >>> 16;
+        return (x);
+    }
+
+    /**
+     * Sequential keys, visited in ascending order (and wrapping around).
+     */
+    static final class Sequential extends KeyDistribution {
+        private int next;
+
+        Sequential(int n, long seed) {
+            super(n, seed);
+        }
+
+        @Override
+        public int nextIndex() {
+            int idx = next;
+            if (++next == n) {
+                next = 0;
+            }
+            return (idx);
+        }
+
+        @Override
+        public int key(int idx) {
+            return (idx);
+        }
+    }
+
+    /**
+     * Uniformly random accesses over scrambled keys.
+     */
+    static final class Uniform extends KeyDistribution {
+        Uniform(int n, long seed) {
+            super(n, seed);
+        }
+
+        @Override
+        public int nextIndex() {
+            return (rnd.nextInt(n));
+        }
+
+        @Override
+        public int key(int idx) {
+            return (scramble(idx));
+        }
+    }
+
+    /**
+     * Zipfian accesses over scrambled keys, as described by Gray et al. in
+     * "Quickly Generating Billion-Record Synthetic Databases" (and used by YCSB).
+     *
+     * Index 0 is the most popular one; since the keys are scrambled the hot keys
+     * are spread over the buckets instead of being clustered in the first ones.
+     */
+    static final class Zipfian extends KeyDistribution {
+        static final double DEFAULT_THETA = 0.99;
+
+        private final double theta;
+        private final double alpha;
+        private final double zetan;
+        private final double eta;
+        private final double half_pow_theta;
+
+        Zipfian(int n, long seed, double theta) {
+            super(n, seed);
+            this.theta = theta;
+            this.alpha = 1.0 / (1.0 - theta);
+            this.zetan = zeta(n, theta);
+            this.half_pow_theta = Math.pow(0.5, theta);
+            double zeta2 = 1.0 + half_pow_theta;
+            this.eta = (1.0 - Math.pow(2.0 / n, 1.0 - theta)) / (1.0 - zeta2 / zetan);
+        }
+
+        /**
+         * Compute the generalized harmonic number of order theta
+         *
+         * @param n     number of items.
+         * @param theta skew parameter.
+         * @return the zeta value.
+         */
+        private static double zeta(int n, double theta) {
+            double sum = 0.0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1.0 / Math.pow(i, theta);
+            }
+            return (sum);
+        }
+
+        @Override
+        public int nextIndex() {
+            double u = rnd.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1.0) {
+                return (0);
+            }
+            if (uz < 1.0 + half_pow_theta) {
+                return (1);
+            }
+            int idx = (int) (n * Math.pow(eta * u - eta + 1.0, alpha));
+            return (idx >= n ? n - 1 : idx);
+        }
+
+        @Override
+        public int key(int idx) {
+            return (scramble(idx));
+        }
+    }
+
+    /**
+     * Zipfian accesses skewed towards the keys inserted last, as the "latest"
+     * distribution of YCSB: the index drawn is counted back from the newest one.
+     */
+    static final class Latest extends KeyDistribution {
+        private final Zipfian recency;  // distance from the newest index
+        private final IntSupplier count;// current number of indexes
+
+        Latest(int n, long seed, IntSupplier count) {
+            super(n, seed);
+            this.recency = new Zipfian(n, seed, Zipfian.DEFAULT_THETA);
+            this.count = count;
+        }
+
+        @Override
+        public int nextIndex() {
+            int top = Math.max(n, count.getAsInt());
+            return (top - 1 - recency.nextIndex());
+        }
+
+        @Override
+        public int key(int idx) {
+            return (scramble(idx));
+        }
+    }
+}
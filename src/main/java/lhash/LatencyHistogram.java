@@ -0,0 +1,94 @@
+package lhash;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A log-linear (HDR-style) histogram for non-negative long values.
+ *
+ * Values are mapped to buckets that keep the top {@code SUB_BITS} bits of the
+ * value, so the relative error of any reported value is below 1/64 (~1.6%) over
+ * the whole long range. Recording never allocates; the bucket counts live in a
+ * fixed {@link AtomicLongArray} and the totals in striped adders, so it is safe
+ * to record from many threads at once.
+ */
+class LatencyHistogram {
+
+    static final int SUB_BITS = 6;                              // precision bits
+    static final int SUB_COUNT = 1 << SUB_BITS;                 // sub-buckets per magnitude
+    static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;     // covers the long range
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0L);
+
+    /**
+     * Record a single value
+     *
+     * @param val the value to record, negative values are recorded as zero.
+     */
+    void record(long val) {
+        if (val < 0) {
+            val = 0;
+        }
+        counts.incrementAndGet(bucketIndex(val));
+        sum.add(val);
+        max.accumulate(val);
+    }
+
+    /**
+     * Reset the histogram
+     */
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0L);
+        }
+        sum.reset();
+        max.reset();
+    }
+
+    /**
+     * Take a point in time copy of the histogram
+     *
+     * @return the histogram snapshot.
+     */
+    LinearHashStats.Histogram snapshot() {
+        long[] cnt = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cnt[i] = counts.get(i);
+            total += cnt[i];
+        }
+        return (new LinearHashStats.Histogram(cnt, total, sum.sum(), max.get()));
+    }
+
+    /**
+     * Find the bucket in which a value is recorded
+     *
+     * @param val a non-negative value.
+     * @return the bucket index.
+     */
+    static int bucketIndex(long val) {
+        if (val < 2 * SUB_COUNT) {
+            return ((int) val);
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(val)) - SUB_BITS;
+        return ((shift + 1) * SUB_COUNT + (int) (val >>> shift) - SUB_COUNT);
+    }
+
+    /**
+     * Return the highest value that maps to the same bucket
+     *
+     * @param idx bucket index.
+     * @return the highest value recorded in that bucket.
+     */
+    static long bucketHighestValue(int idx) {
+        if (idx < 2 * SUB_COUNT) {
+            return (idx);
+        }
+        int shift = (idx / SUB_COUNT) - 1;
+        long sub = (idx % SUB_COUNT) + SUB_COUNT;
+        return (((sub + 1) << shift) - 1);
+    }
+}
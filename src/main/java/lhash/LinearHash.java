@@ -1,8 +1,16 @@
 package lhash;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
 
 @SuppressWarnings("unused")
 public class LinearHash {
@@ -17,11 +25,25 @@ public class LinearHash {
      */
     private LinearHashConfiguration lin_conf;
 
+    /**
+     * Operation types, for latency tracking
+     */
+    private static final int OP_INSERT = 0;
+    private static final int OP_FETCH = 1;
+    private static final int OP_DELETE = 2;
+    private static final int OP_SPLIT = 3;
+    private static final int OP_MERGE = 4;
+
     /**
      * Properties
      */
     private int splitBlockPtr = 0;  // split block pointer
     private int visible_pool = 0;   // visible_pool size
+    private ObjectName mbean_name;  // name of the registered stats MBean (if any)
+    private long mget_order[] = new long[0];    // scratch buffer for multi-key fetches
+    private final KeyCache key_cache;           // cache of lookup results, if enabled
+    private final BatchLog batch_log;           // log of the write batch being applied
+    private final ChangeLog change_log;         // log of the inserts and deletes, if enabled
 
     /**
      * Constructor that uses the default values for everything
@@ -30,9 +52,7 @@ public class LinearHash {
      * @throws IOException is thrown when there is an I/O error during the operation.
      */
     public LinearHash(String fname) throws IOException {
-        this.lin_conf = new LinearHashConfiguration(fname);
-        this.visible_pool = lin_conf.getInitialVisiblePoolSize();
-        blk_mgr = new BlockManager(lin_conf);
+        this(new LinearHashConfiguration(fname));
     }
 
     /**
@@ -52,12 +72,68 @@ public class LinearHash {
                       float insert_bf, float delete_bf,
                       boolean overrideFileFlag, int epoch_thresh) throws IOException {
 
-        argumentCheck(keysPerBlock, init_pool, insert_bf, delete_bf, epoch_thresh);
+        this(new LinearHashConfiguration(blk_fname, keysPerBlock,
+                init_pool, insert_bf, delete_bf, overrideFileFlag, epoch_thresh));
+    }
 
-        this.lin_conf = new LinearHashConfiguration(blk_fname, keysPerBlock,
-                init_pool, insert_bf, delete_bf, overrideFileFlag, epoch_thresh);
-        this.visible_pool = lin_conf.getInitialVisiblePoolSize();
+    /**
+     * Constructor that uses a prepared configuration, see {@link Builder}.
+     *
+     * @param lin_conf the configuration to use.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    LinearHash(LinearHashConfiguration lin_conf) throws IOException {
+        argumentCheck(lin_conf.getKeysPerBlock(), lin_conf.getInitialVisiblePoolSize(),
+                lin_conf.getBalanceFactorForInserts(), lin_conf.getBalanceFactorForDeletes(),
+                lin_conf.getTickThresh());
+
+        this.lin_conf = lin_conf;
         blk_mgr = new BlockManager(lin_conf);
+        // the block manager might have loaded the configuration from the file header.
+        this.visible_pool = lin_conf.getInitialVisiblePoolSize();
+        // as well as the hash state, so that the keys are found where they were left.
+        if (blk_mgr.getStoredVisiblePool() > 0) {
+            this.visible_pool = blk_mgr.getStoredVisiblePool();
+            this.splitBlockPtr = blk_mgr.getStoredSplitPointer();
+        }
+        this.key_cache = lin_conf.getCacheSize() > 0 ? new KeyCache(lin_conf.getCacheSize()) : null;
+        this.batch_log = new BatchLog(lin_conf.getFilename());
+        this.change_log = lin_conf.isChangeLogged() && !lin_conf.isReadOnly() ?
+                new ChangeLog(lin_conf.getFilename(), lin_conf.getOverrideFlag()) : null;
+        // a log started on a table holding keys begins with them, so that
+        // replaying the log alone rebuilds the table
+        if (change_log != null && change_log.getSequence() == 0 && blk_mgr.getKeyCount() > 0) {
+            int keys[] = new int[blk_mgr.getKeyCount()];
+            int n = blk_mgr.collectKeys(keys);
+            for (int i = 0; i < n; i++) {
+                change_log.append(keys[i], true);
+            }
+            change_log.flush();
+        }
+        // new tables can be sized for the keys they are expected to hold.
+        if (lin_conf.getExpectedKeys() > 0 && !lin_conf.isReadOnly() &&
+                blk_mgr.getKeyCount() == 0 && blk_mgr.getReservedPoolSize() == 0) {
+            blk_mgr.reserve(growFor(lin_conf.getExpectedKeys()));
+        }
+        // tables holding keys switch to lazy deletes once the tombstone value is moved out
+        if (lin_conf.isLazyDeletes() && !lin_conf.isReadOnly() && !blk_mgr.isLazyDeletes()) {
+            blk_mgr.enableLazyDeletes(hf(BlockManager.TOMBSTONE));
+        }
+        // the logged batches might not have been (fully) applied, or synced
+        List<WriteBatch> pending = lin_conf.isReadOnly() ? null : batch_log.read();
+        if (pending != null && !pending.isEmpty()) {
+            for (WriteBatch b : pending) {
+                int keys[] = new int[b.size()];
+                boolean ins[] = new boolean[b.size()];
+                applyBatch(keys, ins, b.resolve(keys, ins));
+            }
+            blk_mgr.sync();
+            batch_log.close();
+        }
+        // the header is current from the start
+        if (lin_conf.getCheckpointInterval() > 0 && !lin_conf.isReadOnly()) {
+            checkpoint();
+        }
     }
 
     /**
@@ -100,18 +176,27 @@ public class LinearHash {
      * @throws IOException is thrown when there is an I/O error during the operation.
      */
     public boolean insertKey(int val) throws IOException {
+        checkWritable();
+        blk_mgr.markDirty();
+        long op_start = System.nanoTime();
         // get the index
         int block_index = hf(val);
         // insert it
-        if (blk_mgr.insertKey(val, block_index) == null) {
+        if (!blk_mgr.insertKey(val, block_index)) {
+            recordLatency(OP_INSERT, op_start);
             return false;
         }
+        if (key_cache != null) {
+            key_cache.update(val, true);
+        }
+        logChange(val, true);
         // now let's check if we need to split anything
-        while (blk_mgr.getBlockLF() > lin_conf.getBalanceFactorForInserts()) {
+        while (blk_mgr.getBlockLF() > blk_mgr.getBalanceFactorForInserts()) {
             splitBlock(splitBlockPtr);
         }
         // issue a tick
-        blk_mgr.tick();
+        tick(true);
+        recordLatency(OP_INSERT, op_start);
         return true;
     }
 
@@ -119,22 +204,121 @@ public class LinearHash {
      * Fetch the value from the table
      *
      * @param val value to be fetched.
-     * @return the actual value
+     * @return the actual value, or null if it is not stored.
      * @throws IOException is thrown when there is an I/O error during the operation.
      */
     public Integer fetchKey(int val) throws IOException {
-        // get the index
-        int block_index = hf(val);
-        // try to fetch the value
-        Integer res = blk_mgr.fetchKey(val, block_index);
-        // issue a tick
-        blk_mgr.tick();
-        if (res == null) {
-            System.err.println("Key not found, returning 0 instead");
+        return (contains(val) ? Integer.valueOf(val) : null);
+    }
+
+    /**
+     * Fetch the value from the table, without boxing it
+     *
+     * @param val          value to be fetched.
+     * @param missingValue value returned when the key is not stored.
+     * @return the actual value, or missingValue if it is not stored.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public int fetchKey(int val, int missingValue) throws IOException {
+        return (contains(val) ? val : missingValue);
+    }
+
+    /**
+     * Check if a value is stored in the table
+     *
+     * @param val value to look for.
+     * @return true if the value is stored, false otherwise.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public boolean contains(int val) throws IOException {
+        long op_start = System.nanoTime();
+        boolean res;
+        byte cached = key_cache != null ? key_cache.get(val) : KeyCache.MISS;
+        if (cached != KeyCache.MISS) {
+            blk_mgr.getPerfTrackerInstance().recordCacheLookups(1, 0);
+            res = cached == KeyCache.PRESENT;
+        } else {
+            // get the index
+            int block_index = hf(val);
+            // try to find the value
+            res = blk_mgr.containsKey(val, block_index);
+            if (key_cache != null) {
+                blk_mgr.getPerfTrackerInstance().recordCacheLookups(0, 1);
+                key_cache.put(val, res);
+            }
         }
+        // issue a tick
+        tick(false);
+        recordLatency(OP_FETCH, op_start);
         return (res);
     }
 
+    /**
+     * Check a batch of values at once; the keys are grouped by block, so that
+     * every block chain is read only once and in file offset order.
+     *
+     * @param vals values to look for.
+     * @return an array flagging, for each value, if it is stored.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public boolean[] fetchKeys(int[] vals) throws IOException {
+        boolean found[] = new boolean[vals.length];
+        fetchKeys(vals, found);
+        return (found);
+    }
+
+    /**
+     * Check a batch of values at once, placing the results in the supplied
+     * array; see {@link #fetchKeys(int[])}.
+     *
+     * @param vals  values to look for.
+     * @param found array flagging, for each value, if it is stored (at least as long as vals).
+     * @return the number of values found.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public int fetchKeys(int[] vals, boolean[] found) throws IOException {
+        long op_start = System.nanoTime();
+        int n = vals.length;
+        if (found.length < n) {
+            throw new IllegalArgumentException("Result array is shorter than the keys");
+        }
+        Arrays.fill(found, 0, n, false);
+        // hash the whole batch and sort it by block; read only tables are shared
+        // between threads, so they cannot use the scratch buffer
+        long order[] = mget_order;
+        if (lin_conf.isReadOnly()) {
+            order = new long[n];
+        } else if (mget_order.length < n) {
+            order = mget_order = new long[n];
+        }
+        // keys answered by the cache are left out of the batch
+        int hits = 0, m = 0;
+        for (int i = 0; i < n; i++) {
+            byte cached = key_cache != null ? key_cache.get(vals[i]) : KeyCache.MISS;
+            if (cached == KeyCache.MISS) {
+                order[m++] = ((long) hf(vals[i]) << 32) | i;
+            } else if (cached == KeyCache.PRESENT) {
+                found[i] = true;
+                hits++;
+            }
+        }
+        Arrays.sort(order, 0, m);
+        hits += blk_mgr.containsKeys(vals, order, m, found);
+        if (key_cache != null) {
+            blk_mgr.getPerfTrackerInstance().recordCacheLookups(n - m, m);
+            for (int e = 0; e < m; e++) {
+                int idx = (int) order[e];
+                key_cache.put(vals[idx], found[idx]);
+            }
+        }
+        // issue a tick
+        tick(false);
+        if (lin_conf.isTrackingEnabled()) {
+            blk_mgr.getPerfTrackerInstance().recordMultiFetch(n, System.nanoTime() - op_start);
+        }
+        return (hits);
+    }
+
     /**
      * Delete a key from the visible_pool
      *
@@ -142,20 +326,468 @@ public class LinearHash {
      * @throws IOException is thrown when there is an I/O error during the operation.
      */
     public boolean deleteKey(int val) throws IOException {
+        checkWritable();
+        blk_mgr.markDirty();
+        long op_start = System.nanoTime();
         // get the index
         int block_index = hf(val);
         // delete it
         boolean ret = blk_mgr.deleteKey(val, block_index);
+        if (ret && key_cache != null) {
+            key_cache.update(val, false);
+        }
+        if (ret) {
+            logChange(val, false);
+        }
         // check if we need to merge something
-        while (blk_mgr.getBlockLF() < lin_conf.getBalanceFactorForDeletes() &&
-                !((visible_pool == lin_conf.getInitialVisiblePoolSize()) &&
-                        (splitBlockPtr == 0))) {
+        while (needsMerge()) {
             mergeBlock(splitBlockPtr);
         }
-        blk_mgr.tick();
+        tick(true);
+        recordLatency(OP_DELETE, op_start);
         return ret;
     }
 
+    /**
+     * Append a single change to the change log, if enabled, and write it out
+     *
+     * @param val    the key.
+     * @param insert true if the key was inserted, false if it was deleted.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void logChange(int val, boolean insert) throws IOException {
+        if (change_log != null) {
+            change_log.append(val, insert);
+            change_log.flush();
+        }
+    }
+
+    /**
+     * Return the sequence number of the last change appended to the change
+     * log, see {@link Builder#changeLog()}
+     *
+     * @return the sequence number, zero if there are no changes or they are not logged.
+     */
+    public long getChangeSequence() {
+        return (change_log != null ? change_log.getSequence() : 0);
+    }
+
+    /**
+     * End an operation: take a checkpoint if one is due, then tick
+     *
+     * @param write true for inserts, deletes and batches, false for lookups.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void tick(boolean write) throws IOException {
+        if (blk_mgr.isCheckpointDue()) {
+            checkpoint();
+        }
+        blk_mgr.tick(write);
+    }
+
+    /**
+     * Take a checkpoint: the header is written out with the current hash state
+     * and counts, no longer marked as dirty, and the file is synced; with
+     * periodic checkpoints enabled (see {@link Builder#checkpointInterval(long)})
+     * the sync runs in the background, otherwise it is waited for.
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public void checkpoint() throws IOException {
+        checkWritable();
+        if (change_log != null) {
+            change_log.sync();
+        }
+        blk_mgr.setHashState(visible_pool, splitBlockPtr);
+        blk_mgr.checkpoint();
+        // the logged batches are dropped once their blocks are synced
+        if (batch_log.isPending()) {
+            blk_mgr.sync();
+            batch_log.clear();
+        }
+    }
+
+    /**
+     * Take a checkpoint if one is due and the table was changed since the
+     * last one; for owners that leave the table idle (no operation ends to
+     * take it), and so only to be called from the thread using the table.
+     *
+     * @return true if a checkpoint was taken.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    boolean checkpointIfIdle() throws IOException {
+        if (lin_conf.isReadOnly() || !blk_mgr.isCheckpointDue() ||
+                !(blk_mgr.isDirty() || batch_log.isPending())) {
+            return (false);
+        }
+        checkpoint();
+        return (true);
+    }
+
+    /**
+     * Write the hash state out as soon as it changes, when checkpoints are
+     * enabled; the counts that change with every operation are left to the
+     * checkpoints (and recounted from the blocks, if need be).
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void saveHashState() throws IOException {
+        if (lin_conf.getCheckpointInterval() > 0) {
+            blk_mgr.setHashState(visible_pool, splitBlockPtr);
+            blk_mgr.saveHeader();
+        }
+    }
+
+    /**
+     * Check if the table is under its balance factor for deletes and can
+     * still shrink (the initial and the reserved blocks are kept)
+     *
+     * @return true if a block should be merged.
+     */
+    private boolean needsMerge() {
+        return (blk_mgr.getBlockLF() < blk_mgr.getBalanceFactorForDeletes() &&
+                blk_mgr.getPoolSize() > blk_mgr.getReservedPoolSize() &&
+                !((visible_pool == lin_conf.getInitialVisiblePoolSize()) &&
+                        (splitBlockPtr == 0)));
+    }
+
+    /**
+     * Apply a batch of inserts and deletes atomically: the batch is written to
+     * the log of the table (next to the block file, as "fname.log") as a
+     * single record, synced once, and only then applied; if the process stops
+     * (or the system fails) before the batch is fully applied and its blocks
+     * are synced, it is applied again when the table is next opened. The
+     * records are kept until the blocks are synced, by the next checkpoint or
+     * commit (or once the log outgrows 16MB). Only the last operation on each
+     * key counts.
+     *
+     * The atomicity holds for recovery, not for visibility: readers of the
+     * file in other processes (read only tables map the file) can see a
+     * batch half applied, while it is being written.
+     *
+     * The keys are applied bucket by bucket, reading and writing every chain
+     * involved once; the splits the inserts need are done before, and the
+     * merges the deletes allow after, rather than around every key.
+     *
+     * @param batch the inserts and deletes to apply.
+     * @return the number of keys actually inserted or deleted (keys already
+     * stored, or missing, are not counted).
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public int write(WriteBatch batch) throws IOException {
+        checkWritable();
+        blk_mgr.markDirty();
+        int keys[] = new int[batch.size()];
+        boolean ins[] = new boolean[batch.size()];
+        int n = batch.resolve(keys, ins);
+        if (n == 0) {
+            return (0);
+        }
+        batch_log.append(keys, ins, n);
+        int changed = applyBatch(keys, ins, n);
+        if (batch_log.size() > BatchLog.MAX_SIZE) {
+            blk_mgr.sync();
+            batch_log.clear();
+        }
+        return (changed);
+    }
+
+    /**
+     * Apply the (resolved) operations of a batch, bucket by bucket, then
+     * restore the balance of the table and write the header out; the table
+     * is split for the inserted keys beforehand.
+     *
+     * @param keys keys of the batch, distinct and in ascending order.
+     * @param ins  for each key, true to insert it and false to delete it.
+     * @param n    number of keys.
+     * @return the number of keys inserted or deleted.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private int applyBatch(int[] keys, boolean[] ins, int n) throws IOException {
+        long order[] = new long[n];
+        int changed = 0,
+                adds = 0,
+                kpb = lin_conf.getKeysPerBlock();
+        // make room for the inserts first, so that the chains stay short
+        for (int i = 0; i < n; i++) {
+            adds += ins[i] ? 1 : 0;
+        }
+        int splits = 0;
+        while ((blk_mgr.getKeyCount() + adds) / ((blk_mgr.getPoolSize() + splits) * kpb * 1.0) >
+                blk_mgr.getBalanceFactorForInserts()) {
+            splits++;
+        }
+        // the new blocks are all added at once
+        blk_mgr.addBlocks(splits);
+        for (int s = 0; s < splits; s++) {
+            splitBlock(splitBlockPtr, true);
+        }
+        // group the keys by bucket, keeping them in ascending order within each
+        for (int i = 0; i < n; i++) {
+            order[i] = ((long) hf(keys[i]) << 32) | i;
+        }
+        Arrays.sort(order);
+        for (int i = 0, j; i < n; i = j) {
+            int blk = (int) (order[i] >>> 32);
+            for (j = i + 1; j < n && (int) (order[j] >>> 32) == blk; j++) ;
+            changed += blk_mgr.applyBucket(blk, keys, ins, order, i, j);
+        }
+        if (key_cache != null) {
+            for (int i = 0; i < n; i++) {
+                key_cache.update(keys[i], ins[i]);
+            }
+        }
+        // the resolved operations are logged, those that left the table as it
+        // was included, as replaying them has the same effect
+        if (change_log != null) {
+            for (int i = 0; i < n; i++) {
+                change_log.append(keys[i], ins[i]);
+            }
+            change_log.flush();
+        }
+        while (blk_mgr.getBlockLF() > blk_mgr.getBalanceFactorForInserts()) {
+            splitBlock(splitBlockPtr);
+        }
+        while (needsMerge()) {
+            mergeBlock(splitBlockPtr);
+        }
+        // the file holds the whole batch once the header is out
+        blk_mgr.setHashState(visible_pool, splitBlockPtr);
+        blk_mgr.saveHeader();
+        tick(true);
+        return (changed);
+    }
+
+    /**
+     * Compact every bucket holding tombstones left by lazy deletes, freeing
+     * the overflow blocks they no longer need; the sweeps at the end of each
+     * epoch only compact a few buckets at a time.
+     *
+     * @return the number of overflow blocks freed.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public int sweepTombstones() throws IOException {
+        checkWritable();
+        blk_mgr.markDirty();
+        int freed = blk_mgr.sweep(blk_mgr.getPoolSize(), blk_mgr.getPoolSize(), true);
+        blk_mgr.trimFile();
+        return (freed);
+    }
+
+    /**
+     * Give back the space preallocated past the last block of the file (see
+     * {@link Builder#preallocate(int)}); this is also done when the file is
+     * committed and by {@link #sweepTombstones()}.
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public void trimFile() throws IOException {
+        checkWritable();
+        blk_mgr.trimFile();
+    }
+
+    /**
+     * Export all keys as a compact snapshot: sorted, delta and varint encoded
+     * and followed by a checksum. The snapshot does not depend on the table
+     * configuration, see {@link Builder#importFrom(InputStream)} for restoring it.
+     *
+     * @param out stream to write to; it is flushed, not closed.
+     * @return the number of keys exported.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public int exportTo(OutputStream out) throws IOException {
+        int keys[] = new int[blk_mgr.getKeyCount()];
+        int n = blk_mgr.collectKeys(keys);
+        Arrays.sort(keys, 0, n);
+        LinearHashSnapshot.write(out, keys, n);
+        return (n);
+    }
+
+    /**
+     * Fill an empty table with the given (distinct) keys at once; the table
+     * ends up in the same state as if the keys were inserted one by one, but
+     * the blocks are written sequentially, without any splits.
+     *
+     * @param keys the keys to load.
+     * @param n    number of keys.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void bulkLoad(int[] keys, int n) throws IOException {
+        checkWritable();
+        blk_mgr.markDirty();
+        if (blk_mgr.getKeyCount() > 0) {
+            throw new IllegalStateException("Bulk loads need an empty table");
+        }
+        int pool = growFor(n);
+        // the tombstone value is not kept in the blocks
+        boolean min_key = false;
+        if (blk_mgr.isLazyDeletes()) {
+            int m = 0;
+            for (int i = 0; i < n; i++) {
+                if (keys[i] == BlockManager.TOMBSTONE) {
+                    min_key = true;
+                } else {
+                    keys[m++] = keys[i];
+                }
+            }
+            n = m;
+        }
+        // group the keys by block
+        int start[] = new int[pool + 1];
+        for (int i = 0; i < n; i++) {
+            start[hf(keys[i]) + 1]++;
+        }
+        for (int b = 0; b < pool; b++) {
+            start[b + 1] += start[b];
+        }
+        int fill[] = Arrays.copyOf(start, pool),
+                grouped[] = new int[n];
+        for (int i = 0; i < n; i++) {
+            grouped[fill[hf(keys[i])]++] = keys[i];
+        }
+        blk_mgr.bulkLoad(pool, grouped, start);
+        blk_mgr.setMinKeyStored(min_key);
+        if (change_log != null) {
+            for (int i = 0; i < n; i++) {
+                change_log.append(grouped[i], true);
+            }
+            if (min_key) {
+                change_log.append(BlockManager.TOMBSTONE, true);
+            }
+            change_log.flush();
+        }
+        saveHashState();
+        if (key_cache != null) {
+            key_cache.clear();
+        }
+    }
+
+    /**
+     * Advance the hash state of an empty table to the one that inserting the
+     * given number of keys, one by one, would have led to; the blocks
+     * themselves are left to the caller.
+     *
+     * @param n number of keys.
+     * @return the number of (primary) blocks the keys need.
+     */
+    int growFor(int n) {
+        int kpb = lin_conf.getKeysPerBlock(),
+                pool = blk_mgr.getPoolSize();
+        while (n / (pool * kpb * 1.0) > blk_mgr.getBalanceFactorForInserts()) {
+            pool++;
+            if (++splitBlockPtr > (visible_pool - 1)) {
+                splitBlockPtr = 0;
+                visible_pool = 2 * visible_pool;
+            }
+        }
+        return (pool);
+    }
+
+    /**
+     * Return the block a value maps to
+     *
+     * @param val the value.
+     * @return the block number.
+     */
+    int bucketOf(int val) {
+        return (hf(val));
+    }
+
+    /**
+     * Return the visible pool size; every bucket holds keys congruent to
+     * its number modulo this size.
+     *
+     * @return the visible pool size.
+     */
+    int getVisiblePool() {
+        return (visible_pool);
+    }
+
+    /**
+     * Return the block manager of the table
+     *
+     * @return the block manager instance.
+     */
+    BlockManager getBlockManager() {
+        return (blk_mgr);
+    }
+
+    /**
+     * Return the configuration of the table (as loaded from the file header, if any)
+     *
+     * @return the configuration instance.
+     */
+    LinearHashConfiguration getConfiguration() {
+        return (lin_conf);
+    }
+
+    /**
+     * Make sure the table can be modified
+     *
+     * @throws UnsupportedOperationException is thrown when the table is read only.
+     */
+    private void checkWritable() {
+        if (lin_conf.isReadOnly()) {
+            throw new UnsupportedOperationException("Table " + lin_conf.getFilename() +
+                    " is opened read only");
+        }
+    }
+
+    /**
+     * Check if the table is opened read only
+     *
+     * @return true if the table is read only, false otherwise.
+     */
+    public boolean isReadOnly() {
+        return (lin_conf.isReadOnly());
+    }
+
+    /**
+     * Check if the file of a read only table has been replaced (e.g. by a newer
+     * build renamed over it) or changed since it was opened; a stale table
+     * keeps serving the old contents, so it should be closed and reopened.
+     * Tables opened for writing are never stale.
+     *
+     * @return true if the file has been replaced, changed or removed.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public boolean isStale() throws IOException {
+        return (blk_mgr.isStale());
+    }
+
+    /**
+     * Record the latency of an operation, if tracking is enabled
+     *
+     * @param op       the operation type (one of the OP_XXX constants).
+     * @param op_start the start time of the operation (in nanoseconds).
+     */
+    private void recordLatency(int op, long op_start) {
+        if (!lin_conf.isTrackingEnabled()) {
+            return;
+        }
+        long elapsed = System.nanoTime() - op_start;
+        LinearHashPerfLog lin_perf = blk_mgr.getPerfTrackerInstance();
+        switch (op) {
+            case OP_INSERT:
+                lin_perf.recordInsert(elapsed);
+                break;
+            case OP_FETCH:
+                lin_perf.recordFetch(elapsed);
+                break;
+            case OP_DELETE:
+                lin_perf.recordDelete(elapsed);
+                break;
+            case OP_SPLIT:
+                lin_perf.recordSplit(elapsed);
+                break;
+            case OP_MERGE:
+                lin_perf.recordMerge(elapsed);
+                break;
+            default:
+                break;
+        }
+    }
+
     /**
      * Our hash function
      *
@@ -178,33 +810,70 @@ public class LinearHash {
      * @throws IOException is thrown when there is an I/O error during the operation.
      */
     private void splitBlock(int blk_num) throws IOException {
+        splitBlock(blk_num, false);
+    }
+
+    /**
+     * Split the block given; the splits of a batch have their blocks added
+     * beforehand, all at once, and rewrite both chains at once (which takes
+     * less I/O than moving the keys one by one)
+     *
+     * @param blk_num block number
+     * @param batched true if the block was already added and the chains are
+     *                to be rewritten (if the new block is empty)
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void splitBlock(int blk_num, boolean batched) throws IOException {
+        long op_start = System.nanoTime();
         int cur_block_index;
         // we need to add a block
-        blk_mgr.addBlock();
+        if (!batched) {
+            blk_mgr.addBlock();
+        }
         splitBlockPtr++;
-        int blk_ent[] = blk_mgr.fetchBlock(blk_num);
+        // the keys that move all go to the same (so far unused) block
+        if (batched && blk_mgr.splitBucket(blk_num, blk_num + visible_pool,
+                k -> hf(k) != blk_num)) {
+            if (splitBlockPtr > (visible_pool - 1)) {
+                splitBlockPtr = 0;
+                visible_pool = 2 * visible_pool;
+            }
+            saveHashState();
+            recordLatency(OP_SPLIT, op_start);
+            return;
+        }
+        int blk_cnt = blk_mgr.fetchBlock(blk_num);
+        int blk_ent[] = blk_mgr.getBlockBuffer();
 
         if (lin_conf.isDebugEnabled()) {
             System.err.println("Splitting block: " + blk_num);
         }
 
         // perform such actions only if we received some elements!
-        if (blk_ent != null) {
-            for (int aBlk_ent : blk_ent) {
-                cur_block_index = hf(aBlk_ent);
-                // check if we need to move the key
-                if (cur_block_index > blk_num)
-                // move the key to the split block
-                {
-                    moveKey(aBlk_ent, blk_num);
+        for (int i = 0; i < blk_cnt; i++) {
+            cur_block_index = hf(blk_ent[i]);
+            // check if we need to move the key
+            if (cur_block_index > blk_num)
+            // move the key to the split block
+            {
+                if (blk_mgr.isLazyDeletes()) {
+                    blk_mgr.insertKey(blk_ent[i], cur_block_index);
+                } else {
+                    moveKey(blk_ent[i], blk_num);
                 }
             }
         }
+        // with lazy deletes the moved keys (and the tombstones) are dropped at once
+        if (blk_mgr.isLazyDeletes()) {
+            blk_mgr.compactBucket(blk_num, k -> hf(k) == blk_num);
+        }
         // check if we are maxed out; if so increase the visible_pool.
         if (splitBlockPtr > (visible_pool - 1)) {
             splitBlockPtr = 0;
             visible_pool = 2 * visible_pool;
         }
+        saveHashState();
+        recordLatency(OP_SPLIT, op_start);
     }
 
     /**
@@ -214,7 +883,9 @@ public class LinearHash {
      * @throws IOException is thrown then there is an I/O error during the operation.
      */
     private void mergeBlock(int blk_num) throws IOException {
+        long op_start = System.nanoTime();
         int merge_block_index,  // merge block index
+                block_cnt,          // block entry count
                 block_entries[];    // block entries
         // calculate merge index
         merge_block_index = (visible_pool - 1) + blk_num;
@@ -234,15 +905,24 @@ public class LinearHash {
         }
 
         // get the block contents
-        block_entries = blk_mgr.fetchBlock(merge_block_index);
-        if (block_entries != null) {
-            // move keys
-            for (int aBlk_ent : block_entries) {
-                moveKey(aBlk_ent, merge_block_index);
+        block_cnt = blk_mgr.fetchBlock(merge_block_index);
+        block_entries = blk_mgr.getBlockBuffer();
+        // move keys
+        for (int i = 0; i < block_cnt; i++) {
+            if (blk_mgr.isLazyDeletes()) {
+                blk_mgr.insertKey(block_entries[i], hf(block_entries[i]));
+            } else {
+                moveKey(block_entries[i], merge_block_index);
             }
         }
+        // with lazy deletes the block is emptied at once
+        if (blk_mgr.isLazyDeletes()) {
+            blk_mgr.compactBucket(merge_block_index, k -> false);
+        }
         // delete the block
         blk_mgr.deleteBlock();
+        saveHashState();
+        recordLatency(OP_MERGE, op_start);
     }
 
     /**
@@ -305,6 +985,47 @@ public class LinearHash {
         blk_mgr.getPerfTrackerInstance().printAllEpochStatisticsToFile(fname);
     }
 
+    /**
+     * Take a snapshot of the table statistics
+     *
+     * @return the current statistics.
+     */
+    public LinearHashStats getStats() {
+        return (blk_mgr.getStats());
+    }
+
+    /**
+     * Register a {@link LinearHashStatsMBean} for this table with the platform
+     * MBean server; it is unregistered when the file is committed.
+     *
+     * @return the name under which the MBean was registered.
+     * @throws JMException is thrown when the MBean cannot be registered.
+     */
+    public ObjectName registerMBean() throws JMException {
+        if (mbean_name != null) {
+            return (mbean_name);
+        }
+        ObjectName name = new ObjectName("lhash:type=LinearHash,name=" +
+                ObjectName.quote(lin_conf.getFilename()));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new StandardMBean(new LinearHashStatsBean(blk_mgr), LinearHashStatsMBean.class), name);
+        mbean_name = name;
+        return (mbean_name);
+    }
+
+    /**
+     * Unregister the stats MBean, if one was registered.
+     *
+     * @throws JMException is thrown when the MBean cannot be unregistered.
+     */
+    public void unregisterMBean() throws JMException {
+        if (mbean_name == null) {
+            return;
+        }
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbean_name);
+        mbean_name = null;
+    }
+
     /**
      * Get the debug flag
      *
@@ -327,6 +1048,320 @@ public class LinearHash {
      * @throws IOException is thrown when we cannot close the file.
      */
     public void commitFile() throws IOException {
-        blk_mgr.commitFile();
+        try {
+            unregisterMBean();
+        } catch (JMException e) {
+            throw new IOException("Couldn't unregister the stats MBean", e);
+        }
+        blk_mgr.setHashState(visible_pool, splitBlockPtr);
+        // the logged batches are only dropped once the blocks are synced
+        blk_mgr.commitFile(!lin_conf.isReadOnly() && batch_log.isPending());
+        if (!lin_conf.isReadOnly()) {
+            batch_log.close();
+        }
+        if (change_log != null) {
+            change_log.close();
+        }
+    }
+
+    /**
+     * Builder for {@link LinearHash} instances, for the settings that are not
+     * covered by the constructors (such as the page aligned layout); anything
+     * not set keeps its default value.
+     *
+     * <pre>
+     * LinearHash lh = new LinearHash.Builder("fname")
+     *         .pageSize(8192)
+     *         .balanceFactors(0.8f, 0.5f)
+     *         .build();
+     * </pre>
+     */
+    public static class Builder {
+        private final LinearHashConfiguration lin_conf;
+
+        /**
+         * Create a builder for the given file
+         *
+         * @param fname filename for our Key store.
+         */
+        public Builder(String fname) {
+            this.lin_conf = new LinearHashConfiguration(fname);
+        }
+
+        /**
+         * Set the keys per block, using the packed layout (whichever of this
+         * and {@link #pageSize(int)} is set last decides the layout)
+         *
+         * @param keysPerBlock keys per stored block
+         * @return this builder.
+         */
+        public Builder keysPerBlock(int keysPerBlock) {
+            lin_conf.setKeysPerBlock(keysPerBlock);
+            return (this);
+        }
+
+        /**
+         * Use the page aligned layout, where every block is exactly one page
+         * (and starts on a page boundary); the keys per block are derived from
+         * the page size.
+         *
+         * @param pageSize page size in bytes, a power of two (e.g. 4096, 8192 or 16384).
+         * @return this builder.
+         */
+        public Builder pageSize(int pageSize) {
+            lin_conf.setPageSize(pageSize);
+            return (this);
+        }
+
+        /**
+         * Set the initial (visible) pool size
+         *
+         * @param init_pool initial (visible) pool size
+         * @return this builder.
+         */
+        public Builder initialPool(int init_pool) {
+            lin_conf.setInitialVisiblePoolSize(init_pool);
+            return (this);
+        }
+
+        /**
+         * Set the balance factors
+         *
+         * @param insert_bf inserts load factor
+         * @param delete_bf deletes load factor
+         * @return this builder.
+         */
+        public Builder balanceFactors(float insert_bf, float delete_bf) {
+            lin_conf.setBalanceFactors(insert_bf, delete_bf);
+            return (this);
+        }
+
+        /**
+         * Set the override file flag
+         *
+         * @param overrideFileFlag override file flag
+         * @return this builder.
+         */
+        public Builder overrideFile(boolean overrideFileFlag) {
+            lin_conf.setOverrideFlag(overrideFileFlag);
+            return (this);
+        }
+
+        /**
+         * Set the epoch threshold
+         *
+         * @param epoch_thresh epoch threshold
+         * @return this builder.
+         */
+        public Builder epochThreshold(int epoch_thresh) {
+            lin_conf.setTickThresh(epoch_thresh);
+            return (this);
+        }
+
+        /**
+         * Let the balance factors adapt to the workload: at the end of every
+         * epoch the balance factor for inserts is lowered when operations
+         * traverse more overflow blocks than the target (trading space for
+         * fewer reads) and raised when they traverse well under it, within
+         * the given bounds; the one for deletes keeps its ratio to it. The
+         * current values and the number of adjustments are in the statistics.
+         *
+         * @param min_bf     lowest balance factor for inserts.
+         * @param max_bf     highest balance factor for inserts.
+         * @param target_ovf overflow blocks traversed per operation aimed for.
+         * @return this builder.
+         */
+        public Builder adaptiveBalance(float min_bf, float max_bf, float target_ovf) {
+            lin_conf.setAdaptiveBalance(min_bf, max_bf, target_ovf);
+            return (this);
+        }
+
+        /**
+         * Keep the results of up to the given number of lookups (for stored
+         * as well as for missing keys) in memory, in front of the file; the
+         * keys looked up most often are kept, so skewed lookups are mostly
+         * answered without any I/O. The hit ratio is part of the statistics.
+         *
+         * @param entries number of keys cached, zero for no cache.
+         * @return this builder.
+         */
+        public Builder keyCache(int entries) {
+            lin_conf.setCacheSize(entries);
+            return (this);
+        }
+
+        /**
+         * Size a new table for the given number of keys: the blocks they need
+         * are allocated at once, so there are no splits until the table holds
+         * more keys than that; these blocks are also kept when keys are deleted.
+         * It has no effect on tables that already hold keys.
+         *
+         * @param n expected number of keys.
+         * @return this builder.
+         */
+        public Builder expectedKeys(int n) {
+            lin_conf.setExpectedKeys(n);
+            return (this);
+        }
+
+        /**
+         * Let deletes only mark the key slot with a tombstone, a single write,
+         * rather than moving the last key of the chain in its place; the
+         * buckets are compacted when they are next split or merged, and a
+         * few of them at the end of each epoch, see {@link #lazyDeletes(int)}.
+         *
+         * @return this builder.
+         */
+        public Builder lazyDeletes() {
+            return (lazyDeletes(lin_conf.getSweepBudget()));
+        }
+
+        /**
+         * Let deletes leave tombstones (see {@link #lazyDeletes()}), compacting
+         * up to the given number of buckets at the end of each epoch (by the
+         * first insert, delete or batch after it, never by a lookup); only
+         * buckets where that frees an overflow block are compacted. The
+         * setting is kept in the file.
+         *
+         * @param sweepBudget buckets compacted per epoch, zero to only compact
+         *                    on splits, merges and {@link LinearHash#sweepTombstones()}.
+         * @return this builder.
+         */
+        public Builder lazyDeletes(int sweepBudget) {
+            lin_conf.setLazyDeletes(true, sweepBudget);
+            return (this);
+        }
+
+        /**
+         * Append every insert and delete to a change log next to the table
+         * file (as "fname.changes"), in order and with increasing sequence
+         * numbers, for {@link LinearHashChangeReader} and
+         * {@link LinearHashFollower} to pick up, from this or any other
+         * process. A table holding keys when its log is started logs them
+         * as inserts first. The setting is kept in the file.
+         *
+         * @return this builder.
+         */
+        public Builder changeLog() {
+            lin_conf.setChangeLog(true);
+            return (this);
+        }
+
+        /**
+         * Take a checkpoint every given number of milliseconds: at the end of
+         * the first operation after the interval, the header is written out
+         * with the current counts and the file is synced by a background
+         * thread, so the operation does not wait for the sync. The timer
+         * only marks a checkpoint as due: a table left idle is checkpointed
+         * by its next operation, unless its owner calls
+         * {@link #checkpointIfIdle()} (as the server does). Changes made
+         * after a checkpoint mark the header as dirty, and a dirty file
+         * recounts its keys and overflow blocks when opened; the hash state
+         * itself is written out on every split and merge.
+         *
+         * @param millis milliseconds between checkpoints, zero to disable them.
+         * @return this builder.
+         */
+        public Builder checkpointInterval(long millis) {
+            lin_conf.setCheckpointInterval(millis);
+            return (this);
+        }
+
+        /**
+         * Keep the blocks of a new table in segment files next to the table
+         * file (or spread over the given directories, in turn), of the given
+         * number of blocks each: primary blocks in "fname.p0", "fname.p1", ...
+         * and overflow blocks in "fname.o0", ..., see {@link SegmentedFile}.
+         * Splits and merges then never move the overflow blocks. The layout
+         * is kept in the file; when opening a segmented table the segments
+         * are looked up in all the given directories, so older segments can
+         * be moved to other volumes.
+         *
+         * @param blocksPerSegment blocks per segment file.
+         * @param dirs             directories of the segment files, none for the directory of the table file.
+         * @return this builder.
+         */
+        public Builder segments(int blocksPerSegment, String... dirs) {
+            if (blocksPerSegment < 1) {
+                throw new IllegalArgumentException("Segments need room for at least one block");
+            }
+            lin_conf.setSegmentBlocks(blocksPerSegment);
+            lin_conf.setSegmentDirs(dirs);
+            return (this);
+        }
+
+        /**
+         * Allocate the file of a new table ahead of its blocks: instead of a
+         * block at a time, the file grows by at least the given number of
+         * blocks (and by an eighth of its size, once that is more), and
+         * blocks dropped by merges are zeroed but stay allocated. The space
+         * past the last block is given back when the file is committed, and
+         * by {@link LinearHash#trimFile()}. The setting is kept in the file;
+         * segmented tables grow a segment at a time and ignore it.
+         *
+         * @param blocks blocks to grow the file by at least, zero to disable.
+         * @return this builder.
+         */
+        public Builder preallocate(int blocks) {
+            lin_conf.setPreallocBlocks(blocks);
+            return (this);
+        }
+
+        /**
+         * Read the overflow blocks of a chain in parallel, using the given
+         * number of reader threads; this mostly pays off for long chains on
+         * cold caches, where each block read costs a device round trip.
+         *
+         * @param threads number of reader threads, zero to disable.
+         * @return this builder.
+         */
+        public Builder chainPrefetch(int threads) {
+            lin_conf.setPrefetchThreads(threads);
+            return (this);
+        }
+
+        /**
+         * Create the table (truncating the file, if present) and fill it with
+         * the keys of a snapshot made by {@link LinearHash#exportTo(OutputStream)};
+         * the snapshot is verified before the file is touched and the blocks
+         * are then written sequentially.
+         *
+         * @param in stream to read the snapshot from; it is not closed.
+         * @return the table instance.
+         * @throws IOException is thrown when there is an I/O error during the
+         *                     operation, or when the snapshot is malformed.
+         */
+        public LinearHash importFrom(InputStream in) throws IOException {
+            int keys[] = LinearHashSnapshot.read(in);
+            lin_conf.setOverrideFlag(true);
+            LinearHash lh = build();
+            lh.bulkLoad(keys, keys.length);
+            return (lh);
+        }
+
+        /**
+         * Open an existing table read only; the file is mapped (shared) and
+         * never written, so any number of readers, in any number of threads
+         * and processes, can use it at once. Lookups on a read only table
+         * are safe to call from many threads; inserts and deletes throw
+         * an {@link UnsupportedOperationException}.
+         *
+         * @return this builder.
+         */
+        public Builder readOnly() {
+            lin_conf.setReadOnly(true);
+            lin_conf.setOverrideFlag(false);
+            return (this);
+        }
+
+        /**
+         * Create (or open) the table
+         *
+         * @return the table instance.
+         * @throws IOException is thrown when there is an I/O error during the operation.
+         */
+        public LinearHash build() throws IOException {
+            return (new LinearHash(lin_conf));
+        }
     }
 }
@@ -0,0 +1,192 @@
+package lhash;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Reader of the change log of a table (see
+ * {@link LinearHash.Builder#changeLog()}), from any process: the inserts and
+ * deletes are returned one at a time, in order, and the reader can keep
+ * following the log as the table changes.
+ *
+ * <pre>
+ * LinearHashChangeReader changes = new LinearHashChangeReader("fname", 1);
+ * while (changes.next(1, TimeUnit.SECONDS)) {
+ *     apply(changes.getKey(), changes.isInsert());
+ * }
+ * </pre>
+ *
+ * Replaying the changes from any sequence number onto a table that already
+ * holds some of them leaves it as replaying them once, so readers only need
+ * to keep their position now and then.
+ */
+public class LinearHashChangeReader implements Closeable {
+
+    private static final int BUFFER_RECORDS = 4096;
+    private static final long POLL_MILLIS = 5;      // wait between looks at the log, while tailing
+
+    private final File file;
+    private FileChannel ch;     // opened once the log exists
+    private boolean checked;    // the log marker was checked
+    private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_RECORDS * ChangeLog.RECORD_SIZE);  // records read, not yet returned
+    private final CRC32 crc = new CRC32();
+    private long next_seq;      // sequence number of the next change
+
+    /* the current change */
+    private long seq;
+    private int key;
+    private boolean insert;
+
+    /**
+     * Create a reader of the change log of a table; the log does not need to
+     * exist yet.
+     *
+     * @param fname    file of the table.
+     * @param from_seq sequence number of the first change to read, from one.
+     */
+    public LinearHashChangeReader(String fname, long from_seq) {
+        if (from_seq < 1) {
+            throw new IllegalArgumentException("Sequence numbers start from one");
+        }
+        this.file = ChangeLog.file(fname);
+        this.next_seq = from_seq;
+        buf.limit(0);
+    }
+
+    /**
+     * Move to the next change, if it is already in the log
+     *
+     * @return true if there is one, false otherwise.
+     * @throws IOException is thrown when the log cannot be read or is not a change log.
+     */
+    public boolean next() throws IOException {
+        if (!buf.hasRemaining() && !fill()) {
+            return (false);
+        }
+        seq = buf.getLong();
+        key = buf.getInt();
+        insert = buf.get() != 0;
+        buf.getInt();
+        next_seq = seq + 1;
+        return (true);
+    }
+
+    /**
+     * Move to the next change, waiting for it to reach the log
+     *
+     * @param timeout longest time to wait.
+     * @param unit    unit of the timeout.
+     * @return true if there is one, false if there was none in time.
+     * @throws IOException          is thrown when the log cannot be read or is not a change log.
+     * @throws InterruptedException is thrown when the thread is interrupted while waiting.
+     */
+    public boolean next(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!next()) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return (false);
+            }
+            Thread.sleep(Math.min(POLL_MILLIS, TimeUnit.NANOSECONDS.toMillis(left) + 1));
+        }
+        return (true);
+    }
+
+    /**
+     * Read the whole records that follow the last change read; a record
+     * still being written is left for later.
+     *
+     * @return true if any were read.
+     * @throws IOException is thrown when the log cannot be read or is not a change log.
+     */
+    private boolean fill() throws IOException {
+        if (ch == null) {
+            if (!file.exists()) {
+                return (false);
+            }
+            ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        if (!checked) {
+            if (ch.size() < ChangeLog.HEADER_SIZE) {
+                return (false);
+            }
+            if (!hasMagic()) {
+                throw new IOException(file + " is not a change log");
+            }
+            checked = true;
+        }
+        buf.clear();
+        long pos = ChangeLog.position(next_seq);
+        for (int r; buf.hasRemaining() && (r = ch.read(buf, pos)) > 0; pos += r) ;
+        int n = buf.position() / ChangeLog.RECORD_SIZE;
+        buf.flip();
+        int valid = 0;
+        while (valid < n && ChangeLog.isValid(buf, valid * ChangeLog.RECORD_SIZE, next_seq + valid, crc)) {
+            valid++;
+        }
+        // a whole record out of place means the log was replaced
+        if (valid < n && ChangeLog.isWhole(buf, valid * ChangeLog.RECORD_SIZE, crc)) {
+            throw new IOException(file + " does not hold change " + (next_seq + valid) +
+                    " where expected; was the log replaced?");
+        }
+        buf.limit(valid * ChangeLog.RECORD_SIZE);
+        return (valid > 0);
+    }
+
+    /**
+     * Check the marker of the log
+     *
+     * @return true if the file starts as a change log.
+     * @throws IOException is thrown when the log cannot be read.
+     */
+    private boolean hasMagic() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(ChangeLog.HEADER_SIZE);
+        for (int r, pos = 0; b.hasRemaining() && (r = ch.read(b, pos)) > 0; pos += r) ;
+        return (!b.hasRemaining() && b.getInt(0) == ChangeLog.MAGIC);
+    }
+
+    /**
+     * Return the sequence number of the current change
+     *
+     * @return the sequence number.
+     */
+    public long getSequence() {
+        return (seq);
+    }
+
+    /**
+     * Return the key of the current change
+     *
+     * @return the key.
+     */
+    public int getKey() {
+        return (key);
+    }
+
+    /**
+     * Check if the current change is an insert
+     *
+     * @return true for an insert, false for a delete.
+     */
+    public boolean isInsert() {
+        return (insert);
+    }
+
+    /**
+     * Close the reader
+     *
+     * @throws IOException is thrown when the log fails to close.
+     */
+    @Override
+    public void close() throws IOException {
+        if (ch != null) {
+            ch.close();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package lhash;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Client of a {@link LinearHashServer}; the calls mirror the ones of
+ * {@link LinearHash} and block until the server responds. Requests can also
+ * be pipelined, sent together and answered together:
+ *
+ * <pre>
+ * List&lt;Object&gt; res = client.pipeline()
+ *         .insertKey(1)
+ *         .contains(2)
+ *         .fetchKeys(new int[] {3, 4})
+ *         .sync();    // [Boolean, Boolean, boolean[]]
+ * </pre>
+ *
+ * A client is not thread safe; every thread needs its own connection.
+ */
+public class LinearHashClient implements Closeable {
+
+    private static final int MAX_IN_FLIGHT = 1024 * 1024;   // response bytes awaited before reading them
+
+    private final Socket sock;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+
+    /**
+     * Connect to a server
+     *
+     * @param host host of the server.
+     * @param port port of the server.
+     * @throws IOException is thrown when the server cannot be reached.
+     */
+    public LinearHashClient(String host, int port) throws IOException {
+        this(new InetSocketAddress(host, port));
+    }
+
+    /**
+     * Connect to a server
+     *
+     * @param address address of the server.
+     * @throws IOException is thrown when the server cannot be reached.
+     */
+    public LinearHashClient(InetSocketAddress address) throws IOException {
+        sock = new Socket();
+        sock.setTcpNoDelay(true);
+        sock.connect(address);
+        out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream(), 64 * 1024));
+        in = new DataInputStream(new BufferedInputStream(sock.getInputStream(), 64 * 1024));
+    }
+
+    /**
+     * Requests sent together, see {@link #sync()}; the responses are read as
+     * they pile up, so that the server never holds more than a bounded amount
+     * of them (it stops reading requests otherwise, and a large pipeline
+     * would never complete).
+     */
+    public final class Pipeline {
+        private final List<int[]> pending = new ArrayList<>();  // operation and key count of each request not yet answered
+        private final List<Object> res = new ArrayList<>();     // results read so far
+        private String error;       // the first error reported
+        private long in_flight;     // bytes of the responses not yet read
+
+        private Pipeline() {
+        }
+
+        /**
+         * Add a lookup of a key; its result is a Boolean
+         *
+         * @param val the key.
+         * @return this pipeline.
+         * @throws IOException is thrown when the request cannot be sent.
+         */
+        public Pipeline contains(int val) throws IOException {
+            frame(LinearHashServer.OP_CONTAINS, 4, 0);
+            out.writeInt(val);
+            return (this);
+        }
+
+        /**
+         * Add an insert; its result is a Boolean, true if the key was inserted
+         *
+         * @param val the key.
+         * @return this pipeline.
+         * @throws IOException is thrown when the request cannot be sent.
+         */
+        public Pipeline insertKey(int val) throws IOException {
+            frame(LinearHashServer.OP_INSERT, 4, 0);
+            out.writeInt(val);
+            return (this);
+        }
+
+        /**
+         * Add a delete; its result is a Boolean, true if the key was deleted
+         *
+         * @param val the key.
+         * @return this pipeline.
+         * @throws IOException is thrown when the request cannot be sent.
+         */
+        public Pipeline deleteKey(int val) throws IOException {
+            frame(LinearHashServer.OP_DELETE, 4, 0);
+            out.writeInt(val);
+            return (this);
+        }
+
+        /**
+         * Add a lookup of many keys; its result is a boolean[], flagging the
+         * keys found
+         *
+         * @param vals the keys.
+         * @return this pipeline.
+         * @throws IOException is thrown when the request cannot be sent.
+         */
+        public Pipeline fetchKeys(int[] vals) throws IOException {
+            frame(LinearHashServer.OP_MULTI_GET, 4 + 4 * vals.length, vals.length);
+            out.writeInt(vals.length);
+            for (int v : vals) {
+                out.writeInt(v);
+            }
+            return (this);
+        }
+
+        /**
+         * Add a write batch; its result is an Integer, the number of keys
+         * changed
+         *
+         * @param batch the batch.
+         * @return this pipeline.
+         * @throws IOException is thrown when the request cannot be sent.
+         */
+        public Pipeline write(WriteBatch batch) throws IOException {
+            int n = batch.size();
+            frame(LinearHashServer.OP_WRITE, 4 + 5 * n, n);
+            out.writeInt(n);
+            for (int i = 0; i < n; i++) {
+                out.writeByte(batch.isInsert(i) ? 1 : 0);
+                out.writeInt(batch.keyAt(i));
+            }
+            return (this);
+        }
+
+        /**
+         * Add a count of the stored keys; its result is an Integer
+         *
+         * @return this pipeline.
+         * @throws IOException is thrown when the request cannot be sent.
+         */
+        public Pipeline size() throws IOException {
+            frame(LinearHashServer.OP_SIZE, 0, 0);
+            return (this);
+        }
+
+        /**
+         * Start a request frame, first reading the responses awaited if this
+         * one would take them over {@link #MAX_IN_FLIGHT}
+         *
+         * @param op  the operation.
+         * @param len length of the payload.
+         * @param cnt number of keys, for multi-key lookups and batches.
+         * @throws IOException is thrown when the request cannot be sent.
+         */
+        private void frame(byte op, int len, int cnt) throws IOException {
+            if (len + 1 > LinearHashServer.MAX_FRAME) {
+                throw new IllegalArgumentException("Request too large: " + len + " bytes");
+            }
+            int resp = 5 + (op == LinearHashServer.OP_MULTI_GET ? (cnt + 7) / 8 :
+                    op == LinearHashServer.OP_WRITE || op == LinearHashServer.OP_SIZE ? 4 : 1);
+            if (in_flight > 0 && in_flight + resp > MAX_IN_FLIGHT) {
+                drain();
+            }
+            out.writeInt(1 + len);
+            out.writeByte(op);
+            pending.add(new int[] {op, cnt});
+            in_flight += resp;
+        }
+
+        /**
+         * Send the requests and wait for all of their results
+         *
+         * @return the results, in request order.
+         * @throws IOException is thrown when the server fails or reports an
+         *                     error (once all the results are read).
+         */
+        public List<Object> sync() throws IOException {
+            drain();
+            List<Object> all = new ArrayList<>(res);
+            String err = error;
+            res.clear();
+            error = null;
+            if (err != null) {
+                throw new IOException("Server error: " + err);
+            }
+            return (all);
+        }
+
+        /**
+         * Send the requests written so far and read their responses
+         *
+         * @throws IOException is thrown when the server fails.
+         */
+        private void drain() throws IOException {
+            out.flush();
+            for (int req[] : pending) {
+                int len = in.readInt();
+                if (in.readByte() != LinearHashServer.STATUS_OK) {
+                    byte msg[] = new byte[len - 1];
+                    in.readFully(msg);
+                    error = error != null ? error : new String(msg, StandardCharsets.UTF_8);
+                    res.add(null);
+                    continue;
+                }
+                switch (req[0]) {
+                    case LinearHashServer.OP_MULTI_GET: {
+                        boolean found[] = new boolean[req[1]];
+                        for (int i = 0; i < found.length; i += 8) {
+                            int bits = in.readByte();
+                            for (int j = 0; j < 8 && i + j < found.length; j++) {
+                                found[i + j] = (bits & (1 << j)) != 0;
+                            }
+                        }
+                        res.add(found);
+                        break;
+                    }
+                    case LinearHashServer.OP_WRITE:
+                    case LinearHashServer.OP_SIZE:
+                        res.add(in.readInt());
+                        break;
+                    default:
+                        res.add(in.readByte() != 0);
+                }
+            }
+            pending.clear();
+            in_flight = 0;
+        }
+    }
+
+    /**
+     * Start a pipeline of requests
+     *
+     * @return the pipeline.
+     */
+    public Pipeline pipeline() {
+        return (new Pipeline());
+    }
+
+    /**
+     * Check if a key is stored
+     *
+     * @param val the key.
+     * @return true if the key is stored.
+     * @throws IOException is thrown when the server fails or reports an error.
+     */
+    public boolean contains(int val) throws IOException {
+        return ((Boolean) pipeline().contains(val).sync().get(0));
+    }
+
+    /**
+     * Insert a key
+     *
+     * @param val the key.
+     * @return true if the key was inserted, false if it was already stored.
+     * @throws IOException is thrown when the server fails or reports an error.
+     */
+    public boolean insertKey(int val) throws IOException {
+        return ((Boolean) pipeline().insertKey(val).sync().get(0));
+    }
+
+    /**
+     * Delete a key
+     *
+     * @param val the key.
+     * @return true if the key was deleted, false if it was not stored.
+     * @throws IOException is thrown when the server fails or reports an error.
+     */
+    public boolean deleteKey(int val) throws IOException {
+        return ((Boolean) pipeline().deleteKey(val).sync().get(0));
+    }
+
+    /**
+     * Check a batch of keys at once, see {@link LinearHash#fetchKeys(int[])}
+     *
+     * @param vals the keys.
+     * @return an array flagging, for each key, if it is stored.
+     * @throws IOException is thrown when the server fails or reports an error.
+     */
+    public boolean[] fetchKeys(int[] vals) throws IOException {
+        return ((boolean[]) pipeline().fetchKeys(vals).sync().get(0));
+    }
+
+    /**
+     * Apply a write batch, see {@link LinearHash#write(WriteBatch)}
+     *
+     * @param batch the batch.
+     * @return the number of keys changed.
+     * @throws IOException is thrown when the server fails or reports an error.
+     */
+    public int write(WriteBatch batch) throws IOException {
+        return ((Integer) pipeline().write(batch).sync().get(0));
+    }
+
+    /**
+     * Return the number of stored keys
+     *
+     * @return the number of keys.
+     * @throws IOException is thrown when the server fails or reports an error.
+     */
+    public int size() throws IOException {
+        return ((Integer) pipeline().size().sync().get(0));
+    }
+
+    /**
+     * Close the connection
+     *
+     * @throws IOException is thrown when the connection fails to close.
+     */
+    @Override
+    public void close() throws IOException {
+        sock.close();
+    }
+}
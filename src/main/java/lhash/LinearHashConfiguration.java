@@ -15,9 +15,27 @@ class LinearHashConfiguration {
     private final int initial_blk_mgr_pool_size = 32;   // default block pool size
     private final int keyByteSize = 4;                  // handling only integers
     private final int defaultTickThresh = 100;          // per 100 ticks reset.
+    private final int epochHistorySize = 1024;          // epochs kept by the performance tracker
+    private final int shiftBufferSize = 64 * 1024;      // buffer used when shifting file parts
     private final String fileMode = "rw";               // default mode R/W
     private final int blk_hoffset = 2 * keyByteSize;    // header offset for each block (2 * base key size)
-    private final int header_size = 40;                 // file header that has the actual configuration details.
+    private final int legacy_header_size = 40;          // file header that has the actual configuration details.
+    private final int minPageSize = 512;                // smallest page size allowed (a disk sector)
+    private final int maxPageSize = 1024 * 1024;        // largest page size allowed
+    private final int state_header_size = 5 * keyByteSize; // hash state: magic, visible pool, split pointer, reserved pool, flags
+    private final int segment_header_size = keyByteSize;   // blocks per segment, after the hash state of segmented files
+    private final int prealloc_header_size = 3 * keyByteSize; // growth step and allocated size, after the hash state of preallocated files
+    /* marks a page aligned file, stored right after the legacy header */
+    static final int PAGE_MAGIC = 0x4C485041;           // "LHPA"
+    /* marks the stored hash state, stored after the legacy header (and page marker) */
+    static final int STATE_MAGIC = 0x4C485353;          // "LHSS"
+    /* hash state flags */
+    static final int FLAG_TOMBSTONES = 1;               // deleted keys might be left as tombstones
+    static final int FLAG_MIN_KEY = 2;                  // the tombstone value is stored as a key
+    static final int FLAG_DIRTY = 4;                    // modified since the last checkpoint
+    static final int FLAG_SEGMENTED = 8;                // the blocks are kept in segment files
+    static final int FLAG_PREALLOC = 16;                // the file is allocated past its last block
+    static final int FLAG_CHANGES = 32;                 // the changes are appended to a change log
     private final String blk_fname; // filename of the block storage
     /* hash statistics */
     private int init_pool;    // initial visible_pool size
@@ -30,6 +48,8 @@ class LinearHashConfiguration {
     /* Properties */
     private int keysPerBlock; // keys per block
     private int bytesPerBlock;// bytes per block
+    private int pageSize;     // page size in bytes, zero for the packed (legacy) layout
+    private int header_size;  // file header size, a full page for page aligned files
     /**
      * Hash configuration
      */
@@ -43,6 +63,33 @@ class LinearHashConfiguration {
     private int tick_thresh;
     /* file override flag */
     private boolean overrideFileFlag = true;
+    /* threads reading overflow chains in parallel, none by default */
+    private int prefetchThreads = 0;
+    /* read only (shared) open mode */
+    private boolean readOnly = false;
+    /* the hash state is kept in the header (all but legacy files) */
+    private boolean hashStateStored = true;
+    /* expected number of keys, the capacity reserved on creation */
+    private int expectedKeys = 0;
+    /* deletes leave tombstones, compacted lazily */
+    private boolean lazyDeletes = false;
+    private int sweepBudget = 4;    // buckets compacted per epoch
+    /* milliseconds between checkpoints, none by default */
+    private long checkpointMillis = 0;
+    /* blocks per segment file, zero for a single file */
+    private int segmentBlocks = 0;
+    private String segmentDirs[] = new String[0];  // directories of the segment files
+    /* blocks the file grows by at least, zero to grow it a block at a time */
+    private int preallocBlocks = 0;
+    /* inserts and deletes are appended to a change log */
+    private boolean changeLog = false;
+    /* entries of the key cache, none by default */
+    private int cacheSize = 0;
+    /* adaptive balance factors: bounds and target overflow reads per operation */
+    private boolean adaptiveBalance = false;
+    private float min_bf;
+    private float max_bf;
+    private float target_ovf;
 
     /**
      * Default constructor for {@link LinearHashConfiguration}
@@ -61,6 +108,7 @@ class LinearHashConfiguration {
         /* block mgr parameters */
         this.keysPerBlock = defaultKeysPerPage;
         bytesPerBlock = calculateBlockByteSize(keyByteSize, keysPerBlock);
+        this.header_size = legacy_header_size + state_header_size;
         this.tick_thresh = defaultTickThresh;
     }
 
@@ -90,6 +138,7 @@ class LinearHashConfiguration {
         /* block manager parameters */
         this.keysPerBlock = keysPerBlock;
         this.bytesPerBlock = calculateBlockByteSize(keyByteSize, keysPerBlock);
+        this.header_size = legacy_header_size + state_header_size;
 
         this.tick_thresh = epoch_thresh;
     }
@@ -175,6 +224,382 @@ class LinearHashConfiguration {
         return ((byteSize * keysPerBlock) + blk_hoffset);
     }
 
+    /**
+     * Switch to the page aligned layout; blocks become exactly one page long,
+     * the header is padded to a full page and the keys per block are derived
+     * from the page and key sizes.
+     *
+     * @param pageSize page size in bytes, a power of two.
+     */
+    void setPageSize(int pageSize) {
+        if (Integer.bitCount(pageSize) != 1 || pageSize < minPageSize || pageSize > maxPageSize) {
+            throw new IllegalArgumentException("Page size must be a power of two between " +
+                    minPageSize + " and " + maxPageSize + " bytes");
+        }
+        this.pageSize = pageSize;
+        this.keysPerBlock = (pageSize - blk_hoffset) / keyByteSize;
+        this.bytesPerBlock = pageSize;
+        this.header_size = pageSize;
+    }
+
+    /**
+     * Return the page size
+     *
+     * @return the page size in bytes, zero if the layout is not page aligned.
+     */
+    int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Check if we are using the page aligned layout
+     *
+     * @return true if blocks are page aligned, false otherwise.
+     */
+    boolean isPageAligned() {
+        return (pageSize > 0);
+    }
+
+    /**
+     * Set the keys per block; this switches back to the packed layout, as
+     * page aligned blocks derive their keys from the page size.
+     *
+     * @param keysPerBlock keys allowed per block.
+     */
+    void setKeysPerBlock(int keysPerBlock) {
+        this.pageSize = 0;
+        this.keysPerBlock = keysPerBlock;
+        this.bytesPerBlock = calculateBlockByteSize(keyByteSize, keysPerBlock);
+        updateHeaderSize();
+    }
+
+    /**
+     * Set the initial visible pool size
+     *
+     * @param init_pool initial pool size.
+     */
+    void setInitialVisiblePoolSize(int init_pool) {
+        this.init_pool = init_pool;
+    }
+
+    /**
+     * Set the balance factors
+     *
+     * @param insert_bf inserts balance factor
+     * @param delete_bf deletes balance factor
+     */
+    void setBalanceFactors(float insert_bf, float delete_bf) {
+        this.bf_insert = insert_bf;
+        this.bf_delete = delete_bf;
+    }
+
+    /**
+     * Set the override flag value
+     *
+     * @param overrideFileFlag override file flag
+     */
+    void setOverrideFlag(boolean overrideFileFlag) {
+        this.overrideFileFlag = overrideFileFlag;
+    }
+
+    /**
+     * Set the number of ticks per epoch
+     *
+     * @param tick_thresh epoch ticks
+     */
+    void setTickThresh(int tick_thresh) {
+        this.tick_thresh = tick_thresh;
+    }
+
+    /**
+     * Set the number of threads used for reading the pages of overflow chains
+     * in parallel; zero reads them from the calling thread.
+     *
+     * @param prefetchThreads number of reader threads.
+     */
+    void setPrefetchThreads(int prefetchThreads) {
+        if (prefetchThreads < 0) {
+            throw new IllegalArgumentException("Prefetch threads cannot be negative");
+        }
+        this.prefetchThreads = prefetchThreads;
+    }
+
+    /**
+     * Return the number of threads used for reading overflow chains in parallel
+     *
+     * @return the number of reader threads, zero if disabled.
+     */
+    int getPrefetchThreads() {
+        return prefetchThreads;
+    }
+
+    /**
+     * Set the time between two checkpoints of the header (and syncs of the file)
+     *
+     * @param checkpointMillis milliseconds between checkpoints, zero to disable them.
+     */
+    void setCheckpointInterval(long checkpointMillis) {
+        if (checkpointMillis < 0) {
+            throw new IllegalArgumentException("Checkpoint interval cannot be negative");
+        }
+        this.checkpointMillis = checkpointMillis;
+    }
+
+    /**
+     * Return the time between two checkpoints
+     *
+     * @return milliseconds between checkpoints, zero if disabled.
+     */
+    long getCheckpointInterval() {
+        return checkpointMillis;
+    }
+
+    /**
+     * Keep the blocks in segment files of the given number of blocks each,
+     * instead of a single file; see {@link SegmentedFile}.
+     *
+     * @param segmentBlocks blocks per segment, zero for a single file.
+     */
+    void setSegmentBlocks(int segmentBlocks) {
+        if (segmentBlocks < 0) {
+            throw new IllegalArgumentException("Blocks per segment cannot be negative");
+        }
+        this.segmentBlocks = segmentBlocks;
+        updateHeaderSize();
+    }
+
+    /**
+     * Size the header of the packed layout, which holds the hash state and
+     * the settings after it only when they are used; page aligned files pad
+     * the header to a full page anyway.
+     */
+    private void updateHeaderSize() {
+        if (!isPageAligned()) {
+            this.header_size = legacy_header_size + (hashStateStored ? state_header_size : 0) +
+                    (hashStateStored && segmentBlocks > 0 ? segment_header_size : 0) +
+                    (hashStateStored && isPreallocated() ? prealloc_header_size : 0);
+        }
+    }
+
+    /**
+     * Grow the file by at least the given number of blocks at a time (and by
+     * an eighth of its size, once that is more), instead of a block at a time.
+     *
+     * @param preallocBlocks blocks to grow the file by, zero to disable.
+     */
+    void setPreallocBlocks(int preallocBlocks) {
+        if (preallocBlocks < 0) {
+            throw new IllegalArgumentException("Preallocated blocks cannot be negative");
+        }
+        this.preallocBlocks = preallocBlocks;
+        updateHeaderSize();
+    }
+
+    /**
+     * Return the number of blocks the file grows by at least
+     *
+     * @return the growth step in blocks, zero if the file is not preallocated.
+     */
+    int getPreallocBlocks() {
+        return preallocBlocks;
+    }
+
+    /**
+     * Check if the file is allocated ahead of its blocks; segment files are
+     * not, as they are sized a segment at a time.
+     *
+     * @return true if the file grows by chunks.
+     */
+    boolean isPreallocated() {
+        return (preallocBlocks > 0 && segmentBlocks == 0);
+    }
+
+    /**
+     * Return the number of blocks per segment file
+     *
+     * @return blocks per segment, zero if the blocks are kept in a single file.
+     */
+    int getSegmentBlocks() {
+        return segmentBlocks;
+    }
+
+    /**
+     * Check if the blocks are kept in segment files
+     *
+     * @return true if the table is segmented.
+     */
+    boolean isSegmented() {
+        return (segmentBlocks > 0);
+    }
+
+    /**
+     * Set the directories the segment files are spread over
+     *
+     * @param segmentDirs the directories, none for the directory of the table file.
+     */
+    void setSegmentDirs(String[] segmentDirs) {
+        this.segmentDirs = segmentDirs.clone();
+    }
+
+    /**
+     * Return the directories the segment files are spread over
+     *
+     * @return the directories, empty for the directory of the table file.
+     */
+    String[] getSegmentDirs() {
+        return segmentDirs;
+    }
+
+    /**
+     * Set the expected number of keys; empty tables are sized for them up front.
+     *
+     * @param expectedKeys the expected number of keys.
+     */
+    void setExpectedKeys(int expectedKeys) {
+        if (expectedKeys < 0) {
+            throw new IllegalArgumentException("Expected keys cannot be negative");
+        }
+        this.expectedKeys = expectedKeys;
+    }
+
+    /**
+     * Return the expected number of keys
+     *
+     * @return the expected number of keys, zero if not given.
+     */
+    int getExpectedKeys() {
+        return expectedKeys;
+    }
+
+    /**
+     * Let deletes leave tombstones, compacted lazily; a few buckets are
+     * swept at the end of each epoch.
+     *
+     * @param lazyDeletes true to leave tombstones.
+     * @param sweepBudget buckets compacted (at most) at the end of each epoch.
+     */
+    void setLazyDeletes(boolean lazyDeletes, int sweepBudget) {
+        if (sweepBudget < 0) {
+            throw new IllegalArgumentException("Sweep budget cannot be negative");
+        }
+        this.lazyDeletes = lazyDeletes;
+        this.sweepBudget = sweepBudget;
+    }
+
+    /**
+     * Check if deletes leave tombstones
+     *
+     * @return true if they do, false if the keys are removed at once.
+     */
+    boolean isLazyDeletes() {
+        return lazyDeletes;
+    }
+
+    /**
+     * Append the inserts and deletes to a change log, see {@link ChangeLog}
+     *
+     * @param changeLog true to log the changes.
+     */
+    void setChangeLog(boolean changeLog) {
+        this.changeLog = changeLog;
+    }
+
+    /**
+     * Check if the changes are logged
+     *
+     * @return true if they are appended to a change log.
+     */
+    boolean isChangeLogged() {
+        return changeLog;
+    }
+
+    /**
+     * Return the number of buckets compacted (at most) at the end of each epoch
+     *
+     * @return the sweep budget.
+     */
+    int getSweepBudget() {
+        return sweepBudget;
+    }
+
+    /**
+     * Set the number of entries of the key cache, see {@link KeyCache}.
+     *
+     * @param cacheSize number of entries, zero for no cache.
+     */
+    void setCacheSize(int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("Cache size cannot be negative");
+        }
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Return the number of entries of the key cache
+     *
+     * @return the number of entries, zero for no cache.
+     */
+    int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Let the balance factors adapt to the observed chain lengths, see
+     * {@link LoadFactorTuner}.
+     *
+     * @param min_bf     lowest balance factor for inserts.
+     * @param max_bf     highest balance factor for inserts.
+     * @param target_ovf overflow blocks traversed per operation aimed for.
+     */
+    void setAdaptiveBalance(float min_bf, float max_bf, float target_ovf) {
+        if (min_bf < 0.1 || max_bf > .99 || min_bf > max_bf) {
+            throw new IllegalArgumentException("Balance factor bounds must be within 0.1 and .99");
+        }
+        if (target_ovf <= 0) {
+            throw new IllegalArgumentException("Target overflow reads must be positive");
+        }
+        this.adaptiveBalance = true;
+        this.min_bf = min_bf;
+        this.max_bf = max_bf;
+        this.target_ovf = target_ovf;
+    }
+
+    /**
+     * Check if the balance factors adapt to the observed chain lengths
+     *
+     * @return true if they do, false if they are fixed.
+     */
+    boolean isAdaptiveBalance() {
+        return adaptiveBalance;
+    }
+
+    /**
+     * Return the lowest balance factor for inserts (adaptive mode)
+     *
+     * @return the lowest balance factor for inserts.
+     */
+    float getMinBalanceFactor() {
+        return min_bf;
+    }
+
+    /**
+     * Return the highest balance factor for inserts (adaptive mode)
+     *
+     * @return the highest balance factor for inserts.
+     */
+    float getMaxBalanceFactor() {
+        return max_bf;
+    }
+
+    /**
+     * Return the overflow blocks traversed per operation aimed for (adaptive mode)
+     *
+     * @return the target overflow reads per operation.
+     */
+    float getTargetOverflowReads() {
+        return target_ovf;
+    }
+
     /**
      * Return the keys per block
      *
@@ -217,7 +642,46 @@ class LinearHashConfiguration {
      * @return return the file mode flags
      */
     String getFileMode() {
-        return fileMode;
+        return (readOnly ? "r" : fileMode);
+    }
+
+    /**
+     * Set the read only flag; read only tables are never truncated nor written.
+     *
+     * @param readOnly true to open the table read only.
+     */
+    void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Check if the table is opened read only
+     *
+     * @return true if the table is read only, false otherwise.
+     */
+    boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Set whether the hash state (visible pool and split pointer) is kept in
+     * the header; files created before it was stored have no room for it in
+     * the packed layout.
+     *
+     * @param hashStateStored true if the header holds the hash state.
+     */
+    void setHashStateStored(boolean hashStateStored) {
+        this.hashStateStored = hashStateStored;
+        updateHeaderSize();
+    }
+
+    /**
+     * Check if the hash state is kept in the header
+     *
+     * @return true if the header holds the hash state.
+     */
+    boolean isHashStateStored() {
+        return hashStateStored;
     }
 
     /**
@@ -247,6 +711,24 @@ class LinearHashConfiguration {
         return tick_thresh;
     }
 
+    /**
+     * Return the number of epochs kept in the performance tracker history
+     *
+     * @return the number of retained epochs
+     */
+    int getEpochHistorySize() {
+        return epochHistorySize;
+    }
+
+    /**
+     * Return the size of the buffer used for shifting file parts
+     *
+     * @return the shift buffer size in bytes
+     */
+    int getShiftBufferSize() {
+        return shiftBufferSize;
+    }
+
     /**
      * Return the number of bytes that the header has.
      *
@@ -257,7 +739,8 @@ class LinearHashConfiguration {
     }
 
     /**
-     * Reads the header from a pre-existing file
+     * Reads the header from a pre-existing file; the file is left right after
+     * the configuration (and the page marker, if any).
      *
      * @param blk_file file to load the data from, already at the correct position
      */
@@ -279,5 +762,16 @@ class LinearHashConfiguration {
         /* write epoch thresh */
         tick_thresh = blk_file.readInt();
 
+        /* page aligned files carry a marker and their page size */
+        pageSize = 0;
+        header_size = legacy_header_size;
+        long pos = blk_file.getFilePointer();
+        if (blk_file.length() >= pos + 2 * keyByteSize &&
+                blk_file.readInt() == PAGE_MAGIC) {
+            setPageSize(blk_file.readInt());
+        } else {
+            // not a marker, but the start of the first block
+            blk_file.seek(pos);
+        }
     }
 }
@@ -0,0 +1,218 @@
+package lhash;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a table (the replica) a copy of another one (the primary) by applying
+ * the changes of the primary, as they are appended to its change log (see
+ * {@link LinearHash.Builder#changeLog()}), from this or any other process.
+ *
+ * The changes read at once are applied as a single write batch. The sequence
+ * number of the last change applied is kept next to the replica file (as
+ * "fname.follow"), once its batch is applied, so a follower started again
+ * continues where it stopped; changes applied twice leave the replica as
+ * applied once.
+ *
+ * <pre>
+ * java -cp linhash.jar lhash.LinearHashFollower primary replica [--poll-interval ms] [--until seq]
+ * </pre>
+ */
+public class LinearHashFollower implements Closeable {
+
+    private static final int MAX_BATCH = 64 * 1024; // changes applied per write batch
+
+    private final LinearHash table;                 // the replica
+    private final LinearHashChangeReader reader;    // changes of the primary
+    private final File pos_file;                    // last change applied
+    private final WriteBatch batch = new WriteBatch();
+    private volatile long applied;                  // sequence number of the last change applied
+
+    private Thread loop;                // the thread following the primary, once started
+    private volatile boolean running;
+    private volatile IOException failure;   // the error that stopped the thread, if any
+
+    /**
+     * Create a follower of a primary table
+     *
+     * @param primary_fname file of the primary table.
+     * @param table         the replica; it is not committed when the follower is closed.
+     * @throws IOException is thrown when the position of the replica cannot be read.
+     */
+    public LinearHashFollower(String primary_fname, LinearHash table) throws IOException {
+        this.table = table;
+        this.pos_file = new File(table.getConfiguration().getFilename() + ".follow");
+        if (pos_file.length() == 8) {
+            applied = ByteBuffer.wrap(Files.readAllBytes(pos_file.toPath())).getLong();
+        }
+        this.reader = new LinearHashChangeReader(primary_fname, applied + 1);
+    }
+
+    /**
+     * Apply the changes already in the log of the primary
+     *
+     * @return the number of changes applied.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public synchronized int poll() throws IOException {
+        int total = 0, n;
+        do {
+            for (n = 0; n < MAX_BATCH && reader.next(); n++) {
+                if (reader.isInsert()) {
+                    batch.insertKey(reader.getKey());
+                } else {
+                    batch.deleteKey(reader.getKey());
+                }
+            }
+            if (n > 0) {
+                table.write(batch);
+                batch.clear();
+                applied = reader.getSequence();
+                Files.write(pos_file.toPath(), ByteBuffer.allocate(8).putLong(applied).array());
+                total += n;
+            }
+        } while (n == MAX_BATCH);
+        return (total);
+    }
+
+    /**
+     * Return the sequence number of the last change applied
+     *
+     * @return the sequence number, zero if none was.
+     */
+    public long getAppliedSequence() {
+        return (applied);
+    }
+
+    /**
+     * Keep applying the changes of the primary, in a thread of its own; the
+     * replica is not to be used by other threads meanwhile.
+     *
+     * @param interval_ms milliseconds to wait for changes, once all are applied.
+     * @return this follower.
+     */
+    public LinearHashFollower start(long interval_ms) {
+        running = true;
+        loop = new Thread(() -> {
+            try {
+                while (running) {
+                    if (poll() == 0) {
+                        Thread.sleep(interval_ms);
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "lhash-follower");
+        loop.start();
+        return (this);
+    }
+
+    /**
+     * Wait until a given change is applied by the started follower
+     *
+     * @param seq        sequence number of the change.
+     * @param timeout_ms longest time to wait, in milliseconds.
+     * @return true if the change was applied, false if it was not in time.
+     * @throws IOException          is thrown when the follower stopped on an error.
+     * @throws InterruptedException is thrown when the thread is interrupted while waiting.
+     */
+    public boolean awaitSequence(long seq, long timeout_ms) throws IOException, InterruptedException {
+        long start = System.nanoTime(),
+                limit = TimeUnit.MILLISECONDS.toNanos(timeout_ms);
+        while (applied < seq) {
+            if (failure != null) {
+                throw failure;
+            }
+            if (System.nanoTime() - start >= limit) {
+                return (false);
+            }
+            Thread.sleep(5);
+        }
+        return (true);
+    }
+
+    /**
+     * Stop following the primary; the replica is left open.
+     *
+     * @throws IOException is thrown when the follower had stopped on an error.
+     */
+    @Override
+    public void close() throws IOException {
+        // not interrupted, as that would close the channels of the replica
+        running = false;
+        if (loop != null) {
+            try {
+                loop.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        reader.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Print the usage and exit
+     */
+    private static void usage() {
+        System.err.println("Usage: LinearHashFollower primary replica [--poll-interval ms] [--until seq]");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            usage();
+        }
+        long interval = 10, until = -1;
+        try {
+            for (int i = 2; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--poll-interval":
+                        interval = Long.parseLong(args[++i]);
+                        break;
+                    case "--until":
+                        until = Long.parseLong(args[++i]);
+                        break;
+                    default:
+                        usage();
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            usage();
+        }
+        try {
+            LinearHash table = new LinearHash.Builder(args[1]).overrideFile(false).build();
+            LinearHashFollower f = new LinearHashFollower(args[0], table).start(interval);
+            if (until < 0) {
+                // stop following and commit the replica on exit
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        f.close();
+                        table.commitFile();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }));
+                System.out.println("Following " + args[0] + " into " + args[1]);
+                return;
+            }
+            f.awaitSequence(until, Long.MAX_VALUE);
+            f.close();
+            table.commitFile();
+            System.out.println("Applied " + args[0] + " up to change " + f.getAppliedSequence() +
+                    " into " + args[1]);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
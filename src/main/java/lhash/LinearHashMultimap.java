@@ -0,0 +1,887 @@
+package lhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Multimap mode: every key maps to a posting list of ints (ids) instead of
+ * being stored once, e.g. for an inverted index on an int attribute.
+ *
+ * The keys are kept in a directory, hashed linearly like the keys of a
+ * {@link LinearHash}: a bucket is a chain of pages of fixed size entries, one
+ * per key, and the buckets are split and merged with the number of keys. An
+ * entry holds its ids inline while there are few of them; longer lists move
+ * to posting pages of their own, linked in order, and the entry only keeps
+ * the first and the last one. Ids are appended to the last page, so adding an
+ * id reads and writes a couple of pages whatever the length of its list, and
+ * {@link #getAll(int)} streams a list a page at a time. Splits and merges
+ * only move the entries; the posting pages stay where they are.
+ *
+ * Ids are not checked for duplicates, so adding an id twice stores it twice;
+ * removing it removes one of them. Removing an id from a long list scans its
+ * pages for it and moves the last id of the list in its place.
+ *
+ * The directory and the posting pages share a single file of pages; the
+ * primary pages of the buckets are allocated a doubling of the pool at a
+ * time, the other pages one at a time (from the pages freed first). The file
+ * is current once committed.
+ *
+ * <pre>
+ * LinearHashMultimap mm = new LinearHashMultimap.Builder("fname")
+ *         .pageSize(4096)
+ *         .build();
+ * mm.add(7, 1001);
+ * for (PrimitiveIterator.OfInt ids = mm.getAll(7); ids.hasNext(); ) {
+ *     int id = ids.nextInt();
+ * }
+ * </pre>
+ */
+public class LinearHashMultimap {
+
+    static final int MAGIC = 0x4C484D4D;    // "LHMM"
+    private static final int NIL = 0;       // no page; page zero is the header
+    private static final int SEGMENTS = 32; // bucket segments, each doubling the pool
+
+    /* directory pages: entry count, overflow page, then the entries (key, id count, ids or pages) */
+    private static final int DIR_HEADER = 8;
+    /* posting pages: key, previous page, next page, id count, then the ids */
+    private static final int POST_HEADER = 16;
+
+    private final String fname;         // file of the multimap
+    private final FileChannel ch;
+    private final int page_size;        // bytes per page
+    private final int inline_ids;       // ids kept in the entry itself
+    private final int entry_size;       // bytes per directory entry
+    private final int entries_per_page; // directory entries per page
+    private final int ids_per_page;     // ids per posting page
+    private final int init_pool;        // initial (visible) pool size
+    private final float insert_bf;      // inserts load factor
+    private final float delete_bf;      // deletes load factor
+
+    /* hash state */
+    private int visible_pool;
+    private int split_ptr;
+    private int pool;                                   // buckets in use
+    private final int seg_start[] = new int[SEGMENTS];  // first page of each bucket segment
+    /* page allocation */
+    private int page_cnt;               // pages in the file, the header included
+    private int free_head;              // first free page
+    /* counts */
+    private int key_cnt;
+    private long id_cnt;
+
+    /**
+     * Open or create a multimap, see {@link Builder}
+     *
+     * @param b the settings.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private LinearHashMultimap(Builder b) throws IOException {
+        this.fname = b.fname;
+        File f = new File(fname);
+        boolean exists = !b.overrideFile && f.length() > 0;
+        ch = exists ?
+                FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE) :
+                FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer hdr = ByteBuffer.allocate(Builder.MIN_PAGE_SIZE);
+        if (exists) {
+            while (hdr.hasRemaining() && ch.read(hdr, hdr.position()) > 0) ;
+            if (hdr.getInt(0) != MAGIC) {
+                ch.close();
+                throw new IOException(fname + " is not a multimap");
+            }
+            hdr.position(4);
+            page_size = hdr.getInt();
+            inline_ids = hdr.getInt();
+            init_pool = hdr.getInt();
+            insert_bf = hdr.getFloat();
+            delete_bf = hdr.getFloat();
+            visible_pool = hdr.getInt();
+            split_ptr = hdr.getInt();
+            pool = hdr.getInt();
+            page_cnt = hdr.getInt();
+            free_head = hdr.getInt();
+            key_cnt = hdr.getInt();
+            id_cnt = hdr.getLong();
+            for (int k = 0; k < SEGMENTS; k++) {
+                seg_start[k] = hdr.getInt();
+            }
+        } else {
+            page_size = b.pageSize;
+            inline_ids = b.inlineIds;
+            init_pool = b.initPool;
+            insert_bf = b.insert_bf;
+            delete_bf = b.delete_bf;
+            visible_pool = pool = init_pool;
+            page_cnt = 1;
+            ensureSegment(0);
+        }
+        entry_size = 8 + 4 * inline_ids;
+        entries_per_page = (page_size - DIR_HEADER) / entry_size;
+        ids_per_page = (page_size - POST_HEADER) / 4;
+        if (!exists) {
+            saveHeader();
+        }
+    }
+
+    /**
+     * Write the header out
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void saveHeader() throws IOException {
+        ByteBuffer hdr = ByteBuffer.allocate(page_size);
+        hdr.putInt(MAGIC).putInt(page_size).putInt(inline_ids).putInt(init_pool)
+                .putFloat(insert_bf).putFloat(delete_bf)
+                .putInt(visible_pool).putInt(split_ptr).putInt(pool)
+                .putInt(page_cnt).putInt(free_head)
+                .putInt(key_cnt).putLong(id_cnt);
+        for (int k = 0; k < SEGMENTS; k++) {
+            hdr.putInt(seg_start[k]);
+        }
+        writePage(0, hdr);
+    }
+
+    /**
+     * Our hash function, the one of {@link LinearHash}
+     *
+     * @param key key to be hashed.
+     * @return the bucket of the key.
+     */
+    private int hf(int key) {
+        int b = Math.abs(key % visible_pool);
+        if (b < split_ptr) {
+            b = Math.abs(key % (2 * visible_pool));
+        }
+        return (b);
+    }
+
+    /**
+     * Return the segment of a bucket: the initial pool, then one per doubling
+     *
+     * @param b the bucket.
+     * @return the segment number.
+     */
+    private int segmentOf(int b) {
+        return (b < init_pool ? 0 : 32 - Integer.numberOfLeadingZeros(b / init_pool));
+    }
+
+    /**
+     * Return the primary page of a bucket
+     *
+     * @param b the bucket.
+     * @return the page number.
+     */
+    private int bucketPage(int b) {
+        int k = segmentOf(b);
+        return (seg_start[k] + b - (k == 0 ? 0 : init_pool << (k - 1)));
+    }
+
+    /**
+     * Allocate the primary pages of the segment of a bucket, if not done yet;
+     * unwritten pages read as empty.
+     *
+     * @param b the bucket.
+     */
+    private void ensureSegment(int b) {
+        int k = segmentOf(b);
+        if (seg_start[k] == NIL) {
+            seg_start[k] = page_cnt;
+            page_cnt += k == 0 ? init_pool : init_pool << (k - 1);
+        }
+    }
+
+    /**
+     * Read a page; pages past the end of the file read as zeros
+     *
+     * @param p the page number.
+     * @return the page.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private ByteBuffer readPage(int p) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(page_size);
+        long pos = (long) p * page_size;
+        while (b.hasRemaining() && ch.read(b, pos + b.position()) > 0) ;
+        b.clear();
+        return (b);
+    }
+
+    /**
+     * Write a page
+     *
+     * @param p the page number.
+     * @param b the page.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void writePage(int p, ByteBuffer b) throws IOException {
+        long pos = (long) p * page_size;
+        b.clear();
+        while (b.hasRemaining()) {
+            ch.write(b, pos + b.position());
+        }
+        b.clear();
+    }
+
+    /**
+     * Allocate a page, a freed one if any
+     *
+     * @return the page number.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private int allocPage() throws IOException {
+        if (free_head == NIL) {
+            return (page_cnt++);
+        }
+        int p = free_head;
+        free_head = readPage(p).getInt(0);
+        return (p);
+    }
+
+    /**
+     * Free a page, linking it in the free list
+     *
+     * @param p the page number.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void freePage(int p) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(page_size);
+        b.putInt(0, free_head);
+        writePage(p, b);
+        free_head = p;
+    }
+
+    /**
+     * A bucket chain, read whole, and the entry found in it (if any)
+     */
+    private final class Chain {
+        private int pages[] = new int[4];
+        private ByteBuffer bufs[] = new ByteBuffer[4];
+        private int len;
+        /* the entry found */
+        private int at;     // its page in the chain
+        private int off;    // its position in the page
+
+        /**
+         * Read the chain of a bucket
+         *
+         * @param b the bucket.
+         * @throws IOException is thrown when there is an I/O error during the operation.
+         */
+        Chain(int b) throws IOException {
+            for (int p = bucketPage(b); p != NIL; p = bufs[len - 1].getInt(4)) {
+                if (len == pages.length) {
+                    pages = Arrays.copyOf(pages, 2 * len);
+                    bufs = Arrays.copyOf(bufs, 2 * len);
+                }
+                pages[len] = p;
+                bufs[len++] = readPage(p);
+            }
+        }
+
+        /**
+         * Look for the entry of a key
+         *
+         * @param key the key.
+         * @return true if found, see {@link #entry()}.
+         */
+        boolean find(int key) {
+            for (at = 0; at < len; at++) {
+                ByteBuffer d = bufs[at];
+                for (int e = 0, cnt = d.getInt(0); e < cnt; e++) {
+                    off = DIR_HEADER + e * entry_size;
+                    if (d.getInt(off) == key) {
+                        return (true);
+                    }
+                }
+            }
+            return (false);
+        }
+
+        /**
+         * Return the page of the entry found
+         *
+         * @return the page.
+         */
+        ByteBuffer entry() {
+            return (bufs[at]);
+        }
+
+        /**
+         * Write the page of the entry found
+         *
+         * @throws IOException is thrown when there is an I/O error during the operation.
+         */
+        void writeEntry() throws IOException {
+            writePage(pages[at], bufs[at]);
+        }
+
+        /**
+         * Return the number of entries in the chain
+         *
+         * @return the entry count.
+         */
+        int entries() {
+            int n = 0;
+            for (int i = 0; i < len; i++) {
+                n += bufs[i].getInt(0);
+            }
+            return (n);
+        }
+
+        /**
+         * Copy the entries of the chain
+         *
+         * @param dst destination.
+         * @param pos position in the destination.
+         * @return the position after the entries.
+         */
+        int copyEntries(byte[] dst, int pos) {
+            for (int i = 0; i < len; i++) {
+                int n = bufs[i].getInt(0) * entry_size;
+                System.arraycopy(bufs[i].array(), DIR_HEADER, dst, pos, n);
+                pos += n;
+            }
+            return (pos);
+        }
+
+        /**
+         * Add the entry of a new key with a single id, at the end of the chain
+         *
+         * @param key the key.
+         * @param id  its first id.
+         * @throws IOException is thrown when there is an I/O error during the operation.
+         */
+        void addEntry(int key, int id) throws IOException {
+            ByteBuffer d = bufs[len - 1];
+            int cnt = d.getInt(0);
+            if (cnt < entries_per_page) {
+                d.putInt(DIR_HEADER + cnt * entry_size, key)
+                        .putInt(DIR_HEADER + cnt * entry_size + 4, 1)
+                        .putInt(DIR_HEADER + cnt * entry_size + 8, id)
+                        .putInt(0, cnt + 1);
+                writePage(pages[len - 1], d);
+                return;
+            }
+            int p = allocPage();
+            ByteBuffer o = ByteBuffer.allocate(page_size);
+            o.putInt(0, 1).putInt(DIR_HEADER, key).putInt(DIR_HEADER + 4, 1).putInt(DIR_HEADER + 8, id);
+            writePage(p, o);
+            d.putInt(4, p);
+            writePage(pages[len - 1], d);
+        }
+
+        /**
+         * Remove the entry found, moving the last entry of the chain in its
+         * place; an overflow page left empty is freed.
+         *
+         * @throws IOException is thrown when there is an I/O error during the operation.
+         */
+        void removeEntry() throws IOException {
+            int li = len - 1;
+            ByteBuffer d = bufs[at],
+                    lb = bufs[li];
+            int lc = lb.getInt(0) - 1,
+                    loff = DIR_HEADER + lc * entry_size;
+            System.arraycopy(lb.array(), loff, d.array(), off, entry_size);
+            Arrays.fill(lb.array(), loff, loff + entry_size, (byte) 0);
+            lb.putInt(0, lc);
+            if (lc == 0 && li > 0) {
+                freePage(pages[li]);
+                bufs[li - 1].putInt(4, NIL);
+                writePage(pages[li - 1], bufs[li - 1]);
+                if (at < li - 1) {
+                    writePage(pages[at], d);
+                }
+            } else {
+                writePage(pages[li], lb);
+                if (at != li) {
+                    writePage(pages[at], d);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace the entries of a bucket, reusing the pages of its chain first;
+     * the pages left over are freed.
+     *
+     * @param c   the chain of the bucket.
+     * @param ent the entries.
+     * @param n   number of entries.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void writeEntries(Chain c, byte[] ent, int n) throws IOException {
+        int pages = Math.max(1, (n + entries_per_page - 1) / entries_per_page),
+                next = NIL;
+        for (int i = 0; i < pages; i++) {
+            // the chain holds one page at least, so the first one is never allocated here
+            int p = i < c.len ? c.pages[i] : next,
+                    cnt = Math.min(entries_per_page, n - i * entries_per_page);
+            next = i + 1 >= pages ? NIL : i + 1 < c.len ? c.pages[i + 1] : allocPage();
+            ByteBuffer d = ByteBuffer.allocate(page_size);
+            d.putInt(0, Math.max(0, cnt)).putInt(4, next);
+            if (cnt > 0) {
+                System.arraycopy(ent, i * entries_per_page * entry_size, d.array(), DIR_HEADER, cnt * entry_size);
+            }
+            writePage(p, d);
+        }
+        for (int i = pages; i < c.len; i++) {
+            freePage(c.pages[i]);
+        }
+    }
+
+    /**
+     * Split the bucket at the split pointer; only the entries move
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void split() throws IOException {
+        int s = split_ptr,
+                t = s + visible_pool;
+        ensureSegment(t);
+        Chain cs = new Chain(s),
+                ct = new Chain(t);
+        byte all[] = new byte[cs.entries() * entry_size],
+                stay[] = new byte[all.length],
+                move[] = new byte[all.length];
+        int n = cs.copyEntries(all, 0) / entry_size, ns = 0, nm = 0;
+        ByteBuffer a = ByteBuffer.wrap(all);
+        for (int e = 0; e < n; e++) {
+            if (Math.abs(a.getInt(e * entry_size) % (2 * visible_pool)) == t) {
+                System.arraycopy(all, e * entry_size, move, nm++ * entry_size, entry_size);
+            } else {
+                System.arraycopy(all, e * entry_size, stay, ns++ * entry_size, entry_size);
+            }
+        }
+        writeEntries(cs, stay, ns);
+        writeEntries(ct, move, nm);
+        pool++;
+        if (++split_ptr == visible_pool) {
+            visible_pool *= 2;
+            split_ptr = 0;
+        }
+    }
+
+    /**
+     * Merge the last bucket into its buddy
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void merge() throws IOException {
+        if (split_ptr == 0) {
+            visible_pool /= 2;
+            split_ptr = visible_pool;
+        }
+        split_ptr--;
+        int s = split_ptr,
+                t = s + visible_pool;
+        Chain cs = new Chain(s),
+                ct = new Chain(t);
+        byte all[] = new byte[(cs.entries() + ct.entries()) * entry_size];
+        int n = ct.copyEntries(all, cs.copyEntries(all, 0)) / entry_size;
+        writeEntries(cs, all, n);
+        writeEntries(ct, all, 0);
+        pool--;
+    }
+
+    /**
+     * Add an id to the posting list of a key
+     *
+     * @param key the key.
+     * @param id  the id.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public void add(int key, int id) throws IOException {
+        Chain c = new Chain(hf(key));
+        if (!c.find(key)) {
+            c.addEntry(key, id);
+            key_cnt++;
+            id_cnt++;
+            while (key_cnt / ((double) pool * entries_per_page) > insert_bf) {
+                split();
+            }
+            return;
+        }
+        ByteBuffer d = c.entry();
+        int off = c.off,
+                n = d.getInt(off + 4);
+        if (n < inline_ids) {
+            d.putInt(off + 8 + 4 * n, id);
+        } else if (n == inline_ids) {
+            // the list outgrows the entry, to a posting page of its own
+            int p = allocPage();
+            ByteBuffer pb = ByteBuffer.allocate(page_size);
+            pb.putInt(0, key).putInt(12, n + 1);
+            for (int j = 0; j < n; j++) {
+                pb.putInt(POST_HEADER + 4 * j, d.getInt(off + 8 + 4 * j));
+                d.putInt(off + 8 + 4 * j, 0);
+            }
+            pb.putInt(POST_HEADER + 4 * n, id);
+            writePage(p, pb);
+            d.putInt(off + 8, p).putInt(off + 12, p);
+        } else {
+            int last = d.getInt(off + 12);
+            ByteBuffer lb = readPage(last);
+            int cnt = lb.getInt(12);
+            if (cnt < ids_per_page) {
+                lb.putInt(POST_HEADER + 4 * cnt, id).putInt(12, cnt + 1);
+            } else {
+                int p = allocPage();
+                ByteBuffer pb = ByteBuffer.allocate(page_size);
+                pb.putInt(0, key).putInt(4, last).putInt(12, 1).putInt(POST_HEADER, id);
+                writePage(p, pb);
+                lb.putInt(8, p);
+                d.putInt(off + 12, p);
+            }
+            writePage(last, lb);
+        }
+        d.putInt(off + 4, n + 1);
+        c.writeEntry();
+        id_cnt++;
+    }
+
+    /**
+     * Remove an id from the posting list of a key (one of them, if added
+     * more than once); a key left without ids is removed.
+     *
+     * @param key the key.
+     * @param id  the id.
+     * @return true if the id was removed, false if it was not in the list.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public boolean remove(int key, int id) throws IOException {
+        Chain c = new Chain(hf(key));
+        if (!c.find(key)) {
+            return (false);
+        }
+        ByteBuffer d = c.entry();
+        int off = c.off,
+                n = d.getInt(off + 4);
+        if (n <= inline_ids) {
+            int i = BlockManager.indexOf(d, off + 8, id, n);
+            if (i < 0) {
+                return (false);
+            }
+            d.putInt(off + 8 + 4 * i, d.getInt(off + 8 + 4 * (n - 1)));
+            d.putInt(off + 8 + 4 * (n - 1), 0);
+            id_cnt--;
+            if (n > 1) {
+                d.putInt(off + 4, n - 1);
+                c.writeEntry();
+                return (true);
+            }
+            c.removeEntry();
+            key_cnt--;
+            while (key_cnt / ((double) pool * entries_per_page) < delete_bf && pool > init_pool) {
+                merge();
+            }
+            return (true);
+        }
+        // the page holding the id; every page but the last one is full
+        int first = d.getInt(off + 8),
+                last = d.getInt(off + 12),
+                fp = first, fi = -1;
+        ByteBuffer fb = null;
+        while (fp != NIL) {
+            fb = readPage(fp);
+            if ((fi = BlockManager.indexOf(fb, POST_HEADER, id, fb.getInt(12))) >= 0) {
+                break;
+            }
+            fp = fb.getInt(8);
+        }
+        if (fi < 0) {
+            return (false);
+        }
+        // the last id of the list takes its place
+        ByteBuffer lb = fp == last ? fb : readPage(last);
+        int lc = lb.getInt(12) - 1;
+        fb.putInt(POST_HEADER + 4 * fi, lb.getInt(POST_HEADER + 4 * lc));
+        lb.putInt(POST_HEADER + 4 * lc, 0).putInt(12, lc);
+        if (lc == 0) {
+            // the last page is left empty (and is not the first one, as the list is long)
+            int prev = lb.getInt(4);
+            ByteBuffer pb = prev == fp ? fb : readPage(prev);
+            pb.putInt(8, NIL);
+            writePage(prev, pb);
+            if (fp != prev) {
+                writePage(fp, fb);
+            }
+            freePage(last);
+            d.putInt(off + 12, last = prev);
+        } else {
+            writePage(fp, fb);
+            if (lb != fb) {
+                writePage(last, lb);
+            }
+        }
+        if (--n == inline_ids) {
+            // short enough for the entry again, and all in the first page
+            ByteBuffer pb = readPage(first);
+            for (int j = 0; j < n; j++) {
+                d.putInt(off + 8 + 4 * j, pb.getInt(POST_HEADER + 4 * j));
+            }
+            freePage(first);
+        }
+        d.putInt(off + 4, n);
+        c.writeEntry();
+        id_cnt--;
+        return (true);
+    }
+
+    /**
+     * Return the ids of a key, in the order they were added (ids removed
+     * from a long list leave the last id in their place); long lists are read
+     * a posting page at a time, as the ids are consumed. The iterator is not
+     * to be used once the multimap changes.
+     *
+     * @param key the key.
+     * @return an iterator over the ids, empty if the key is not stored.
+     * @throws IOException is thrown when there is an I/O error during the operation;
+     *                     reading the next pages throws {@link UncheckedIOException}.
+     */
+    public PrimitiveIterator.OfInt getAll(int key) throws IOException {
+        Chain c = new Chain(hf(key));
+        if (!c.find(key)) {
+            return (Arrays.stream(new int[0]).iterator());
+        }
+        ByteBuffer d = c.entry();
+        int n = d.getInt(c.off + 4);
+        if (n <= inline_ids) {
+            int ids[] = new int[n];
+            for (int j = 0; j < n; j++) {
+                ids[j] = d.getInt(c.off + 8 + 4 * j);
+            }
+            return (Arrays.stream(ids).iterator());
+        }
+        return (new PostingIterator(d.getInt(c.off + 8)));
+    }
+
+    /**
+     * Iterator over a posting list, reading a page at a time
+     */
+    private final class PostingIterator implements PrimitiveIterator.OfInt {
+        private int next_page;      // page to read next
+        private ByteBuffer page;    // page being read
+        private int idx, cnt;       // next id, and ids, in the page
+
+        PostingIterator(int first) {
+            this.next_page = first;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (idx == cnt) {
+                if (next_page == NIL) {
+                    return (false);
+                }
+                try {
+                    page = readPage(next_page);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                cnt = page.getInt(12);
+                idx = 0;
+                next_page = page.getInt(8);
+            }
+            return (true);
+        }
+
+        @Override
+        public int nextInt() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return (page.getInt(POST_HEADER + 4 * idx++));
+        }
+    }
+
+    /**
+     * Return the number of ids of a key
+     *
+     * @param key the key.
+     * @return the length of its posting list, zero if the key is not stored.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public int count(int key) throws IOException {
+        Chain c = new Chain(hf(key));
+        return (c.find(key) ? c.entry().getInt(c.off + 4) : 0);
+    }
+
+    /**
+     * Check if a key has any ids
+     *
+     * @param key the key.
+     * @return true if the key is stored.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public boolean containsKey(int key) throws IOException {
+        return (new Chain(hf(key)).find(key));
+    }
+
+    /**
+     * Return the number of keys stored
+     *
+     * @return the key count.
+     */
+    public int getKeyCount() {
+        return (key_cnt);
+    }
+
+    /**
+     * Return the number of ids stored, over all keys
+     *
+     * @return the id count.
+     */
+    public long getIdCount() {
+        return (id_cnt);
+    }
+
+    /**
+     * Return the number of buckets in use
+     *
+     * @return the pool size.
+     */
+    int getPoolSize() {
+        return (pool);
+    }
+
+    /**
+     * Return the number of pages in the file, free ones included
+     *
+     * @return the page count.
+     */
+    int getPageCount() {
+        return (page_cnt);
+    }
+
+    /**
+     * Write the header out, sync and close the file.
+     *
+     * @throws IOException is thrown when we cannot close the file.
+     */
+    public void commitFile() throws IOException {
+        saveHeader();
+        ch.force(true);
+        ch.close();
+    }
+
+    /**
+     * Builder for {@link LinearHashMultimap} instances; the settings of an
+     * existing file are kept.
+     */
+    public static class Builder {
+        static final int MIN_PAGE_SIZE = 256;   // the header needs that much
+
+        private final String fname;
+        private int pageSize = 4096;
+        private int inlineIds = 6;
+        private int initPool = 16;
+        private float insert_bf = 0.8f;
+        private float delete_bf = 0.5f;
+        private boolean overrideFile = true;
+
+        /**
+         * Create a builder for the given file
+         *
+         * @param fname filename for the multimap.
+         */
+        public Builder(String fname) {
+            this.fname = fname;
+        }
+
+        /**
+         * Set the page size, of both the directory and the posting pages
+         *
+         * @param pageSize page size in bytes, a power of two from 256 up.
+         * @return this builder.
+         */
+        public Builder pageSize(int pageSize) {
+            if (pageSize < MIN_PAGE_SIZE || Integer.bitCount(pageSize) != 1) {
+                throw new IllegalArgumentException("Page size must be a power of two, " +
+                        MIN_PAGE_SIZE + " at least");
+            }
+            this.pageSize = pageSize;
+            return (this);
+        }
+
+        /**
+         * Set the number of ids kept in the directory entry itself, before
+         * the list moves to posting pages
+         *
+         * @param inlineIds ids per entry, two at least.
+         * @return this builder.
+         */
+        public Builder inlineIds(int inlineIds) {
+            if (inlineIds < 2) {
+                throw new IllegalArgumentException("Entries hold two ids at least");
+            }
+            this.inlineIds = inlineIds;
+            return (this);
+        }
+
+        /**
+         * Set the initial (visible) pool size
+         *
+         * @param initPool initial number of buckets.
+         * @return this builder.
+         */
+        public Builder initialPool(int initPool) {
+            if (initPool < 8) {
+                throw new IllegalArgumentException("We don't allow less than 8 blocks for the starting pool");
+            }
+            this.initPool = initPool;
+            return (this);
+        }
+
+        /**
+         * Set the balance factors, the directory load (entries over entry
+         * slots in the primary pages) above which buckets are split and below
+         * which they are merged
+         *
+         * @param insert_bf inserts load factor.
+         * @param delete_bf deletes load factor.
+         * @return this builder.
+         */
+        public Builder balanceFactors(float insert_bf, float delete_bf) {
+            if (insert_bf > .99 || delete_bf < 0.1 || delete_bf >= insert_bf) {
+                throw new IllegalArgumentException("Balance factors must be within .1 and .99, " +
+                        "with the one for deletes the lower");
+            }
+            this.insert_bf = insert_bf;
+            this.delete_bf = delete_bf;
+            return (this);
+        }
+
+        /**
+         * Set if an existing file is replaced by an empty multimap
+         *
+         * @param overrideFile true to start empty, false to open the file.
+         * @return this builder.
+         */
+        public Builder overrideFile(boolean overrideFile) {
+            this.overrideFile = overrideFile;
+            return (this);
+        }
+
+        /**
+         * Open or create the multimap
+         *
+         * @return the multimap.
+         * @throws IOException is thrown when there is an I/O error during the operation.
+         */
+        public LinearHashMultimap build() throws IOException {
+            if ((pageSize - DIR_HEADER) / (8 + 4 * inlineIds) < 2) {
+                throw new IllegalArgumentException("Pages must hold two entries at least");
+            }
+            return (new LinearHashMultimap(this));
+        }
+    }
+}
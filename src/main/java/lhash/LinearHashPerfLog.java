@@ -3,26 +3,70 @@ package lhash;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
-import java.util.Vector;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Performance tracker of a {@link BlockManager}.
+ *
+ * The counters are striped ({@link LongAdder}) and the distributions are kept in
+ * fixed size {@link LatencyHistogram}s, so recording never allocates nor blocks.
+ * The epoch history is a bounded ring of primitive arrays; once it is full the
+ * oldest epochs are overwritten. The epoch counters are plain fields, updated
+ * by the single writer only: read only tables, which are looked up from many
+ * threads, keep no epochs.
+ */
 @SuppressWarnings("unused")
 class LinearHashPerfLog {
     private int itr_cnt;            // tick iterations (resets)
-    private int tick_cnt;        // tick count (iterations)
-    private int io_cnt;            // global i/o operation counter
-    private int epoch_io_cnt;    // epoc i/o counter
-    private long global_ticks;    // global ticks count
+    private int tick_cnt;           // tick count (iterations)
+    private int epoch_io_cnt;       // epoc i/o counter
+    private long global_ticks;      // global ticks count
+    private int epoch_ops;          // epoch operations that traversed a chain
+    private long epoch_ovf;         // overflow blocks they traversed
 
-    private Vector<Integer> epochIO = new Vector<Integer>();            // I/O operations for each epoch
-    private Vector<Double> epochAvgIO = new Vector<Double>();    // I/O operations for each epoch (average)
-    private Vector<Integer> epochAccIO = new Vector<Integer>();        // I/O operations for each epoch (added)
-    private Vector<Integer> epochBlocks = new Vector<Integer>();        // Blocks per Epoch
-    private Vector<Double> epochFS = new Vector<Double>();            // Relative epoch file size
+    /* global counters */
+    private final LongAdder io_cnt = new LongAdder();       // global i/o operation counter
+    private final LongAdder inserts = new LongAdder();      // insert operations
+    private final LongAdder fetches = new LongAdder();      // fetch operations
+    private final LongAdder deletes = new LongAdder();      // delete operations
+    private final LongAdder splits = new LongAdder();       // block splits
+    private final LongAdder merges = new LongAdder();       // block merges
+    private final LongAdder bytes_read = new LongAdder();   // bytes read from the file
+    private final LongAdder bytes_written = new LongAdder();// bytes written to the file
+    private final LongAdder syscalls = new LongAdder();     // calls reaching the file
+    private final LongAdder bf_adjusts = new LongAdder();   // balance factor adjustments
+    private final LongAdder cache_hits = new LongAdder();   // lookups answered by the key cache
+    private final LongAdder cache_misses = new LongAdder(); // lookups that missed the key cache
+    private final LongAdder checkpoints = new LongAdder();  // checkpoints taken
+
+    /* distributions */
+    private final LatencyHistogram insertLatency = new LatencyHistogram();
+    private final LatencyHistogram fetchLatency = new LatencyHistogram();
+    private final LatencyHistogram multiFetchLatency = new LatencyHistogram();
+    private final LatencyHistogram deleteLatency = new LatencyHistogram();
+    private final LatencyHistogram splitLatency = new LatencyHistogram();
+    private final LatencyHistogram mergeLatency = new LatencyHistogram();
+    private final LatencyHistogram chainLength = new LatencyHistogram();
+
+    /* epoch history (ring buffer) */
+    private final int[] epochIO;        // I/O operations for each epoch
+    private final double[] epochAvgIO;  // I/O operations for each epoch (average)
+    private final long[] epochAccIO;    // I/O operations for each epoch (added)
+    private final int[] epochBlocks;    // Blocks per Epoch
+    private final double[] epochFS;     // Relative epoch file size
+    private final float[] epochBF;      // Balance factor for inserts at the end of each epoch
 
     private LinearHashConfiguration lin_conf;
 
     LinearHashPerfLog(LinearHashConfiguration lin_conf) {
         this.lin_conf = lin_conf;
+        int hist = lin_conf.getEpochHistorySize();
+        epochIO = new int[hist];
+        epochAvgIO = new double[hist];
+        epochAccIO = new long[hist];
+        epochBlocks = new int[hist];
+        epochFS = new double[hist];
+        epochBF = new float[hist];
         initBlockManagerCounters();
     }
 
@@ -44,7 +88,29 @@ class LinearHashPerfLog {
         System.out.println("\tEpoch ticks: " + tick_cnt);
         System.out.println("\tGlobal ticks: " + global_ticks);
         System.out.println("\tEpoch IO: " + epoch_io_cnt);
-        System.out.println("\tGlobal IO: " + io_cnt);
+        System.out.println("\tGlobal IO: " + io_cnt.sum());
+        System.out.println("\nI/O statistics:");
+        System.out.println("\tBytes read: " + bytes_read.sum());
+        System.out.println("\tBytes written: " + bytes_written.sum());
+        System.out.println("\tSyscalls: " + syscalls.sum());
+        System.out.println("\tSplits: " + splits.sum() + " Merges: " + merges.sum());
+        System.out.println("\tBalance factor adjustments: " + bf_adjusts.sum());
+        System.out.println("\tKey cache hits: " + cache_hits.sum() + " misses: " + cache_misses.sum());
+        System.out.println("\tCheckpoints: " + checkpoints.sum());
+        System.out.println("\nLatency statistics (ns):");
+        System.out.println("\tInserts: " + insertLatency.snapshot());
+        System.out.println("\tFetches: " + fetchLatency.snapshot());
+        System.out.println("\tDeletes: " + deleteLatency.snapshot());
+        System.out.println("\tOvf chain length: " + chainLength.snapshot());
+    }
+
+    /**
+     * Return the index of the first epoch still kept in the history
+     *
+     * @return the first retained epoch.
+     */
+    private int firstRetainedEpoch() {
+        return (Math.max(0, itr_cnt - epochFS.length));
     }
 
     /**
@@ -52,14 +118,16 @@ class LinearHashPerfLog {
      */
     void printAllEpochStatistics() {
         System.out.println("\nBlock manager printing stored statistics for: " + itr_cnt + " epochs");
-        for (int i = 0; i < epochFS.size(); i++) {
+        for (int i = firstRetainedEpoch(); i < itr_cnt; i++) {
+            int s = i % epochFS.length;
             // print data
             System.out.println("Epoch (" + (i + 1) + "): " +
-                    "\n\tEpoch I/O: " + epochIO.get(i) +
-                    "\n\tEpoch Acc. I/O: " + epochAccIO.get(i) +
-                    "\n\tEpoch Avg. I/O: " + epochAvgIO.get(i) +
-                    "\n\tEpoch Blocks (+ovf): " + epochBlocks.get(i) +
-                    "\n\tEpoch Rel. filesize: " + epochFS.get(i));
+                    "\n\tEpoch I/O: " + epochIO[s] +
+                    "\n\tEpoch Acc. I/O: " + epochAccIO[s] +
+                    "\n\tEpoch Avg. I/O: " + epochAvgIO[s] +
+                    "\n\tEpoch Blocks (+ovf): " + epochBlocks[s] +
+                    "\n\tEpoch Rel. filesize: " + epochFS[s] +
+                    "\n\tEpoch Balance factor: " + epochBF[s]);
         }
     }
 
@@ -74,10 +142,11 @@ class LinearHashPerfLog {
             throws FileNotFoundException, UnsupportedEncodingException {
         PrintWriter pf = new PrintWriter(fname, "UTF-8");
         // write to the file.
-        for (int i = 0; i < epochFS.size(); i++) {
-            pf.write(i + " " + epochIO.get(i) + " " +
-                    epochAccIO.get(i) + " " + epochAvgIO.get(i) + " " +
-                    epochBlocks.get(i) + " " + epochFS.get(i) + "\n");
+        for (int i = firstRetainedEpoch(); i < itr_cnt; i++) {
+            int s = i % epochFS.length;
+            pf.write(i + " " + epochIO[s] + " " +
+                    epochAccIO[s] + " " + epochAvgIO[s] + " " +
+                    epochBlocks[s] + " " + epochFS[s] + " " + epochBF[s] + "\n");
         }
         // close the file
         pf.close();
@@ -86,15 +155,16 @@ class LinearHashPerfLog {
 
     /**
      * Tick (for epoch statistics)
+     *
+     * @return true if we reached an epoch end, in which case {@link #endEpoch}
+     * has to be called.
      */
-    void tick(int poolSize, int ovf_blocks, double relFileSize) {
+    boolean tick() {
         // update counters
         global_ticks++;
         tick_cnt++;
-        // check if we reached an epoch end.
-        if (tick_cnt == lin_conf.getTickThresh()) {
-            endEpoch(poolSize, ovf_blocks, relFileSize);
-        }
+        // check if we reached an epoch end
+        return (tick_cnt >= lin_conf.getTickThresh());
     }
 
     /**
@@ -103,17 +173,19 @@ class LinearHashPerfLog {
      */
     private void initBlockManagerCounters() {
         itr_cnt = 0;
-        io_cnt = 0;
+        io_cnt.reset();
         epoch_io_cnt = 0;
         tick_cnt = 0;
         global_ticks = 0;
+        epoch_ops = 0;
+        epoch_ovf = 0;
     }
 
     /**
      * Increment single I/O
      */
     void incrementIO() {
-        io_cnt++;
+        io_cnt.increment();
     }
 
     /**
@@ -121,20 +193,363 @@ class LinearHashPerfLog {
      */
     void incrementBothIO() {
         incrementIO();
-        epoch_io_cnt++;
+        if (!lin_conf.isReadOnly()) {
+            epoch_io_cnt++;
+        }
+    }
+
+    /**
+     * Account for a read call reaching the file
+     *
+     * @param bytes the number of bytes read.
+     */
+    void recordRead(int bytes) {
+        syscalls.increment();
+        bytes_read.add(bytes);
+    }
+
+    /**
+     * Account for a write call reaching the file
+     *
+     * @param bytes the number of bytes written.
+     */
+    void recordWrite(int bytes) {
+        syscalls.increment();
+        bytes_written.add(bytes);
+    }
+
+    /**
+     * Account for any other call reaching the file (seek, length etc)
+     */
+    void recordSyscall() {
+        syscalls.increment();
+    }
+
+    /**
+     * Record an insert
+     *
+     * @param nanos the insert latency in nanoseconds.
+     */
+    void recordInsert(long nanos) {
+        inserts.increment();
+        insertLatency.record(nanos);
+    }
+
+    /**
+     * Record a fetch
+     *
+     * @param nanos the fetch latency in nanoseconds.
+     */
+    void recordFetch(long nanos) {
+        fetches.increment();
+        fetchLatency.record(nanos);
+    }
+
+    /**
+     * Record a multi-key fetch
+     *
+     * @param keys  the number of keys in the batch.
+     * @param nanos the latency of the whole batch in nanoseconds.
+     */
+    void recordMultiFetch(int keys, long nanos) {
+        fetches.add(keys);
+        multiFetchLatency.record(nanos);
+    }
+
+    /**
+     * Record a delete
+     *
+     * @param nanos the delete latency in nanoseconds.
+     */
+    void recordDelete(long nanos) {
+        deletes.increment();
+        deleteLatency.record(nanos);
+    }
+
+    /**
+     * Record a block split
+     *
+     * @param nanos the split duration in nanoseconds.
+     */
+    void recordSplit(long nanos) {
+        splits.increment();
+        splitLatency.record(nanos);
+    }
+
+    /**
+     * Record a block merge
+     *
+     * @param nanos the merge duration in nanoseconds.
+     */
+    void recordMerge(long nanos) {
+        merges.increment();
+        mergeLatency.record(nanos);
+    }
+
+    /**
+     * Record the number of overflow blocks an operation had to traverse
+     *
+     * @param ovf_hops overflow blocks traversed.
+     */
+    void recordChainLength(int ovf_hops) {
+        chainLength.record(ovf_hops);
+        if (!lin_conf.isReadOnly()) {
+            epoch_ops++;
+            epoch_ovf += ovf_hops;
+        }
+    }
+
+    /**
+     * Return the number of operations that traversed a chain in the current epoch
+     *
+     * @return the epoch operations.
+     */
+    int getEpochOperations() {
+        return (epoch_ops);
+    }
+
+    /**
+     * Return the average overflow blocks traversed per operation in the current epoch
+     *
+     * @return the average epoch chain length, zero if there were no operations.
+     */
+    double getEpochChainLength() {
+        return (epoch_ops == 0 ? 0 : (double) epoch_ovf / epoch_ops);
+    }
+
+    /**
+     * Record a change of the (adaptive) balance factors
+     */
+    void recordBalanceAdjustment() {
+        bf_adjusts.increment();
+    }
+
+    /**
+     * Record lookups answered by the key cache and lookups that missed it
+     *
+     * @param hits   lookups answered.
+     * @param misses lookups missed.
+     */
+    void recordCacheLookups(int hits, int misses) {
+        cache_hits.add(hits);
+        cache_misses.add(misses);
+    }
+
+    /**
+     * Return the number of lookups answered by the key cache
+     *
+     * @return the key cache hits.
+     */
+    long getCacheHits() {
+        return (cache_hits.sum());
+    }
+
+    /**
+     * Return the number of lookups that missed the key cache
+     *
+     * @return the key cache misses.
+     */
+    long getCacheMisses() {
+        return (cache_misses.sum());
+    }
+
+    /**
+     * Record a checkpoint
+     */
+    void recordCheckpoint() {
+        checkpoints.increment();
+    }
+
+    /**
+     * Return the number of checkpoints taken
+     *
+     * @return the number of checkpoints.
+     */
+    long getCheckpoints() {
+        return (checkpoints.sum());
+    }
+
+    /**
+     * Return the number of balance factor adjustments
+     *
+     * @return the number of balance factor adjustments.
+     */
+    long getBalanceAdjustments() {
+        return (bf_adjusts.sum());
+    }
+
+    /**
+     * Reset all histograms
+     */
+    void resetHistograms() {
+        insertLatency.reset();
+        fetchLatency.reset();
+        multiFetchLatency.reset();
+        deleteLatency.reset();
+        splitLatency.reset();
+        mergeLatency.reset();
+        chainLength.reset();
+    }
+
+    /**
+     * Return the global i/o counter
+     *
+     * @return the global i/o counter.
+     */
+    long getIOCount() {
+        return (io_cnt.sum());
+    }
+
+    /**
+     * Return the number of inserts
+     *
+     * @return the number of inserts.
+     */
+    long getInserts() {
+        return (inserts.sum());
+    }
+
+    /**
+     * Return the number of fetches
+     *
+     * @return the number of fetches.
+     */
+    long getFetches() {
+        return (fetches.sum());
+    }
+
+    /**
+     * Return the number of deletes
+     *
+     * @return the number of deletes.
+     */
+    long getDeletes() {
+        return (deletes.sum());
+    }
+
+    /**
+     * Return the number of splits
+     *
+     * @return the number of splits.
+     */
+    long getSplits() {
+        return (splits.sum());
+    }
+
+    /**
+     * Return the number of merges
+     *
+     * @return the number of merges.
+     */
+    long getMerges() {
+        return (merges.sum());
+    }
+
+    /**
+     * Return the bytes read from the file
+     *
+     * @return the bytes read from the file.
+     */
+    long getBytesRead() {
+        return (bytes_read.sum());
+    }
+
+    /**
+     * Return the bytes written to the file
+     *
+     * @return the bytes written to the file.
+     */
+    long getBytesWritten() {
+        return (bytes_written.sum());
+    }
+
+    /**
+     * Return the calls that reached the file
+     *
+     * @return the calls that reached the file.
+     */
+    long getSyscalls() {
+        return (syscalls.sum());
+    }
+
+    /**
+     * Return the insert latency histogram
+     *
+     * @return the insert latency histogram.
+     */
+    LatencyHistogram getInsertLatency() {
+        return (insertLatency);
+    }
+
+    /**
+     * Return the fetch latency histogram
+     *
+     * @return the fetch latency histogram.
+     */
+    LatencyHistogram getFetchLatency() {
+        return (fetchLatency);
+    }
+
+    /**
+     * Return the multi-key fetch (batch) latency histogram
+     *
+     * @return the multi-key fetch (batch) latency histogram.
+     */
+    LatencyHistogram getMultiFetchLatency() {
+        return (multiFetchLatency);
+    }
+
+    /**
+     * Return the delete latency histogram
+     *
+     * @return the delete latency histogram.
+     */
+    LatencyHistogram getDeleteLatency() {
+        return (deleteLatency);
+    }
+
+    /**
+     * Return the split latency histogram
+     *
+     * @return the split latency histogram.
+     */
+    LatencyHistogram getSplitLatency() {
+        return (splitLatency);
+    }
+
+    /**
+     * Return the merge latency histogram
+     *
+     * @return the merge latency histogram.
+     */
+    LatencyHistogram getMergeLatency() {
+        return (mergeLatency);
+    }
+
+    /**
+     * Return the overflow chain length histogram
+     *
+     * @return the overflow chain length histogram.
+     */
+    LatencyHistogram getChainLength() {
+        return (chainLength);
     }
 
     /**
      * Reset the counter epoch, update epoch vectors as well.
      */
-    private void endEpoch(int poolSize, int ovf_blocks, double relFileSize) {
-        epochFS.add(relFileSize);
-        epochIO.add(epoch_io_cnt);
-        epochBlocks.add(poolSize + ovf_blocks);
-        epochAccIO.add(io_cnt);
+    void endEpoch(int poolSize, int ovf_blocks, double relFileSize, float bf_insert) {
+        int s = itr_cnt % epochFS.length;
+        epochFS[s] = relFileSize;
+        epochBF[s] = bf_insert;
+        epochIO[s] = epoch_io_cnt;
+        epochBlocks[s] = poolSize + ovf_blocks;
+        epochAccIO[s] = io_cnt.sum();
         itr_cnt++;
-        epochAvgIO.add((double) (epoch_io_cnt) / (double) (lin_conf.getTickThresh()));
+        epochAvgIO[s] = (double) (epoch_io_cnt) / (double) (lin_conf.getTickThresh());
         epoch_io_cnt = 0;
         tick_cnt = 0;
+        epoch_ops = 0;
+        epoch_ovf = 0;
     }
 }
@@ -0,0 +1,267 @@
+package lhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Offline rebuild of a table into one with a different layout (keys per block
+ * or page size), initial pool or balance factors; anything not set is kept as
+ * in the source table, lazy deletes and the change log included.
+ *
+ * The source is opened read only and scanned in place, while the new table is
+ * written next to the destination and renamed over it once complete, so the
+ * destination (which can be the source itself) is replaced atomically.
+ * Segmented tables are rebuilt into a single file, and the segments of the
+ * table replaced are removed. A table rebuilt in place keeps its change log,
+ * which goes on from the same sequence number, as the keys are the same; a
+ * table with a change log cannot be replaced by the rebuild of another one.
+ *
+ * The rebuild runs in two passes over the source, see {@link BucketLoader}: the
+ * first one counts the keys of each new bucket, which fixes the layout of the
+ * new file, and the second one fills partitions of (contiguous) buckets, each
+ * holding at most a given number of keys in memory, and writes their blocks in
+ * place. A partition only scans the source buckets whose keys can map into it
+ * (the buckets of both tables fold onto the greatest common divisor of their
+ * visible pools), which, for tables grown from the same initial pool, is a
+ * share of the source as small as the share of the new table it fills.
+ * Memory use is bounded by the number of threads times the partition size,
+ * plus a counter per bucket.
+ *
+ * <pre>
+ * java -cp linhash.jar lhash.LinearHashRebuild src dst [--page-size n] [--keys-per-block n]
+ *         [--initial-pool n] [--balance-factors insert delete] [--threads n] [--max-keys n]
+ * </pre>
+ */
+public class LinearHashRebuild {
+
+    private final String src_fname; // table to rebuild
+
+    /* new settings, zero keeps the ones of the source */
+    private int keysPerBlock;
+    private int pageSize;
+    private int init_pool;
+    private float insert_bf;
+    private float delete_bf;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int maxKeys = 4 * 1024 * 1024;  // keys held in memory per partition
+
+    /**
+     * Create a rebuild of the given table
+     *
+     * @param src_fname file of the table to rebuild.
+     */
+    public LinearHashRebuild(String src_fname) {
+        this.src_fname = src_fname;
+    }
+
+    /**
+     * Set the keys per block of the new table (packed layout)
+     *
+     * @param keysPerBlock keys per stored block.
+     * @return this rebuild.
+     */
+    public LinearHashRebuild keysPerBlock(int keysPerBlock) {
+        this.keysPerBlock = keysPerBlock;
+        return (this);
+    }
+
+    /**
+     * Use the page aligned layout for the new table
+     *
+     * @param pageSize page size in bytes, a power of two.
+     * @return this rebuild.
+     */
+    public LinearHashRebuild pageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return (this);
+    }
+
+    /**
+     * Set the initial (visible) pool size of the new table
+     *
+     * @param init_pool initial (visible) pool size.
+     * @return this rebuild.
+     */
+    public LinearHashRebuild initialPool(int init_pool) {
+        this.init_pool = init_pool;
+        return (this);
+    }
+
+    /**
+     * Set the balance factors of the new table
+     *
+     * @param insert_bf inserts load factor.
+     * @param delete_bf deletes load factor.
+     * @return this rebuild.
+     */
+    public LinearHashRebuild balanceFactors(float insert_bf, float delete_bf) {
+        this.insert_bf = insert_bf;
+        this.delete_bf = delete_bf;
+        return (this);
+    }
+
+    /**
+     * Set the number of threads for the passes over the source
+     *
+     * @param threads number of threads.
+     * @return this rebuild.
+     */
+    public LinearHashRebuild threads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        this.threads = threads;
+        return (this);
+    }
+
+    /**
+     * Set the largest number of keys a partition holds in memory
+     *
+     * @param maxKeys keys per partition.
+     * @return this rebuild.
+     */
+    public LinearHashRebuild maxKeysInMemory(int maxKeys) {
+        if (maxKeys < 1) {
+            throw new IllegalArgumentException("Partitions need room for at least one key");
+        }
+        this.maxKeys = maxKeys;
+        return (this);
+    }
+
+    /**
+     * Prepare the builder of the new table, starting from the settings of the source
+     *
+     * @param fname file of the new table.
+     * @param sc    configuration of the source.
+     * @return the builder.
+     */
+    private LinearHash.Builder targetBuilder(String fname, LinearHashConfiguration sc) {
+        LinearHash.Builder b = BucketLoader.targetBuilder(fname, sc);
+        if (pageSize > 0) {
+            b.pageSize(pageSize);
+        } else if (keysPerBlock > 0) {
+            b.keysPerBlock(keysPerBlock);
+        }
+        if (init_pool > 0) {
+            b.initialPool(init_pool);
+        }
+        if (insert_bf > 0 || delete_bf > 0) {
+            b.balanceFactors(insert_bf > 0 ? insert_bf : sc.getBalanceFactorForInserts(),
+                    delete_bf > 0 ? delete_bf : sc.getBalanceFactorForDeletes());
+        }
+        return (b);
+    }
+
+    /**
+     * Rebuild the table into the given file, replacing it atomically
+     *
+     * @param dst_fname file of the new table (can be the source file).
+     * @return the number of keys in the new table.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public int run(String dst_fname) throws IOException {
+        File tmp = new File(dst_fname + ".rebuild");
+        boolean in_place = new File(dst_fname).getCanonicalFile().equals(new File(src_fname).getCanonicalFile());
+        if (!in_place && ChangeLog.file(dst_fname).exists()) {
+            throw new IOException(dst_fname + " has a change log, which cannot go on over other keys; " +
+                    "rebuild it in place or into another file");
+        }
+        LinearHash src = new LinearHash.Builder(src_fname).readOnly().build();
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        int n;
+        try {
+            LinearHash dst = targetBuilder(tmp.getPath(), src.getConfiguration()).build();
+            BlockManager src_mgr = src.getBlockManager();
+            // the buckets of the source fold onto its visible pool: bucket b
+            // holds the keys of group b modulo the visible pool
+            final int m = src.getVisiblePool(),
+                    src_pool = src_mgr.getPoolSize();
+            BucketLoader.KeySource keys = (lo, hi, action) -> {
+                for (int base = 0; base + lo < src_pool; base += m) {
+                    src_mgr.forEachKey(base + lo, base + hi, k -> {
+                        if (k != BlockManager.TOMBSTONE) {
+                            action.accept(k);
+                        }
+                    });
+                }
+            };
+            n = src_mgr.getKeyCount();
+            new BucketLoader(exec, threads, maxKeys)
+                    .load(dst, keys, m, n, src.contains(BlockManager.TOMBSTONE));
+            dst.commitFile();
+        } catch (IOException | RuntimeException e) {
+            if (tmp.exists() && !tmp.delete()) {
+                tmp.deleteOnExit();
+            }
+            throw e;
+        } finally {
+            // the new table has no changes of its own
+            Files.deleteIfExists(ChangeLog.file(tmp.getPath()).toPath());
+            exec.shutdownNow();
+            src.commitFile();
+        }
+        Files.move(tmp.toPath(), new File(dst_fname).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // the new table is a single file, the segments of the one it replaced are left over
+        SegmentedFile.removeSegments(dst_fname);
+        return (n);
+    }
+
+    /**
+     * Print the usage and exit
+     */
+    private static void usage() {
+        System.err.println("Usage: LinearHashRebuild src dst [--page-size n] [--keys-per-block n]\n" +
+                "        [--initial-pool n] [--balance-factors insert delete] [--threads n] [--max-keys n]");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            usage();
+        }
+        LinearHashRebuild rb = new LinearHashRebuild(args[0]);
+        try {
+            for (int i = 2; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--page-size":
+                        rb.pageSize(Integer.parseInt(args[++i]));
+                        break;
+                    case "--keys-per-block":
+                        rb.keysPerBlock(Integer.parseInt(args[++i]));
+                        break;
+                    case "--initial-pool":
+                        rb.initialPool(Integer.parseInt(args[++i]));
+                        break;
+                    case "--balance-factors":
+                        rb.balanceFactors(Float.parseFloat(args[++i]), Float.parseFloat(args[++i]));
+                        break;
+                    case "--threads":
+                        rb.threads(Integer.parseInt(args[++i]));
+                        break;
+                    case "--max-keys":
+                        rb.maxKeysInMemory(Integer.parseInt(args[++i]));
+                        break;
+                    default:
+                        usage();
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            usage();
+        }
+        try {
+            long start = System.nanoTime();
+            int n = rb.run(args[1]);
+            System.out.println("Rebuilt " + n + " keys into " + args[1] + " in " +
+                    (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
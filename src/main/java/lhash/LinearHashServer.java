@@ -0,0 +1,498 @@
+package lhash;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Serves a table over TCP, so that several processes can share it; see
+ * {@link LinearHashClient} for the client side.
+ *
+ * All connections are handled by a single thread over a selector, which is
+ * also the only thread using the table (tables are single writer). Requests
+ * can be pipelined: a client may send any number of them without waiting,
+ * and the responses come back in the same order. The lookups among the
+ * requests read at once from a connection (single or multi-key) are served
+ * by a single multi-key fetch, so that every block chain is read once.
+ *
+ * Every request and response is a frame: its length (the bytes after the
+ * length itself) as an int, followed by a byte and a payload; ints are
+ * big endian. The byte of a request is the operation:
+ *
+ * <pre>
+ * CONTAINS  key            -&gt; found (byte)
+ * INSERT    key            -&gt; inserted (byte)
+ * DELETE    key            -&gt; deleted (byte)
+ * MULTI_GET n, n keys      -&gt; found, a bit per key ((n + 7) / 8 bytes, lowest bit first)
+ * WRITE     n, n x (op byte: 1 insert, 0 delete, key) -&gt; keys changed (int), see {@link WriteBatch}
+ * SIZE                     -&gt; keys stored (int)
+ * </pre>
+ *
+ * and the byte of a response its status: OK followed by the result, or ERROR
+ * followed by a (UTF-8) message.
+ */
+public class LinearHashServer implements Closeable {
+
+    /* operations */
+    static final byte OP_CONTAINS = 1;
+    static final byte OP_INSERT = 2;
+    static final byte OP_DELETE = 3;
+    static final byte OP_MULTI_GET = 4;
+    static final byte OP_WRITE = 5;
+    static final byte OP_SIZE = 6;
+    /* response status */
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+    /* largest frame accepted, in bytes */
+    static final int MAX_FRAME = 64 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;      // initial connection buffers
+    private static final int MAX_PENDING = 4 * 1024 * 1024; // responses held before reading is paused
+
+    private final LinearHash table;             // the table served
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private Thread loop;                        // the thread serving the connections
+    private volatile boolean running;
+
+    /* lookups of the requests read at once, served together */
+    private int run_frames[] = new int[64];     // position of each lookup frame in the buffer
+    private int run_cnt = 0;                    // lookup frames pending
+    private int run_keys[] = new int[256];      // their keys, in order
+    private boolean run_found[] = new boolean[256];
+    private int run_len = 0;                    // keys pending
+
+    /**
+     * Bind a server for a table; connections are only accepted once started
+     *
+     * @param table   the table to serve; it is not committed when the server is closed.
+     * @param address address to listen on (port zero for any free port).
+     * @throws IOException is thrown when the address cannot be bound.
+     */
+    public LinearHashServer(LinearHash table, InetSocketAddress address) throws IOException {
+        this.table = table;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Return the address the server listens on
+     *
+     * @return the bound address.
+     * @throws IOException is thrown when the address cannot be read.
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress());
+    }
+
+    /**
+     * Start serving connections, in a thread of its own
+     *
+     * @return this server.
+     */
+    public LinearHashServer start() {
+        running = true;
+        loop = new Thread(this::serve, "lhash-server");
+        loop.start();
+        return (this);
+    }
+
+    /**
+     * Stop serving and close every connection; the table is left open.
+     *
+     * @throws IOException is thrown when the server fails to close.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        if (loop != null) {
+            try {
+                loop.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    /**
+     * Serve the connections until the server is closed; with checkpoints
+     * enabled, the table is checkpointed between requests as well, so that
+     * an idle table does not wait for the next request to take one.
+     */
+    private void serve() {
+        long ckpt_ms = table.getConfiguration().getCheckpointInterval();
+        try {
+            while (running) {
+                selector.select(ckpt_ms);
+                if (ckpt_ms > 0) {
+                    try {
+                        table.checkpointIfIdle();
+                    } catch (IOException e) {
+                        // the next checkpoint tries again
+                        e.printStackTrace();
+                    }
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection c = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            c.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            c.flush();
+                        }
+                    } catch (IOException e) {
+                        // the connection failed (or sent a malformed frame), the others go on
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Accept a pending connection
+     *
+     * @throws IOException is thrown when the connection cannot be set up.
+     */
+    private void accept() throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) {
+            return;
+        }
+        ch.configureBlocking(false);
+        ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(ch, key));
+    }
+
+    /**
+     * A client connection, with the requests read and the responses not yet
+     * written
+     */
+    private final class Connection {
+        private final SocketChannel ch;
+        private final SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);   // requests read, not yet served
+        private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);  // responses not yet written
+
+        Connection(SocketChannel ch, SelectionKey key) {
+            this.ch = ch;
+            this.key = key;
+        }
+
+        /**
+         * Read what the client sent and serve the complete requests
+         *
+         * @throws IOException is thrown when the connection fails or is closed.
+         */
+        void read() throws IOException {
+            if (ch.read(in) < 0) {
+                throw new IOException("Connection closed");
+            }
+            in.flip();
+            serveFrames();
+            in.compact();
+            flush();
+        }
+
+        /**
+         * Serve the complete frames in the input buffer, in order; runs of
+         * lookups are served together, before the next update.
+         *
+         * @throws IOException is thrown on a malformed frame.
+         */
+        private void serveFrames() throws IOException {
+            while (in.remaining() >= 4) {
+                int pos = in.position(),
+                        len = in.getInt(pos);
+                if (len < 1 || len > MAX_FRAME) {
+                    throw new IOException("Bad frame length: " + len);
+                }
+                if (in.remaining() < 4 + len) {
+                    // make room for the whole frame, once the lookups (read from this buffer) are served
+                    if (in.capacity() < 4 + len) {
+                        serveLookups();
+                        ByteBuffer b = ByteBuffer.allocate(4 + len);
+                        b.put(in);
+                        in = b;
+                        in.flip();
+                    }
+                    break;
+                }
+                byte op = in.get(pos + 4);
+                if (op == OP_CONTAINS && len == 5 || op == OP_MULTI_GET && len >= 5 &&
+                        (len - 5) % 4 == 0 && in.getInt(pos + 5) == (len - 5) / 4) {
+                    addLookup(pos);
+                } else {
+                    serveLookups();
+                    serveUpdate(op, pos + 5, len - 1);
+                }
+                in.position(pos + 4 + len);
+            }
+            serveLookups();
+        }
+
+        /**
+         * Add a lookup frame to the pending run
+         *
+         * @param pos position of the frame.
+         */
+        private void addLookup(int pos) {
+            int n = in.get(pos + 4) == OP_CONTAINS ? 1 : in.getInt(pos + 5),
+                    off = in.get(pos + 4) == OP_CONTAINS ? pos + 5 : pos + 9;
+            if (run_cnt == run_frames.length) {
+                run_frames = Arrays.copyOf(run_frames, 2 * run_cnt);
+            }
+            run_frames[run_cnt++] = pos;
+            if (run_len + n > run_keys.length) {
+                run_keys = Arrays.copyOf(run_keys, Math.max(2 * run_keys.length, run_len + n));
+                run_found = new boolean[run_keys.length];
+            }
+            for (int i = 0; i < n; i++, off += 4) {
+                run_keys[run_len++] = in.getInt(off);
+            }
+        }
+
+        /**
+         * Serve the pending lookups with a single multi-key fetch and respond
+         * to each of their frames
+         */
+        private void serveLookups() {
+            if (run_cnt == 0) {
+                return;
+            }
+            String error = null;
+            try {
+                table.fetchKeys(run_len == run_keys.length ? run_keys : Arrays.copyOf(run_keys, run_len),
+                        run_found);
+            } catch (IOException | RuntimeException e) {
+                error = String.valueOf(e.getMessage());
+            }
+            for (int f = 0, k = 0; f < run_cnt; f++) {
+                int pos = run_frames[f],
+                        n = in.get(pos + 4) == OP_CONTAINS ? 1 : in.getInt(pos + 5);
+                if (error != null) {
+                    respondError(error);
+                } else if (in.get(pos + 4) == OP_CONTAINS) {
+                    respond(1).put(run_found[k] ? (byte) 1 : 0);
+                } else {
+                    ByteBuffer b = respond((n + 7) / 8);
+                    for (int i = 0; i < n; i += 8) {
+                        int bits = 0;
+                        for (int j = 0; j < 8 && i + j < n; j++) {
+                            bits |= run_found[k + i + j] ? 1 << j : 0;
+                        }
+                        b.put((byte) bits);
+                    }
+                }
+                k += n;
+            }
+            run_cnt = 0;
+            run_len = 0;
+        }
+
+        /**
+         * Serve any request other than a lookup
+         *
+         * @param op  the operation.
+         * @param off position of the payload.
+         * @param len length of the payload.
+         */
+        private void serveUpdate(byte op, int off, int len) {
+            try {
+                switch (op) {
+                    case OP_INSERT:
+                        checkLength(len == 4);
+                        respond(1).put(table.insertKey(in.getInt(off)) ? (byte) 1 : 0);
+                        break;
+                    case OP_DELETE:
+                        checkLength(len == 4);
+                        respond(1).put(table.deleteKey(in.getInt(off)) ? (byte) 1 : 0);
+                        break;
+                    case OP_WRITE: {
+                        checkLength(len >= 4 && (len - 4) % 5 == 0 && in.getInt(off) == (len - 4) / 5);
+                        int n = in.getInt(off);
+                        WriteBatch wb = new WriteBatch(n);
+                        for (int i = 0, p = off + 4; i < n; i++, p += 5) {
+                            if (in.get(p) != 0) {
+                                wb.insertKey(in.getInt(p + 1));
+                            } else {
+                                wb.deleteKey(in.getInt(p + 1));
+                            }
+                        }
+                        respond(4).putInt(table.write(wb));
+                        break;
+                    }
+                    case OP_SIZE:
+                        checkLength(len == 0);
+                        respond(4).putInt(table.getBlockManager().getKeyCount());
+                        break;
+                    default:
+                        throw new IllegalArgumentException(
+                                (op == OP_CONTAINS || op == OP_MULTI_GET ? "Malformed request" : "Unknown operation") +
+                                        " " + op);
+                }
+            } catch (IOException | RuntimeException e) {
+                respondError(String.valueOf(e.getMessage()));
+            }
+        }
+
+        /**
+         * Check the payload length of a request
+         *
+         * @param ok true if the length matches the operation.
+         */
+        private void checkLength(boolean ok) {
+            if (!ok) {
+                throw new IllegalArgumentException("Malformed request");
+            }
+        }
+
+        /**
+         * Start a successful response
+         *
+         * @param len length of the result.
+         * @return the output buffer, for the result to be put in.
+         */
+        private ByteBuffer respond(int len) {
+            ByteBuffer b = reserve(5 + len);
+            b.putInt(1 + len).put(STATUS_OK);
+            return (b);
+        }
+
+        /**
+         * Add an error response
+         *
+         * @param msg the error message.
+         */
+        private void respondError(String msg) {
+            byte m[] = msg.getBytes(StandardCharsets.UTF_8);
+            reserve(5 + m.length).putInt(1 + m.length).put(STATUS_ERROR).put(m);
+        }
+
+        /**
+         * Make room for a response at the end of the output buffer
+         *
+         * @param len length of the response.
+         * @return the output buffer, ready for the response to be put in.
+         */
+        private ByteBuffer reserve(int len) {
+            if (out.remaining() < len) {
+                ByteBuffer b = ByteBuffer.allocate(Math.max(2 * out.capacity(), out.position() + len));
+                out.flip();
+                b.put(out);
+                out = b;
+            }
+            return (out);
+        }
+
+        /**
+         * Write out the pending responses; reading is paused while too many
+         * are pending.
+         *
+         * @throws IOException is thrown when the connection fails.
+         */
+        void flush() throws IOException {
+            out.flip();
+            if (out.hasRemaining()) {
+                ch.write(out);
+            }
+            int pending = out.remaining();
+            out.compact();
+            key.interestOps((pending > MAX_PENDING ? 0 : SelectionKey.OP_READ) |
+                    (pending > 0 ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    /**
+     * Print the usage and exit
+     */
+    private static void usage() {
+        System.err.println("Usage: LinearHashServer fname [--host h] [--port n] [--read-only]\n" +
+                "        [--change-log] [--checkpoint-interval ms]");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            usage();
+        }
+        LinearHash.Builder tb = new LinearHash.Builder(args[0]).overrideFile(false);
+        String host = "localhost";
+        int port = 7410;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--host":
+                        host = args[++i];
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--read-only":
+                        tb.readOnly();
+                        break;
+                    case "--change-log":
+                        tb.changeLog();
+                        break;
+                    case "--checkpoint-interval":
+                        tb.checkpointInterval(Long.parseLong(args[++i]));
+                        break;
+                    default:
+                        usage();
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            usage();
+        }
+        try {
+            LinearHash table = tb.build();
+            LinearHashServer srv = new LinearHashServer(table, new InetSocketAddress(host, port)).start();
+            // stop serving and commit the table on exit
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    srv.close();
+                    table.commitFile();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+            System.out.println("Serving " + args[0] + " on " + srv.getAddress());
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package lhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Intersection, union and difference of the keys of two tables, written to a
+ * new table; the new table takes the settings of the first one, lazy deletes
+ * and the change log included (its log starts with its keys when it is next
+ * opened). A destination with a change log is not replaced, as its log could
+ * not go on.
+ *
+ * Both tables are opened read only and scanned bucket by bucket, rather than
+ * looking up the keys of one in the other. A bucket holds keys congruent to
+ * its number modulo the visible pool of its table, so, with m the greatest
+ * common divisor of both visible pools, the buckets of either table fold onto
+ * m groups: bucket b holds keys of group b modulo m, and a key of group g can
+ * only be stored in buckets of group g. Tables grown from the same initial
+ * pool fold exactly this way onto the smaller visible pool.
+ *
+ * The groups are spread in contiguous ranges over a number of threads; each
+ * thread reads the buckets of its range, runs of contiguous buckets, from
+ * both tables, and merges their keys. The result is not kept in memory:
+ * it is counted first, then loaded into the new table in two more passes
+ * over the groups, holding at most a given number of keys per thread, see
+ * {@link BucketLoader}. The new table is placed next to the destination and
+ * renamed over it once complete.
+ *
+ * <pre>
+ * java -cp linhash.jar lhash.LinearHashSetOps intersect|union|difference a b dst [--threads n]
+ *         [--max-keys n]
+ * </pre>
+ */
+public class LinearHashSetOps {
+
+    /**
+     * The set operations
+     */
+    public enum Op {
+        /* keys in both tables */
+        INTERSECT,
+        /* keys in either table */
+        UNION,
+        /* keys in the first table only */
+        DIFFERENCE
+    }
+
+    private final String a_fname;   // first table
+    private final String b_fname;   // second table
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int maxKeys = 4 * 1024 * 1024;  // keys held in memory per partition
+
+    /**
+     * Create the set operations between two tables
+     *
+     * @param a_fname file of the first table.
+     * @param b_fname file of the second table.
+     */
+    public LinearHashSetOps(String a_fname, String b_fname) {
+        this.a_fname = a_fname;
+        this.b_fname = b_fname;
+    }
+
+    /**
+     * Set the number of threads scanning the tables
+     *
+     * @param threads number of threads.
+     * @return this instance.
+     */
+    public LinearHashSetOps threads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        this.threads = threads;
+        return (this);
+    }
+
+    /**
+     * Set the largest number of keys a partition of the new table holds in memory
+     *
+     * @param maxKeys keys per partition.
+     * @return this instance.
+     */
+    public LinearHashSetOps maxKeysInMemory(int maxKeys) {
+        if (maxKeys < 1) {
+            throw new IllegalArgumentException("Partitions need room for at least one key");
+        }
+        this.maxKeys = maxKeys;
+        return (this);
+    }
+
+    /**
+     * Write the keys stored in both tables to a new table
+     *
+     * @param dst_fname file of the new table.
+     * @return the number of keys in the new table.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public int intersect(String dst_fname) throws IOException {
+        return (run(Op.INTERSECT, dst_fname));
+    }
+
+    /**
+     * Write the keys stored in either table to a new table
+     *
+     * @param dst_fname file of the new table.
+     * @return the number of keys in the new table.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public int union(String dst_fname) throws IOException {
+        return (run(Op.UNION, dst_fname));
+    }
+
+    /**
+     * Write the keys stored in the first table but not in the second to a new table
+     *
+     * @param dst_fname file of the new table.
+     * @return the number of keys in the new table.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public int difference(String dst_fname) throws IOException {
+        return (run(Op.DIFFERENCE, dst_fname));
+    }
+
+    /**
+     * Apply a set operation, replacing the destination atomically
+     *
+     * @param op        the operation.
+     * @param dst_fname file of the new table (can be one of the two tables).
+     * @return the number of keys in the new table.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public int run(Op op, String dst_fname) throws IOException {
+        File tmp = new File(dst_fname + ".setop");
+        if (ChangeLog.file(dst_fname).exists()) {
+            throw new IOException(dst_fname + " has a change log, which cannot go on over other keys; " +
+                    "write the result to another file");
+        }
+        LinearHash a = new LinearHash.Builder(a_fname).readOnly().build(),
+                b = null;
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        int n;
+        try {
+            b = new LinearHash.Builder(b_fname).readOnly().build();
+            BlockManager a_mgr = a.getBlockManager(),
+                    b_mgr = b.getBlockManager();
+            final int m = BucketLoader.gcd(a.getVisiblePool(), b.getVisiblePool());
+            BucketLoader.KeySource keys = (lo, hi, action) -> {
+                for (int k : merge(op, scan(a_mgr, m, lo, hi), scan(b_mgr, m, lo, hi))) {
+                    action.accept(k);
+                }
+            };
+            BucketLoader loader = new BucketLoader(exec, threads, maxKeys);
+            // the smallest key is left out of the scans, as tables with lazy
+            // deletes keep it in their header rather than in its bucket
+            boolean min_key = keep(op, a.contains(BlockManager.TOMBSTONE), b.contains(BlockManager.TOMBSTONE));
+            long total = loader.count(keys, m) + (min_key ? 1 : 0);
+            if (total > Integer.MAX_VALUE) {
+                throw new IOException("Result too large: " + total + " keys");
+            }
+            n = (int) total;
+
+            LinearHash dst = BucketLoader.targetBuilder(tmp.getPath(), a.getConfiguration()).build();
+            loader.load(dst, keys, m, n, min_key);
+            dst.commitFile();
+        } catch (IOException | RuntimeException e) {
+            if (tmp.exists() && !tmp.delete()) {
+                tmp.deleteOnExit();
+            }
+            throw e;
+        } finally {
+            // the keys loaded are not changes; a log is started on the next open
+            Files.deleteIfExists(ChangeLog.file(tmp.getPath()).toPath());
+            exec.shutdownNow();
+            a.commitFile();
+            if (b != null) {
+                b.commitFile();
+            }
+        }
+        Files.move(tmp.toPath(), new File(dst_fname).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // the new table is a single file, the segments of the one it replaced are left over
+        SegmentedFile.removeSegments(dst_fname);
+        return (n);
+    }
+
+    /**
+     * Read the keys of a range of groups, sorted; the buckets of the range
+     * are read in runs of contiguous buckets, in file order.
+     *
+     * @param mgr the block manager of a (read only) table.
+     * @param m   the number of groups.
+     * @param lo  first group of the range.
+     * @param hi  group after the last one of the range.
+     * @return the keys, the smallest key left out.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private static int[] scan(BlockManager mgr, int m, int lo, int hi) throws IOException {
+        int pool = mgr.getPoolSize();
+        int keys[][] = {new int[(int) Math.min(Integer.MAX_VALUE - 8,
+                (long) mgr.getKeyCount() * (hi - lo) / m + 16)]};
+        int n[] = new int[1];
+        for (int base = 0; base + lo < pool; base += m) {
+            mgr.forEachKey(base + lo, base + hi, k -> {
+                if (k == BlockManager.TOMBSTONE) {
+                    return;
+                }
+                if (n[0] == keys[0].length) {
+                    keys[0] = Arrays.copyOf(keys[0], 2 * n[0]);
+                }
+                keys[0][n[0]++] = k;
+            });
+        }
+        int res[] = Arrays.copyOf(keys[0], n[0]);
+        Arrays.sort(res);
+        return (res);
+    }
+
+    /**
+     * Merge two sorted arrays of distinct keys
+     *
+     * @param op the operation.
+     * @param a  keys of the first table.
+     * @param b  keys of the second table.
+     * @return the keys kept.
+     */
+    private static int[] merge(Op op, int[] a, int[] b) {
+        int res[] = new int[op == Op.UNION ? a.length + b.length : a.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            boolean in_a, in_b;
+            int k;
+            if (j == b.length || i < a.length && a[i] < b[j]) {
+                k = a[i++];
+                in_a = true;
+                in_b = false;
+            } else if (i == a.length || b[j] < a[i]) {
+                k = b[j++];
+                in_a = false;
+                in_b = true;
+            } else {
+                k = a[i++];
+                j++;
+                in_a = in_b = true;
+            }
+            if (keep(op, in_a, in_b)) {
+                res[n++] = k;
+            }
+        }
+        return (n == res.length ? res : Arrays.copyOf(res, n));
+    }
+
+    /**
+     * Check if a key belongs to the result of an operation
+     *
+     * @param op   the operation.
+     * @param in_a true if the first table stores the key.
+     * @param in_b true if the second table stores the key.
+     * @return true if the key is kept.
+     */
+    private static boolean keep(Op op, boolean in_a, boolean in_b) {
+        switch (op) {
+            case INTERSECT:
+                return (in_a && in_b);
+            case UNION:
+                return (in_a || in_b);
+            default:
+                return (in_a && !in_b);
+        }
+    }
+
+    /**
+     * Print the usage and exit
+     */
+    private static void usage() {
+        System.err.println("Usage: LinearHashSetOps intersect|union|difference a b dst [--threads n]\n" +
+                "        [--max-keys n]");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            usage();
+        }
+        Op op = null;
+        LinearHashSetOps so = new LinearHashSetOps(args[1], args[2]);
+        try {
+            op = Op.valueOf(args[0].toUpperCase(Locale.ROOT));
+            for (int i = 4; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads":
+                        so.threads(Integer.parseInt(args[++i]));
+                        break;
+                    case "--max-keys":
+                        so.maxKeysInMemory(Integer.parseInt(args[++i]));
+                        break;
+                    default:
+                        usage();
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            usage();
+        }
+        try {
+            long start = System.nanoTime();
+            int n = so.run(op, args[3]);
+            System.out.println("Wrote " + n + " keys into " + args[3] + " in " +
+                    (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package lhash;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Compact, configuration independent snapshot format of the keys of a table;
+ * see {@link LinearHash#exportTo(OutputStream)} and
+ * {@link LinearHash.Builder#importFrom(InputStream)}.
+ *
+ * Layout (integers are big endian):
+ * <pre>
+ *  4 (magic) + 4 (key count) +
+ *  keys, in ascending order, each as the unsigned varint of its distance to
+ *      the previous key (the first one from {@link Integer#MIN_VALUE}) +
+ *  4 (CRC32 of everything before it)
+ * </pre>
+ * Dense key sets take a byte or two per key, against four (plus the slack of
+ * the blocks) in the block file.
+ */
+class LinearHashSnapshot {
+
+    static final int MAGIC = 0x4C485831;           // "LHX1"
+    private static final int BUF_SIZE = 64 * 1024; // encoding buffer size
+
+    private LinearHashSnapshot() {
+    }
+
+    /**
+     * Write the given keys as a snapshot; the stream is flushed, not closed.
+     *
+     * @param out  stream to write to.
+     * @param keys the keys, sorted in ascending order and distinct.
+     * @param n    number of keys.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    static void write(OutputStream out, int[] keys, int n) throws IOException {
+        byte buf[] = new byte[BUF_SIZE];
+        CRC32 crc = new CRC32();
+        int pos = putInt(buf, 0, MAGIC);
+        pos = putInt(buf, pos, n);
+        long prev = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            // make sure the longest varint (5 bytes) fits
+            if (pos > buf.length - 5) {
+                crc.update(buf, 0, pos);
+                out.write(buf, 0, pos);
+                pos = 0;
+            }
+            long delta = keys[i] - prev;
+            prev = keys[i];
+            while (delta >= 0x80) {
+                buf[pos++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            buf[pos++] = (byte) delta;
+        }
+        crc.update(buf, 0, pos);
+        out.write(buf, 0, pos);
+        // the checksum itself is not part of the checksum
+        out.write(buf, 0, putInt(buf, 0, (int) crc.getValue()));
+        out.flush();
+    }
+
+    /**
+     * Read a snapshot, verifying its checksum
+     *
+     * @param in stream to read from (it might be read past the end of the snapshot).
+     * @return the keys, in ascending order.
+     * @throws IOException is thrown when there is an I/O error during the operation,
+     *                     or when the snapshot is malformed.
+     */
+    static int[] read(InputStream in) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream bin = new BufferedInputStream(in, BUF_SIZE);
+        if (readInt(bin, crc) != MAGIC) {
+            throw new IOException("Not a linear hash snapshot");
+        }
+        int n = readInt(bin, crc);
+        if (n < 0) {
+            throw new IOException("Invalid key count in snapshot: " + n);
+        }
+        int keys[] = new int[n];
+        long prev = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            long delta = readVarint(bin, crc);
+            // keys are distinct, so only the first one can be at distance zero
+            if (i > 0 && delta == 0) {
+                throw new IOException("Snapshot keys are not in ascending order");
+            }
+            prev += delta;
+            if (prev > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot key out of range");
+            }
+            keys[i] = (int) prev;
+        }
+        int sum = (int) crc.getValue();
+        if (readInt(bin, null) != sum) {
+            throw new IOException("Snapshot checksum mismatch");
+        }
+        return (keys);
+    }
+
+    /**
+     * Place a big endian int in a buffer
+     *
+     * @param buf buffer to write to.
+     * @param pos position in the buffer.
+     * @param val value to place.
+     * @return the position after the value.
+     */
+    private static int putInt(byte[] buf, int pos, int val) {
+        buf[pos] = (byte) (val >>> 24);
+        buf[pos + 1] = (byte) (val >>> 16);
+        buf[pos + 2] = (byte) (val >>> 8);
+        buf[pos + 3] = (byte) val;
+        return (pos + 4);
+    }
+
+    /**
+     * Read a single byte, adding it to the checksum
+     *
+     * @param in  stream to read from.
+     * @param crc checksum to update, null to skip it.
+     * @return the byte read.
+     * @throws IOException is thrown when there is an I/O error or the stream ends.
+     */
+    private static int readByte(InputStream in, CRC32 crc) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Snapshot is truncated");
+        }
+        if (crc != null) {
+            crc.update(b);
+        }
+        return (b);
+    }
+
+    /**
+     * Read a big endian int
+     *
+     * @param in  stream to read from.
+     * @param crc checksum to update, null to skip it.
+     * @return the int read.
+     * @throws IOException is thrown when there is an I/O error or the stream ends.
+     */
+    private static int readInt(InputStream in, CRC32 crc) throws IOException {
+        int val = 0;
+        for (int i = 0; i < 4; i++) {
+            val = (val << 8) | readByte(in, crc);
+        }
+        return (val);
+    }
+
+    /**
+     * Read an unsigned varint of up to 35 bits
+     *
+     * @param in  stream to read from.
+     * @param crc checksum to update.
+     * @return the value read.
+     * @throws IOException is thrown when there is an I/O error, the stream ends
+     *                     or the varint is too long.
+     */
+    private static long readVarint(InputStream in, CRC32 crc) throws IOException {
+        long val = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte(in, crc);
+            val |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (val);
+            }
+        }
+        throw new IOException("Malformed varint in snapshot");
+    }
+}
@@ -0,0 +1,449 @@
+package lhash;
+
+/**
+ * An immutable, point in time snapshot of the statistics of a {@link LinearHash}
+ * instance; obtained through {@link LinearHash#getStats()}.
+ *
+ * Latencies are reported in nanoseconds, chain lengths in overflow blocks
+ * traversed by a single operation.
+ */
+public final class LinearHashStats {
+
+    /* operation counters */
+    private final long inserts;
+    private final long fetches;
+    private final long deletes;
+    private final long splits;
+    private final long merges;
+
+    /* i/o counters */
+    private final long ioCount;
+    private final long bytesRead;
+    private final long bytesWritten;
+    private final long syscalls;
+
+    /* table state */
+    private final int keyCount;
+    private final int poolSize;
+    private final int ovfBlocks;
+    private final int tombstones;
+    private final long fileSize;
+    private final long allocatedFileSize;
+    private final double loadFactor;
+    private final float insertBF;
+    private final float deleteBF;
+    private final long balanceAdjustments;
+    private final long cacheHits;
+    private final long cacheMisses;
+    private final long checkpoints;
+
+    /* distributions */
+    private final Histogram insertLatency;
+    private final Histogram fetchLatency;
+    private final Histogram multiFetchLatency;
+    private final Histogram deleteLatency;
+    private final Histogram splitLatency;
+    private final Histogram mergeLatency;
+    private final Histogram chainLength;
+
+    LinearHashStats(LinearHashPerfLog lin_perf, int keyCount, int poolSize,
+                    int ovfBlocks, int tombstones, long fileSize, long allocatedFileSize,
+                    double loadFactor, float insertBF, float deleteBF) {
+        this.inserts = lin_perf.getInserts();
+        this.fetches = lin_perf.getFetches();
+        this.deletes = lin_perf.getDeletes();
+        this.splits = lin_perf.getSplits();
+        this.merges = lin_perf.getMerges();
+
+        this.ioCount = lin_perf.getIOCount();
+        this.bytesRead = lin_perf.getBytesRead();
+        this.bytesWritten = lin_perf.getBytesWritten();
+        this.syscalls = lin_perf.getSyscalls();
+
+        this.keyCount = keyCount;
+        this.poolSize = poolSize;
+        this.ovfBlocks = ovfBlocks;
+        this.tombstones = tombstones;
+        this.fileSize = fileSize;
+        this.allocatedFileSize = allocatedFileSize;
+        this.loadFactor = loadFactor;
+        this.insertBF = insertBF;
+        this.deleteBF = deleteBF;
+        this.balanceAdjustments = lin_perf.getBalanceAdjustments();
+        this.cacheHits = lin_perf.getCacheHits();
+        this.cacheMisses = lin_perf.getCacheMisses();
+        this.checkpoints = lin_perf.getCheckpoints();
+
+        this.insertLatency = lin_perf.getInsertLatency().snapshot();
+        this.fetchLatency = lin_perf.getFetchLatency().snapshot();
+        this.multiFetchLatency = lin_perf.getMultiFetchLatency().snapshot();
+        this.deleteLatency = lin_perf.getDeleteLatency().snapshot();
+        this.splitLatency = lin_perf.getSplitLatency().snapshot();
+        this.mergeLatency = lin_perf.getMergeLatency().snapshot();
+        this.chainLength = lin_perf.getChainLength().snapshot();
+    }
+
+    /**
+     * Return the number of inserts issued
+     *
+     * @return the number of inserts issued.
+     */
+    public long getInserts() {
+        return inserts;
+    }
+
+    /**
+     * Return the number of fetches issued (keys of multi-key fetches included)
+     *
+     * @return the number of fetches issued.
+     */
+    public long getFetches() {
+        return fetches;
+    }
+
+    /**
+     * Return the number of deletes issued
+     *
+     * @return the number of deletes issued.
+     */
+    public long getDeletes() {
+        return deletes;
+    }
+
+    /**
+     * Return the number of block splits performed
+     *
+     * @return the number of block splits performed.
+     */
+    public long getSplits() {
+        return splits;
+    }
+
+    /**
+     * Return the number of block merges performed
+     *
+     * @return the number of block merges performed.
+     */
+    public long getMerges() {
+        return merges;
+    }
+
+    /**
+     * Return the number of logical block I/Os, as counted by the epoch tracker.
+     *
+     * @return the logical block I/O count.
+     */
+    public long getIOCount() {
+        return ioCount;
+    }
+
+    /**
+     * Return the number of bytes read from the block file
+     *
+     * @return the number of bytes read from the block file.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Return the number of bytes written to the block file
+     *
+     * @return the number of bytes written to the block file.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Return the number of calls issued against the block file (reads, writes,
+     * seeks, size queries and changes).
+     *
+     * @return the system call count.
+     */
+    public long getSyscalls() {
+        return syscalls;
+    }
+
+    /**
+     * Return the number of stored keys
+     *
+     * @return the number of stored keys.
+     */
+    public int getKeyCount() {
+        return keyCount;
+    }
+
+    /**
+     * Return the number of (primary) blocks
+     *
+     * @return the number of (primary) blocks.
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Return the number of overflow blocks
+     *
+     * @return the number of overflow blocks.
+     */
+    public int getOverflowBlocks() {
+        return ovfBlocks;
+    }
+
+    /**
+     * Return the number of tombstones left by lazy deletes (not yet compacted)
+     *
+     * @return the number of tombstones.
+     */
+    public int getTombstones() {
+        return tombstones;
+    }
+
+    /**
+     * Return the size of the file, up to the end of its last block
+     *
+     * @return the file size in bytes.
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Return the space allocated to the file, which is more than its size
+     * when the file is preallocated
+     *
+     * @return the allocated size in bytes.
+     */
+    public long getAllocatedFileSize() {
+        return allocatedFileSize;
+    }
+
+    /**
+     * Return the average load factor of the blocks
+     *
+     * @return the average load factor of the blocks.
+     */
+    public double getLoadFactor() {
+        return loadFactor;
+    }
+
+    /**
+     * Return the balance factor for inserts in effect (it changes over time
+     * when the balance factors are adaptive)
+     *
+     * @return the balance factor for inserts.
+     */
+    public float getBalanceFactorForInserts() {
+        return insertBF;
+    }
+
+    /**
+     * Return the balance factor for deletes in effect
+     *
+     * @return the balance factor for deletes.
+     */
+    public float getBalanceFactorForDeletes() {
+        return deleteBF;
+    }
+
+    /**
+     * Return the number of adjustments of the (adaptive) balance factors
+     *
+     * @return the number of balance factor adjustments.
+     */
+    public long getBalanceAdjustments() {
+        return balanceAdjustments;
+    }
+
+    /**
+     * Return the number of lookups answered by the key cache
+     *
+     * @return the key cache hits.
+     */
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * Return the number of lookups that missed the key cache (and went to the file)
+     *
+     * @return the key cache misses.
+     */
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * Return the share of lookups answered by the key cache
+     *
+     * @return the key cache hit ratio, zero if there were no cached lookups.
+     */
+    public double getCacheHitRatio() {
+        long lookups = cacheHits + cacheMisses;
+        return (lookups == 0 ? 0 : (double) cacheHits / lookups);
+    }
+
+    /**
+     * Return the number of checkpoints taken
+     *
+     * @return the number of checkpoints.
+     */
+    public long getCheckpoints() {
+        return checkpoints;
+    }
+
+    /**
+     * Return the insert latency distribution
+     *
+     * @return the insert latency distribution.
+     */
+    public Histogram getInsertLatency() {
+        return insertLatency;
+    }
+
+    /**
+     * Return the fetch latency distribution
+     *
+     * @return the fetch latency distribution.
+     */
+    public Histogram getFetchLatency() {
+        return fetchLatency;
+    }
+
+    /**
+     * Return the multi-key fetch latency distribution, one value per batch
+     *
+     * @return the multi-key fetch latency distribution.
+     */
+    public Histogram getMultiFetchLatency() {
+        return multiFetchLatency;
+    }
+
+    /**
+     * Return the delete latency distribution
+     *
+     * @return the delete latency distribution.
+     */
+    public Histogram getDeleteLatency() {
+        return deleteLatency;
+    }
+
+    /**
+     * Return the split latency distribution
+     *
+     * @return the split latency distribution.
+     */
+    public Histogram getSplitLatency() {
+        return splitLatency;
+    }
+
+    /**
+     * Return the merge latency distribution
+     *
+     * @return the merge latency distribution.
+     */
+    public Histogram getMergeLatency() {
+        return mergeLatency;
+    }
+
+    /**
+     * Return the distribution of overflow blocks traversed per operation.
+     *
+     * @return the chain length distribution.
+     */
+    public Histogram getChainLength() {
+        return chainLength;
+    }
+
+    @Override
+    public String toString() {
+        return ("LinearHashStats{keys=" + keyCount + ", blocks=" + poolSize +
+                ", ovf_blocks=" + ovfBlocks + ", lf=" + loadFactor +
+                ", bf=" + insertBF + "/" + deleteBF + ", bf_adjusts=" + balanceAdjustments +
+                ", cache_hits=" + cacheHits + ", cache_misses=" + cacheMisses +
+                ", inserts=" + inserts + ", fetches=" + fetches + ", deletes=" + deletes +
+                ", splits=" + splits + ", merges=" + merges + ", io=" + ioCount +
+                ", bytes_read=" + bytesRead + ", bytes_written=" + bytesWritten +
+                ", syscalls=" + syscalls + ", fetch=" + fetchLatency + "}");
+    }
+
+    /**
+     * Snapshot of a {@link LatencyHistogram}
+     */
+    public static final class Histogram {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Histogram(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * Return the number of recorded values
+         *
+         * @return the number of recorded values.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Return the largest recorded value
+         *
+         * @return the largest recorded value.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Return the mean of the recorded values
+         *
+         * @return the mean of the recorded values.
+         */
+        public double getMean() {
+            return (count == 0 ? 0.0 : (double) sum / (double) count);
+        }
+
+        /**
+         * Return the value below which the given percentage of the recorded
+         * values fall (within the precision of the histogram).
+         *
+         * @param percentile the percentile, in [0, 100].
+         * @return the value at that percentile, zero if nothing was recorded.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return (0L);
+            }
+            long target = (long) Math.ceil((Math.min(percentile, 100.0) / 100.0) * count);
+            if (target < 1) {
+                target = 1;
+            }
+            long acc = 0;
+            for (int i = 0; i < counts.length; i++) {
+                acc += counts[i];
+                if (acc >= target) {
+                    return (Math.min(LatencyHistogram.bucketHighestValue(i), max));
+                }
+            }
+            return (max);
+        }
+
+        @Override
+        public String toString() {
+            return ("{count=" + count + ", mean=" + getMean() +
+                    ", p50=" + getValueAtPercentile(50) +
+                    ", p99=" + getValueAtPercentile(99) +
+                    ", p99.9=" + getValueAtPercentile(99.9) +
+                    ", max=" + max + "}");
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package lhash;
+
+/**
+ * Live implementation of {@link LinearHashStatsMBean}, reading straight from the
+ * tracker of a {@link BlockManager}; every attribute read is a fresh pull.
+ */
+class LinearHashStatsBean implements LinearHashStatsMBean {
+
+    private final BlockManager blk_mgr;         // block manager we report for
+    private final LinearHashPerfLog lin_perf;   // its performance tracker
+
+    LinearHashStatsBean(BlockManager blk_mgr) {
+        this.blk_mgr = blk_mgr;
+        this.lin_perf = blk_mgr.getPerfTrackerInstance();
+    }
+
+    @Override
+    public long getInserts() {
+        return (lin_perf.getInserts());
+    }
+
+    @Override
+    public long getFetches() {
+        return (lin_perf.getFetches());
+    }
+
+    @Override
+    public long getDeletes() {
+        return (lin_perf.getDeletes());
+    }
+
+    @Override
+    public long getSplits() {
+        return (lin_perf.getSplits());
+    }
+
+    @Override
+    public long getMerges() {
+        return (lin_perf.getMerges());
+    }
+
+    @Override
+    public long getIOCount() {
+        return (lin_perf.getIOCount());
+    }
+
+    @Override
+    public long getBytesRead() {
+        return (lin_perf.getBytesRead());
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return (lin_perf.getBytesWritten());
+    }
+
+    @Override
+    public long getSyscalls() {
+        return (lin_perf.getSyscalls());
+    }
+
+    @Override
+    public int getKeyCount() {
+        return (blk_mgr.getKeyCount());
+    }
+
+    @Override
+    public int getPoolSize() {
+        return (blk_mgr.getPoolSize());
+    }
+
+    @Override
+    public int getOverflowBlocks() {
+        return (blk_mgr.getOverflowBlockCount());
+    }
+
+    @Override
+    public int getTombstones() {
+        return (blk_mgr.getTombstoneCount());
+    }
+
+    @Override
+    public double getLoadFactor() {
+        return (blk_mgr.getBlockLF());
+    }
+
+    @Override
+    public float getBalanceFactorForInserts() {
+        return (blk_mgr.getBalanceFactorForInserts());
+    }
+
+    @Override
+    public float getBalanceFactorForDeletes() {
+        return (blk_mgr.getBalanceFactorForDeletes());
+    }
+
+    @Override
+    public long getBalanceAdjustments() {
+        return (lin_perf.getBalanceAdjustments());
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = lin_perf.getCacheHits(),
+                lookups = hits + lin_perf.getCacheMisses();
+        return (lookups == 0 ? 0 : (double) hits / lookups);
+    }
+
+    @Override
+    public double getInsertLatencyMean() {
+        return (lin_perf.getInsertLatency().snapshot().getMean());
+    }
+
+    @Override
+    public long getInsertLatencyP99() {
+        return (lin_perf.getInsertLatency().snapshot().getValueAtPercentile(99));
+    }
+
+    @Override
+    public double getFetchLatencyMean() {
+        return (lin_perf.getFetchLatency().snapshot().getMean());
+    }
+
+    @Override
+    public long getFetchLatencyP50() {
+        return (lin_perf.getFetchLatency().snapshot().getValueAtPercentile(50));
+    }
+
+    @Override
+    public long getFetchLatencyP99() {
+        return (lin_perf.getFetchLatency().snapshot().getValueAtPercentile(99));
+    }
+
+    @Override
+    public long getFetchLatencyP999() {
+        return (lin_perf.getFetchLatency().snapshot().getValueAtPercentile(99.9));
+    }
+
+    @Override
+    public double getDeleteLatencyMean() {
+        return (lin_perf.getDeleteLatency().snapshot().getMean());
+    }
+
+    @Override
+    public long getDeleteLatencyP99() {
+        return (lin_perf.getDeleteLatency().snapshot().getValueAtPercentile(99));
+    }
+
+    @Override
+    public double getSplitLatencyMean() {
+        return (lin_perf.getSplitLatency().snapshot().getMean());
+    }
+
+    @Override
+    public double getMergeLatencyMean() {
+        return (lin_perf.getMergeLatency().snapshot().getMean());
+    }
+
+    @Override
+    public double getChainLengthMean() {
+        return (lin_perf.getChainLength().snapshot().getMean());
+    }
+
+    @Override
+    public long getChainLengthMax() {
+        return (lin_perf.getChainLength().snapshot().getMax());
+    }
+
+    @Override
+    public void resetHistograms() {
+        lin_perf.resetHistograms();
+    }
+}
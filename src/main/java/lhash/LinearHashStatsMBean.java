@@ -0,0 +1,165 @@
+package lhash;
+
+/**
+ * JMX management interface exposing the live statistics of a {@link LinearHash}
+ * instance; registered through {@link LinearHash#registerMBean()}.
+ *
+ * Latencies are reported in nanoseconds.
+ */
+public interface LinearHashStatsMBean {
+
+    /**
+     * @return the number of inserts issued.
+     */
+    long getInserts();
+
+    /**
+     * @return the number of fetches issued.
+     */
+    long getFetches();
+
+    /**
+     * @return the number of deletes issued.
+     */
+    long getDeletes();
+
+    /**
+     * @return the number of block splits performed.
+     */
+    long getSplits();
+
+    /**
+     * @return the number of block merges performed.
+     */
+    long getMerges();
+
+    /**
+     * @return the number of logical block I/Os.
+     */
+    long getIOCount();
+
+    /**
+     * @return the bytes read from the block file.
+     */
+    long getBytesRead();
+
+    /**
+     * @return the bytes written to the block file.
+     */
+    long getBytesWritten();
+
+    /**
+     * @return the calls issued against the block file.
+     */
+    long getSyscalls();
+
+    /**
+     * @return the number of stored keys.
+     */
+    int getKeyCount();
+
+    /**
+     * @return the number of (primary) blocks.
+     */
+    int getPoolSize();
+
+    /**
+     * @return the number of overflow blocks.
+     */
+    int getOverflowBlocks();
+
+    /**
+     * @return the number of tombstones left by lazy deletes.
+     */
+    int getTombstones();
+
+    /**
+     * @return the average load factor of the blocks.
+     */
+    double getLoadFactor();
+
+    /**
+     * @return the balance factor for inserts in effect.
+     */
+    float getBalanceFactorForInserts();
+
+    /**
+     * @return the balance factor for deletes in effect.
+     */
+    float getBalanceFactorForDeletes();
+
+    /**
+     * @return the number of adjustments of the (adaptive) balance factors.
+     */
+    long getBalanceAdjustments();
+
+    /**
+     * @return the share of lookups answered by the key cache.
+     */
+    double getCacheHitRatio();
+
+    /**
+     * @return the mean insert latency.
+     */
+    double getInsertLatencyMean();
+
+    /**
+     * @return the 99th percentile of the insert latency.
+     */
+    long getInsertLatencyP99();
+
+    /**
+     * @return the mean fetch latency.
+     */
+    double getFetchLatencyMean();
+
+    /**
+     * @return the median fetch latency.
+     */
+    long getFetchLatencyP50();
+
+    /**
+     * @return the 99th percentile of the fetch latency.
+     */
+    long getFetchLatencyP99();
+
+    /**
+     * @return the 99.9th percentile of the fetch latency.
+     */
+    long getFetchLatencyP999();
+
+    /**
+     * @return the mean delete latency.
+     */
+    double getDeleteLatencyMean();
+
+    /**
+     * @return the 99th percentile of the delete latency.
+     */
+    long getDeleteLatencyP99();
+
+    /**
+     * @return the mean split latency.
+     */
+    double getSplitLatencyMean();
+
+    /**
+     * @return the mean merge latency.
+     */
+    double getMergeLatencyMean();
+
+    /**
+     * @return the mean overflow blocks traversed per operation.
+     */
+    double getChainLengthMean();
+
+    /**
+     * @return the most overflow blocks traversed by a single operation.
+     */
+    long getChainLengthMax();
+
+    /**
+     * Reset all the latency and chain length histograms.
+     */
+    void resetHistograms();
+}
@@ -0,0 +1,618 @@
+package lhash;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * YCSB style load generator: a table is loaded with a number of records and
+ * then driven by a mix of reads, inserts, deletes and multi-key reads, with
+ * keys drawn from a given distribution (see {@link KeyDistribution}), by a
+ * number of client threads.
+ *
+ * The run is made of a warmup phase, whose results are dropped, followed by a
+ * number of timed phases; for each of them the throughput, the latency
+ * percentiles of every operation (as seen by the clients) and the I/O per
+ * operation (from the statistics of the table) are reported, as CSV or JSON.
+ *
+ * Tables are not thread safe, so the clients take turns on the table and the
+ * time spent waiting for it counts towards their latencies, as it would for
+ * the clients of a server.
+ *
+ * <pre>
+ * java -cp linhash.jar lhash.LinearHashWorkload fname [--records n] [--read p] [--insert p]
+ *         [--delete p] [--multiget p] [--batch n] [--distribution uniform|zipfian|latest|sequential]
+ *         [--threads n] [--warmup s] [--duration s] [--phases n] [--seed n] [--format csv|json]
+ *         [--output file] [--keys-per-block n] [--page-size n] [--initial-pool n]
+ *         [--balance-factors insert delete] [--key-cache n] [--lazy-deletes] [--segments n]
+ *         [--checkpoint-interval ms]
+ * </pre>
+ */
+public class LinearHashWorkload {
+
+    /* operations of the mix, in the order they are drawn and reported */
+    static final String OPS[] = {"read", "insert", "delete", "multiget"};
+    private static final int OP_READ = 0, OP_INSERT = 1, OP_DELETE = 2, OP_MULTIGET = 3;
+
+    private final LinearHash.Builder table; // table to create and drive
+
+    private final double mix[] = {0.95, 0.05, 0.0, 0.0};   // proportion of each operation
+    private int batch = 16;                 // keys per multi-key read
+    private String distribution = "zipfian";
+    private int records = 100000;           // keys loaded before the phases
+    private int threads = 1;                // client threads
+    private long warmup_ms = 5000;          // warmup phase length
+    private long phase_ms = 10000;          // timed phase length
+    private int phases = 1;                 // timed phases
+    private long seed = 42L;                // seed of the key streams
+
+    /**
+     * Create a workload over a new table
+     *
+     * @param table builder of the table; the table is created (truncating the file).
+     */
+    public LinearHashWorkload(LinearHash.Builder table) {
+        this.table = table.overrideFile(true);
+    }
+
+    /**
+     * Set the operation mix; the proportions are relative to their sum
+     *
+     * @param read     proportion of reads.
+     * @param insert   proportion of inserts (of new keys).
+     * @param delete   proportion of deletes.
+     * @param multiget proportion of multi-key reads.
+     * @return this workload.
+     */
+    public LinearHashWorkload mix(double read, double insert, double delete, double multiget) {
+        double sum = read + insert + delete + multiget;
+        if (read < 0 || insert < 0 || delete < 0 || multiget < 0 || sum <= 0) {
+            throw new IllegalArgumentException("Proportions must be non-negative, and not all zero");
+        }
+        mix[OP_READ] = read / sum;
+        mix[OP_INSERT] = insert / sum;
+        mix[OP_DELETE] = delete / sum;
+        mix[OP_MULTIGET] = multiget / sum;
+        return (this);
+    }
+
+    /**
+     * Set the number of keys of each multi-key read
+     *
+     * @param batch keys per multi-key read.
+     * @return this workload.
+     */
+    public LinearHashWorkload batch(int batch) {
+        if (batch < 1) {
+            throw new IllegalArgumentException("Multi-key reads need at least one key");
+        }
+        this.batch = batch;
+        return (this);
+    }
+
+    /**
+     * Set the key distribution
+     *
+     * @param distribution one of uniform, zipfian, latest or sequential.
+     * @return this workload.
+     */
+    public LinearHashWorkload distribution(String distribution) {
+        KeyDistribution.create(distribution, 1, seed);
+        this.distribution = distribution;
+        return (this);
+    }
+
+    /**
+     * Set the number of keys loaded before the phases
+     *
+     * @param records keys to load.
+     * @return this workload.
+     */
+    public LinearHashWorkload records(int records) {
+        if (records < 1) {
+            throw new IllegalArgumentException("At least one record is needed");
+        }
+        this.records = records;
+        return (this);
+    }
+
+    /**
+     * Set the number of client threads
+     *
+     * @param threads number of threads.
+     * @return this workload.
+     */
+    public LinearHashWorkload threads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+        this.threads = threads;
+        return (this);
+    }
+
+    /**
+     * Set the phases: a warmup phase, whose results are dropped, then a number
+     * of timed ones
+     *
+     * @param warmup_ms length of the warmup phase, in milliseconds (zero for none).
+     * @param phase_ms  length of each timed phase, in milliseconds.
+     * @param phases    number of timed phases.
+     * @return this workload.
+     */
+    public LinearHashWorkload phases(long warmup_ms, long phase_ms, int phases) {
+        if (warmup_ms < 0 || phase_ms < 1 || phases < 1) {
+            throw new IllegalArgumentException("At least one timed phase, of a millisecond at least, is needed");
+        }
+        this.warmup_ms = warmup_ms;
+        this.phase_ms = phase_ms;
+        this.phases = phases;
+        return (this);
+    }
+
+    /**
+     * Set the seed of the key streams
+     *
+     * @param seed the seed.
+     * @return this workload.
+     */
+    public LinearHashWorkload seed(long seed) {
+        this.seed = seed;
+        return (this);
+    }
+
+    /**
+     * Results of a timed phase
+     */
+    public static final class Phase {
+        private final int number;
+        private final double seconds;
+        private final LinearHashStats.Histogram latency[];
+        private final long io;
+        private final long bytes_read;
+        private final long bytes_written;
+        private final long syscalls;
+
+        Phase(int number, double seconds, LinearHashStats.Histogram[] latency,
+              LinearHashStats before, LinearHashStats after) {
+            this.number = number;
+            this.seconds = seconds;
+            this.latency = latency;
+            this.io = after.getIOCount() - before.getIOCount();
+            this.bytes_read = after.getBytesRead() - before.getBytesRead();
+            this.bytes_written = after.getBytesWritten() - before.getBytesWritten();
+            this.syscalls = after.getSyscalls() - before.getSyscalls();
+        }
+
+        /**
+         * Return the number of the phase
+         *
+         * @return the phase number, starting from one.
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * Return the length of the phase
+         *
+         * @return the length in seconds.
+         */
+        public double getSeconds() {
+            return seconds;
+        }
+
+        /**
+         * Return the number of operations of the phase
+         *
+         * @return the number of operations.
+         */
+        public long getOperations() {
+            long ops = 0;
+            for (LinearHashStats.Histogram h : latency) {
+                ops += h.getCount();
+            }
+            return (ops);
+        }
+
+        /**
+         * Return the throughput of the phase
+         *
+         * @return operations per second.
+         */
+        public double getThroughput() {
+            return (getOperations() / seconds);
+        }
+
+        /**
+         * Return the latencies of an operation
+         *
+         * @param op one of read, insert, delete or multiget.
+         * @return the latencies, in nanoseconds.
+         */
+        public LinearHashStats.Histogram getLatency(String op) {
+            for (int i = 0; i < OPS.length; i++) {
+                if (OPS[i].equals(op)) {
+                    return (latency[i]);
+                }
+            }
+            throw new IllegalArgumentException("Unknown operation: " + op);
+        }
+
+        /**
+         * Return a per operation average of a counter of the phase
+         *
+         * @param total the counter.
+         * @return its average per operation.
+         */
+        private double perOp(long total) {
+            long ops = getOperations();
+            return (ops == 0 ? 0.0 : (double) total / ops);
+        }
+
+        /**
+         * Return the block I/Os per operation
+         *
+         * @return the I/Os per operation.
+         */
+        public double getIOPerOp() {
+            return (perOp(io));
+        }
+
+        /**
+         * Return the bytes read per operation
+         *
+         * @return the bytes read per operation.
+         */
+        public double getBytesReadPerOp() {
+            return (perOp(bytes_read));
+        }
+
+        /**
+         * Return the bytes written per operation
+         *
+         * @return the bytes written per operation.
+         */
+        public double getBytesWrittenPerOp() {
+            return (perOp(bytes_written));
+        }
+
+        /**
+         * Return the calls reaching the file per operation
+         *
+         * @return the calls per operation.
+         */
+        public double getSyscallsPerOp() {
+            return (perOp(syscalls));
+        }
+    }
+
+    /**
+     * Load the table, run the phases and commit the table
+     *
+     * @return the results of the timed phases.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    public List<Phase> run() throws IOException {
+        LinearHash lh = table.build();
+        ReentrantLock lock = new ReentrantLock();
+        AtomicInteger inserted = new AtomicInteger(records);
+        KeyDistribution dist[] = new KeyDistribution[threads];
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        List<Phase> results = new ArrayList<>();
+
+        try {
+            // load through batches, a chain at a time
+            KeyDistribution load = KeyDistribution.create(distribution, records, seed, inserted::get);
+            WriteBatch wb = new WriteBatch(64 * 1024);
+            for (int i = 0; i < records; i++) {
+                wb.insertKey(load.key(i));
+                if (wb.size() == 64 * 1024 || i == records - 1) {
+                    lh.write(wb);
+                    wb.clear();
+                }
+            }
+            for (int t = 0; t < threads; t++) {
+                dist[t] = KeyDistribution.create(distribution, records, seed + 1 + t, inserted::get);
+            }
+            if (warmup_ms > 0) {
+                runPhase(0, warmup_ms, lh, lock, inserted, dist, exec);
+            }
+            for (int p = 1; p <= phases; p++) {
+                results.add(runPhase(p, phase_ms, lh, lock, inserted, dist, exec));
+            }
+        } finally {
+            exec.shutdownNow();
+            lh.commitFile();
+        }
+        return (results);
+    }
+
+    /**
+     * Run a phase, with every thread issuing operations until its end
+     *
+     * @param number   the phase number, zero for the warmup.
+     * @param ms       length of the phase, in milliseconds.
+     * @param lh       the table.
+     * @param lock     the lock the clients take turns on the table with.
+     * @param inserted the number of keys inserted so far.
+     * @param dist     the key distribution of each thread.
+     * @param exec     the client threads.
+     * @return the phase results.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private Phase runPhase(int number, long ms, LinearHash lh, ReentrantLock lock,
+                           AtomicInteger inserted, KeyDistribution[] dist, ExecutorService exec)
+            throws IOException {
+        LatencyHistogram lat[] = new LatencyHistogram[OPS.length];
+        for (int i = 0; i < lat.length; i++) {
+            lat[i] = new LatencyHistogram();
+        }
+        LinearHashStats before = lh.getStats();
+        long start = System.nanoTime(),
+                end = start + ms * 1000000L;
+        List<Future<Object>> clients = new ArrayList<>();
+        for (int t = 0; t < dist.length; t++) {
+            final KeyDistribution d = dist[t];
+            clients.add(exec.submit(() -> {
+                int keys[] = new int[batch];
+                for (long now = System.nanoTime(); now < end; ) {
+                    int op = pick(d.rnd.nextDouble());
+                    lock.lock();
+                    try {
+                        switch (op) {
+                            case OP_READ:
+                                lh.contains(d.key(d.nextIndex()));
+                                break;
+                            case OP_INSERT:
+                                lh.insertKey(d.key(inserted.getAndIncrement()));
+                                break;
+                            case OP_DELETE:
+                                lh.deleteKey(d.key(d.nextIndex()));
+                                break;
+                            default:
+                                for (int i = 0; i < keys.length; i++) {
+                                    keys[i] = d.key(d.nextIndex());
+                                }
+                                lh.fetchKeys(keys);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    long done = System.nanoTime();
+                    lat[op].record(done - now);
+                    now = done;
+                }
+                return (null);
+            }));
+        }
+        for (Future<Object> f : clients) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while running the workload", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Workload client failed", e.getCause());
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        LinearHashStats.Histogram snap[] = new LinearHashStats.Histogram[lat.length];
+        for (int i = 0; i < lat.length; i++) {
+            snap[i] = lat[i].snapshot();
+        }
+        return (new Phase(number, seconds, snap, before, lh.getStats()));
+    }
+
+    /**
+     * Draw an operation of the mix
+     *
+     * @param u a uniform value in [0, 1).
+     * @return the operation.
+     */
+    private int pick(double u) {
+        for (int op = 0; op < OPS.length - 1; op++) {
+            if (u < mix[op]) {
+                return (op);
+            }
+            u -= mix[op];
+        }
+        return (OPS.length - 1);
+    }
+
+    /**
+     * Write the results as CSV, a line per phase and operation (plus one for
+     * all of them, which holds the I/O columns); latencies in microseconds
+     *
+     * @param results the phase results.
+     * @param out     where to write them.
+     */
+    static void writeCsv(List<Phase> results, PrintWriter out) {
+        out.println("phase,op,count,throughput,mean_us,p50_us,p95_us,p99_us,p999_us,max_us," +
+                "io_per_op,bytes_read_per_op,bytes_written_per_op,syscalls_per_op");
+        for (Phase p : results) {
+            out.println(String.format(Locale.ROOT, "%d,all,%d,%.1f,,,,,,,%.3f,%.1f,%.1f,%.3f",
+                    p.getNumber(), p.getOperations(), p.getThroughput(), p.getIOPerOp(),
+                    p.getBytesReadPerOp(), p.getBytesWrittenPerOp(), p.getSyscallsPerOp()));
+            for (String op : OPS) {
+                LinearHashStats.Histogram h = p.getLatency(op);
+                if (h.getCount() > 0) {
+                    out.println(String.format(Locale.ROOT, "%d,%s,%d,%.1f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,,,,",
+                            p.getNumber(), op, h.getCount(), h.getCount() / p.getSeconds(),
+                            h.getMean() / 1000.0, h.getValueAtPercentile(50) / 1000.0,
+                            h.getValueAtPercentile(95) / 1000.0, h.getValueAtPercentile(99) / 1000.0,
+                            h.getValueAtPercentile(99.9) / 1000.0, h.getMax() / 1000.0));
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Write the results as JSON, an object per phase; latencies in microseconds
+     *
+     * @param results the phase results.
+     * @param out     where to write them.
+     */
+    static void writeJson(List<Phase> results, PrintWriter out) {
+        out.println("{\"phases\": [");
+        for (int i = 0; i < results.size(); i++) {
+            Phase p = results.get(i);
+            out.print(String.format(Locale.ROOT, "  {\"phase\": %d, \"seconds\": %.3f, \"ops\": %d, " +
+                            "\"throughput\": %.1f, \"io_per_op\": %.3f, \"bytes_read_per_op\": %.1f, " +
+                            "\"bytes_written_per_op\": %.1f, \"syscalls_per_op\": %.3f, \"latency_us\": {",
+                    p.getNumber(), p.getSeconds(), p.getOperations(), p.getThroughput(), p.getIOPerOp(),
+                    p.getBytesReadPerOp(), p.getBytesWrittenPerOp(), p.getSyscallsPerOp()));
+            String sep = "";
+            for (String op : OPS) {
+                LinearHashStats.Histogram h = p.getLatency(op);
+                if (h.getCount() > 0) {
+                    out.print(String.format(Locale.ROOT, "%s\"%s\": {\"count\": %d, \"mean\": %.3f, " +
+                                    "\"p50\": %.3f, \"p95\": %.3f, \"p99\": %.3f, \"p999\": %.3f, \"max\": %.3f}",
+                            sep, op, h.getCount(), h.getMean() / 1000.0, h.getValueAtPercentile(50) / 1000.0,
+                            h.getValueAtPercentile(95) / 1000.0, h.getValueAtPercentile(99) / 1000.0,
+                            h.getValueAtPercentile(99.9) / 1000.0, h.getMax() / 1000.0));
+                    sep = ", ";
+                }
+            }
+            out.println("}}" + (i < results.size() - 1 ? "," : ""));
+        }
+        out.println("]}");
+        out.flush();
+    }
+
+    /**
+     * Print the usage and exit
+     */
+    private static void usage() {
+        System.err.println("Usage: LinearHashWorkload fname [--records n] [--read p] [--insert p]\n" +
+                "        [--delete p] [--multiget p] [--batch n] [--distribution uniform|zipfian|latest|sequential]\n" +
+                "        [--threads n] [--warmup s] [--duration s] [--phases n] [--seed n] [--format csv|json]\n" +
+                "        [--output file] [--keys-per-block n] [--page-size n] [--initial-pool n]\n" +
+                "        [--balance-factors insert delete] [--key-cache n] [--lazy-deletes] [--segments n]\n" +
+                "        [--checkpoint-interval ms]");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            usage();
+        }
+        LinearHash.Builder tb = new LinearHash.Builder(args[0]);
+        LinearHashWorkload wl = new LinearHashWorkload(tb);
+        double read = 0.95, insert = 0.05, delete = 0.0, multiget = 0.0,
+                warmup = 5, duration = 10;
+        int phases = 1;
+        String format = "csv", output = null;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--records":
+                        wl.records(Integer.parseInt(args[++i]));
+                        break;
+                    case "--read":
+                        read = Double.parseDouble(args[++i]);
+                        break;
+                    case "--insert":
+                        insert = Double.parseDouble(args[++i]);
+                        break;
+                    case "--delete":
+                        delete = Double.parseDouble(args[++i]);
+                        break;
+                    case "--multiget":
+                        multiget = Double.parseDouble(args[++i]);
+                        break;
+                    case "--batch":
+                        wl.batch(Integer.parseInt(args[++i]));
+                        break;
+                    case "--distribution":
+                        wl.distribution(args[++i]);
+                        break;
+                    case "--threads":
+                        wl.threads(Integer.parseInt(args[++i]));
+                        break;
+                    case "--warmup":
+                        warmup = Double.parseDouble(args[++i]);
+                        break;
+                    case "--duration":
+                        duration = Double.parseDouble(args[++i]);
+                        break;
+                    case "--phases":
+                        phases = Integer.parseInt(args[++i]);
+                        break;
+                    case "--seed":
+                        wl.seed(Long.parseLong(args[++i]));
+                        break;
+                    case "--format":
+                        format = args[++i];
+                        if (!format.equals("csv") && !format.equals("json")) {
+                            usage();
+                        }
+                        break;
+                    case "--output":
+                        output = args[++i];
+                        break;
+                    case "--keys-per-block":
+                        tb.keysPerBlock(Integer.parseInt(args[++i]));
+                        break;
+                    case "--page-size":
+                        tb.pageSize(Integer.parseInt(args[++i]));
+                        break;
+                    case "--initial-pool":
+                        tb.initialPool(Integer.parseInt(args[++i]));
+                        break;
+                    case "--balance-factors":
+                        tb.balanceFactors(Float.parseFloat(args[++i]), Float.parseFloat(args[++i]));
+                        break;
+                    case "--key-cache":
+                        tb.keyCache(Integer.parseInt(args[++i]));
+                        break;
+                    case "--lazy-deletes":
+                        tb.lazyDeletes();
+                        break;
+                    case "--segments":
+                        tb.segments(Integer.parseInt(args[++i]));
+                        break;
+                    case "--checkpoint-interval":
+                        tb.checkpointInterval(Long.parseLong(args[++i]));
+                        break;
+                    default:
+                        usage();
+                }
+            }
+            wl.mix(read, insert, delete, multiget)
+                    .phases((long) (warmup * 1000), (long) (duration * 1000), phases);
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            usage();
+        }
+        try {
+            List<Phase> results = wl.run();
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                    output == null ? System.out : new FileOutputStream(output), StandardCharsets.UTF_8));
+            if (format.equals("json")) {
+                writeJson(results, out);
+            } else {
+                writeCsv(results, out);
+            }
+            if (output != null) {
+                out.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package lhash;
+
+/**
+ * Adaptive balance factors of a {@link BlockManager}.
+ *
+ * At the end of every epoch the average number of overflow blocks the
+ * operations of the epoch traversed is compared against a target: above it,
+ * the balance factor for inserts is lowered by a step, so blocks split sooner
+ * and chains get shorter; well below it (under half the target) it is raised
+ * by a step, so the table takes less space. The balance factor for deletes
+ * follows, keeping its configured ratio to the one for inserts, and both stay
+ * within the configured bounds.
+ */
+class LoadFactorTuner {
+
+    static final float STEP = 0.05f;   // balance factor change per adjustment
+
+    private final float min_bf;         // lowest balance factor for inserts
+    private final float max_bf;         // highest balance factor for inserts
+    private final float target_ovf;     // overflow blocks per operation aimed for
+    private final float delete_ratio;   // balance factor for deletes, relative to inserts
+
+    private volatile float bf_insert;   // effective balance factor for inserts
+    private volatile float bf_delete;   // effective balance factor for deletes
+
+    /**
+     * Create a tuner starting from the configured balance factors
+     *
+     * @param lin_conf the configuration.
+     */
+    LoadFactorTuner(LinearHashConfiguration lin_conf) {
+        this.min_bf = lin_conf.getMinBalanceFactor();
+        this.max_bf = lin_conf.getMaxBalanceFactor();
+        this.target_ovf = lin_conf.getTargetOverflowReads();
+        this.delete_ratio = lin_conf.getBalanceFactorForDeletes() /
+                lin_conf.getBalanceFactorForInserts();
+        set(lin_conf.getBalanceFactorForInserts());
+    }
+
+    /**
+     * Set the balance factor for inserts (clamped to the bounds) and the one for deletes
+     *
+     * @param bf the balance factor for inserts.
+     */
+    private void set(float bf) {
+        bf_insert = Math.max(min_bf, Math.min(max_bf, bf));
+        bf_delete = bf_insert * delete_ratio;
+    }
+
+    /**
+     * Adjust the balance factors to the chain lengths seen during an epoch
+     *
+     * @param avg_ovf average overflow blocks traversed per operation.
+     * @return true if the balance factors changed.
+     */
+    boolean adjust(double avg_ovf) {
+        float prev = bf_insert;
+        if (avg_ovf > target_ovf) {
+            set(prev - STEP);
+        } else if (avg_ovf < target_ovf / 2) {
+            set(prev + STEP);
+        }
+        return (bf_insert != prev);
+    }
+
+    /**
+     * Return the effective balance factor for inserts
+     *
+     * @return the balance factor for inserts.
+     */
+    float getBalanceFactorForInserts() {
+        return (bf_insert);
+    }
+
+    /**
+     * Return the effective balance factor for deletes
+     *
+     * @return the balance factor for deletes.
+     */
+    float getBalanceFactorForDeletes() {
+        return (bf_delete);
+    }
+}
@@ -0,0 +1,591 @@
+package lhash;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link RandomAccessFile} over a table kept in segment files: the header
+ * stays in the table file, the primary blocks are kept in segments of a fixed
+ * number of blocks ("fname.p0", "fname.p1", ...) and the overflow blocks in
+ * segments of their own ("fname.o0", ...), which only grow or shrink at the
+ * end of the last one.
+ *
+ * The block manager keeps addressing the layout of a single file (header,
+ * primary blocks, overflow blocks); positions are mapped to the segments
+ * through the number of primary blocks, so changing it (see {@link #setPool(int)})
+ * moves the overflow blocks in that address space without moving any data.
+ * Growing the table only creates or extends a segment.
+ *
+ * New segments are spread over the given directories (in turn); on open,
+ * every segment is looked up in all of them, so a segment moved to another
+ * volume is found as long as its directory is given. The directories are kept
+ * next to the table file (as "fname.segs", one per line), so a table opened
+ * by its file name alone finds its segments in the directories last given.
+ *
+ * The read and write calls reaching the segments are reported to the
+ * performance tracker, if any, as {@link CountingRandomAccessFile} does.
+ */
+class SegmentedFile extends RandomAccessFile {
+
+    private final String name;          // name of the table file, the segments add a suffix
+    private final File dirs[];          // directories holding the segments
+    private final String mode;          // access mode of the segments
+    private final int hdr;              // header size
+    private final int bpb;              // bytes per block
+    private final int seg_blocks;       // blocks per segment
+    private final long seg_bytes;       // bytes per (full) segment
+    private final LinearHashPerfLog lin_perf;   // performance tracker, null if not tracking
+
+    private final List<RandomAccessFile> prim = new ArrayList<>();  // primary segments
+    private final List<File> prim_f = new ArrayList<>();
+    private final List<RandomAccessFile> ovf = new ArrayList<>();   // overflow segments
+    private final List<File> ovf_f = new ArrayList<>();
+    private int pool;                   // primary blocks
+    private long ovf_len;               // bytes of overflow blocks
+    private long pos;                   // current position
+    private final byte one_buf[] = new byte[1]; // scratch buffer for single byte calls
+
+    /* read only mappings, one per segment */
+    private MappedByteBuffer prim_map[];
+    private MappedByteBuffer ovf_map[];
+
+    /**
+     * Open (or create) a segmented table
+     *
+     * @param lin_conf the configuration, giving the file, its layout and the segment directories.
+     * @param pool     number of primary blocks (from the header), ignored when creating.
+     * @param create   true to create the table, removing any segments left by an older one.
+     * @param lin_perf the tracker to report to, null for none.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    SegmentedFile(LinearHashConfiguration lin_conf, int pool, boolean create, LinearHashPerfLog lin_perf)
+            throws IOException {
+        super(lin_conf.getFilename(), lin_conf.getFileMode());
+        File table = new File(lin_conf.getFilename()).getAbsoluteFile();
+        String seg_dirs[] = lin_conf.getSegmentDirs();
+        if (create) {
+            removeSegments(lin_conf.getFilename());
+        } else if (seg_dirs.length == 0) {
+            seg_dirs = storedDirs(lin_conf.getFilename());
+        }
+        this.name = table.getName();
+        this.dirs = new File[Math.max(1, seg_dirs.length)];
+        for (int i = 0; i < dirs.length; i++) {
+            dirs[i] = seg_dirs.length > 0 ? new File(seg_dirs[i]) : table.getParentFile();
+        }
+        this.mode = lin_conf.getFileMode();
+        this.hdr = lin_conf.getHeaderSize();
+        this.bpb = lin_conf.getBytesPerBlock();
+        this.seg_blocks = lin_conf.getSegmentBlocks();
+        this.seg_bytes = (long) seg_blocks * bpb;
+        this.lin_perf = lin_perf;
+        if (seg_bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segments cannot be larger than " + Integer.MAX_VALUE + " bytes");
+        }
+
+        // the directories given are the ones to look in from now on
+        if (lin_conf.getSegmentDirs().length > 0 && !mode.equals("r")) {
+            storeDirs(lin_conf.getFilename(), dirs);
+        }
+        if (create) {
+            // segments of an older table would be picked up on the next open
+            removeSegments(dirs, name);
+            return;
+        }
+        for (int k = 0; (long) k * seg_blocks < pool; k++) {
+            File f = find("p", k);
+            if (f == null) {
+                throw new FileNotFoundException("Missing segment " + name + ".p" + k);
+            }
+            prim_f.add(f);
+            prim.add(new RandomAccessFile(f, mode));
+        }
+        this.pool = pool;
+        // the overflow segments tell the overflow blocks, even if the header is behind
+        for (int k = 0; find("o", k) != null; k++) {
+            File f = find("o", k);
+            ovf_f.add(f);
+            ovf.add(new RandomAccessFile(f, mode));
+            ovf_len += f.length();
+        }
+    }
+
+    /**
+     * Find an existing segment in the segment directories
+     *
+     * @param kind "p" for primary and "o" for overflow segments.
+     * @param k    number of the segment.
+     * @return the segment file, null if there is none.
+     */
+    private File find(String kind, int k) {
+        return (find(dirs, name, kind, k));
+    }
+
+    /**
+     * Find an existing segment of a table in the given directories
+     *
+     * @param dirs the directories.
+     * @param name name of the table file.
+     * @param kind "p" for primary and "o" for overflow segments.
+     * @param k    number of the segment.
+     * @return the segment file, null if there is none.
+     */
+    private static File find(File[] dirs, String name, String kind, int k) {
+        for (File dir : dirs) {
+            File f = new File(dir, name + "." + kind + k);
+            if (f.exists()) {
+                return (f);
+            }
+        }
+        return (null);
+    }
+
+    /**
+     * Return the file keeping the segment directories of a table
+     *
+     * @param fname file of the table.
+     * @return the directories file.
+     */
+    static File dirsFile(String fname) {
+        return (new File(fname + ".segs"));
+    }
+
+    /**
+     * Read the segment directories kept for a table
+     *
+     * @param fname file of the table.
+     * @return the directories, none if they are not kept.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private static String[] storedDirs(String fname) throws IOException {
+        File f = dirsFile(fname);
+        if (!f.exists()) {
+            return (new String[0]);
+        }
+        List<String> dirs = new ArrayList<>();
+        for (String line : Files.readAllLines(f.toPath(), StandardCharsets.UTF_8)) {
+            if (!line.isEmpty()) {
+                dirs.add(line);
+            }
+        }
+        return (dirs.toArray(new String[0]));
+    }
+
+    /**
+     * Keep the segment directories of a table, as absolute paths, replacing
+     * the ones kept before atomically
+     *
+     * @param fname file of the table.
+     * @param dirs  the directories.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private static void storeDirs(String fname, File[] dirs) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (File dir : dirs) {
+            sb.append(dir.getAbsolutePath()).append('\n');
+        }
+        File f = dirsFile(fname),
+                tmp = new File(f.getPath() + ".tmp");
+        Files.write(tmp.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Remove the segments of a table, looked up in the directories kept for
+     * it (or next to the table file), and the directories file; e.g. once
+     * the table is replaced by a single file.
+     *
+     * @param fname file of the table.
+     * @throws IOException is thrown when a segment cannot be removed.
+     */
+    static void removeSegments(String fname) throws IOException {
+        File table = new File(fname).getAbsoluteFile();
+        String stored[] = storedDirs(fname);
+        File dirs[] = new File[Math.max(1, stored.length)];
+        for (int i = 0; i < dirs.length; i++) {
+            dirs[i] = stored.length > 0 ? new File(stored[i]) : table.getParentFile();
+        }
+        removeSegments(dirs, table.getName());
+        Files.deleteIfExists(dirsFile(fname).toPath());
+    }
+
+    /**
+     * Remove the segments of a table from the given directories
+     *
+     * @param dirs the directories.
+     * @param name name of the table file.
+     * @throws IOException is thrown when a segment cannot be removed.
+     */
+    private static void removeSegments(File[] dirs, String name) throws IOException {
+        for (String kind : new String[]{"p", "o"}) {
+            for (int k = 0; find(dirs, name, kind, k) != null; k++) {
+                File f = find(dirs, name, kind, k);
+                if (!f.delete()) {
+                    throw new IOException("Couldn't remove old segment " + f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create an empty segment, in the directory whose turn it is (created if missing)
+     *
+     * @param kind  "p" for primary and "o" for overflow segments.
+     * @param k     number of the segment.
+     * @param len   initial length in bytes (zeroed).
+     * @param files the list of segment files to add it to.
+     * @return the opened segment.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private RandomAccessFile create(String kind, int k, long len, List<File> files) throws IOException {
+        File f = new File(dirs[k % dirs.length], name + "." + kind + k);
+        Files.createDirectories(f.getParentFile().toPath());
+        RandomAccessFile seg = new RandomAccessFile(f, mode);
+        seg.setLength(0L);
+        seg.setLength(len);
+        files.add(f);
+        return (seg);
+    }
+
+    /**
+     * Close and remove the last segment of a list
+     *
+     * @param segs  the segments.
+     * @param files their files.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void dropLast(List<RandomAccessFile> segs, List<File> files) throws IOException {
+        segs.remove(segs.size() - 1).close();
+        File f = files.remove(files.size() - 1);
+        if (!f.delete()) {
+            throw new IOException("Couldn't remove segment " + f);
+        }
+    }
+
+    /**
+     * Return the segment holding a position past the header
+     *
+     * @param p the position.
+     * @return the primary segment number, or -(overflow segment number) - 1.
+     */
+    private int segmentOf(long p) {
+        long blk = (p - hdr) / bpb;
+        return (blk < pool ? (int) (blk / seg_blocks) : (int) (-(blk - pool) / seg_blocks - 1));
+    }
+
+    /**
+     * Return the offset of a position past the header in its segment
+     *
+     * @param p the position.
+     * @return the offset in the segment.
+     */
+    private long offsetIn(long p) {
+        long blk = (p - hdr) / bpb;
+        return (((blk < pool ? blk : blk - pool) % seg_blocks) * bpb + (p - hdr) % bpb);
+    }
+
+    /**
+     * Return the bytes from a position past the header up to the end of its
+     * segment, or of its area (primary or overflow blocks) if that comes first
+     *
+     * @param p the position.
+     * @return the bytes left.
+     */
+    private long bytesLeft(long p) {
+        long ovf_start = hdr + (long) pool * bpb;
+        return (Math.min(seg_bytes - offsetIn(p),
+                p < ovf_start ? ovf_start - p : ovf_start + ovf_len - p));
+    }
+
+    /**
+     * Return a segment, as numbered by {@link #segmentOf(long)}
+     *
+     * @param s the segment number.
+     * @return the segment.
+     */
+    private RandomAccessFile segment(int s) {
+        return (s >= 0 ? prim.get(s) : ovf.get(-s - 1));
+    }
+
+    /**
+     * Set the number of primary blocks; new blocks come zeroed and are placed
+     * before the overflow blocks, while blocks dropped are cleared (or have
+     * their segment removed), in both cases without moving the overflow blocks.
+     *
+     * @param blocks the number of primary blocks.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    synchronized void setPool(int blocks) throws IOException {
+        int keep = (int) (((long) blocks + seg_blocks - 1) / seg_blocks);
+        while (prim.size() < keep) {
+            prim.add(create("p", prim.size(), seg_bytes, prim_f));
+            if (lin_perf != null) {
+                lin_perf.recordSyscall();
+            }
+        }
+        while (prim.size() > keep) {
+            dropLast(prim, prim_f);
+        }
+        // the slots left behind in the last segment come back empty
+        if (blocks < pool && blocks % seg_blocks != 0) {
+            long from = (long) (blocks % seg_blocks) * bpb,
+                    to = Math.min(pool - (keep - 1L) * seg_blocks, seg_blocks) * bpb;
+            byte zeros[] = new byte[(int) Math.min(to - from, 64 * 1024)];
+            RandomAccessFile seg = prim.get(keep - 1);
+            seg.seek(from);
+            for (long left = to - from; left > 0; left -= zeros.length) {
+                seg.write(zeros, 0, (int) Math.min(left, zeros.length));
+                if (lin_perf != null) {
+                    lin_perf.recordWrite((int) Math.min(left, zeros.length));
+                }
+            }
+        }
+        pool = blocks;
+    }
+
+    /**
+     * Set the bytes of overflow blocks, creating, extending, truncating or
+     * removing overflow segments (at the end only)
+     *
+     * @param bytes the bytes of overflow blocks.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void setOverflowLength(long bytes) throws IOException {
+        int need = (int) ((bytes + seg_bytes - 1) / seg_bytes),
+                from = Math.max(0, Math.min(ovf.size(), need) - 1);
+        while (ovf.size() > need) {
+            dropLast(ovf, ovf_f);
+        }
+        while (ovf.size() < need) {
+            ovf.add(create("o", ovf.size(), 0L, ovf_f));
+        }
+        // only the segments at the old and new ends change
+        for (int k = from; k < need; k++) {
+            long len = Math.min(seg_bytes, bytes - k * seg_bytes);
+            if (ovf.get(k).length() != len) {
+                ovf.get(k).setLength(len);
+            }
+            if (lin_perf != null) {
+                lin_perf.recordSyscall();
+            }
+        }
+        ovf_len = bytes;
+    }
+
+    /**
+     * Set the length of the table; lengths reaching past the primary blocks
+     * set the overflow blocks, shorter ones drop the overflow blocks and the
+     * primary blocks (and header bytes) past them.
+     *
+     * @param newLength the new length.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    @Override
+    public synchronized void setLength(long newLength) throws IOException {
+        long ovf_start = hdr + (long) pool * bpb;
+        if (newLength < ovf_start) {
+            setOverflowLength(0L);
+            setPool((int) (Math.max(0L, newLength - hdr) / bpb));
+            super.setLength(Math.min(newLength, hdr));
+        } else {
+            if (super.length() < hdr) {
+                super.setLength(hdr);
+            }
+            setOverflowLength(newLength - ovf_start);
+        }
+        if (lin_perf != null) {
+            lin_perf.recordSyscall();
+        }
+    }
+
+    @Override
+    public long length() {
+        return (hdr + (long) pool * bpb + ovf_len);
+    }
+
+    @Override
+    public void seek(long pos) {
+        this.pos = pos;
+    }
+
+    @Override
+    public long getFilePointer() {
+        return (pos);
+    }
+
+    @Override
+    public int read() throws IOException {
+        return (read(one_buf, 0, 1) < 0 ? -1 : one_buf[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return (read(b, 0, b.length));
+    }
+
+    /**
+     * Read from the current position, up to the end of the header or segment
+     * it falls in
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n;
+        if (len == 0) {
+            return (0);
+        }
+        if (pos < hdr) {
+            super.seek(pos);
+            n = super.read(b, off, (int) Math.min(len, hdr - pos));
+        } else if (pos >= length()) {
+            return (-1);
+        } else {
+            RandomAccessFile seg = segment(segmentOf(pos));
+            seg.seek(offsetIn(pos));
+            n = seg.read(b, off, (int) Math.min(len, bytesLeft(pos)));
+        }
+        if (lin_perf != null) {
+            lin_perf.recordSyscall();
+            lin_perf.recordRead(n < 0 ? 0 : n);
+        }
+        if (n > 0) {
+            pos += n;
+        }
+        return (n);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        one_buf[0] = (byte) b;
+        write(one_buf, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    /**
+     * Write at the current position, across segments if need be; writes past
+     * the end add overflow blocks.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (pos >= hdr && pos + len > length()) {
+            setLength(pos + len);
+        }
+        while (len > 0) {
+            int n;
+            if (pos < hdr) {
+                n = (int) Math.min(len, hdr - pos);
+                super.seek(pos);
+                super.write(b, off, n);
+            } else {
+                RandomAccessFile seg = segment(segmentOf(pos));
+                n = (int) Math.min(len, bytesLeft(pos));
+                seg.seek(offsetIn(pos));
+                seg.write(b, off, n);
+            }
+            if (lin_perf != null) {
+                lin_perf.recordSyscall();
+                lin_perf.recordWrite(n);
+            }
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Write a buffer at the given position (past the header and before the
+     * end), as {@link FileChannel#write(ByteBuffer, long)} does; it does not
+     * use the current position, so disjoint ranges can be written from many
+     * threads at once.
+     *
+     * @param src the bytes to write.
+     * @param p   the position.
+     * @return the number of bytes written.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    int write(ByteBuffer src, long p) throws IOException {
+        int done = 0;
+        while (src.hasRemaining()) {
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + (int) Math.min(src.remaining(), bytesLeft(p)));
+            int n = segment(segmentOf(p)).getChannel().write(part, offsetIn(p));
+            if (lin_perf != null) {
+                lin_perf.recordWrite(n);
+            }
+            src.position(src.position() + n);
+            p += n;
+            done += n;
+        }
+        return (done);
+    }
+
+    /**
+     * Map every segment read only, see {@link #mappedInt(long)}
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    void map() throws IOException {
+        prim_map = new MappedByteBuffer[prim.size()];
+        for (int k = 0; k < prim_map.length; k++) {
+            prim_map[k] = prim.get(k).getChannel().map(FileChannel.MapMode.READ_ONLY, 0, seg_bytes);
+        }
+        ovf_map = new MappedByteBuffer[ovf.size()];
+        for (int k = 0; k < ovf_map.length; k++) {
+            FileChannel ch = ovf.get(k).getChannel();
+            ovf_map[k] = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+    }
+
+    /**
+     * Read an int of a block from the mappings; absolute gets only, so this
+     * can be called from many threads at once.
+     *
+     * @param p the position (past the header).
+     * @return the int stored there.
+     */
+    int mappedInt(long p) {
+        int s = segmentOf(p);
+        return ((s >= 0 ? prim_map[s] : ovf_map[-s - 1]).getInt((int) offsetIn(p)));
+    }
+
+    /**
+     * Sync the table file and every segment
+     *
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    synchronized void force() throws IOException {
+        getChannel().force(false);
+        for (RandomAccessFile seg : prim) {
+            seg.getChannel().force(false);
+        }
+        for (RandomAccessFile seg : ovf) {
+            seg.getChannel().force(false);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (RandomAccessFile seg : prim) {
+            seg.close();
+        }
+        for (RandomAccessFile seg : ovf) {
+            seg.close();
+        }
+        prim_map = null;
+        ovf_map = null;
+        super.close();
+    }
+}
@@ -0,0 +1,138 @@
+package lhash;
+
+import java.util.Arrays;
+
+/**
+ * A group of inserts and deletes applied to a {@link LinearHash} at once, see
+ * {@link LinearHash#write(WriteBatch)}; a key inserted and deleted within the
+ * same batch ends up as its last operation left it.
+ *
+ * <pre>
+ * lh.write(new WriteBatch()
+ *         .insertKey(1)
+ *         .insertKey(2)
+ *         .deleteKey(3));
+ * </pre>
+ */
+public class WriteBatch {
+
+    private int keys[];         // key of each operation
+    private boolean ins[];      // true for inserts, false for deletes
+    private int size;           // operations held
+
+    /**
+     * Create an empty batch
+     */
+    public WriteBatch() {
+        this(16);
+    }
+
+    /**
+     * Create an empty batch, with room for the given number of operations
+     *
+     * @param capacity operations held before growing.
+     */
+    public WriteBatch(int capacity) {
+        this.keys = new int[Math.max(1, capacity)];
+        this.ins = new boolean[keys.length];
+    }
+
+    /**
+     * Add an operation
+     *
+     * @param val    the key.
+     * @param insert true for an insert, false for a delete.
+     */
+    private void add(int val, boolean insert) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, 2 * size);
+            ins = Arrays.copyOf(ins, 2 * size);
+        }
+        keys[size] = val;
+        ins[size++] = insert;
+    }
+
+    /**
+     * Add an insert to the batch
+     *
+     * @param val the key to insert.
+     * @return this batch.
+     */
+    public WriteBatch insertKey(int val) {
+        add(val, true);
+        return (this);
+    }
+
+    /**
+     * Add a delete to the batch
+     *
+     * @param val the key to delete.
+     * @return this batch.
+     */
+    public WriteBatch deleteKey(int val) {
+        add(val, false);
+        return (this);
+    }
+
+    /**
+     * Return the number of operations in the batch
+     *
+     * @return the number of operations.
+     */
+    public int size() {
+        return (size);
+    }
+
+    /**
+     * Return the key of an operation
+     *
+     * @param i index of the operation, in the order they were added.
+     * @return the key.
+     */
+    int keyAt(int i) {
+        return (keys[i]);
+    }
+
+    /**
+     * Check if an operation is an insert
+     *
+     * @param i index of the operation, in the order they were added.
+     * @return true for an insert, false for a delete.
+     */
+    boolean isInsert(int i) {
+        return (ins[i]);
+    }
+
+    /**
+     * Drop all operations, so that the batch can be reused
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Reduce the batch to the last operation on each key, in ascending key order
+     *
+     * @param r_keys destination of the keys (room for {@link #size()} of them).
+     * @param r_ins  destination of the operations, true for inserts.
+     * @return the number of distinct keys.
+     */
+    int resolve(int[] r_keys, boolean[] r_ins) {
+        long order[] = new long[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = ((long) keys[i] << 32) | i;
+        }
+        Arrays.sort(order);
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            int idx = (int) order[i];
+            // only the last operation of a key is kept
+            if (i + 1 < size && keys[(int) order[i + 1]] == keys[idx]) {
+                continue;
+            }
+            r_keys[n] = keys[idx];
+            r_ins[n++] = ins[idx];
+        }
+        return (n);
+    }
+}
@@ -2,7 +2,38 @@ package lhash;
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class LHashTest {
     private String o_fname = "lin_hash_file.bin";
@@ -90,4 +121,1300 @@ public class LHashTest {
 
         s_file.commitFile();
     }
-}
\ No newline at end of file
+
+    /**
+     * Test the page aligned layout, including reopening the file with a
+     * different configuration.
+     *
+     * @throws Exception is thrown when an I/O error is detected.
+     */
+    @Test
+    public void testLinearHash_PageAligned() throws Exception {
+        int pageSize = 4096;
+        String p_fname = "p_" + o_fname;
+
+        LinearHash p_file = new LinearHash.Builder(p_fname)
+                .pageSize(pageSize)
+                .initialPool(initial_pool)
+                .balanceFactors(0.8f, 0.5f)
+                .build();
+
+        // INSERTS
+
+        for (int i = 0; i < 4 * key_cnt; i++) {
+            assertTrue(p_file.insertKey(i));
+        }
+        p_file.commitFile();
+
+        // every block lives in its own page, right after a page long header
+        assertEquals(0, new File(p_fname).length() % pageSize);
+
+        // REOPEN (the header has the final say on the layout)
+
+        p_file = new LinearHash(p_fname, keysPerBlock,
+                initial_pool, 0.8f, 0.5f, false, epoch_thresh);
+        for (int i = 0; i < 4 * key_cnt; i++) {
+            assertTrue(p_file.contains(i));
+        }
+        assertFalse(p_file.contains(4 * key_cnt));
+        assertEquals(4 * key_cnt, p_file.getStats().getKeyCount());
+
+        // DELETES
+
+        for (int i = 0; i < 4 * key_cnt; i++) {
+            assertTrue(p_file.deleteKey(i));
+        }
+        p_file.commitFile();
+
+        // the keys per block set last bring back the packed layout
+        p_file = new LinearHash.Builder(p_fname)
+                .pageSize(pageSize)
+                .keysPerBlock(16)
+                .initialPool(initial_pool)
+                .build();
+        for (int i = 0; i < key_cnt; i++) {
+            assertTrue(p_file.insertKey(i));
+        }
+        p_file.commitFile();
+        p_file = new LinearHash.Builder(p_fname).overrideFile(false).build();
+        assertFalse(p_file.getConfiguration().isPageAligned());
+        assertEquals(16, p_file.getConfiguration().getKeysPerBlock());
+        for (int i = 0; i < key_cnt; i++) {
+            assertTrue(p_file.contains(i));
+        }
+        assertEquals(key_cnt, p_file.getStats().getKeyCount());
+        p_file.commitFile();
+    }
+
+    /**
+     * Test multi-key fetches against single key ones, using small blocks so
+     * that many keys sit in overflow blocks.
+     *
+     * @throws Exception is thrown when an I/O error is detected.
+     */
+    @Test
+    public void testLinearHash_MultiGet() throws Exception {
+        LinearHash m_file = new LinearHash(("m_" + o_fname), 16,
+                initial_pool, 0.9f, 0.5f, true, epoch_thresh);
+
+        // INSERTS (even keys only, odd ones are misses)
+
+        for (int i = 0; i < key_cnt; i++) {
+            m_file.insertKey(2 * r.nextInt(rnd_range));
+        }
+
+        // FETCHES
+
+        int batch[] = new int[500];
+        for (int b = 0; b < 10; b++) {
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = r.nextInt(2 * rnd_range);
+            }
+            boolean found[] = m_file.fetchKeys(batch);
+            int hits = 0;
+            for (int i = 0; i < batch.length; i++) {
+                assertEquals(m_file.contains(batch[i]), found[i]);
+                hits += found[i] ? 1 : 0;
+            }
+            assertEquals(hits, m_file.fetchKeys(batch, found));
+        }
+
+        m_file.commitFile();
+    }
+
+    /**
+     * Test a single long overflow chain, with the chain pages read both
+     * serially and in parallel, including reopening the file (where the
+     * chain directory is rebuilt from the block headers).
+     *
+     * @throws Exception is thrown when an I/O error is detected.
+     */
+    @Test
+    public void testLinearHash_LongChains() throws Exception {
+        int stride = 1024 * initial_pool, keys = 400;
+        String c_fname = "c_" + o_fname;
+
+        for (int threads = 0; threads <= 4; threads += 4) {
+            // all keys hash to the first block, so they end up in one chain
+            LinearHash c_file = new LinearHash.Builder(c_fname)
+                    .keysPerBlock(16)
+                    .initialPool(initial_pool)
+                    .balanceFactors(0.9f, 0.5f)
+                    .chainPrefetch(threads)
+                    .build();
+
+            // INSERTS
+
+            for (int i = 0; i < keys; i++) {
+                assertTrue(c_file.insertKey(i * stride));
+            }
+            assertFalse(c_file.insertKey(0));
+            assertTrue(c_file.getStats().getOverflowBlocks() >= keys / 16 - 1);
+            c_file.commitFile();
+
+            // REOPEN
+
+            c_file = new LinearHash.Builder(c_fname)
+                    .keysPerBlock(16)
+                    .initialPool(initial_pool)
+                    .balanceFactors(0.9f, 0.5f)
+                    .overrideFile(false)
+                    .chainPrefetch(threads)
+                    .build();
+
+            // FETCHES
+
+            for (int i = 0; i < keys; i++) {
+                assertTrue(c_file.contains(i * stride));
+            }
+            assertFalse(c_file.contains(keys * stride));
+
+            // DELETES (from the middle of the chain first)
+
+            for (int i = keys / 2; i < keys; i++) {
+                assertTrue(c_file.deleteKey(i * stride));
+            }
+            for (int i = 0; i < keys; i++) {
+                assertEquals(i < keys / 2, c_file.contains(i * stride));
+            }
+            for (int i = 0; i < keys / 2; i++) {
+                assertTrue(c_file.deleteKey(i * stride));
+            }
+            assertEquals(0, c_file.getStats().getOverflowBlocks());
+            c_file.commitFile();
+        }
+    }
+
+    /**
+     * Test the read only mode; the table is built (with splits), then queried
+     * by many threads at once and finally replaced by a newer build.
+     *
+     * @throws Exception is thrown when an I/O error is detected.
+     */
+    @Test
+    public void testLinearHash_ReadOnly() throws Exception {
+        String r_fname = "r_" + o_fname, n_fname = "n_" + o_fname;
+
+        LinearHash w_file = new LinearHash(r_fname, keysPerBlock,
+                initial_pool, 0.8f, 0.5f, true, epoch_thresh);
+        for (int i = 0; i < key_cnt; i++) {
+            w_file.insertKey(2 * i);
+        }
+        w_file.commitFile();
+
+        // READ ONLY (the hash state comes from the header)
+
+        final LinearHash r_file = new LinearHash.Builder(r_fname)
+                .readOnly()
+                .checkpointInterval(1)
+                .build();
+        assertTrue(r_file.isReadOnly());
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        Future<?> readers[] = new Future<?>[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = pool.submit(() -> {
+                for (int i = 0; i < 2 * key_cnt; i++) {
+                    assertEquals(i % 2 == 0, r_file.contains(i));
+                }
+                return (null);
+            });
+        }
+        for (Future<?> f : readers) {
+            f.get();
+        }
+        pool.shutdown();
+        // the lookups are all counted, and no epochs are kept
+        assertEquals(4L * 2 * key_cnt, r_file.getStats().getFetches());
+        assertEquals(0, r_file.getBlockManager().getPerfTrackerInstance().getEpochCount());
+        assertEquals(2, r_file.fetchKeys(new int[]{0, 1, 2}, new boolean[3]));
+        try {
+            r_file.insertKey(1);
+            fail("insert on a read only table");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        assertFalse(r_file.isStale());
+
+        // REPLACE (a newer build is renamed over the file)
+
+        w_file = new LinearHash(n_fname, keysPerBlock,
+                initial_pool, 0.8f, 0.5f, true, epoch_thresh);
+        w_file.insertKey(1);
+        w_file.commitFile();
+        Files.move(new File(n_fname).toPath(), new File(r_fname).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        assertTrue(r_file.isStale());
+        // the old contents are still served until it is reopened
+        assertTrue(r_file.contains(2));
+        r_file.commitFile();
+    }
+
+    /**
+     * Test exporting a table and importing it into one with a different
+     * configuration; the imported table has to behave as one built by inserts.
+     *
+     * @throws Exception is thrown when an I/O error is detected.
+     */
+    @Test
+    public void testLinearHash_ExportImport() throws Exception {
+        String e_fname = "e_" + o_fname, i_fname = "i_" + o_fname;
+
+        LinearHash e_file = new LinearHash(e_fname, keysPerBlock,
+                initial_pool, 0.8f, 0.5f, true, epoch_thresh);
+        for (int i = 0; i < 4 * key_cnt; i++) {
+            e_file.insertKey(i - key_cnt);
+        }
+
+        // EXPORT
+
+        ByteArrayOutputStream snap = new ByteArrayOutputStream();
+        assertEquals(4 * key_cnt, e_file.exportTo(snap));
+        e_file.commitFile();
+        assertTrue(snap.size() * 4 < new File(e_fname).length());
+
+        // IMPORT (with other settings)
+
+        LinearHash i_file = new LinearHash.Builder(i_fname)
+                .keysPerBlock(16)
+                .initialPool(initial_pool)
+                .balanceFactors(0.9f, 0.5f)
+                .importFrom(new ByteArrayInputStream(snap.toByteArray()));
+        assertEquals(4 * key_cnt, i_file.getStats().getKeyCount());
+        for (int i = 0; i < 4 * key_cnt; i++) {
+            assertTrue(i_file.contains(i - key_cnt));
+        }
+        assertFalse(i_file.contains(3 * key_cnt));
+
+        // the table carries on from the imported state
+        for (int i = 3 * key_cnt; i < 4 * key_cnt; i++) {
+            assertTrue(i_file.insertKey(i));
+        }
+        for (int i = 0; i < 5 * key_cnt; i++) {
+            assertTrue(i_file.deleteKey(i - key_cnt));
+        }
+        assertEquals(0, i_file.getStats().getKeyCount());
+        i_file.commitFile();
+
+        // CORRUPTED SNAPSHOT
+
+        byte bad[] = snap.toByteArray();
+        bad[bad.length / 2] ^= 0x10;
+        try {
+            new LinearHash.Builder(i_fname).importFrom(new ByteArrayInputStream(bad));
+            fail("corrupted snapshot imported");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test rebuilding a table in place into another layout, with several
+     * threads and partitions.
+     *
+     * @throws Exception is thrown when an I/O error is detected.
+     */
+    @Test
+    public void testLinearHash_Rebuild() throws Exception {
+        String b_fname = "b_" + o_fname;
+
+        LinearHash b_file = new LinearHash(b_fname, 16,
+                initial_pool, 0.95f, 0.5f, true, epoch_thresh);
+        for (int i = 0; i < key_cnt; i++) {
+            b_file.insertKey(2 * i - key_cnt);
+        }
+        int ovf = b_file.getStats().getOverflowBlocks();
+        b_file.commitFile();
+
+        // REBUILD (in place)
+
+        assertEquals(key_cnt, new LinearHashRebuild(b_fname)
+                .keysPerBlock(64)
+                .balanceFactors(0.7f, 0.4f)
+                .threads(3)
+                .maxKeysInMemory(key_cnt / 10)
+                .run(b_fname));
+        assertFalse(new File(b_fname + ".rebuild").exists());
+
+        b_file = new LinearHash.Builder(b_fname).overrideFile(false).build();
+        assertEquals(key_cnt, b_file.getStats().getKeyCount());
+        assertTrue(b_file.getStats().getOverflowBlocks() < ovf);
+        for (int i = 0; i < key_cnt; i++) {
+            assertTrue(b_file.contains(2 * i - key_cnt));
+            assertFalse(b_file.contains(2 * i - key_cnt + 1));
+        }
+        // the new settings stick
+        for (int i = 0; i < key_cnt; i++) {
+            assertTrue(b_file.deleteKey(2 * i - key_cnt));
+        }
+        assertEquals(0, b_file.getStats().getKeyCount());
+        b_file.commitFile();
+    }
+
+    @Test
+    public void testLinearHash_ExpectedKeys() throws Exception {
+        String x_fname = "x_" + o_fname;
+
+        LinearHash x_file = new LinearHash.Builder(x_fname)
+                .keysPerBlock(keysPerBlock)
+                .initialPool(initial_pool)
+                .balanceFactors(0.8f, 0.5f)
+                .expectedKeys(key_cnt)
+                .build();
+        int pool = x_file.getStats().getPoolSize();
+        long size = new File(x_fname).length();
+        assertTrue(pool > initial_pool);
+        // the blocks are there from the start
+        assertTrue(size > (long) pool * keysPerBlock * 4);
+
+        // no splits up to the expected count
+        for (int i = 0; i < key_cnt; i++) {
+            assertTrue(x_file.insertKey(i));
+        }
+        assertEquals(0, x_file.getStats().getSplits());
+        assertEquals(pool, x_file.getStats().getPoolSize());
+        for (int i = 0; i < key_cnt; i++) {
+            assertTrue(x_file.contains(i));
+        }
+        x_file.commitFile();
+
+        // the reserved blocks are kept when reopened and emptied
+        x_file = new LinearHash.Builder(x_fname).overrideFile(false).build();
+        for (int i = 0; i < key_cnt; i++) {
+            assertTrue(x_file.deleteKey(i));
+        }
+        assertEquals(0, x_file.getStats().getMerges());
+        assertEquals(pool, x_file.getStats().getPoolSize());
+        // and past the expected count it grows as usual
+        for (int i = 0; i < 2 * key_cnt; i++) {
+            assertTrue(x_file.insertKey(i));
+        }
+        assertTrue(x_file.getStats().getSplits() > 0);
+        for (int i = 0; i < 2 * key_cnt; i++) {
+            assertTrue(x_file.contains(i));
+        }
+        x_file.commitFile();
+    }
+
+    @Test
+    public void testLinearHash_BucketDirectory() throws Exception {
+        String d_fname = "d_" + o_fname;
+
+        LinearHash d_file = new LinearHash(d_fname, keysPerBlock,
+                initial_pool, 0.8f, 0.5f, true, epoch_thresh);
+        // empty buckets are never read
+        long read = d_file.getStats().getBytesRead();
+        for (int i = 0; i < key_cnt; i++) {
+            assertFalse(d_file.contains(i));
+            assertFalse(d_file.deleteKey(i));
+        }
+        assertEquals(0, d_file.getStats().getIOCount());
+        assertEquals(read, d_file.getStats().getBytesRead());
+
+        for (int i = 0; i < key_cnt; i++) {
+            d_file.insertKey(i);
+        }
+        for (int i = 0; i < key_cnt / 2; i++) {
+            assertTrue(d_file.deleteKey(i));
+        }
+        d_file.commitFile();
+
+        // the directory is rebuilt from the file
+        d_file = new LinearHash.Builder(d_fname).overrideFile(false).build();
+        for (int i = 0; i < key_cnt; i++) {
+            assertEquals(i >= key_cnt / 2, d_file.contains(i));
+        }
+        for (int i = 0; i < key_cnt / 2; i++) {
+            assertTrue(d_file.insertKey(i));
+        }
+        for (int i = 0; i < key_cnt; i++) {
+            assertTrue(d_file.deleteKey(i));
+        }
+        assertEquals(0, d_file.getStats().getKeyCount());
+        d_file.commitFile();
+    }
+
+    @Test
+    public void testLinearHash_KeyCache() throws Exception {
+        String k_fname = "k_" + o_fname;
+        int hot = 64;
+
+        LinearHash k_file = new LinearHash.Builder(k_fname)
+                .keysPerBlock(keysPerBlock)
+                .initialPool(initial_pool)
+                .keyCache(4 * hot)
+                .build();
+        for (int i = 0; i < key_cnt; i++) {
+            k_file.insertKey(2 * i);
+        }
+        // hot keys, stored and missing
+        for (int r = 0; r < 8; r++) {
+            for (int i = 0; i < hot; i++) {
+                assertEquals(i % 2 == 0, k_file.contains(i));
+            }
+        }
+        // a scan over all other keys (while the hot keys are still in use)
+        // does not push them out
+        for (int i = hot; i < 2 * key_cnt; i++) {
+            assertEquals(i % 2 == 0, k_file.contains(i));
+            assertEquals(i % 2 == 0, k_file.contains(i % hot));
+        }
+        long io = k_file.getStats().getIOCount();
+        for (int i = 0; i < hot; i++) {
+            assertEquals(i % 2 == 0, k_file.contains(i));
+        }
+        assertEquals(io, k_file.getStats().getIOCount());
+        assertTrue(k_file.getStats().getCacheHits() >= 8 * hot);
+        assertTrue(k_file.getStats().getCacheHitRatio() > 0);
+
+        // cached entries follow the inserts and deletes
+        assertTrue(k_file.deleteKey(0));
+        assertTrue(k_file.insertKey(1));
+        assertFalse(k_file.contains(0));
+        assertTrue(k_file.contains(1));
+        boolean found[] = k_file.fetchKeys(new int[]{0, 1, 2, 3, 2 * key_cnt});
+        assertArrayEquals(new boolean[]{false, true, true, false, false}, found);
+        k_file.commitFile();
+    }
+
+    @Test
+    public void testLinearHash_LazyDeletes() throws Exception {
+        String t_fname = "t_" + o_fname;
+
+        LinearHash t_file = new LinearHash.Builder(t_fname)
+                .keysPerBlock(keysPerBlock)
+                .initialPool(initial_pool)
+                .lazyDeletes(0)
+                .build();
+        for (int i = 0; i < key_cnt; i++) {
+            t_file.insertKey(i);
+        }
+        // the tombstone value is a key like any other
+        assertTrue(t_file.insertKey(Integer.MIN_VALUE));
+        assertFalse(t_file.insertKey(Integer.MIN_VALUE));
+        assertEquals(key_cnt + 1, t_file.getStats().getKeyCount());
+
+        for (int i = 0; i < key_cnt; i += 2) {
+            assertTrue(t_file.deleteKey(i));
+            assertFalse(t_file.deleteKey(i));
+        }
+        int dead = t_file.getStats().getTombstones();
+        assertTrue(dead > 0);
+        assertEquals(key_cnt / 2 + 1, t_file.getStats().getKeyCount());
+        for (int i = 0; i < key_cnt; i++) {
+            assertEquals(i % 2 == 1, t_file.contains(i));
+        }
+        // reinserted keys take the place of the tombstones
+        for (int i = 0; i < key_cnt / 4; i += 2) {
+            assertTrue(t_file.insertKey(i));
+        }
+        assertTrue(t_file.getStats().getTombstones() < dead);
+        t_file.commitFile();
+
+        // tombstones are kept track of once reopened, without asking for it
+        t_file = new LinearHash.Builder(t_fname).overrideFile(false).build();
+        for (int i = 0; i < key_cnt; i++) {
+            assertEquals(i % 2 == 1 || i < key_cnt / 4, t_file.contains(i));
+        }
+        assertTrue(t_file.contains(Integer.MIN_VALUE));
+        boolean found[] = t_file.fetchKeys(new int[]{Integer.MIN_VALUE, 0, 1, key_cnt - 2});
+        assertArrayEquals(new boolean[]{true, true, true, false}, found);
+
+        // sweeping compacts all buckets and frees the overflow blocks they no longer need
+        for (int i = 1; i < key_cnt; i += 2) {
+            assertTrue(t_file.deleteKey(i));
+        }
+        int ovf = t_file.getStats().getOverflowBlocks();
+        int freed = t_file.sweepTombstones();
+        assertEquals(0, t_file.getStats().getTombstones());
+        assertEquals(ovf - freed, t_file.getStats().getOverflowBlocks());
+        for (int i = 0; i < key_cnt; i++) {
+            assertEquals(i % 2 == 0 && i < key_cnt / 4, t_file.contains(i));
+        }
+        assertTrue(t_file.deleteKey(Integer.MIN_VALUE));
+        assertFalse(t_file.contains(Integer.MIN_VALUE));
+        t_file.commitFile();
+
+        // tables holding the tombstone value can turn lazy later on
+        t_file = new LinearHash.Builder(t_fname).keysPerBlock(keysPerBlock).build();
+        t_file.insertKey(Integer.MIN_VALUE);
+        t_file.insertKey(1);
+        t_file.commitFile();
+        t_file = new LinearHash.Builder(t_fname).overrideFile(false).lazyDeletes().build();
+        assertEquals(2, t_file.getStats().getKeyCount());
+        assertTrue(t_file.contains(Integer.MIN_VALUE));
+        assertTrue(t_file.deleteKey(1));
+        assertEquals(1, t_file.getStats().getTombstones());
+        t_file.commitFile();
+
+        // rebuilds keep lazy deletes, and the tombstone value out of the buckets
+        assertEquals(1, new LinearHashRebuild(t_fname).threads(2).run(t_fname));
+        t_file = new LinearHash.Builder(t_fname).overrideFile(false).build();
+        assertEquals(1, t_file.getStats().getKeyCount());
+        assertTrue(t_file.contains(Integer.MIN_VALUE));
+        assertTrue(t_file.insertKey(1));
+        assertTrue(t_file.deleteKey(1));
+        assertEquals(1, t_file.getStats().getTombstones());
+        assertTrue(t_file.contains(Integer.MIN_VALUE));
+        t_file.commitFile();
+
+        // the sweeps of epochs ending with lookups wait for the next write
+        t_file = new LinearHash.Builder(t_fname)
+                .keysPerBlock(16)
+                .initialPool(initial_pool)
+                .epochThreshold(1000)
+                .lazyDeletes()
+                .build();
+        for (int j = 1; j <= 64; j++) {
+            assertTrue(t_file.insertKey(j * initial_pool << 12));
+        }
+        for (int j = 1; j <= 40; j++) {
+            assertTrue(t_file.deleteKey(j * initial_pool << 12));
+        }
+        int chained = t_file.getStats().getOverflowBlocks();
+        for (int i = 0; i < 5000; i++) {
+            t_file.contains(i);
+        }
+        assertEquals(40, t_file.getStats().getTombstones());
+        assertEquals(chained, t_file.getStats().getOverflowBlocks());
+        assertTrue(t_file.insertKey(1));
+        assertTrue(t_file.getStats().getOverflowBlocks() < chained);
+        t_file.commitFile();
+    }
+
+    @Test
+    public void testLinearHash_WriteBatch() throws Exception {
+        String w_fname = "w_" + o_fname;
+
+        LinearHash w_file = new LinearHash.Builder(w_fname)
+                .keysPerBlock(keysPerBlock)
+                .initialPool(initial_pool)
+                .build();
+        WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < key_cnt; i++) {
+            batch.insertKey(i);
+        }
+        assertEquals(key_cnt, w_file.write(batch));
+        assertEquals(key_cnt, w_file.getStats().getKeyCount());
+        assertTrue(w_file.getStats().getLoadFactor() <= 0.8);
+
+        // only the last operation on each key counts
+        batch.clear();
+        for (int i = 0; i < key_cnt; i += 2) {
+            batch.deleteKey(i).insertKey(i).deleteKey(i);
+        }
+        batch.insertKey(key_cnt).insertKey(1);
+        assertEquals(key_cnt / 2 + 1, w_file.write(batch));
+        assertEquals(key_cnt / 2 + 1, w_file.getStats().getKeyCount());
+        for (int i = 0; i <= key_cnt; i++) {
+            assertEquals(i % 2 == 1 || i == key_cnt, w_file.contains(i));
+        }
+        assertEquals(0, w_file.write(new WriteBatch()));
+        // the records are kept until the blocks are synced
+        assertTrue(new File(w_fname + ".log").length() > 0);
+        w_file.checkpoint();
+        assertEquals(0, new File(w_fname + ".log").length());
+        w_file.commitFile();
+        assertFalse(new File(w_fname + ".log").exists());
+
+        // the logged batches that were not applied (or synced) are applied on open, in order
+        int keys[] = {-1, 1, key_cnt + 1};
+        boolean ins[] = {true, false, true};
+        BatchLog log = new BatchLog(w_fname);
+        log.append(keys, ins, keys.length);
+        log.append(new int[]{-1, key_cnt + 2}, new boolean[]{false, true}, 2);
+        w_file = new LinearHash.Builder(w_fname).overrideFile(false).build();
+        assertFalse(w_file.contains(-1));
+        assertFalse(w_file.contains(1));
+        assertTrue(w_file.contains(key_cnt + 1));
+        assertTrue(w_file.contains(key_cnt + 2));
+        assertEquals(key_cnt / 2 + 2, w_file.getStats().getKeyCount());
+        assertFalse(new File(w_fname + ".log").exists());
+        w_file.commitFile();
+    }
+
+    @Test
+    public void testLinearHash_Checkpoints() throws Exception {
+        String c_fname = "g_" + o_fname;
+
+        LinearHash c_file = new LinearHash.Builder(c_fname)
+                .keysPerBlock(keysPerBlock)
+                .initialPool(initial_pool)
+                .checkpointInterval(10)
+                .build();
+        for (int i = 0; i < key_cnt / 2; i++) {
+            c_file.insertKey(i);
+        }
+        c_file.checkpoint();
+        // changes after the checkpoint leave the header behind the blocks
+        for (int i = key_cnt / 2; i < key_cnt; i++) {
+            c_file.insertKey(i);
+        }
+        for (int i = 0; i < key_cnt; i += 4) {
+            c_file.deleteKey(i);
+        }
+        c_file.insertKey(key_cnt);
+        c_file.deleteKey(key_cnt);
+        // the timer makes the next operation past the interval take one
+        long ckpts = c_file.getStats().getCheckpoints();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (c_file.getStats().getCheckpoints() == ckpts && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+            c_file.contains(0);
+        }
+        assertTrue(c_file.getStats().getCheckpoints() > ckpts);
+        // a server takes them while the table is idle, once it was changed
+        c_file.checkpoint();
+        assertTrue(c_file.insertKey(key_cnt));
+        assertTrue(c_file.getBlockManager().isDirty());
+        ckpts = c_file.getStats().getCheckpoints();
+        LinearHashServer srv = new LinearHashServer(c_file, new InetSocketAddress("localhost", 0)).start();
+        try {
+            deadline = System.currentTimeMillis() + 5000;
+            while (c_file.getBlockManager().isDirty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertFalse(c_file.getBlockManager().isDirty());
+            assertTrue(c_file.getStats().getCheckpoints() > ckpts);
+        } finally {
+            srv.close();
+        }
+        // an open without a clean close in between recounts them
+        c_file.deleteKey(key_cnt);
+        LinearHash r_file = new LinearHash.Builder(c_fname).overrideFile(false).build();
+        assertEquals(key_cnt - key_cnt / 4, r_file.getStats().getKeyCount());
+        assertEquals(c_file.getStats().getOverflowBlocks(), r_file.getStats().getOverflowBlocks());
+        for (int i = 0; i <= key_cnt; i++) {
+            assertEquals(i % 4 != 0 && i < key_cnt, r_file.contains(i));
+        }
+        r_file.commitFile();
+        c_file.commitFile();
+    }
+
+    @Test
+    public void testLinearHash_Segments() throws Exception {
+        String g_fname = "h_" + o_fname;
+        File seg_dir = new File("h_segments");
+
+        LinearHash g_file = new LinearHash.Builder(g_fname)
+                .keysPerBlock(keysPerBlock)
+                .initialPool(initial_pool)
+                .segments(16, ".", seg_dir.getPath())
+                .build();
+        for (int i = 0; i < key_cnt; i++) {
+            assertTrue(g_file.insertKey(i));
+        }
+        for (int i = 0; i < key_cnt; i += 3) {
+            assertTrue(g_file.deleteKey(i));
+        }
+        int pool = g_file.getStats().getPoolSize(),
+                ovf = g_file.getStats().getOverflowBlocks();
+        g_file.commitFile();
+        // the primary blocks are spread over the directories, in turn
+        assertTrue(new File(g_fname + ".p0").exists());
+        assertTrue(new File(seg_dir, g_fname + ".p1").exists());
+        assertEquals(16L * (keysPerBlock * 4 + 8), new File(g_fname + ".p0").length());
+
+        // the layout is picked up on open, both for writing and read only
+        g_file = new LinearHash.Builder(g_fname).overrideFile(false).segments(1, ".", seg_dir.getPath()).build();
+        assertEquals(pool, g_file.getStats().getPoolSize());
+        assertEquals(ovf, g_file.getStats().getOverflowBlocks());
+        for (int i = 0; i < key_cnt; i++) {
+            assertEquals(i % 3 != 0, g_file.contains(i));
+        }
+        // multi-key fetches follow the overflow chains too; multiples of a
+        // large pool multiple all hash to the first bucket
+        int chained = 4 * keysPerBlock,
+                all[] = new int[key_cnt + chained];
+        for (int i = 0; i < key_cnt; i++) {
+            all[i] = i;
+        }
+        for (int j = 1; j <= chained; j++) {
+            all[key_cnt + j - 1] = j * initial_pool << 12;
+            assertTrue(g_file.insertKey(all[key_cnt + j - 1]));
+        }
+        assertTrue(g_file.getStats().getOverflowBlocks() > 0);
+        boolean found[] = g_file.fetchKeys(all);
+        for (int i = 0; i < all.length; i++) {
+            assertEquals(i >= key_cnt || i % 3 != 0, found[i]);
+        }
+        for (int j = key_cnt; j < all.length; j++) {
+            assertTrue(g_file.deleteKey(all[j]));
+        }
+        g_file.commitFile();
+        LinearHash r_file = new LinearHash.Builder(g_fname).readOnly().segments(1, ".", seg_dir.getPath()).build();
+        assertEquals(key_cnt - (key_cnt + 2) / 3, r_file.getStats().getKeyCount());
+        for (int i = 0; i < key_cnt; i++) {
+            assertEquals(i % 3 != 0, r_file.contains(i));
+        }
+        r_file.commitFile();
+        // the directories are kept, for tools opening the table by its file name
+        r_file = new LinearHash.Builder(g_fname).readOnly().build();
+        assertEquals(key_cnt - (key_cnt + 2) / 3, r_file.getStats().getKeyCount());
+        r_file.commitFile();
+
+        // rebuilt in place into a single file, the segments are removed
+        assertEquals(key_cnt - (key_cnt + 2) / 3, new LinearHashRebuild(g_fname).threads(2).run(g_fname));
+        assertFalse(new File(g_fname + ".p0").exists());
+        assertFalse(new File(seg_dir, g_fname + ".p1").exists());
+        assertFalse(SegmentedFile.dirsFile(g_fname).exists());
+        r_file = new LinearHash.Builder(g_fname).readOnly().build();
+        assertTrue(r_file.contains(1));
+        assertFalse(r_file.contains(3));
+        r_file.commitFile();
+
+        // a new table removes the segments of the old one
+        g_file = new LinearHash.Builder(g_fname).segments(16, ".", seg_dir.getPath()).build();
+        g_file.insertKey(1);
+        g_file.commitFile();
+        g_file = new LinearHash.Builder(g_fname).segments(16, ".", seg_dir.getPath()).build();
+        assertFalse(g_file.contains(1));
+        g_file.commitFile();
+        assertFalse(new File(seg_dir, g_fname + ".p3").exists());
+
+        // leave no segments behind
+        SegmentedFile.removeSegments(g_fname);
+        assertFalse(new File(g_fname + ".p0").exists());
+        assertTrue(seg_dir.delete());
+    }
+
+    @Test
+    public void testLinearHash_Workload() throws Exception {
+        String y_fname = "y_" + o_fname;
+
+        List<LinearHashWorkload.Phase> results = new LinearHashWorkload(
+                new LinearHash.Builder(y_fname).keysPerBlock(keysPerBlock).initialPool(initial_pool))
+                .records(key_cnt)
+                .mix(0.6, 0.2, 0.1, 0.1)
+                .batch(8)
+                .distribution("latest")
+                .threads(2)
+                .phases(50, 100, 2)
+                .run();
+        assertEquals(2, results.size());
+        for (LinearHashWorkload.Phase p : results) {
+            assertTrue(p.getOperations() > 0);
+            assertTrue(p.getIOPerOp() > 0.0);
+            long ops = 0;
+            for (String op : new String[] {"read", "insert", "delete", "multiget"}) {
+                ops += p.getLatency(op).getCount();
+            }
+            assertEquals(p.getOperations(), ops);
+        }
+
+        StringWriter csv = new StringWriter();
+        LinearHashWorkload.writeCsv(results, new PrintWriter(csv));
+        String lines[] = csv.toString().split("\n");
+        assertTrue(lines[0].startsWith("phase,op,count,throughput"));
+        assertTrue(lines[1].startsWith("1,all," + results.get(0).getOperations() + ","));
+        assertEquals(14, lines[2].split(",", -1).length);
+        StringWriter json = new StringWriter();
+        LinearHashWorkload.writeJson(results, new PrintWriter(json));
+        assertTrue(json.toString().contains("\"phase\": 2,"));
+
+        // the loaded table is committed and can be reopened
+        LinearHash y_file = new LinearHash.Builder(y_fname).overrideFile(false).build();
+        assertTrue(y_file.getStats().getKeyCount() > 0);
+        y_file.commitFile();
+    }
+
+    @Test
+    public void testLinearHash_PageSearch() throws Exception {
+        // every position of runs shorter and longer than the unrolled step
+        ByteBuffer buf = ByteBuffer.allocate(4 * 64);
+        for (int cnt = 0; cnt <= 20; cnt++) {
+            for (int j = 0; j < 64; j++) {
+                buf.putInt(4 * j, j < cnt ? 100 + j : -1);
+            }
+            for (int j = 0; j < cnt; j++) {
+                assertEquals(j, BlockManager.indexOf(buf, 0, 100 + j, cnt));
+                assertEquals(j - 1, BlockManager.indexOf(buf, 4, 100 + j, cnt - 1));
+            }
+            assertEquals(-1, BlockManager.indexOf(buf, 0, -1, cnt));
+            assertEquals(-1, BlockManager.indexOf(buf, 0, 100 + cnt, cnt));
+        }
+        // the first of duplicate values
+        buf.putInt(4 * 9, 105);
+        assertEquals(5, BlockManager.indexOf(buf, 0, 105, 20));
+
+        // large pages, on the file and mapped
+        String q_fname = "q_" + o_fname;
+        LinearHash q_file = new LinearHash.Builder(q_fname)
+                .keysPerBlock(1024)
+                .initialPool(8)
+                .build();
+        for (int i = 0; i < 4 * key_cnt; i++) {
+            assertTrue(q_file.insertKey(i * 7));
+        }
+        assertTrue(q_file.getStats().getOverflowBlocks() > 0);
+        for (int i = 0; i < 28 * key_cnt; i++) {
+            assertEquals(i % 7 == 0, q_file.contains(i));
+        }
+        q_file.commitFile();
+        LinearHash r_file = new LinearHash.Builder(q_fname).readOnly().build();
+        for (int i = 0; i < 28 * key_cnt; i++) {
+            assertEquals(i % 7 == 0, r_file.contains(i));
+        }
+        r_file.commitFile();
+    }
+
+    @Test
+    public void testLinearHash_Preallocation() throws Exception {
+        String j_fname = "j_" + o_fname;
+        int bpb = keysPerBlock * 4 + 8;
+
+        LinearHash j_file = new LinearHash.Builder(j_fname)
+                .keysPerBlock(keysPerBlock)
+                .initialPool(initial_pool)
+                .preallocate(64)
+                .checkpointInterval(60000)
+                .build();
+        for (int i = 0; i < key_cnt; i++) {
+            assertTrue(j_file.insertKey(i));
+        }
+        // the file is allocated ahead of its blocks, in whole steps
+        LinearHashStats stats = j_file.getStats();
+        assertEquals(stats.getAllocatedFileSize(), new File(j_fname).length());
+        assertTrue(stats.getAllocatedFileSize() >= stats.getFileSize());
+        assertEquals(0, (stats.getAllocatedFileSize() - (stats.getFileSize() -
+                (long) (stats.getPoolSize() + stats.getOverflowBlocks()) * bpb)) % (64L * bpb));
+        // and does not shrink on merges
+        for (int i = 0; i < key_cnt; i += 2) {
+            assertTrue(j_file.deleteKey(i));
+        }
+        assertTrue(j_file.getStats().getFileSize() < stats.getFileSize());
+        assertEquals(stats.getAllocatedFileSize(), j_file.getStats().getAllocatedFileSize());
+        j_file.checkpoint();
+
+        // a dirty file finds the end of its blocks in the preallocated space
+        for (int i = 0; i < key_cnt; i += 2) {
+            assertTrue(j_file.insertKey(key_cnt + i));
+        }
+        LinearHash r_file = new LinearHash.Builder(j_fname).overrideFile(false).build();
+        assertEquals(j_file.getStats().getKeyCount(), r_file.getStats().getKeyCount());
+        assertEquals(j_file.getStats().getOverflowBlocks(), r_file.getStats().getOverflowBlocks());
+        assertEquals(j_file.getStats().getFileSize(), r_file.getStats().getFileSize());
+        for (int i = 0; i < 2 * key_cnt; i++) {
+            assertEquals(i % 2 == (i < key_cnt ? 1 : 0), r_file.contains(i));
+        }
+        r_file.commitFile();
+
+        // the space is given back on commit, and the setting kept
+        long size = j_file.getStats().getFileSize();
+        j_file.commitFile();
+        assertEquals(size, new File(j_fname).length());
+        j_file = new LinearHash.Builder(j_fname).overrideFile(false).build();
+        assertEquals(size, j_file.getStats().getAllocatedFileSize());
+        for (int i = 2 * key_cnt; i < 3 * key_cnt; i++) {
+            assertTrue(j_file.insertKey(i));
+        }
+        assertTrue(j_file.getStats().getAllocatedFileSize() > j_file.getStats().getFileSize());
+        j_file.trimFile();
+        assertEquals(j_file.getStats().getFileSize(), new File(j_fname).length());
+        for (int i = 0; i < 3 * key_cnt; i++) {
+            assertEquals(i >= 2 * key_cnt || i % 2 == (i < key_cnt ? 1 : 0), j_file.contains(i));
+        }
+        j_file.commitFile();
+    }
+
+    @Test
+    public void testLinearHash_Server() throws Exception {
+        String v_fname = "v_" + o_fname;
+
+        LinearHash v_file = new LinearHash.Builder(v_fname)
+                .keysPerBlock(keysPerBlock)
+                .initialPool(initial_pool)
+                .build();
+        LinearHashServer srv = new LinearHashServer(v_file, new InetSocketAddress("localhost", 0)).start();
+        try (LinearHashClient a = new LinearHashClient(srv.getAddress());
+             LinearHashClient b = new LinearHashClient(srv.getAddress())) {
+            // pipelined inserts, answered in order
+            LinearHashClient.Pipeline p = a.pipeline();
+            for (int i = 0; i < key_cnt; i++) {
+                p.insertKey(i);
+            }
+            p.insertKey(0);
+            List<Object> res = p.sync();
+            assertEquals(key_cnt + 1, res.size());
+            for (int i = 0; i < key_cnt; i++) {
+                assertEquals(Boolean.TRUE, res.get(i));
+            }
+            assertEquals(Boolean.FALSE, res.get(key_cnt));
+            assertEquals(key_cnt, b.size());
+
+            // lookups, single and multi-key, mixed with updates
+            int keys[] = new int[2 * key_cnt];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = keys.length - i - 1;
+            }
+            res = b.pipeline()
+                    .contains(1)
+                    .fetchKeys(keys)
+                    .deleteKey(1)
+                    .contains(1)
+                    .fetchKeys(new int[0])
+                    .sync();
+            assertEquals(Boolean.TRUE, res.get(0));
+            boolean found[] = (boolean[]) res.get(1);
+            for (int i = 0; i < keys.length; i++) {
+                assertEquals(keys[i] < key_cnt, found[i]);
+            }
+            assertEquals(Boolean.TRUE, res.get(2));
+            assertEquals(Boolean.FALSE, res.get(3));
+            assertEquals(0, ((boolean[]) res.get(4)).length);
+            assertFalse(a.contains(1));
+
+            // a pipeline with more responses than the server queues before it stops reading
+            p = a.pipeline();
+            int lookups = 1 << 22;
+            for (int i = 0; i < lookups; i++) {
+                p.contains(i % keys.length);
+            }
+            res = p.sync();
+            assertEquals(lookups, res.size());
+            for (int i = 0; i < lookups; i++) {
+                int k = i % keys.length;
+                assertEquals(k != 1 && k < key_cnt, res.get(i));
+            }
+
+            WriteBatch wb = new WriteBatch();
+            for (int i = 0; i < key_cnt; i += 2) {
+                wb.deleteKey(i);
+                wb.insertKey(key_cnt + i);
+            }
+            assertEquals(key_cnt, a.write(wb));
+            found = b.fetchKeys(keys);
+            for (int i = 0; i < keys.length; i++) {
+                int k = keys[i];
+                assertEquals(k != 1 && (k < key_cnt ? k % 2 == 1 : k % 2 == 0), found[i]);
+            }
+
+            // an error is returned in place, the rest of the pipeline is served
+            try (Socket s = new Socket("localhost", srv.getAddress().getPort())) {
+                DataOutputStream out = new DataOutputStream(s.getOutputStream());
+                DataInputStream in = new DataInputStream(s.getInputStream());
+                out.writeInt(1);
+                out.writeByte(42);
+                out.writeInt(5);
+                out.writeByte(LinearHashServer.OP_CONTAINS);
+                out.writeInt(key_cnt + 2);
+                out.flush();
+                int len = in.readInt();
+                assertEquals(LinearHashServer.STATUS_ERROR, in.readByte());
+                in.readFully(new byte[len - 1]);
+                assertEquals(2, in.readInt());
+                assertEquals(LinearHashServer.STATUS_OK, in.readByte());
+                assertEquals(1, in.readByte());
+            }
+            assertEquals(v_file.getBlockManager().getKeyCount(), a.size());
+        } finally {
+            srv.close();
+        }
+        v_file.commitFile();
+        LinearHash r_file = new LinearHash.Builder(v_fname).readOnly().build();
+        for (int i = 0; i < 2 * key_cnt; i++) {
+            assertEquals(i != 1 && (i < key_cnt ? i % 2 == 1 : i % 2 == 0), r_file.contains(i));
+        }
+        r_file.commitFile();
+    }
+
+    @Test
+    public void testLinearHash_SetOps() throws Exception {
+        String a_fname = "a_" + o_fname, f_fname = "f_" + o_fname, l_fname = "l_" + o_fname;
+
+        // tables of different sizes (and split states), with negative keys
+        // and, in the second one, the smallest key kept apart by lazy deletes
+        LinearHash a_file = new LinearHash.Builder(a_fname)
+                .keysPerBlock(keysPerBlock)
+                .initialPool(initial_pool)
+                .build();
+        LinearHash f_file = new LinearHash.Builder(f_fname)
+                .pageSize(1024)
+                .initialPool(initial_pool)
+                .lazyDeletes()
+                .build();
+        Set<Integer> a_set = new HashSet<>(), f_set = new HashSet<>();
+        for (int i = -2 * key_cnt; i < 2 * key_cnt; i++) {
+            if (i % 3 == 0) {
+                assertTrue(a_file.insertKey(i * 7919));
+                a_set.add(i * 7919);
+            }
+        }
+        for (int i = -key_cnt; i < 6 * key_cnt; i++) {
+            if (i % 2 == 0) {
+                assertTrue(f_file.insertKey(i * 7919));
+                f_set.add(i * 7919);
+            }
+        }
+        assertTrue(f_file.insertKey(Integer.MIN_VALUE));
+        f_set.add(Integer.MIN_VALUE);
+        a_file.commitFile();
+        f_file.commitFile();
+
+        LinearHashSetOps ops = new LinearHashSetOps(a_fname, f_fname).threads(3).maxKeysInMemory(key_cnt / 10);
+        Set<Integer> expected = new HashSet<>(a_set);
+        expected.retainAll(f_set);
+        assertEquals(expected.size(), ops.intersect(l_fname));
+        assertSetOp(l_fname, expected, a_set, f_set);
+
+        expected = new HashSet<>(a_set);
+        expected.addAll(f_set);
+        assertEquals(expected.size(), ops.union(l_fname));
+        assertSetOp(l_fname, expected, a_set, f_set);
+
+        expected = new HashSet<>(a_set);
+        expected.removeAll(f_set);
+        assertEquals(expected.size(), ops.difference(l_fname));
+        assertSetOp(l_fname, expected, a_set, f_set);
+
+        // visible pools sharing few factors (initial pools of 10 and 9)
+        expected = new HashSet<>(f_set);
+        expected.removeAll(a_set);
+        a_file = new LinearHash.Builder(a_fname)
+                .keysPerBlock(keysPerBlock)
+                .initialPool(9)
+                .importFrom(new ByteArrayInputStream(exportKeys(a_fname)));
+        a_file.commitFile();
+        assertEquals(expected.size(), new LinearHashSetOps(f_fname, a_fname).difference(l_fname));
+        assertSetOp(l_fname, expected, a_set, f_set);
+    }
+
+    @Test
+    public void testLinearHash_ChangeLog() throws Exception {
+        String z_fname = "z_" + o_fname, u_fname = "u_" + o_fname;
+        assertTrue(!new File(u_fname).exists() || new File(u_fname).delete());
+        assertTrue(!new File(u_fname + ".follow").exists() || new File(u_fname + ".follow").delete());
+
+        LinearHash z_file = new LinearHash.Builder(z_fname)
+                .keysPerBlock(keysPerBlock)
+                .initialPool(initial_pool)
+                .changeLog()
+                .build();
+        for (int i = 0; i < key_cnt; i++) {
+            assertTrue(z_file.insertKey(i));
+        }
+        assertFalse(z_file.insertKey(0));
+        assertEquals(key_cnt, z_file.getChangeSequence());
+
+        // a follower in another process tails the log while the table changes
+        long until = key_cnt + (key_cnt + 2) / 3 + key_cnt;
+        Process follower = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                "lhash.LinearHashFollower", z_fname, u_fname,
+                "--poll-interval", "5", "--until", String.valueOf(until))
+                .redirectErrorStream(true)
+                .start();
+        for (int i = 0; i < key_cnt; i += 3) {
+            assertTrue(z_file.deleteKey(i));
+        }
+        assertFalse(z_file.deleteKey(0));
+        WriteBatch wb = new WriteBatch();
+        for (int i = key_cnt; i < 2 * key_cnt; i++) {
+            wb.insertKey(i);
+        }
+        assertEquals(key_cnt, z_file.write(wb));
+        assertEquals(until, z_file.getChangeSequence());
+        assertTrue(follower.waitFor(60, TimeUnit.SECONDS));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int b; (b = follower.getInputStream().read()) >= 0; ) {
+            out.write(b);
+        }
+        assertEquals(out.toString(), 0, follower.exitValue());
+
+        LinearHash u_file = new LinearHash.Builder(u_fname).readOnly().build();
+        for (int i = 0; i < 2 * key_cnt; i++) {
+            assertEquals(i >= key_cnt || i % 3 != 0, u_file.contains(i));
+        }
+        u_file.commitFile();
+
+        // the changes in order, from any sequence number
+        LinearHashChangeReader changes = new LinearHashChangeReader(z_fname, key_cnt);
+        assertTrue(changes.next());
+        assertEquals(key_cnt, changes.getSequence());
+        assertEquals(key_cnt - 1, changes.getKey());
+        assertTrue(changes.isInsert());
+        assertTrue(changes.next());
+        assertEquals(0, changes.getKey());
+        assertFalse(changes.isInsert());
+        long last = changes.getSequence();
+        while (changes.next()) {
+            assertEquals(++last, changes.getSequence());
+        }
+        assertEquals(until, last);
+        assertFalse(changes.next(10, TimeUnit.MILLISECONDS));
+
+        // a follower started again goes on from where it stopped
+        u_file = new LinearHash.Builder(u_fname).overrideFile(false).build();
+        LinearHashFollower f = new LinearHashFollower(z_fname, u_file);
+        assertEquals(until, f.getAppliedSequence());
+        assertEquals(0, f.poll());
+        assertTrue(z_file.deleteKey(1));
+        assertTrue(changes.next(1, TimeUnit.SECONDS));
+        assertEquals(1, changes.getKey());
+        assertEquals(1, f.poll());
+        assertFalse(u_file.contains(1));
+        changes.close();
+        f.close();
+        u_file.commitFile();
+
+        // the log is kept on, and tables holding keys start it with them
+        z_file.commitFile();
+        z_file = new LinearHash.Builder(z_fname).overrideFile(false).build();
+        assertTrue(z_file.insertKey(1));
+        assertEquals(until + 2, z_file.getChangeSequence());
+        z_file.commitFile();
+
+        // rebuilt in place, the table keeps logging from the same sequence number
+        LinearHash r_file = new LinearHash.Builder(z_fname).readOnly().build();
+        int z_keys = r_file.getStats().getKeyCount();
+        r_file.commitFile();
+        assertEquals(z_keys, new LinearHashRebuild(z_fname).keysPerBlock(64).threads(2).run(z_fname));
+        assertFalse(ChangeLog.file(z_fname + ".rebuild").exists());
+        z_file = new LinearHash.Builder(z_fname).overrideFile(false).build();
+        assertTrue(z_file.deleteKey(1));
+        assertEquals(until + 3, z_file.getChangeSequence());
+        z_file.commitFile();
+        u_file = new LinearHash.Builder(u_fname).overrideFile(false).changeLog().build();
+        assertEquals(u_file.getStats().getKeyCount(), u_file.getChangeSequence());
+        u_file.commitFile();
+        // tables with a log of their own are not replaced by other keys
+        try {
+            new LinearHashRebuild(z_fname).run(u_fname);
+            fail("Replaced a table with a change log");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("change log"));
+        }
+        try {
+            new LinearHashSetOps(z_fname, z_fname).union(u_fname);
+            fail("Replaced a table with a change log");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("change log"));
+        }
+
+        // leave no logs behind
+        assertTrue(new File(z_fname + ".changes").delete());
+        assertTrue(new File(u_fname + ".changes").delete());
+        assertTrue(new File(u_fname + ".follow").delete());
+    }
+
+    @Test
+    public void testLinearHash_Multimap() throws Exception {
+        String o_mm_fname = "o_" + o_fname;
+        // small pages and entries, for long lists, overflow pages, splits and merges
+        LinearHashMultimap mm = new LinearHashMultimap.Builder(o_mm_fname)
+                .pageSize(256)
+                .inlineIds(4)
+                .build();
+        Map<Integer, List<Integer>> model = new HashMap<>();
+        Random rnd = new Random(50);
+        for (int i = 0; i < 40000; i++) {
+            // a few keys get long lists, most keep a handful of ids
+            int key = rnd.nextInt(10) == 0 ? rnd.nextInt(8) : rnd.nextInt(3000) - 1500,
+                    id = rnd.nextInt(100);
+            if (rnd.nextInt(3) == 0) {
+                List<Integer> ids = model.get(key);
+                boolean found = ids != null && ids.remove(Integer.valueOf(id));
+                assertEquals(found, mm.remove(key, id));
+                if (ids != null && ids.isEmpty()) {
+                    model.remove(key);
+                }
+            } else {
+                model.computeIfAbsent(key, k -> new ArrayList<>()).add(id);
+                mm.add(key, id);
+            }
+        }
+        assertMultimap(mm, model);
+        int pool = mm.getPoolSize();
+        assertTrue(pool > 16);
+
+        // reopened as committed
+        mm.commitFile();
+        mm = new LinearHashMultimap.Builder(o_mm_fname).overrideFile(false).build();
+        assertEquals(pool, mm.getPoolSize());
+        assertMultimap(mm, model);
+
+        // emptied, the buckets merge back and the pages are reused
+        int pages = mm.getPageCount();
+        for (Map.Entry<Integer, List<Integer>> e : model.entrySet()) {
+            for (int id : e.getValue()) {
+                assertTrue(mm.remove(e.getKey(), id));
+            }
+            assertFalse(mm.containsKey(e.getKey()));
+        }
+        assertEquals(0, mm.getKeyCount());
+        assertEquals(0, mm.getIdCount());
+        assertEquals(16, mm.getPoolSize());
+        model.clear();
+        for (int id = 0; id < 1000; id++) {
+            mm.add(7, id);
+            model.computeIfAbsent(7, k -> new ArrayList<>()).add(id);
+        }
+        assertEquals(pages, mm.getPageCount());
+        assertMultimap(mm, model);
+        mm.commitFile();
+    }
+
+    /**
+     * Check that a multimap holds exactly the lists of a model
+     *
+     * @param mm    the multimap.
+     * @param model the lists it should hold.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void assertMultimap(LinearHashMultimap mm, Map<Integer, List<Integer>> model)
+            throws IOException {
+        long ids = 0;
+        for (Map.Entry<Integer, List<Integer>> e : model.entrySet()) {
+            List<Integer> got = new ArrayList<>();
+            mm.getAll(e.getKey()).forEachRemaining((IntConsumer) got::add);
+            List<Integer> expected = new ArrayList<>(e.getValue());
+            Collections.sort(got);
+            Collections.sort(expected);
+            assertEquals(expected, got);
+            assertEquals(expected.size(), mm.count(e.getKey()));
+            ids += expected.size();
+        }
+        assertFalse(mm.getAll(1 << 20).hasNext());
+        assertEquals(model.size(), mm.getKeyCount());
+        assertEquals(ids, mm.getIdCount());
+    }
+
+    /**
+     * Check that a table holds exactly the given keys, out of the keys of
+     * two tables
+     *
+     * @param fname    the table.
+     * @param expected the keys it should hold.
+     * @param a_set    keys of the first table.
+     * @param b_set    keys of the second table.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private void assertSetOp(String fname, Set<Integer> expected,
+                             Set<Integer> a_set, Set<Integer> b_set)
+            throws IOException {
+        LinearHash file = new LinearHash.Builder(fname).readOnly().build();
+        assertEquals(expected.size(), file.getStats().getKeyCount());
+        for (int k : a_set) {
+            assertEquals(expected.contains(k), file.contains(k));
+        }
+        for (int k : b_set) {
+            assertEquals(expected.contains(k), file.contains(k));
+        }
+        file.commitFile();
+    }
+
+    /**
+     * Export the keys of a table
+     *
+     * @param fname the table.
+     * @return the snapshot of its keys.
+     * @throws IOException is thrown when there is an I/O error during the operation.
+     */
+    private byte[] exportKeys(String fname) throws IOException {
+        LinearHash file = new LinearHash.Builder(fname).readOnly().build();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        file.exportTo(out);
+        file.commitFile();
+        return (out.toByteArray());
+    }
+}
@@ -0,0 +1,254 @@
+package lhash;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * I/O regression suite: fixed workloads (seeds and sizes) are run against a
+ * few table configurations, and the I/O they take per operation is compared
+ * with the baselines in {@code io_baselines.properties}. Block I/Os, calls
+ * reaching the file and bytes moved do not depend on the machine, so unlike
+ * timings they can be checked on any CI host.
+ *
+ * A change that is meant to alter the I/O of the table should come with new
+ * baselines, written to the source tree by running the suite with
+ * {@code -Dlhash.updateBaselines=true}.
+ */
+public class LinearHashIOTest {
+    private String o_fname = "io_lin_hash_file.bin";
+
+    private static final String BASELINES = "io_baselines.properties";
+
+    // relative difference tolerated, either way
+    private static final double TOLERANCE = 0.05;
+
+    private int key_cnt = 10000;
+
+    private int keysPerBlock = 32,
+            initial_pool = 10,
+            epoch_thresh = 100;
+
+    /**
+     * Run every configuration and compare the results with the baselines.
+     *
+     * @throws Exception is thrown when an I/O error is detected.
+     */
+    @Test
+    public void testIOBaselines() throws Exception {
+        Map<String, Double> measured = new TreeMap<>();
+        measure("default", new LinearHash.Builder(o_fname)
+                .keysPerBlock(keysPerBlock), measured);
+        measure("paged", new LinearHash.Builder(o_fname)
+                .pageSize(1024), measured);
+        measure("lazy", new LinearHash.Builder(o_fname)
+                .keysPerBlock(keysPerBlock)
+                .lazyDeletes(), measured);
+        measure("prealloc", new LinearHash.Builder(o_fname)
+                .keysPerBlock(keysPerBlock)
+                .preallocate(64), measured);
+        measureBatch("batch", new LinearHash.Builder(o_fname)
+                .keysPerBlock(keysPerBlock), measured);
+
+        if (Boolean.getBoolean("lhash.updateBaselines")) {
+            writeBaselines(measured);
+            return;
+        }
+        Properties base = new Properties();
+        try (InputStream in = getClass().getResourceAsStream(BASELINES)) {
+            assertNotNull("Missing " + BASELINES, in);
+            base.load(in);
+        }
+        StringBuilder off = new StringBuilder();
+        for (Map.Entry<String, Double> e : measured.entrySet()) {
+            String b = base.getProperty(e.getKey());
+            if (b == null) {
+                off.append(String.format(Locale.ROOT, "\n  %s: %.4f, no baseline", e.getKey(), e.getValue()));
+                continue;
+            }
+            double expected = Double.parseDouble(b),
+                    got = e.getValue();
+            if (Math.abs(got - expected) > TOLERANCE * expected + 1e-3) {
+                off.append(String.format(Locale.ROOT, "\n  %s: %.4f, baseline %.4f (%+.1f%%)",
+                        e.getKey(), got, expected, expected == 0 ? 100.0 : 100.0 * (got - expected) / expected));
+            }
+        }
+        assertTrue("I/O off the baselines (rerun with -Dlhash.updateBaselines=true " +
+                "if the change is intended):" + off, off.length() == 0);
+    }
+
+    /**
+     * Return the keys of a workload; they are distinct, so every insert and
+     * delete of them succeeds
+     *
+     * @param seed the seed of the keys.
+     * @return the keys.
+     */
+    private int[] keys(long seed) {
+        int keys[] = new int[key_cnt],
+                off = new Random(seed).nextInt();
+        for (int i = 0; i < key_cnt; i++) {
+            // odd multiplier: distinct for distinct i, scattered over the int range
+            keys[i] = i * 0x9E3779B1 + off;
+        }
+        return (keys);
+    }
+
+    /**
+     * Insert, fetch (hits and misses) and delete a fixed set of keys one at a
+     * time, recording the I/O of each kind of operation.
+     *
+     * @param name     the configuration name, prefix of its results.
+     * @param builder  the table configuration.
+     * @param measured where to put the results.
+     * @throws IOException is thrown when an I/O error is detected.
+     */
+    private void measure(String name, LinearHash.Builder builder, Map<String, Double> measured)
+            throws IOException {
+        int keys[] = keys(7), miss[] = keys(11);
+        LinearHash lh = builder
+                .initialPool(initial_pool)
+                .balanceFactors(0.8f, 0.5f)
+                .epochThreshold(epoch_thresh)
+                .build();
+
+        // inserts, apart the ones that split a bucket from the rest
+        long split_ops = 0, split_io = 0, split_bytes = 0;
+        LinearHashStats start = lh.getStats(), prev = start;
+        for (int k : keys) {
+            assertTrue(lh.insertKey(k));
+            LinearHashStats now = lh.getStats();
+            if (now.getSplits() > prev.getSplits()) {
+                split_ops++;
+                split_io += now.getIOCount() - prev.getIOCount();
+                split_bytes += bytes(now) - bytes(prev);
+            }
+            prev = now;
+        }
+        long ins_ops = key_cnt - split_ops;
+        measured.put(name + ".insert.io", (prev.getIOCount() - start.getIOCount() - split_io) / (double) ins_ops);
+        measured.put(name + ".insert.bytes", (bytes(prev) - bytes(start) - split_bytes) / (double) ins_ops);
+        measured.put(name + ".insert.syscalls", (prev.getSyscalls() - start.getSyscalls()) / (double) key_cnt);
+        assertTrue(name + " does not split", split_ops > 0);
+        measured.put(name + ".split.io", split_io / (double) split_ops);
+        measured.put(name + ".split.bytes", split_bytes / (double) split_ops);
+        measured.put(name + ".file.bytes_per_key", lh.getStats().getFileSize() / (double) key_cnt);
+        measured.put(name + ".file.allocated_bytes_per_key", lh.getStats().getAllocatedFileSize() / (double) key_cnt);
+
+        start = lh.getStats();
+        for (int k : keys) {
+            assertTrue(lh.contains(k));
+        }
+        prev = lh.getStats();
+        perOp(name + ".fetch_hit", start, prev, key_cnt, measured);
+        for (int k : miss) {
+            lh.contains(k);
+        }
+        start = lh.getStats();
+        perOp(name + ".fetch_miss", prev, start, key_cnt, measured);
+        for (int k : keys) {
+            assertTrue(lh.deleteKey(k));
+        }
+        prev = lh.getStats();
+        perOp(name + ".delete", start, prev, key_cnt, measured);
+        lh.commitFile();
+    }
+
+    /**
+     * Insert and delete a fixed set of keys through write batches, recording
+     * the I/O per key.
+     *
+     * @param name     the configuration name, prefix of its results.
+     * @param builder  the table configuration.
+     * @param measured where to put the results.
+     * @throws IOException is thrown when an I/O error is detected.
+     */
+    private void measureBatch(String name, LinearHash.Builder builder, Map<String, Double> measured)
+            throws IOException {
+        int keys[] = keys(7), batch = 1000;
+        LinearHash lh = builder
+                .initialPool(initial_pool)
+                .balanceFactors(0.8f, 0.5f)
+                .epochThreshold(epoch_thresh)
+                .build();
+        WriteBatch wb = new WriteBatch(batch);
+
+        LinearHashStats start = lh.getStats();
+        for (int i = 0; i < key_cnt; i += batch) {
+            for (int j = i; j < i + batch; j++) {
+                wb.insertKey(keys[j]);
+            }
+            lh.write(wb);
+            wb.clear();
+        }
+        LinearHashStats now = lh.getStats();
+        perOp(name + ".insert", start, now, key_cnt, measured);
+        measured.put(name + ".file.bytes_per_key", lh.getStats().getFileSize() / (double) key_cnt);
+        measured.put(name + ".file.allocated_bytes_per_key", lh.getStats().getAllocatedFileSize() / (double) key_cnt);
+        for (int i = 0; i < key_cnt; i += batch) {
+            for (int j = i; j < i + batch; j++) {
+                wb.deleteKey(keys[j]);
+            }
+            lh.write(wb);
+            wb.clear();
+        }
+        perOp(name + ".delete", now, lh.getStats(), key_cnt, measured);
+        lh.commitFile();
+    }
+
+    /**
+     * Record the I/O per operation between two snapshots
+     *
+     * @param name     the prefix of the results.
+     * @param before   the snapshot before the operations.
+     * @param after    the snapshot after them.
+     * @param ops      the number of operations.
+     * @param measured where to put the results.
+     */
+    private void perOp(String name, LinearHashStats before, LinearHashStats after, int ops,
+                       Map<String, Double> measured) {
+        measured.put(name + ".io", (after.getIOCount() - before.getIOCount()) / (double) ops);
+        measured.put(name + ".bytes", (bytes(after) - bytes(before)) / (double) ops);
+        measured.put(name + ".syscalls", (after.getSyscalls() - before.getSyscalls()) / (double) ops);
+    }
+
+    /**
+     * Return the bytes moved (read and written) up to a snapshot
+     *
+     * @param s the snapshot.
+     * @return the bytes read and written.
+     */
+    private static long bytes(LinearHashStats s) {
+        return (s.getBytesRead() + s.getBytesWritten());
+    }
+
+    /**
+     * Write the results as the new baselines, into the source tree
+     *
+     * @param measured the results.
+     * @throws IOException is thrown when the baselines cannot be written.
+     */
+    private void writeBaselines(Map<String, Double> measured) throws IOException {
+        File f = new File("src/test/resources/lhash/" + BASELINES);
+        assertTrue(f.getParentFile().isDirectory() || f.getParentFile().mkdirs());
+        try (PrintWriter out = new PrintWriter(f, StandardCharsets.UTF_8.name())) {
+            out.println("# I/O per operation of the LinearHashIOTest workloads; regenerate with");
+            out.println("# mvn test -Dtest=LinearHashIOTest -Dlhash.updateBaselines=true");
+            for (Map.Entry<String, Double> e : measured.entrySet()) {
+                out.println(String.format(Locale.ROOT, "%s=%.4f", e.getKey(), e.getValue()));
+            }
+        }
+    }
+}
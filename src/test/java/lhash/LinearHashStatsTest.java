@@ -0,0 +1,161 @@
+package lhash;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LinearHashStatsTest {
+    private String o_fname = "stats_lin_hash_file.bin";
+
+    private int key_cnt = 2000;
+
+    private int keysPerBlock = 32,
+            initial_pool = 10,
+            epoch_thresh = 100;
+
+    /**
+     * Check that the snapshot counters follow the issued operations.
+     *
+     * @throws Exception is thrown when an I/O error is detected.
+     */
+    @Test
+    public void testStatsSnapshot() throws Exception {
+        LinearHash lh = new LinearHash(o_fname, keysPerBlock,
+                initial_pool, 0.8f, 0.5f, true, epoch_thresh);
+
+        for (int i = 0; i < key_cnt; i++) {
+            lh.insertKey(i);
+        }
+        for (int i = 0; i < key_cnt; i++) {
+            lh.fetchKey(i);
+        }
+
+        LinearHashStats stats = lh.getStats();
+        assertEquals(key_cnt, stats.getInserts());
+        assertEquals(key_cnt, stats.getFetches());
+        assertEquals(0, stats.getDeletes());
+        assertEquals(key_cnt, stats.getKeyCount());
+        assertTrue(stats.getSplits() > 0);
+        assertTrue(stats.getBytesRead() > 0);
+        assertTrue(stats.getBytesWritten() > 0);
+        assertTrue(stats.getSyscalls() > 0);
+        assertEquals(key_cnt, stats.getFetchLatency().getCount());
+        assertTrue(stats.getFetchLatency().getValueAtPercentile(50) <=
+                stats.getFetchLatency().getValueAtPercentile(99));
+        assertTrue(stats.getFetchLatency().getValueAtPercentile(100) <=
+                stats.getFetchLatency().getMax());
+
+        for (int i = 0; i < key_cnt; i++) {
+            lh.deleteKey(i);
+        }
+        stats = lh.getStats();
+        assertEquals(key_cnt, stats.getDeletes());
+        assertEquals(0, stats.getKeyCount());
+        assertTrue(stats.getMerges() > 0);
+
+        lh.commitFile();
+    }
+
+    /**
+     * Check the histogram bucket precision.
+     */
+    @Test
+    public void testHistogramPrecision() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 1000000; v++) {
+            h.record(v);
+        }
+        LinearHashStats.Histogram s = h.snapshot();
+        assertEquals(1000000, s.getCount());
+        assertEquals(1000000, s.getMax());
+        assertEquals(500000.5, s.getMean(), 1e-6);
+        long p50 = s.getValueAtPercentile(50);
+        long p99 = s.getValueAtPercentile(99);
+        assertTrue(Math.abs(p50 - 500000) <= 500000 / 64);
+        assertTrue(Math.abs(p99 - 990000) <= 990000 / 64);
+    }
+
+    /**
+     * Check that the MBean is registered and removed on commit.
+     *
+     * @throws Exception is thrown when an I/O or JMX error is detected.
+     */
+    @Test
+    public void testMBeanRegistration() throws Exception {
+        LinearHash lh = new LinearHash("mbean_" + o_fname, keysPerBlock,
+                initial_pool, 0.8f, 0.5f, true, epoch_thresh);
+        MBeanServer srv = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = lh.registerMBean();
+
+        for (int i = 0; i < 100; i++) {
+            lh.insertKey(i);
+        }
+        assertTrue(srv.isRegistered(name));
+        assertEquals(100L, srv.getAttribute(name, "Inserts"));
+        assertEquals(100, srv.getAttribute(name, "KeyCount"));
+
+        lh.commitFile();
+        assertFalse(srv.isRegistered(name));
+    }
+
+    /**
+     * Check that the adaptive balance factors move within their bounds and
+     * that every adjustment shows in the statistics.
+     *
+     * @throws Exception is thrown when an I/O error is detected.
+     */
+    @Test
+    public void testAdaptiveBalance() throws Exception {
+        Random rnd = new Random(42);
+        int keys[] = new int[4 * key_cnt];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = rnd.nextInt();
+        }
+
+        // long chains against a low target: blocks split sooner
+        LinearHash lh = new LinearHash.Builder("adapt_" + o_fname)
+                .keysPerBlock(keysPerBlock)
+                .initialPool(initial_pool)
+                .balanceFactors(0.95f, 0.5f)
+                .epochThreshold(epoch_thresh)
+                .adaptiveBalance(0.6f, 0.95f, 0.05f)
+                .build();
+        for (int k : keys) {
+            lh.insertKey(k);
+        }
+        LinearHashStats stats = lh.getStats();
+        assertTrue(stats.getBalanceAdjustments() > 0);
+        float bf = stats.getBalanceFactorForInserts();
+        assertTrue(bf < 0.95f && bf >= 0.6f - 1e-6);
+        assertEquals(bf * 0.5f / 0.95f, stats.getBalanceFactorForDeletes(), 1e-6);
+        for (int k : keys) {
+            assertTrue(lh.contains(k));
+        }
+        lh.commitFile();
+
+        // short chains against a high target: blocks fill up
+        lh = new LinearHash.Builder("adapt_" + o_fname)
+                .keysPerBlock(keysPerBlock)
+                .initialPool(initial_pool)
+                .balanceFactors(0.5f, 0.3f)
+                .epochThreshold(epoch_thresh)
+                .adaptiveBalance(0.5f, 0.9f, 4f)
+                .build();
+        for (int i = 0; i < 4 * key_cnt; i++) {
+            lh.insertKey(i);
+        }
+        stats = lh.getStats();
+        bf = stats.getBalanceFactorForInserts();
+        assertTrue(stats.getBalanceAdjustments() > 0);
+        assertTrue(bf > 0.5f && bf <= 0.9f + 1e-6);
+        assertTrue(stats.getLoadFactor() > 0.5f);
+        lh.commitFile();
+    }
+}